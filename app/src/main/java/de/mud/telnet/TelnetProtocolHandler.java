@@ -26,6 +26,11 @@
 package de.mud.telnet;
 
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.ArrayList;
 
 /**
@@ -45,8 +50,33 @@ public abstract class TelnetProtocolHandler {
   /** debug level */
   private final static int debug = 0;
 
-  /** temporary buffer for data-telnetstuff-data transformation */
-  private byte[] tempbuf = new byte[0];
+  /** initial size of the input ring buffer, it only grows for larger reads */
+  private final static int INBUF_SIZE = 8192;
+  /** longest subnegotiation we keep, anything beyond is dropped */
+  private final static int SBBUF_SIZE = 1024;
+
+  /** ring buffer of received data not yet run through negotiate() */
+  private byte[] inbuf = new byte[INBUF_SIZE];
+  /** where the unprocessed data in inbuf starts */
+  private int inpos = 0;
+  /** amount of unprocessed data in inbuf */
+  private int incount = 0;
+  /** views of the free space in inbuf for reading from a channel */
+  private ByteBuffer[] inviews;
+
+  /** decompresses the input while MCCP is active, null otherwise */
+  private Inflater inflater;
+  /** compressed input waiting to be inflated into inbuf */
+  private byte[] zbuf = new byte[INBUF_SIZE];
+  /** amount of data in zbuf handed to the inflater */
+  private int zlen = 0;
+  /** view of zbuf for reading from a channel */
+  private ByteBuffer zview;
+
+  /** reused for the IAC replies sent during negotiation */
+  private final byte[] sendbuf = new byte[3];
+  /** reused for the output of transpose() */
+  private byte[] transbuf = new byte[0];
 
   /** the data sent on pressing <RETURN>  \n */
   private byte[] crlf = new byte[2];
@@ -94,20 +124,22 @@ public abstract class TelnetProtocolHandler {
   protected abstract void write(byte[] b) throws IOException;
 
   /**
-   * Read the charset name from terminal.
+   * Send part of a buffer to the remote host. Override this to avoid the
+   * copy made by the default implementation.
+   * @param b array of bytes to send
+   * @param offset where the data starts
+   * @param length number of bytes to send
    */
-  protected abstract String getCharsetName();
+  protected void write(byte[] b, int offset, int length) throws IOException {
+    byte[] xb = new byte[length];
+    System.arraycopy(b, offset, xb, 0, length);
+    write(xb);
+  }
 
   /**
-   * Send one byte to the remote host.
-   * @param b the byte to be sent
-   * @see #write(byte[] b)
+   * Read the charset name from terminal.
    */
-  private static byte[] one = new byte[1];
-  private void write(byte b) throws IOException {
-    one[0] = b;
-    write(one);
-  }
+  protected abstract String getCharsetName();
 
   /**
    * Reset the protocol handler. This may be necessary after the
@@ -115,6 +147,10 @@ public abstract class TelnetProtocolHandler {
    */
   public void reset() {
     neg_state = 0;
+    inpos = 0;
+    incount = 0;
+    sblen = 0;
+    endCompression();
     receivedDX = new byte[256];
     sentDX = new byte[256];
     receivedWX = new byte[256];
@@ -144,7 +180,9 @@ public abstract class TelnetProtocolHandler {
   private byte current_sb;
 
   /** current SB negotiation buffer */
-  private byte[] sbbuf;
+  private final byte[] sbbuf = new byte[SBBUF_SIZE];
+  /** amount of data in sbbuf */
+  private int sblen;
 
   /** IAC - init sequence for telnet negotiation. */
   private final static byte IAC  = (byte)255;
@@ -170,12 +208,16 @@ public abstract class TelnetProtocolHandler {
   private final static byte TELOPT_SGA   = (byte)3;  /* supress go ahead */
   /** Telnet option: End Of Record */
   private final static byte TELOPT_EOR   = (byte)25;  /* end of record */
+  /** Telnet option: timing mark */
+  private final static byte TELOPT_TM    = (byte)6;  /* timing mark */
   /** Telnet option: Negotiate About Window Size */
   private final static byte TELOPT_NAWS  = (byte)31;  /* NA-WindowSize*/
   /** Telnet option: Terminal Type */
   private final static byte TELOPT_TTYPE  = (byte)24;  /* terminal type */
   /** Telnet option: CHARSET */
   private final static byte TELOPT_CHARSET= (byte)42;  /* charset */
+  /** Telnet option: MUD Client Compression Protocol v2 */
+  private final static byte TELOPT_COMPRESS2 = (byte)86;  /* MCCP2 */
 
   private final static byte[] IACWILL  = { IAC, WILL };
   private final static byte[] IACWONT  = { IAC, WONT };
@@ -183,6 +225,7 @@ public abstract class TelnetProtocolHandler {
   private final static byte[] IACDONT  = { IAC, DONT };
   private final static byte[] IACSB  = { IAC, SB };
   private final static byte[] IACSE  = { IAC, SE };
+  private final static byte[] IACDOTM = { IAC, DO, TELOPT_TM };
 
   private final static byte CHARSET_ACCEPTED = (byte)2;
   private final static byte CHARSET_REJECTED = (byte)3;
@@ -213,6 +256,16 @@ public abstract class TelnetProtocolHandler {
     write(b);
   }
 
+  /**
+   * Ask for a timing mark (RFC 860). The remote end answers WILL or WONT
+   * TIMING-MARK once it has seen everything sent before, so unlike a NOP
+   * this tells whether the other side is still there.
+   */
+  public void sendTimingMark()
+    throws IOException {
+    write(IACDOTM, 0, IACDOTM.length);
+  }
+
   /**
    * Helper Method to convert ArrayList<Bytes> to Byte[] array.
    * @param byteArray
@@ -261,15 +314,16 @@ public abstract class TelnetProtocolHandler {
    * Handle an incoming IAC SB &lt;type&gt; &lt;bytes&gt; IAC SE
    * @param type type of SB
    * @param sbdata byte array as &lt;bytes&gt;
+   * @param sblength number of bytes in sbdata
    */
-  private void handle_sb(byte type, byte[] sbdata)
+  private void handle_sb(byte type, byte[] sbdata, int sblength)
     throws IOException {
     if (debug > 1)
       System.err.println("TelnetIO.handle_sb("+type+")");
 
     switch(type) {
     case TELOPT_TTYPE: {
-        if(sbdata.length > 0 && sbdata[0]==TELQUAL_SEND) {
+        if(sblength > 0 && sbdata[0]==TELQUAL_SEND) {
 
           // Use List to hold and send entire sequence at one time.
           ArrayList<Byte> byteArray = new ArrayList<>();
@@ -312,7 +366,7 @@ public abstract class TelnetProtocolHandler {
         byteArray.add(SB);
         byteArray.add(TELOPT_CHARSET);
 
-        String charsetStr = new String(sbdata, "US-ASCII");
+        String charsetStr = new String(sbdata, 0, sblength, "US-ASCII");
         if(charsetStr.startsWith("TTABLE ")) {
           charsetStr = charsetStr.substring(7);
         }
@@ -368,13 +422,16 @@ public abstract class TelnetProtocolHandler {
    * @param buf the data buffer to be sent
    */
   public void transpose(byte[] buf) throws IOException {
-    int i;
+    boolean binary = receivedDX[TELOPT_BINARY + 128] == DO;
+    int nbufptr = 0;
 
-    byte[] nbuf,xbuf;
-    int nbufptr=0;
-    nbuf = new byte[buf.length*2]; // FIXME: buffer overflows possible
+    // worst case every byte expands to the longest replacement
+    int expand = Math.max(2, Math.max(crlf.length, cr.length));
+    if (transbuf.length < buf.length * expand)
+      transbuf = new byte[buf.length * expand];
+    byte[] nbuf = transbuf;
 
-    for (i = 0; i < buf.length ; i++) {
+    for (int i = 0; i < buf.length ; i++) {
       switch (buf[i]) {
       // Escape IAC twice in stream ... to be telnet protocol compliant
       // this is there in binary and non-binary mode.
@@ -386,15 +443,9 @@ public abstract class TelnetProtocolHandler {
       // we assume that the Terminal sends \n for lf+cr and \r for just cr
       // linefeed+carriage return is CR LF */
       case 10:	// \n
-        if (receivedDX[TELOPT_BINARY + 128 ] != DO) {
-	    while (nbuf.length - nbufptr < crlf.length) {
-		    xbuf = new byte[nbuf.length*2];
-		    System.arraycopy(nbuf,0,xbuf,0,nbufptr);
-		    nbuf = xbuf;
-	    }
+        if (!binary) {
 	    for (int j=0;j<crlf.length;j++)
 		nbuf[nbufptr++]=crlf[j];
-	    break;
 	} else {
 	    // copy verbatim in binary mode.
 	    nbuf[nbufptr++]=buf[i];
@@ -402,12 +453,7 @@ public abstract class TelnetProtocolHandler {
 	break;
       // carriage return is CR NUL */
       case 13:	// \r
-        if (receivedDX[TELOPT_BINARY + 128 ] != DO) {
-	    while (nbuf.length - nbufptr < cr.length) {
-		    xbuf = new byte[nbuf.length*2];
-		    System.arraycopy(nbuf,0,xbuf,0,nbufptr);
-		    nbuf = xbuf;
-	    }
+        if (!binary) {
 	    for (int j=0;j<cr.length;j++)
 		nbuf[nbufptr++]=cr[j];
 	} else {
@@ -421,9 +467,7 @@ public abstract class TelnetProtocolHandler {
 	break;
       }
     }
-    xbuf = new byte[nbufptr];
-    System.arraycopy(nbuf,0,xbuf,0,nbufptr);
-    write(xbuf);
+    write(nbuf, 0, nbufptr);
   }
 
   public void setCRLF(String xcrlf) { crlf = xcrlf.getBytes(); }
@@ -439,18 +483,23 @@ public abstract class TelnetProtocolHandler {
   public int negotiate(byte nbuf[], int offset)
   throws IOException
   {
-    int count = tempbuf.length;
-    byte[] buf = tempbuf;
-    byte sendbuf[] = new byte[3];
+    if (inflater != null)
+      inflate();
+
+    byte[] buf = inbuf;
+    int bufsize = buf.length;
     byte b,reply;
-    int boffset = 0, noffset = offset;
+    int noffset = offset;
     boolean dobreak = false;
 
-    if (count == 0) 	// buffer is empty.
+    if (incount == 0) 	// buffer is empty.
       return -1;
 
-    while(!dobreak && (boffset < count) && (noffset < nbuf.length)) {
-      b=buf[boffset++];
+    while(!dobreak && (incount > 0) && (noffset < nbuf.length)) {
+      b=buf[inpos++];
+      if (inpos == bufsize)
+        inpos = 0;
+      incount--;
       // of course, byte is a signed entity (-128 -> 127)
       // but apparently the SGI Netscape 3.0 doesn't seem
       // to care and provides happily values up to 255
@@ -508,6 +557,11 @@ public abstract class TelnetProtocolHandler {
         }
         break;
       case STATE_IACWILL:
+        if (b == TELOPT_TM) {
+          /* answer to our timing mark, nothing to negotiate */
+          neg_state = STATE_DATA;
+          break;
+        }
         switch(b) {
         case TELOPT_ECHO:
           if(debug > 2) System.err.println("ECHO");
@@ -526,6 +580,10 @@ public abstract class TelnetProtocolHandler {
           if(debug > 2) System.err.println("BINARY");
           reply = DO;
           break;
+        case TELOPT_COMPRESS2:
+          if(debug > 2) System.err.println("COMPRESS2");
+          reply = DO;
+          break;
         default:
           if(debug > 2) System.err.println("<UNKNOWN,"+b+">");
           reply = DONT;
@@ -543,6 +601,10 @@ public abstract class TelnetProtocolHandler {
         neg_state = STATE_DATA;
         break;
       case STATE_IACWONT:
+        if (b == TELOPT_TM) {
+          neg_state = STATE_DATA;
+          break;
+        }
         switch(b) {
         case TELOPT_ECHO:
           if(debug > 2) System.err.println("ECHO");
@@ -674,7 +736,10 @@ public abstract class TelnetProtocolHandler {
           break;
         }
         if(reply != sentWX[b+128] || DONT != receivedDX[b+128]) {
-          write(IAC);write(reply);write(b);
+          sendbuf[0]=IAC;
+          sendbuf[1]=reply;
+          sendbuf[2]=b;
+          write(sendbuf);
           sentWX[b+128] = reply;
           receivedDX[b+128] = DONT;
         }
@@ -683,7 +748,7 @@ public abstract class TelnetProtocolHandler {
       case STATE_IACSBIAC:
         if(debug > 2) System.err.println(""+b+" ");
         if (b == IAC) {
-	  sbbuf = new byte[0];
+	  sblen = 0;
           current_sb = b;
           neg_state = STATE_IACSBDATA;
         } else {
@@ -699,7 +764,7 @@ public abstract class TelnetProtocolHandler {
           break;
         default:
           current_sb = b;
-	  sbbuf = new byte[0];
+	  sblen = 0;
           neg_state = STATE_IACSBDATA;
           break;
         }
@@ -711,10 +776,8 @@ public abstract class TelnetProtocolHandler {
           neg_state = STATE_IACSBDATAIAC;
           break;
         default:
-	  byte[] xsb = new byte[sbbuf.length+1];
-          System.arraycopy(sbbuf,0,xsb,0,sbbuf.length);
-	  sbbuf = xsb;
-          sbbuf[sbbuf.length-1] = b;
+          if (sblen < sbbuf.length)
+            sbbuf[sblen++] = b;
           break;
         }
         break;
@@ -723,18 +786,21 @@ public abstract class TelnetProtocolHandler {
         switch (b) {
         case IAC:
           neg_state = STATE_IACSBDATA;
-	  byte[] xsb = new byte[sbbuf.length+1];
-          System.arraycopy(sbbuf,0,xsb,0,sbbuf.length);
-	  sbbuf = xsb;
-          sbbuf[sbbuf.length-1] = IAC;
+          if (sblen < sbbuf.length)
+            sbbuf[sblen++] = IAC;
           break;
         case SE:
-          handle_sb(current_sb,sbbuf);
-          current_sb = 0;
+          handle_sb(current_sb,sbbuf,sblen);
           neg_state = STATE_DATA;
+          // everything after IAC SB COMPRESS2 IAC SE is compressed
+          if (current_sb == TELOPT_COMPRESS2) {
+            startCompression();
+            dobreak = true;
+          }
+          current_sb = 0;
           break;
         case SB:
-          handle_sb(current_sb,sbbuf);
+          handle_sb(current_sb,sbbuf,sblen);
           neg_state = STATE_IACSB;
           break;
         default:
@@ -749,18 +815,192 @@ public abstract class TelnetProtocolHandler {
         break;
       }
     }
-    // shrink tempbuf to new processed size.
-    byte[] xb = new byte[count-boffset];
-    System.arraycopy(tempbuf,boffset,xb,0,count-boffset);
-    tempbuf = xb;
     return noffset - offset;
   }
 
+  /**
+   * Queue received data for negotiate(). The data is copied into a ring
+   * buffer which only has to grow if a single read is larger than the room
+   * left in it.
+   * @param b the received data
+   * @param offset where the data starts
+   * @param len number of bytes received
+   */
   public void inputfeed(byte[] b, int offset, int len) {
-    byte[] xb = new byte[tempbuf.length+len];
+    if (inflater != null) {
+      System.arraycopy(b, offset, compressedSpace(len), zlen, len);
+      zlen += len;
+      inflater.setInput(zbuf, 0, zlen);
+    } else
+      appendInput(b, offset, len);
+  }
+
+  /** Add uncompressed data to the ring buffer, growing it if needed. */
+  private void appendInput(byte[] b, int offset, int len) {
+    int size = inbuf.length;
+
+    if (incount + len > size) {
+      int newSize = size;
+      while (newSize < incount + len)
+        newSize *= 2;
+      byte[] xb = new byte[newSize];
+      copyOut(xb);
+      inbuf = xb;
+      inpos = 0;
+      size = newSize;
+    }
+
+    int tail = inpos + incount;
+    if (tail >= size)
+      tail -= size;
+    int first = Math.min(len, size - tail);
+    System.arraycopy(b, offset, inbuf, tail, first);
+    System.arraycopy(b, offset + first, inbuf, 0, len - first);
+    incount += len;
+  }
+
+  /**
+   * Read from a channel straight into the ring buffer, filling the free
+   * space on both sides of the wrap point with a single scattering read.
+   * @param channel where to read from
+   * @return number of bytes read, or -1 at the end of the stream
+   */
+  public int inputfeed(ScatteringByteChannel channel) throws IOException {
+    if (inflater != null) {
+      byte[] dst = compressedSpace(1);
+      if (zview == null || zview.array() != dst)
+        zview = ByteBuffer.wrap(dst);
+      setWindow(zview, zlen, dst.length);
+
+      int n = channel.read(zview);
+      if (n > 0) {
+        zlen += n;
+        inflater.setInput(zbuf, 0, zlen);
+      }
+      return n;
+    }
+
+    int size = inbuf.length;
+
+    if (incount == 0)
+      inpos = 0;
+    else if (incount == size) {
+      byte[] xb = new byte[size * 2];
+      copyOut(xb);
+      inbuf = xb;
+      inpos = 0;
+      size = xb.length;
+    }
+
+    if (inviews == null || inviews[0].array() != inbuf)
+      inviews = new ByteBuffer[] { ByteBuffer.wrap(inbuf), ByteBuffer.wrap(inbuf) };
+
+    int tail = inpos + incount;
+    if (tail >= size) {
+      // the data wraps, the free space is the single run up to inpos
+      setWindow(inviews[0], tail - size, inpos);
+      setWindow(inviews[1], 0, 0);
+    } else {
+      setWindow(inviews[0], tail, size);
+      setWindow(inviews[1], 0, inpos);
+    }
+
+    long n = channel.read(inviews);
+    if (n > 0)
+      incount += (int) n;
+    return (int) n;
+  }
+
+  private static void setWindow(Buffer view, int position, int limit) {
+    view.limit(limit);
+    view.position(position);
+  }
+
+  /**
+   * Switch to MCCP. Whatever is left in the ring buffer arrived after the
+   * start of the compressed stream, so it moves over to the inflater.
+   */
+  private void startCompression() {
+    if (inflater != null)
+      return;
+
+    if (zbuf.length < incount)
+      zbuf = new byte[incount];
+    copyOut(zbuf);
+    zlen = incount;
+    inpos = 0;
+    incount = 0;
+
+    inflater = new Inflater();
+    inflater.setInput(zbuf, 0, zlen);
+  }
+
+  /** Go back to uncompressed input, e.g. at the end of the compressed stream. */
+  private void endCompression() {
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
+    zlen = 0;
+  }
+
+  /**
+   * Make room for len more bytes of compressed input after the data the
+   * inflater has not consumed yet, which is moved to the start of zbuf.
+   * @return zbuf, which may have been reallocated
+   */
+  private byte[] compressedSpace(int len) {
+    int remaining = inflater.getRemaining();
+    if (zbuf.length < remaining + len) {
+      byte[] xb = new byte[Math.max(zbuf.length * 2, remaining + len)];
+      System.arraycopy(zbuf, zlen - remaining, xb, 0, remaining);
+      zbuf = xb;
+    } else
+      System.arraycopy(zbuf, zlen - remaining, zbuf, 0, remaining);
+    zlen = remaining;
+    return zbuf;
+  }
+
+  /**
+   * Inflate pending compressed input into the free space of the ring buffer.
+   * When the server ends the compressed stream, the input left over is
+   * plain data again.
+   */
+  private void inflate() throws IOException {
+    if (incount == 0)
+      inpos = 0;
+
+    try {
+      while (incount < inbuf.length && !inflater.needsInput()) {
+        int size = inbuf.length;
+        int tail = inpos + incount;
+        int n;
+        if (tail >= size)
+          n = inflater.inflate(inbuf, tail - size, inpos - (tail - size));
+        else
+          n = inflater.inflate(inbuf, tail, size - tail);
+        incount += n;
+
+        if (inflater.finished()) {
+          int remaining = inflater.getRemaining();
+          int start = zlen - remaining;
+          endCompression();
+          appendInput(zbuf, start, remaining);
+          return;
+        }
+        if (n == 0)
+          break;
+      }
+    } catch (DataFormatException e) {
+      endCompression();
+      throw new IOException("Bad compressed data: " + e.getMessage());
+    }
+  }
 
-    System.arraycopy(tempbuf,0,xb,0,tempbuf.length);
-    System.arraycopy(b,offset,xb,tempbuf.length,len);
-    tempbuf = xb;
+  /** Copy the unprocessed data in the ring buffer to the start of dst. */
+  private void copyOut(byte[] dst) {
+    int first = Math.min(incount, inbuf.length - inpos);
+    System.arraycopy(inbuf, inpos, dst, 0, first);
+    System.arraycopy(inbuf, 0, dst, first, incount - first);
   }
 }
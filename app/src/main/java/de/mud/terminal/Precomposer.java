@@ -17,6 +17,8 @@
 
 package de.mud.terminal;
 
+import java.text.Normalizer;
+
 /**
  * @author Kenny Root
  * This data was taken from xterm's precompose.c
@@ -1025,28 +1027,74 @@ public class Precomposer {
 		{ 0xFB2D, 0xFB49, 0x05C2},
 	};
 
-	private static final int UNICODE_SHIFT = 21;
+	/*
+	 * Open-addressing hash of (base << 16 | comb) to the composed character,
+	 * built once from precompositions so a lookup is a multiply and a probe
+	 * or two into flat arrays. A key of 0 marks an empty slot; no entry has
+	 * both a NUL base and a NUL combiner.
+	 */
+	private static final int[] keys;
+	private static final char[] values;
+	private static final int mask;
 
-	public static char precompose(char base, char comb) {
-		int min = 0;
-		int max = precompositions.length - 1;
-		int mid;
+	static {
+		int size = 1;
+		while (size < precompositions.length * 2)
+			size <<= 1;
+
+		keys = new int[size];
+		values = new char[size];
+		mask = size - 1;
+
+		for (char[] entry : precompositions) {
+			int key = entry[1] << 16 | entry[2];
+			int slot = hash(key);
+			while (keys[slot] != 0 && keys[slot] != key)
+				slot = (slot + 1) & mask;
+			keys[slot] = key;
+			values[slot] = entry[0];
+		}
+	}
 
-		long sought = base << UNICODE_SHIFT | comb;
-		long that;
+	private static int hash(int key) {
+		return (key * 0x9E3779B1 >>> 16) & mask;
+	}
 
-		while (max >= min) {
-			mid = (min + max) / 2;
-			that = precompositions[mid][1] << UNICODE_SHIFT | precompositions[mid][2];
-			if (that < sought)
-				min = mid + 1;
-			else if (that > sought)
-				max = mid - 1;
-			else
-				return precompositions[mid][0];
+	/**
+	 * Look up the precomposed form of a base character and one combining mark.
+	 * @return the composed character, or -1 if the pair does not compose
+	 */
+	public static int compose(char base, char comb) {
+		int key = base << 16 | comb;
+		int slot = hash(key);
+		int k;
+		while ((k = keys[slot]) != 0) {
+			if (k == key)
+				return values[slot];
+			slot = (slot + 1) & mask;
 		}
+		return -1;
+	}
+
+	public static char precompose(char base, char comb) {
+		int composed = compose(base, comb);
 
 		// No match; return character without combiner
-		return base;
+		return composed == -1 ? base : (char) composed;
+	}
+
+	/**
+	 * Compose a base character followed by several combining marks, as when
+	 * a mark did not compose directly with the character built so far. The
+	 * marks may arrive in any order so the run is put through full Unicode
+	 * NFC, which also reorders them by combining class.
+	 * @param s characters holding the base and its marks
+	 * @param start index of the base character
+	 * @param len number of characters in the run
+	 * @return the first character of the composed run
+	 */
+	public static char composeSequence(char[] s, int start, int len) {
+		String composed = Normalizer.normalize(new String(s, start, len), Normalizer.Form.NFC);
+		return composed.charAt(0);
 	}
 }
@@ -25,7 +25,12 @@
 
 package de.mud.terminal;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Implementation of a Video Display Unit (VDU) buffer. This class contains
@@ -56,6 +61,20 @@ public class VDUBuffer {
   private int topMargin;                               /* top scroll margin */
   private int bottomMargin;                         /* bottom scroll margin */
 
+  // the screen page that is not displayed right now, swapped in by reference
+  private boolean alternateScreen;
+  private char[][] otherCharArray;
+  private long[][] otherCharAttributes;
+  private int otherBufSize, otherMaxBufSize, otherScreenBase, otherWindowBase;
+
+  // characters outside the BMP live in this table and a cell holds
+  // CODE_POINT_REF + index instead, see internCodePoint()
+  private int[] codePoints = new int[0];
+  private int[] codePointRefs = new int[0];
+  private String[] codePointText = new String[0];
+  private final Map<Integer, Integer> codePointIndex = new HashMap<Integer, Integer>();
+  private boolean codePointsRecycled;
+
   // cursor variables
   protected boolean showcursor = true;
   protected int cursorX, cursorY;
@@ -94,6 +113,11 @@ public class VDUBuffer {
   /** Unicode full-width character (CJK, et al.) */
   public final static long FULLWIDTH = 0x20;
 
+  /** First cell value referring to the supplementary code point table. */
+  public final static char CODE_POINT_REF = '\uD800';
+  /** Number of distinct supplementary code points a buffer can hold. */
+  public final static int MAX_CODE_POINTS = 0x800;
+
   /** how much to left shift the foreground color */
   public final static int COLOR_FG_SHIFT = 6;
   /** how much to left shift the background color */
@@ -164,6 +188,15 @@ public class VDUBuffer {
    */
 
   public void putChar(int c, int l, char ch, long attributes) {
+    char old = charArray[screenBase + l][c];
+    if (isCodePointRef(old))
+      codePointRefs[old - CODE_POINT_REF]--;
+    if (isCodePointRef(ch)) {
+      if (ch - CODE_POINT_REF < codePointRefs.length)
+        codePointRefs[ch - CODE_POINT_REF]++;
+      else
+        ch = '\uFFFD'; // a stray surrogate, not one of ours
+    }
     charArray[screenBase + l][c] = ch;
     charAttributes[screenBase + l][c] = attributes;
     if (l < height)
@@ -190,6 +223,132 @@ public class VDUBuffer {
     return charAttributes[screenBase + l][c];
   }
 
+  /**
+   * Check whether a cell value refers to the supplementary code point table
+   * rather than being a character itself.
+   * @param ch the cell value
+   * @see #internCodePoint
+   */
+  public static boolean isCodePointRef(char ch) {
+    return ch >= CODE_POINT_REF && ch < CODE_POINT_REF + MAX_CODE_POINTS;
+  }
+
+  /**
+   * Get a cell value that stands for a code point outside the Basic
+   * Multilingual Plane, so it can be stored in a single char cell. These
+   * cell values use the surrogate range, which never appears on its own in
+   * the buffer. Entries are reference counted by putChar() and are reused
+   * once no cell refers to them any more; cells lost by scrolling, deleting
+   * or resizing are only accounted for when the table fills up.
+   * @param codePoint a supplementary code point
+   * @return the cell value, or U+FFFD if the table is full
+   */
+  public synchronized char internCodePoint(int codePoint) {
+    Integer known = codePointIndex.get(codePoint);
+    if (known != null)
+      return (char) (CODE_POINT_REF + known);
+
+    // only a code point not seen before has to look for a free entry
+    int free = -1;
+    for (int i = 0; i < codePoints.length; i++) {
+      if (codePointRefs[i] == 0) {
+        free = i;
+        break;
+      }
+    }
+
+    if (free == -1 && codePointsRecycled)
+      free = compactCodePoints();
+
+    if (free == -1) {
+      int size = codePoints.length;
+      if (size == MAX_CODE_POINTS)
+        return '\uFFFD';
+
+      int newSize = size == 0 ? 16 : Math.min(size * 2, MAX_CODE_POINTS);
+      codePoints = Arrays.copyOf(codePoints, newSize);
+      codePointRefs = Arrays.copyOf(codePointRefs, newSize);
+      codePointText = Arrays.copyOf(codePointText, newSize);
+      free = size;
+    } else {
+      codePointIndex.remove(codePoints[free]);
+    }
+
+    codePoints[free] = codePoint;
+    codePointText[free] = null;
+    codePointIndex.put(codePoint, free);
+    return (char) (CODE_POINT_REF + free);
+  }
+
+  /**
+   * Recount the references to the code point table from every cell of both
+   * screen pages, dropping those held by rows that have since been recycled.
+   * @return the first unused entry, or -1 if all are in use
+   */
+  private int compactCodePoints() {
+    Arrays.fill(codePointRefs, 0);
+    countCodePointRefs(charArray);
+    countCodePointRefs(otherCharArray);
+    codePointsRecycled = false;
+
+    for (int i = 0; i < codePointRefs.length; i++)
+      if (codePointRefs[i] == 0)
+        return i;
+    return -1;
+  }
+
+  private void countCodePointRefs(char[][] rows) {
+    if (rows == null)
+      return;
+    for (char[] row : rows) {
+      if (row == null)
+        continue;
+      for (char ch : row)
+        if (isCodePointRef(ch) && ch - CODE_POINT_REF < codePointRefs.length)
+          codePointRefs[ch - CODE_POINT_REF]++;
+    }
+  }
+
+  /**
+   * Get the code point a cell value stands for.
+   * @param ch the cell value
+   * @return the supplementary code point for a reference, otherwise ch
+   */
+  public int getCodePoint(char ch) {
+    if (isCodePointRef(ch) && ch - CODE_POINT_REF < codePoints.length)
+      return codePoints[ch - CODE_POINT_REF];
+    return ch;
+  }
+
+  /**
+   * Get the text to draw for a cell value referring to the code point table.
+   * The String is cached so drawing does not allocate.
+   * @param ch the cell value
+   * @see #isCodePointRef
+   */
+  public String getCodePointText(char ch) {
+    int index = ch - CODE_POINT_REF;
+    String text = codePointText[index];
+    if (text == null) {
+      text = new String(Character.toChars(codePoints[index]));
+      codePointText[index] = text;
+    }
+    return text;
+  }
+
+  /**
+   * Append the text of a cell to a StringBuilder, expanding references to
+   * the supplementary code point table.
+   * @param sb where to append
+   * @param ch the cell value
+   */
+  public void appendCell(StringBuilder sb, char ch) {
+    if (isCodePointRef(ch))
+      sb.appendCodePoint(getCodePoint(ch));
+    else
+      sb.append(ch);
+  }
+
   /**
    * Insert a character at a specific position on the screen.
    * All character right to from this position will be moved one to the right.
@@ -213,6 +372,8 @@ public class VDUBuffer {
                      charArray[screenBase + l], c + 1, width - c - 1);
     System.arraycopy(charAttributes[screenBase + l], c,
                      charAttributes[screenBase + l], c + 1, width - c - 1);
+    retainCell(c, l);
+    codePointsRecycled = true;
     putChar(c, l, ch, attributes);
   }
 
@@ -232,10 +393,20 @@ public class VDUBuffer {
                        charArray[screenBase + l], c, width - c - 1);
       System.arraycopy(charAttributes[screenBase + l], c + 1,
                        charAttributes[screenBase + l], c, width - c - 1);
+      retainCell(width - 1, l);
+      codePointsRecycled = true;
     }
     putChar(width - 1, l, (char) 0);
   }
 
+  // a cell was duplicated by shifting the line and one copy is about to be
+  // overwritten, keep the count for the other one
+  private void retainCell(int c, int l) {
+    char ch = charArray[screenBase + l][c];
+    if (isCodePointRef(ch))
+      codePointRefs[ch - CODE_POINT_REF]++;
+  }
+
   /**
    * Put a String at a specific position. Any characters previously on that
    * position will be overwritten. You need to call redraw() for screen update.
@@ -371,6 +542,16 @@ public class VDUBuffer {
                        bottom - l - (n - 1));
       cbuf = charArray;
       abuf = charAttributes;
+    } else if (maxBufSize <= height) {
+      // no scrollback (e.g. the alternate screen), lines scrolled off the
+      // top are simply dropped
+      if (n > l - top + 1) n = l - top + 1;
+      System.arraycopy(charArray, oldBase + top + n,
+                       charArray, oldBase + top, l - top - (n - 1));
+      System.arraycopy(charAttributes, oldBase + top + n,
+                       charAttributes, oldBase + top, l - top - (n - 1));
+      cbuf = charArray;
+      abuf = charAttributes;
     } else {
       try {
         if (n > (bottom - top) + 1) n = (bottom - top) + 1;
@@ -479,6 +660,7 @@ public class VDUBuffer {
     screenBase = newScreenBase;
     windowBase = newWindowBase;
     bufSize = newBufSize;
+    codePointsRecycled = true;
 
     if (scrollDown)
       markLine(l, bottom - l + 1);
@@ -515,6 +697,7 @@ public class VDUBuffer {
     charAttributes[newBottomRow] = discardedAttributes;
     Arrays.fill(charArray[newBottomRow], ' ');
     Arrays.fill(charAttributes[newBottomRow], 0);
+    codePointsRecycled = true;
 
     markLine(l, bottom - l);
   }
@@ -539,6 +722,7 @@ public class VDUBuffer {
       Arrays.fill(charArray[targetRow], c, endColumn, ' ');
       targetRow++;
     }
+    codePointsRecycled = true;
     markLine(l, h);
   }
 
@@ -684,11 +868,64 @@ public class VDUBuffer {
     return bottomMargin;
   }
 
+  /**
+   * Switch between the normal screen and the alternate screen used by full
+   * screen applications. The alternate screen has no scrollback, so nothing
+   * written to it ends up in the history of the normal screen. Both pages
+   * are kept allocated and are swapped by reference, the contents of neither
+   * is copied. You need to call redraw() to update the screen.
+   * @param alternate true to show the alternate screen
+   */
+  public synchronized void setAlternateScreen(boolean alternate) {
+    if (alternate == alternateScreen)
+      return;
+
+    swapScreens();
+    alternateScreen = alternate;
+    update[0] = true;
+  }
+
+  /**
+   * Check whether the alternate screen is shown.
+   * @see #setAlternateScreen
+   */
+  public boolean isAlternateScreen() {
+    return alternateScreen;
+  }
+
+  private void swapScreens() {
+    char[][] cbuf = charArray;
+    long[][] abuf = charAttributes;
+    int size = bufSize, maxSize = maxBufSize, sBase = screenBase, wBase = windowBase;
+
+    charArray = otherCharArray;
+    charAttributes = otherCharAttributes;
+    bufSize = otherBufSize;
+    maxBufSize = otherMaxBufSize;
+    screenBase = otherScreenBase;
+    windowBase = otherWindowBase;
+
+    otherCharArray = cbuf;
+    otherCharAttributes = abuf;
+    otherBufSize = size;
+    otherMaxBufSize = maxSize;
+    otherScreenBase = sBase;
+    otherWindowBase = wBase;
+  }
+
   /**
    * Set scrollback buffer size.
    * @param amount new size of the buffer
    */
   public void setBufferSize(int amount) {
+    // the scrollback belongs to the normal screen
+    if (alternateScreen) {
+      setAlternateScreen(false);
+      setBufferSize(amount);
+      setAlternateScreen(true);
+      return;
+    }
+
     if (amount < height) amount = height;
     if (amount < maxBufSize) {
       char cbuf[][] = new char[amount][width];
@@ -704,6 +941,7 @@ public class VDUBuffer {
       bufSize = copyCount;
       screenBase = bufSize - height;
       windowBase = screenBase;
+      codePointsRecycled = true;
     }
     maxBufSize = amount;
 
@@ -727,6 +965,177 @@ public class VDUBuffer {
     return maxBufSize;
   }
 
+  /**
+   * Lower the maximum buffer size without allocating anything. Unlike
+   * setBufferSize() the buffer is only reallocated if it holds more lines
+   * than the new maximum, and a larger maximum is simply taken over.
+   * @param amount maximum number of lines including the screen
+   * @see #setBufferSize
+   */
+  public synchronized void limitBufferSize(int amount) {
+    // the scrollback belongs to the normal screen
+    if (alternateScreen) {
+      setAlternateScreen(false);
+      limitBufferSize(amount);
+      setAlternateScreen(true);
+      return;
+    }
+
+    if (amount < height) amount = height;
+    if (charArray != null && amount < charArray.length)
+      setBufferSize(amount);
+    else
+      maxBufSize = amount;
+  }
+
+  /**
+   * @return number of lines memory is currently held for, including the
+   * screen and the page not shown right now
+   */
+  public int getAllocatedLines() {
+    int lines = charArray != null ? charArray.length : 0;
+    if (otherCharArray != null)
+      lines += otherCharArray.length;
+    return lines;
+  }
+
+  /**
+   * Write everything shown or kept: both screen pages with the scrollback,
+   * the cursor, the margins and the table of supplementary code points.
+   * The state of the emulation (modes, charsets) is not part of it.
+   * @param out where to write to
+   * @see #readState
+   */
+  public synchronized void writeState(DataOutput out) throws IOException {
+    out.writeInt(width);
+    out.writeInt(height);
+    out.writeBoolean(alternateScreen);
+    writePage(out, charArray, charAttributes);
+    out.writeInt(bufSize);
+    out.writeInt(maxBufSize);
+    out.writeInt(screenBase);
+    out.writeInt(windowBase);
+    writePage(out, otherCharArray, otherCharAttributes);
+    out.writeInt(otherBufSize);
+    out.writeInt(otherMaxBufSize);
+    out.writeInt(otherScreenBase);
+    out.writeInt(otherWindowBase);
+    out.writeInt(scrollMarker);
+    out.writeInt(topMargin);
+    out.writeInt(bottomMargin);
+    out.writeInt(cursorX);
+    out.writeInt(cursorY);
+    out.writeBoolean(showcursor);
+    out.writeInt(codePoints.length);
+    for (int i = 0; i < codePoints.length; i++) {
+      out.writeInt(codePoints[i]);
+      out.writeInt(codePointRefs[i]);
+    }
+  }
+
+  private static void writePage(DataOutput out, char[][] chars, long[][] attributes)
+      throws IOException {
+    out.writeInt(chars.length);
+    for (int l = 0; l < chars.length; l++) {
+      out.writeInt(chars[l].length);
+      for (char c : chars[l])
+        out.writeChar(c);
+      for (long a : attributes[l])
+        out.writeLong(a);
+    }
+  }
+
+  /**
+   * Replace everything with what writeState() wrote. Nothing is changed
+   * unless all of it could be read.
+   * @param in where to read from
+   * @see #writeState
+   */
+  public synchronized void readState(DataInput in) throws IOException {
+    int w = in.readInt();
+    int h = in.readInt();
+    if (w < 1 || h < 1)
+      throw new IOException("Bad screen size " + w + "x" + h);
+    boolean alternate = in.readBoolean();
+
+    char[][] cbuf = new char[readLength(in)][];
+    long[][] abuf = new long[cbuf.length][];
+    readPage(in, cbuf, abuf);
+    int size = in.readInt(), maxSize = in.readInt(), sBase = in.readInt(), wBase = in.readInt();
+    char[][] otherCbuf = new char[readLength(in)][];
+    long[][] otherAbuf = new long[otherCbuf.length][];
+    readPage(in, otherCbuf, otherAbuf);
+    int otherSize = in.readInt(), otherMaxSize = in.readInt(),
+        otherSBase = in.readInt(), otherWBase = in.readInt();
+    if (sBase < 0 || sBase + h > cbuf.length || otherSBase < 0 || otherSBase + h > otherCbuf.length)
+      throw new IOException("Screen outside of buffer");
+
+    int marker = in.readInt(), top = in.readInt(), bottom = in.readInt();
+    int x = in.readInt(), y = in.readInt();
+    boolean cursor = in.readBoolean();
+
+    int count = in.readInt();
+    if (count < 0 || count > MAX_CODE_POINTS)
+      throw new IOException("Bad number of code points " + count);
+    int[] points = new int[count];
+    int[] refs = new int[count];
+    for (int i = 0; i < count; i++) {
+      points[i] = in.readInt();
+      refs[i] = in.readInt();
+    }
+
+    width = w;
+    height = h;
+    alternateScreen = alternate;
+    charArray = cbuf;
+    charAttributes = abuf;
+    bufSize = size;
+    maxBufSize = maxSize;
+    screenBase = sBase;
+    windowBase = wBase;
+    otherCharArray = otherCbuf;
+    otherCharAttributes = otherAbuf;
+    otherBufSize = otherSize;
+    otherMaxBufSize = otherMaxSize;
+    otherScreenBase = otherSBase;
+    otherWindowBase = otherWBase;
+    scrollMarker = marker;
+    topMargin = top;
+    bottomMargin = bottom;
+    cursorX = x;
+    cursorY = y;
+    showcursor = cursor;
+    codePoints = points;
+    codePointRefs = refs;
+    codePointText = new String[count];
+    codePointIndex.clear();
+    for (int i = 0; i < count; i++)
+      codePointIndex.put(points[i], i);
+    codePointsRecycled = true;
+    update = new boolean[h + 1];
+    update[0] = true;
+  }
+
+  private static int readLength(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0)
+      throw new IOException("Bad length " + length);
+    return length;
+  }
+
+  private static void readPage(DataInput in, char[][] chars, long[][] attributes)
+      throws IOException {
+    for (int l = 0; l < chars.length; l++) {
+      int columns = readLength(in);
+      chars[l] = new char[columns];
+      for (int c = 0; c < columns; c++)
+        chars[l][c] = in.readChar();
+      attributes[l] = new long[columns];
+      for (int c = 0; c < columns; c++)
+        attributes[l][c] = in.readLong();
+    }
+  }
+
   /**
    * Change the size of the screen. This will include adjustment of the
    * scrollback buffer.
@@ -736,11 +1145,17 @@ public class VDUBuffer {
   public void setScreenSize(int w, int h, boolean broadcast) {
     char cbuf[][];
     long abuf[][];
-    int maxSize = bufSize;
-    int oldAbsR = screenBase + getCursorRow();
 
     if (w < 1 || h < 1) return;
 
+    // resize the normal screen, the alternate one is reallocated below
+    boolean alternate = alternateScreen;
+    if (alternate)
+      swapScreens();
+
+    int maxSize = bufSize;
+    int oldAbsR = screenBase + getCursorRow();
+
     if (debug > 0)
       System.err.println("VDU: screen size [" + w + "," + h + "]");
 
@@ -808,6 +1223,17 @@ public class VDUBuffer {
     bottomMargin = h - 1;
     update = new boolean[h + 1];
     update[0] = true;
+
+    otherCharArray = new char[h][w];
+    otherCharAttributes = new long[h][w];
+    for (int i = 0; i < h; i++)
+      Arrays.fill(otherCharArray[i], ' ');
+    otherBufSize = otherMaxBufSize = h;
+    otherScreenBase = otherWindowBase = 0;
+
+    if (alternate)
+      swapScreens();
+    codePointsRecycled = true;
     /*  FIXME: ???
     if(resizeStrategy == RESIZE_FONT)
       setBounds(getBounds());
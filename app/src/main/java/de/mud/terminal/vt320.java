@@ -92,6 +92,7 @@ public abstract class vt320 extends VDUBuffer implements VDUInput {
     if (len > 0) {
       //markLine(R, 1);
       int lastChar = -1;
+      int lastIndex = 0;
       char c;
       boolean isWide = false;
 
@@ -102,24 +103,40 @@ public abstract class vt320 extends VDUBuffer implements VDUInput {
           if (lastChar != -1)
             putChar((char) lastChar, isWide, false);
           lastChar = c;
+          lastIndex = i;
           isWide = false;
         } else if (!Character.isLowSurrogate(c) && !Character.isHighSurrogate(c)) {
           if (Character.getType(c) == Character.NON_SPACING_MARK) {
-            if (lastChar != -1) {
-              char nc = Precomposer.precompose((char) lastChar, c);
-              putChar(nc, isWide, false);
-              lastChar = -1;
+            // Keep composing marks onto the pending character; if one does
+            // not pair with what we have so far, compose the whole run.
+            if (lastChar != -1 && !isCodePointRef((char) lastChar)) {
+              int nc = Precomposer.compose((char) lastChar, c);
+              if (nc != -1)
+                lastChar = nc;
+              else if (i - lastIndex > 1)
+                lastChar = Precomposer.composeSequence(s, start + lastIndex, i - lastIndex + 1);
             }
           } else {
             if (lastChar != -1)
               putChar((char) lastChar, isWide, false);
             lastChar = c;
+            lastIndex = i;
             if (fullwidths != null) {
                 final byte width = fullwidths[i];
                 isWide = (width == AndroidCharacter.EAST_ASIAN_WIDTH_WIDE)
                     || (width == AndroidCharacter.EAST_ASIAN_WIDTH_FULL_WIDTH);
             }
           }
+        } else if (Character.isHighSurrogate(c) && i + 1 < len
+            && Character.isLowSurrogate(s[start + i + 1])) {
+          // outside the BMP, the cell holds a reference to the code point
+          int codePoint = Character.toCodePoint(c, s[start + i + 1]);
+          if (lastChar != -1)
+            putChar((char) lastChar, isWide, false);
+          lastChar = internCodePoint(codePoint);
+          lastIndex = i;
+          isWide = isWideCodePoint(codePoint);
+          i++;
         }
       }
 
@@ -127,10 +144,38 @@ public abstract class vt320 extends VDUBuffer implements VDUInput {
         putChar((char) lastChar, isWide, false);
 
       setCursorPosition(C, R);
-      redraw();
+      if (!isSynchronizedOutput())
+        redraw();
     }
   }
 
+  /**
+   * Check whether a supplementary code point takes two columns. AndroidCharacter
+   * only knows the width of single chars, so this covers the emoji blocks and
+   * the CJK ideograph planes.
+   */
+  private static boolean isWideCodePoint(int codePoint) {
+    return (codePoint >= 0x1F300 && codePoint <= 0x1F64F)
+        || (codePoint >= 0x1F680 && codePoint <= 0x1F6FF)
+        || (codePoint >= 0x1F900 && codePoint <= 0x1F9FF)
+        || (codePoint >= 0x1FA70 && codePoint <= 0x1FAFF)
+        || (codePoint >= 0x20000 && codePoint <= 0x3FFFD);
+  }
+
+  /**
+   * Check whether the host is in the middle of a synchronized update (DEC
+   * private mode 2026) and redraws should be held back until the frame is
+   * complete. Gives up once SYNCHRONIZED_OUTPUT_TIMEOUT has passed so a host
+   * that never ends the update cannot freeze the screen.
+   * @return true if redraws should be held back
+   */
+  public boolean isSynchronizedOutput() {
+    if (synchronizedOutput
+        && System.currentTimeMillis() - synchronizedOutputStart >= SYNCHRONIZED_OUTPUT_TIMEOUT)
+      synchronizedOutput = false;
+    return synchronizedOutput;
+  }
+
   protected void sendTelnetCommand(byte cmd) {
 
   }
@@ -681,6 +726,12 @@ public void setScreenSize(int c, int r, boolean broadcast) {
   int mouserptSaved = 0;
   byte mousebut = 0;
 
+  /** Longest time in milliseconds a synchronized update may hold back redraws */
+  public final static long SYNCHRONIZED_OUTPUT_TIMEOUT = 500;
+  /** DEC private mode 2026, synchronized output */
+  boolean synchronizedOutput = false;
+  long synchronizedOutputStart;
+
   boolean useibmcharset = false;
 
   int lastwaslf = 0;
@@ -715,6 +766,7 @@ public void setScreenSize(int c, int r, boolean broadcast) {
   private final static int TSTATE_CSI_TICKS = 16;
   private final static int TSTATE_CSI_EQUAL = 17; /* ESC [ = */
   private final static int TSTATE_TITLE = 18; /* xterm title */
+  private final static int TSTATE_DCEQ_DOLLAR = 19; /* ESC [ ? Pn $ */
 
   /* Keys we support */
   public final static int KEY_PAUSE = 1;
@@ -839,10 +891,24 @@ public void setScreenSize(int c, int r, boolean broadcast) {
   private boolean vms = false;
   /** Tabulators */
   private byte[] Tabs;
-  /** The list of integers as used by CSI */
-  private int[] DCEvars = new int[30];
+  /** The maximum number of parameters collected for a control sequence */
+  private final static int MAX_PARAMS = 30;
+  /** The list of integers as used by CSI, padded for SGR 38;2;r;g;b lookahead */
+  private int[] DCEvars = new int[MAX_PARAMS + 4];
   private int DCEvar;
 
+  /* Character classes while collecting control sequence parameters */
+  private final static byte PARAM_NONE = 0;
+  private final static byte PARAM_DIGIT = 1;
+  private final static byte PARAM_SEPARATOR = 2;
+  private final static byte[] PARAM_CLASS = new byte[0x80];
+
+  static {
+    for (char c = '0'; c <= '9'; c++)
+      PARAM_CLASS[c] = PARAM_DIGIT;
+    PARAM_CLASS[';'] = PARAM_SEPARATOR;
+  }
+
   /**
    * Replace escape code characters (backslash + identifier) with their
    * respective codes.
@@ -1595,1502 +1661,1651 @@ public void setScreenSize(int c, int r, boolean broadcast) {
   }
 
   private void putChar(char c, boolean isWide, boolean doshowcursor) {
-    int rows = this.height; //statusline
-    int columns = this.width;
-    // byte msg[];
-
-//    if (debug > 4) {
-//      debugStr.append("putChar(")
-//        .append(c)
-//        .append(" [")
-//        .append((int) c)
-//        .append("]) at R=")
-//        .append(R)
-//        .append(" , C=")
-//        .append(C)
-//        .append(", columns=")
-//        .append(columns)
-//        .append(", rows=")
-//        .append(rows);
-//      debug(debugStr.toString());
-//      debugStr.setLength(0);
-//    }
-//    markLine(R, 1);
-//    if (c > 255) {
-//      if (debug > 0)
-//        debug("char > 255:" + (int) c);
-//      //return;
-//    }
-
     switch (term_state) {
       case TSTATE_DATA:
-        /* FIXME: we shouldn't use chars with bit 8 set if ibmcharset.
-         * probably... but some BBS do anyway...
-         */
-        if (!useibmcharset) {
-          boolean doneflag = true;
-          switch (c) {
-            case OSC:
-              osc = "";
-              term_state = TSTATE_OSC;
-              break;
-            case RI:
-              if (R > getTopMargin())
-                R--;
-              else
-                insertLine(R, 1, SCROLL_DOWN);
-              if (debug > 1)
-                debug("RI");
-              break;
-            case IND:
-              if (debug > 2) {
-                debugStr.append("IND at ")
-                  .append(R)
-                  .append(", tm is ")
-                  .append(getTopMargin())
-                  .append(", bm is ")
-                  .append(getBottomMargin());
-                debug(debugStr.toString());
-                debugStr.setLength(0);
-              }
-              if (R == getBottomMargin() || R == rows - 1)
-                insertLine(R, 1, SCROLL_UP);
-              else
-                R++;
-              if (debug > 1)
-                debug("IND (at " + R + " )");
-              break;
-            case NEL:
-              if (R == getBottomMargin() || R == rows - 1)
-                insertLine(R, 1, SCROLL_UP);
-              else
-                R++;
-              C = 0;
-              if (debug > 1)
-                debug("NEL (at " + R + " )");
-              break;
-            case HTS:
-              Tabs[C] = 1;
-              if (debug > 1)
-                debug("HTS");
-              break;
-            case DCS:
-              dcs = "";
-              term_state = TSTATE_DCS;
-              break;
-            default:
-              doneflag = false;
-              break;
-          }
-          if (doneflag) break;
-        }
-        switch (c) {
-          case SS3:
-            onegl = 3;
-            break;
-          case SS2:
-            onegl = 2;
-            break;
-          case CSI: // should be in the 8bit section, but some BBS use this
-            DCEvar = 0;
-            DCEvars[0] = 0;
-            DCEvars[1] = 0;
-            DCEvars[2] = 0;
-            DCEvars[3] = 0;
-            term_state = TSTATE_CSI;
-            break;
-          case ESC:
-            term_state = TSTATE_ESC;
-            lastwaslf = 0;
-            break;
-          case 5: /* ENQ */
-            write(answerBack, false);
-            break;
-          case 12:
-            /* FormFeed, Home for the BBS world */
-            deleteArea(0, 0, columns, rows, attributes);
-            C = R = 0;
-            break;
-          case '\b': /* 8 */
-            C--;
-            if (C < 0)
-              C = 0;
-            lastwaslf = 0;
-            break;
-          case '\t':
-            do {
-              // Don't overwrite or insert! TABS are not destructive, but movement!
-              C++;
-            } while (C < columns && (Tabs[C] == 0));
-            lastwaslf = 0;
-            break;
-          case '\r': // 13 CR
-            C = 0;
-            break;
-          case '\n': // 10 LF
-            if (debug > 3)
-              debug("R= " + R + ", bm " + getBottomMargin() + ", tm=" + getTopMargin() + ", rows=" + rows);
-            if (!vms) {
-              if (lastwaslf != 0 && lastwaslf != c)   //  Ray: I do not understand this logic.
-                break;
-              lastwaslf = c;
-              /*C = 0;*/
-            }
-            if (R == getBottomMargin() || R >= rows - 1)
-              insertLine(R, 1, SCROLL_UP);
-            else
-              R++;
-            break;
-          case 7:
-            beep();
-            break;
-          case '\016': /* SMACS , as */
-            /* ^N, Shift out - Put G1 into GL */
-            gl = 1;
-            usedcharsets = true;
-            break;
-          case '\017': /* RMACS , ae */
-            /* ^O, Shift in - Put G0 into GL */
-            gl = 0;
-            usedcharsets = true;
-            break;
-          default:
-            {
-              int thisgl = gl;
-
-              if (onegl >= 0) {
-                thisgl = onegl;
-                onegl = -1;
-              }
-              lastwaslf = 0;
-              if (c < 32) {
-                if (c != 0)
-                  if (debug > 0)
-                    debug("TSTATE_DATA char: " + ((int) c));
-                /*break; some BBS really want those characters, like hearst etc. */
-                if (c == 0) /* print 0 ... you bet */
-                  break;
-              }
-              if (C >= columns) {
-                if (wraparound) {
-                  int bot = rows;
-
-                  // If we're in the scroll region, check against the bottom margin
-                  if (R <= getBottomMargin() && R >= getTopMargin())
-                    bot = getBottomMargin() + 1;
-
-                  if (R < bot - 1)
-                    R++;
-                  else {
-                    if (debug > 3) debug("scrolling due to wrap at " + R);
-                    insertLine(R, 1, SCROLL_UP);
-                  }
-                  C = 0;
-                } else {
-                  // cursor stays on last character.
-                  C = columns - 1;
-                }
-              }
-
-              boolean mapped = false;
-
-              // Mapping if DEC Special is chosen charset
-              if (usedcharsets) {
-                if (c >= '\u0020' && c <= '\u007f') {
-                  switch (gx[thisgl]) {
-                    case '0':
-                      // Remap SCOANSI line drawing to VT100 line drawing chars
-                      // for our SCO using customers.
-                      if (terminalID.equals("scoansi") || terminalID.equals("ansi")) {
-                        for (int i = 0; i < scoansi_acs.length(); i += 2) {
-                          if (c == scoansi_acs.charAt(i)) {
-                            c = scoansi_acs.charAt(i + 1);
-                            break;
-                          }
-                        }
-                      }
-                      if (c >= '\u005f' && c <= '\u007e') {
-                        c = DECSPECIAL[(short) c - 0x5f];
-                        mapped = true;
-                      }
-                      break;
-                    case '<': // 'user preferred' is currently 'ISO Latin-1 suppl
-                      c = (char) ((c & 0x7f) | 0x80);
-                      mapped = true;
-                      break;
-                    case 'A':
-                    case 'B': // Latin-1 , ASCII -> fall through
-                      mapped = true;
-                      break;
-                    default:
-                      debug("Unsupported GL mapping: " + gx[thisgl]);
-                      break;
-                  }
-                }
-                if (!mapped && (c >= '\u0080' && c <= '\u00ff')) {
-                  switch (gx[gr]) {
-                    case '0':
-                      if (c >= '\u00df' && c <= '\u00fe') {
-                        c = DECSPECIAL[c - '\u00df'];
-                        mapped = true;
-                      }
-                      break;
-                    case '<':
-                    case 'A':
-                    case 'B':
-                      mapped = true;
-                      break;
-                    default:
-                      debug("Unsupported GR mapping: " + gx[gr]);
-                      break;
-                  }
-                }
-              }
-              if (!mapped && useibmcharset)
-                c = map_cp850_unicode(c);
-
-              /*if(true || (statusmode == 0)) { */
-              if (isWide) {
-                if (C >= columns - 1) {
-                  if (wraparound) {
-                    int bot = rows;
-
-                    // If we're in the scroll region, check against the bottom margin
-                    if (R <= getBottomMargin() && R >= getTopMargin())
-                      bot = getBottomMargin() + 1;
-
-                    if (R < bot - 1)
-                      R++;
-                    else {
-                      if (debug > 3) debug("scrolling due to wrap at " + R);
-                      insertLine(R, 1, SCROLL_UP);
-                    }
-                    C = 0;
-                  } else {
-                    // cursor stays on last wide character.
-                    C = columns - 2;
-                  }
-                }
-              }
-
-              if (insertmode == 1) {
-                if (isWide) {
-                  insertChar(C++, R, c, attributes | FULLWIDTH);
-                  insertChar(C, R, ' ', attributes | FULLWIDTH);
-                } else
-                  insertChar(C, R, c, attributes);
-              } else {
-                if (isWide) {
-                  putChar(C++, R, c, attributes | FULLWIDTH);
-                  putChar(C, R, ' ', attributes | FULLWIDTH);
-                } else
-                  putChar(C, R, c, attributes);
-              }
-
-              /*
-                } else {
-                if (insertmode==1) {
-                insertChar(C, rows, c, attributes);
-                } else {
-                putChar(C, rows, c, attributes);
-                }
-                }
-              */
-              C++;
-              break;
-            }
-        } /* switch(c) */
+        /* printable ASCII is by far the most common case, keep it short */
+        if (c >= 0x20 && c <= 0x7f)
+          printChar(c, isWide);
+        else
+          dataControl(c, isWide);
         break;
       case TSTATE_OSC:
-        if ((c < 0x20) && (c != ESC)) {// NP - No printing character
-          handle_osc(osc);
-          term_state = TSTATE_DATA;
-          break;
-        }
-        //but check for vt102 ESC \
-        if (c == '\\' && osc.charAt(osc.length() - 1) == ESC) {
-          handle_osc(osc);
-          term_state = TSTATE_DATA;
-          break;
-        }
-        osc = osc + c;
+        oscChar(c);
         break;
       case TSTATE_ESCSPACE:
-        term_state = TSTATE_DATA;
-        switch (c) {
-          case 'F': /* S7C1T, Disable output of 8-bit controls, use 7-bit */
-            output8bit = false;
-            break;
-          case 'G': /* S8C1T, Enable output of 8-bit control codes*/
-            output8bit = true;
-            break;
-          default:
-            debug("ESC <space> " + c + " unhandled.");
-        }
+        escSpaceChar(c);
         break;
       case TSTATE_ESC:
-        term_state = TSTATE_DATA;
-        switch (c) {
-          case ' ':
-            term_state = TSTATE_ESCSPACE;
-            break;
-          case '#':
-            term_state = TSTATE_ESCSQUARE;
-            break;
-          case 'c':
-            /* Hard terminal reset */
-            reset();
-            break;
-          case '[':
-            DCEvar = 0;
-            DCEvars[0] = 0;
-            DCEvars[1] = 0;
-            DCEvars[2] = 0;
-            DCEvars[3] = 0;
-            term_state = TSTATE_CSI;
-            break;
-          case ']':
-            osc = "";
-            term_state = TSTATE_OSC;
-            break;
-          case 'P':
-            dcs = "";
-            term_state = TSTATE_DCS;
-            break;
-          case 'A': /* CUU */
-            R--;
-            if (R < 0) R = 0;
-            break;
-          case 'B': /* CUD */
-            R++;
-            if (R >= rows) R = rows - 1;
-            break;
-          case 'C':
-            C++;
-            if (C >= columns) C = columns - 1;
-            break;
-          case 'I': // RI
-            insertLine(R, 1, SCROLL_DOWN);
-            break;
-          case 'E': /* NEL */
-            if (R == getBottomMargin() || R == rows - 1)
-              insertLine(R, 1, SCROLL_UP);
-            else
-              R++;
-            C = 0;
-            if (debug > 1)
-              debug("ESC E (at " + R + ")");
-            break;
-          case 'D': /* IND */
-            if (R == getBottomMargin() || R == rows - 1)
-              insertLine(R, 1, SCROLL_UP);
-            else
-              R++;
-            if (debug > 1)
-              debug("ESC D (at " + R + " )");
-            break;
-          case 'J': /* erase to end of screen */
-            if (R < rows - 1)
-              deleteArea(0, R + 1, columns, rows - R - 1, attributes);
-            if (C < columns - 1)
-              deleteArea(C, R, columns - C, 1, attributes);
-            break;
-          case 'K':
-            if (C < columns - 1)
-              deleteArea(C, R, columns - C, 1, attributes);
-            break;
-          case 'M': // RI
-            debug("ESC M : R is "+R+", tm is "+getTopMargin()+", bm is "+getBottomMargin());
-            if (R > getTopMargin()) { // just go up 1 line.
-              R--;
-            } else { // scroll down
-              insertLine(R, 1, SCROLL_DOWN);
-            }
-            /* else do nothing ; */
-            if (debug > 2)
-              debug("ESC M ");
-            break;
-          case 'H':
-            if (debug > 1)
-              debug("ESC H at " + C);
-            /* right border probably ...*/
-            if (C >= columns)
-              C = columns - 1;
-            Tabs[C] = 1;
-            break;
-          case 'N': // SS2
-            onegl = 2;
-            break;
-          case 'O': // SS3
-            onegl = 3;
-            break;
-          case '=':
-            /*application keypad*/
-            if (debug > 0)
-              debug("ESC =");
-            keypadmode = true;
-            break;
-          case '<': /* vt52 mode off */
-            vt52mode = false;
-            break;
-          case '>': /*normal keypad*/
-            if (debug > 0)
-              debug("ESC >");
-            keypadmode = false;
-            break;
-          case '7': /* DECSC: save cursor, attributes */
-            Sc = C;
-            Sr = R;
-            Sgl = gl;
-            Sgr = gr;
-            Sa = attributes;
-            Sgx = new char[4];
-            for (int i = 0; i < 4; i++) Sgx[i] = gx[i];
-            if (debug > 1)
-              debug("ESC 7");
-            break;
-          case '8': /* DECRC: restore cursor, attributes */
-            C = Sc;
-            R = Sr;
-            gl = Sgl;
-            gr = Sgr;
-            if (Sgx != null)
-              for (int i = 0; i < 4; i++) gx[i] = Sgx[i];
-            attributes = Sa;
-            if (debug > 1)
-              debug("ESC 8");
-            break;
-          case '(': /* Designate G0 Character set (ISO 2022) */
-            term_state = TSTATE_SETG0;
-            usedcharsets = true;
-            break;
-          case ')': /* Designate G1 character set (ISO 2022) */
-            term_state = TSTATE_SETG1;
-            usedcharsets = true;
-            break;
-          case '*': /* Designate G2 Character set (ISO 2022) */
-            term_state = TSTATE_SETG2;
-            usedcharsets = true;
-            break;
-          case '+': /* Designate G3 Character set (ISO 2022) */
-            term_state = TSTATE_SETG3;
-            usedcharsets = true;
-            break;
-          case '~': /* Locking Shift 1, right */
-            gr = 1;
-            usedcharsets = true;
-            break;
-          case 'n': /* Locking Shift 2 */
-            gl = 2;
-            usedcharsets = true;
-            break;
-          case '}': /* Locking Shift 2, right */
-            gr = 2;
-            usedcharsets = true;
-            break;
-          case 'o': /* Locking Shift 3 */
-            gl = 3;
-            usedcharsets = true;
-            break;
-          case '|': /* Locking Shift 3, right */
-            gr = 3;
-            usedcharsets = true;
-            break;
-          case 'Y': /* vt52 cursor address mode , next chars are x,y */
-            term_state = TSTATE_VT52Y;
-            break;
-          case '_':
-          	term_state = TSTATE_TITLE;
-          	break;
-          case '\\':
-          	// TODO save title
-          	term_state = TSTATE_DATA;
-          	break;
-          default:
-            debug("ESC unknown letter: " + c + " (" + ((int) c) + ")");
-            break;
-        }
+        escChar(c);
         break;
       case TSTATE_VT52X:
-        C = c - 37;
-        if (C < 0)
-          C = 0;
-        else if (C >= width)
-          C = width - 1;
-        term_state = TSTATE_VT52Y;
+        vt52XChar(c);
         break;
       case TSTATE_VT52Y:
-        R = c - 37;
-        if (R < 0)
-          R = 0;
-        else if (R >= height)
-          R = height - 1;
-        term_state = TSTATE_DATA;
+        vt52YChar(c);
         break;
       case TSTATE_SETG0:
-        if (c != '0' && c != 'A' && c != 'B' && c != '<')
-          debug("ESC ( " + c + ": G0 char set?  (" + ((int) c) + ")");
-        else {
-          if (debug > 2) debug("ESC ( : G0 char set  (" + c + " " + ((int) c) + ")");
-          gx[0] = c;
-        }
-        term_state = TSTATE_DATA;
+        designateCharset(0, c);
         break;
       case TSTATE_SETG1:
-        if (c != '0' && c != 'A' && c != 'B' && c != '<') {
-          debug("ESC ) " + c + " (" + ((int) c) + ") :G1 char set?");
-        } else {
-          if (debug > 2) debug("ESC ) :G1 char set  (" + c + " " + ((int) c) + ")");
-          gx[1] = c;
-        }
-        term_state = TSTATE_DATA;
+        designateCharset(1, c);
         break;
       case TSTATE_SETG2:
-        if (c != '0' && c != 'A' && c != 'B' && c != '<')
-          debug("ESC*:G2 char set?  (" + ((int) c) + ")");
-        else {
-          if (debug > 2) debug("ESC*:G2 char set  (" + c + " " + ((int) c) + ")");
-          gx[2] = c;
-        }
-        term_state = TSTATE_DATA;
+        designateCharset(2, c);
         break;
       case TSTATE_SETG3:
-        if (c != '0' && c != 'A' && c != 'B' && c != '<')
-          debug("ESC+:G3 char set?  (" + ((int) c) + ")");
-        else {
-          if (debug > 2) debug("ESC+:G3 char set  (" + c + " " + ((int) c) + ")");
-          gx[3] = c;
-        }
-        term_state = TSTATE_DATA;
+        designateCharset(3, c);
         break;
       case TSTATE_ESCSQUARE:
-        switch (c) {
-          case '8':
-            for (int i = 0; i < columns; i++)
-              for (int j = 0; j < rows; j++)
-                putChar(i, j, 'E', 0);
-            break;
-          default:
-            debug("ESC # " + c + " not supported.");
-            break;
-        }
-        term_state = TSTATE_DATA;
+        escSquareChar(c);
         break;
       case TSTATE_DCS:
-        if (c == '\\' && dcs.charAt(dcs.length() - 1) == ESC) {
-          handle_dcs(dcs);
-          term_state = TSTATE_DATA;
-          break;
-        }
-        dcs = dcs + c;
+        dcsChar(c);
         break;
-
       case TSTATE_DCEQ:
-        term_state = TSTATE_DATA;
-        switch (c) {
-          case '0':
-          case '1':
-          case '2':
-          case '3':
-          case '4':
-          case '5':
-          case '6':
-          case '7':
-          case '8':
-          case '9':
-            DCEvars[DCEvar] = DCEvars[DCEvar] * 10 + (c) - 48;
-            term_state = TSTATE_DCEQ;
-            break;
-          case ';':
-            DCEvar++;
-            DCEvars[DCEvar] = 0;
-            term_state = TSTATE_DCEQ;
-            break;
-          case 's':
-            for (int i = 0; i <= DCEvar; i++) {
-              switch (DCEvars[i]) {
-              case 9:
-              case 1000:
-              case 1001:
-              case 1002:
-              case 1003:
-                mouserptSaved = mouserpt;
-                break;
-              default:
-                debug("ESC [ ? " + DCEvars[0] + " s, unimplemented!");
-              }
-            }
-            break;
-          case 'r': // XTERM_RESTORE
-            if (true || debug > 1)
-              debug("ESC [ ? " + DCEvars[0] + " r");
-            /* DEC Mode reset */
-            for (int i = 0; i <= DCEvar; i++) {
-              switch (DCEvars[i]) {
-                case 3: /* 80 columns*/
-                  setScreenSize(80, height, true);
-                  break;
-                case 4: /* scrolling mode, smooth */
-                  break;
-                case 5: /* light background */
-                  break;
-                case 6: /* DECOM (Origin Mode) move inside margins. */
-                  moveoutsidemargins = true;
-                  break;
-                case 7: /* DECAWM: Autowrap Mode */
-                  wraparound = false;
-                  break;
-                case 12:/* local echo off */
-                  break;
-                case 9: 	/* X10 mouse */
-                case 1000:	/* xterm style mouse report on */
-                case 1001:
-                case 1002:
-                case 1003:
-                  mouserpt = mouserptSaved;
-                  break;
-                default:
-                  debug("ESC [ ? " + DCEvars[0] + " r, unimplemented!");
-              }
-            }
-            break;
-          case 'h': // DECSET
-            if (debug > 0)
-              debug("ESC [ ? " + DCEvars[0] + " h");
-            /* DEC Mode set */
-            for (int i = 0; i <= DCEvar; i++) {
-              switch (DCEvars[i]) {
-                case 1:  /* Application cursor keys */
-                  KeyUp[0] = "\u001bOA";
-                  KeyDown[0] = "\u001bOB";
-                  KeyRight[0] = "\u001bOC";
-                  KeyLeft[0] = "\u001bOD";
-                  break;
-                case 2: /* DECANM */
-                  vt52mode = false;
-                  break;
-                case 3: /* 132 columns*/
-                  setScreenSize(132, height, true);
-                  break;
-                case 6: /* DECOM: move inside margins. */
-                  moveoutsidemargins = false;
-                  break;
-                case 7: /* DECAWM: Autowrap Mode */
-                  wraparound = true;
-                  break;
-                case 25: /* turn cursor on */
-                  showCursor(true);
-                  break;
-                case 9: 	/* X10 mouse */
-                case 1000:	/* xterm style mouse report on */
-                case 1001:
-                case 1002:
-                case 1003:
-                  mouserpt = DCEvars[i];
-                  break;
-
-                  /* unimplemented stuff, fall through */
-                  /* 4  - scrolling mode, smooth */
-                  /* 5  - light background */
-                  /* 12 - local echo off */
-                  /* 18 - DECPFF - Printer Form Feed Mode -> On */
-                  /* 19 - DECPEX - Printer Extent Mode -> Screen */
-                default:
-                  debug("ESC [ ? " + DCEvars[0] + " h, unsupported.");
-                  break;
-              }
-            }
-            break;
-          case 'i': // DEC Printer Control, autoprint, echo screenchars to printer
-            // This is different to CSI i!
-            // Also: "Autoprint prints a final display line only when the
-            // cursor is moved off the line by an autowrap or LF, FF, or
-            // VT (otherwise do not print the line)."
-            switch (DCEvars[0]) {
-              case 1:
-                if (debug > 1)
-                  debug("CSI ? 1 i : Print line containing cursor");
-                break;
-              case 4:
-                if (debug > 1)
-                  debug("CSI ? 4 i : Start passthrough printing");
-                break;
-              case 5:
-                if (debug > 1)
-                  debug("CSI ? 4 i : Stop passthrough printing");
-                break;
-            }
-            break;
-          case 'l':	//DECRST
-            /* DEC Mode reset */
-            if (debug > 0)
-              debug("ESC [ ? " + DCEvars[0] + " l");
-            for (int i = 0; i <= DCEvar; i++) {
-              switch (DCEvars[i]) {
-                case 1:  /* Application cursor keys */
-                  KeyUp[0] = "\u001b[A";
-                  KeyDown[0] = "\u001b[B";
-                  KeyRight[0] = "\u001b[C";
-                  KeyLeft[0] = "\u001b[D";
-                  break;
-                case 2: /* DECANM */
-                  vt52mode = true;
-                  break;
-                case 3: /* 80 columns*/
-                  setScreenSize(80, height, true);
-                  break;
-                case 6: /* DECOM: move outside margins. */
-                  moveoutsidemargins = true;
-                  break;
-                case 7: /* DECAWM: Autowrap Mode OFF */
-                  wraparound = false;
-                  break;
-                case 25: /* turn cursor off */
-                  showCursor(false);
-                  break;
-                  /* Unimplemented stuff: */
-                  /* 4  - scrolling mode, jump */
-                  /* 5  - dark background */
-                  /* 7  - DECAWM - no wrap around mode */
-                  /* 12 - local echo on */
-                  /* 18 - DECPFF - Printer Form Feed Mode -> Off*/
-                  /* 19 - DECPEX - Printer Extent Mode -> Scrolling Region */
-                case 9: 	/* X10 mouse */
-                case 1000:	/* xterm style mouse report OFF */
-                case 1001:
-                case 1002:
-                case 1003:
-                  mouserpt = 0;
-                  break;
-                default:
-                  debug("ESC [ ? " + DCEvars[0] + " l, unsupported.");
-                  break;
-              }
-            }
-            break;
-          case 'n':
-            if (debug > 0)
-              debug("ESC [ ? " + DCEvars[0] + " n");
-            switch (DCEvars[0]) {
-              case 15:
-                /* printer? no printer. */
-                write((ESC) + "[?13n", false);
-                debug("ESC[5n");
-                break;
-              default:
-                debug("ESC [ ? " + DCEvars[0] + " n, unsupported.");
-                break;
-            }
-            break;
-          default:
-            debug("ESC [ ? " + DCEvars[0] + " " + c + ", unsupported.");
-            break;
-        }
+        if (!collectParameter(c))
+          decPrivateChar(c);
         break;
       case TSTATE_CSI_EX:
-        term_state = TSTATE_DATA;
-        switch (c) {
-          case ESC:
-            term_state = TSTATE_ESC;
-            break;
-          default:
-            debug("Unknown character ESC[! character is " + (int) c);
-            break;
-        }
+        csiExChar(c);
         break;
       case TSTATE_CSI_TICKS:
-        term_state = TSTATE_DATA;
-        switch (c) {
-          case 'p':
-            debug("Conformance level: " + DCEvars[0] + " (unsupported)," + DCEvars[1]);
-            if (DCEvars[0] == 61) {
-              output8bit = false;
-              break;
-            }
-            if (DCEvars[1] == 1) {
-              output8bit = false;
-            } else {
-              output8bit = true; /* 0 or 2 */
-            }
-            break;
-          default:
-            debug("Unknown ESC [...  \"" + c);
-            break;
-        }
+        csiTicksChar(c);
         break;
       case TSTATE_CSI_EQUAL:
+        if (!collectParameter(c))
+          csiEqualChar(c);
+        break;
+      case TSTATE_CSI_DOLLAR:
+        csiDollarChar(c);
+        break;
+      case TSTATE_CSI:
+        if (!collectParameter(c))
+          csiChar(c);
+        break;
+      case TSTATE_TITLE:
+        titleChar(c);
+        break;
+      case TSTATE_DCEQ_DOLLAR:
+        decRequestModeChar(c);
+        break;
+      default:
         term_state = TSTATE_DATA;
-        switch (c) {
-          case '0':
-          case '1':
-          case '2':
-          case '3':
-          case '4':
-          case '5':
-          case '6':
-          case '7':
-          case '8':
-          case '9':
-            DCEvars[DCEvar] = DCEvars[DCEvar] * 10 + (c) - 48;
-            term_state = TSTATE_CSI_EQUAL;
-            break;
-          case ';':
-            DCEvar++;
-            DCEvars[DCEvar] = 0;
-            term_state = TSTATE_CSI_EQUAL;
-            break;
-
-          case 'F': /* SCO ANSI foreground */
-	  {
-	    int newcolor;
+        break;
+    }
 
-            debug("ESC [ = "+DCEvars[0]+" F");
+    setCursorPosition(C, R);
+  }
 
-            attributes &= ~COLOR_FG;
-	    newcolor =	((DCEvars[0] & 1) << 2)	|
-	    		 (DCEvars[0] & 2)	|
-	    		((DCEvars[0] & 4) >> 2) ;
-            attributes |= (long)(newcolor+1) << COLOR_FG_SHIFT;
+  /** Start collecting the parameters of a new control sequence. */
+  private void clearParameters() {
+    DCEvar = 0;
+    DCEvars[0] = 0;
+    DCEvars[1] = 0;
+    DCEvars[2] = 0;
+    DCEvars[3] = 0;
+  }
 
-	    break;
-	  }
-          case 'G': /* SCO ANSI background */
-	  {
-	    int newcolor;
+  /**
+   * Collect a numeric parameter character or separator of a control
+   * sequence into DCEvars. Surplus parameters overwrite the last slot.
+   * @return true if the character was consumed
+   */
+  private boolean collectParameter(char c) {
+    if (c >= PARAM_CLASS.length)
+      return false;
+
+    switch (PARAM_CLASS[c]) {
+      case PARAM_DIGIT:
+        DCEvars[DCEvar] = DCEvars[DCEvar] * 10 + (c - '0');
+        return true;
+      case PARAM_SEPARATOR:
+        if (DCEvar < MAX_PARAMS - 1)
+          DCEvar++;
+        DCEvars[DCEvar] = 0;
+        return true;
+      default:
+        return false;
+    }
+  }
 
-            debug("ESC [ = "+DCEvars[0]+" G");
+  /** Handle a control character (or a non-ASCII character) in TSTATE_DATA. */
+  private void dataControl(char c, boolean isWide) {
+    int rows = height;
+    int columns = width;
 
-            attributes &= ~COLOR_BG;
-	    newcolor =	((DCEvars[0] & 1) << 2)	|
-	    		 (DCEvars[0] & 2)	|
+    /* FIXME: we shouldn't use chars with bit 8 set if ibmcharset.
+     * probably... but some BBS do anyway...
+     */
+    if (!useibmcharset) {
+      switch (c) {
+        case OSC:
+          osc = "";
+          term_state = TSTATE_OSC;
+          return;
+        case RI:
+          if (R > getTopMargin())
+            R--;
+          else
+            insertLine(R, 1, SCROLL_DOWN);
+          if (debug > 1)
+            debug("RI");
+          return;
+        case IND:
+          if (debug > 2) {
+            debugStr.append("IND at ")
+              .append(R)
+              .append(", tm is ")
+              .append(getTopMargin())
+              .append(", bm is ")
+              .append(getBottomMargin());
+            debug(debugStr.toString());
+            debugStr.setLength(0);
+          }
+          if (R == getBottomMargin() || R == rows - 1)
+            insertLine(R, 1, SCROLL_UP);
+          else
+            R++;
+          if (debug > 1)
+            debug("IND (at " + R + " )");
+          return;
+        case NEL:
+          if (R == getBottomMargin() || R == rows - 1)
+            insertLine(R, 1, SCROLL_UP);
+          else
+            R++;
+          C = 0;
+          if (debug > 1)
+            debug("NEL (at " + R + " )");
+          return;
+        case HTS:
+          Tabs[C] = 1;
+          if (debug > 1)
+            debug("HTS");
+          return;
+        case DCS:
+          dcs = "";
+          term_state = TSTATE_DCS;
+          return;
+        default:
+          break;
+      }
+    }
+    switch (c) {
+      case SS3:
+        onegl = 3;
+        break;
+      case SS2:
+        onegl = 2;
+        break;
+      case CSI: // should be in the 8bit section, but some BBS use this
+        clearParameters();
+        term_state = TSTATE_CSI;
+        break;
+      case ESC:
+        term_state = TSTATE_ESC;
+        lastwaslf = 0;
+        break;
+      case 5: /* ENQ */
+        write(answerBack, false);
+        break;
+      case 12:
+        /* FormFeed, Home for the BBS world */
+        deleteArea(0, 0, columns, rows, attributes);
+        C = R = 0;
+        break;
+      case '\b': /* 8 */
+        C--;
+        if (C < 0)
+          C = 0;
+        lastwaslf = 0;
+        break;
+      case '\t':
+        do {
+          // Don't overwrite or insert! TABS are not destructive, but movement!
+          C++;
+        } while (C < columns && (Tabs[C] == 0));
+        lastwaslf = 0;
+        break;
+      case '\r': // 13 CR
+        C = 0;
+        break;
+      case '\n': // 10 LF
+        if (debug > 3)
+          debug("R= " + R + ", bm " + getBottomMargin() + ", tm=" + getTopMargin() + ", rows=" + rows);
+        if (!vms) {
+          if (lastwaslf != 0 && lastwaslf != c)   //  Ray: I do not understand this logic.
+            break;
+          lastwaslf = c;
+          /*C = 0;*/
+        }
+        if (R == getBottomMargin() || R >= rows - 1)
+          insertLine(R, 1, SCROLL_UP);
+        else
+          R++;
+        break;
+      case 7:
+        beep();
+        break;
+      case '\016': /* SMACS , as */
+        /* ^N, Shift out - Put G1 into GL */
+        gl = 1;
+        usedcharsets = true;
+        break;
+      case '\017': /* RMACS , ae */
+        /* ^O, Shift in - Put G0 into GL */
+        gl = 0;
+        usedcharsets = true;
+        break;
+      default:
+        printChar(c, isWide);
+        break;
+    }
+  }
+
+  /** Put a printable character at the cursor, wrapping and mapping charsets. */
+  private void printChar(char c, boolean isWide) {
+    int columns = width;
+    int thisgl = gl;
+
+    if (onegl >= 0) {
+      thisgl = onegl;
+      onegl = -1;
+    }
+    lastwaslf = 0;
+    if (c < 32) {
+      if (c != 0)
+        if (debug > 0)
+          debug("TSTATE_DATA char: " + ((int) c));
+      /*break; some BBS really want those characters, like hearst etc. */
+      if (c == 0) /* print 0 ... you bet */
+        return;
+    }
+    if (C >= columns) {
+      if (wraparound) {
+        wrapLine();
+      } else {
+        // cursor stays on last character.
+        C = columns - 1;
+      }
+    }
+
+    if (usedcharsets)
+      c = mapCharset(c, thisgl);
+    else if (useibmcharset)
+      c = map_cp850_unicode(c);
+
+    /*if(true || (statusmode == 0)) { */
+    if (isWide) {
+      if (C >= columns - 1) {
+        if (wraparound) {
+          wrapLine();
+        } else {
+          // cursor stays on last wide character.
+          C = columns - 2;
+        }
+      }
+    }
+
+    if (insertmode == 1) {
+      if (isWide) {
+        insertChar(C++, R, c, attributes | FULLWIDTH);
+        insertChar(C, R, ' ', attributes | FULLWIDTH);
+      } else
+        insertChar(C, R, c, attributes);
+    } else {
+      if (isWide) {
+        putChar(C++, R, c, attributes | FULLWIDTH);
+        putChar(C, R, ' ', attributes | FULLWIDTH);
+      } else
+        putChar(C, R, c, attributes);
+    }
+
+    /*
+      } else {
+      if (insertmode==1) {
+      insertChar(C, rows, c, attributes);
+      } else {
+      putChar(C, rows, c, attributes);
+      }
+      }
+    */
+    C++;
+  }
+
+  /** Move the cursor to the start of the next line, scrolling if needed. */
+  private void wrapLine() {
+    int bot = height;
+    int bm = getBottomMargin();
+
+    // If we're in the scroll region, check against the bottom margin
+    if (R <= bm && R >= getTopMargin())
+      bot = bm + 1;
+
+    if (R < bot - 1)
+      R++;
+    else {
+      if (debug > 3) debug("scrolling due to wrap at " + R);
+      insertLine(R, 1, SCROLL_UP);
+    }
+    C = 0;
+  }
+
+  /** Map a character through the currently designated GL/GR charsets. */
+  private char mapCharset(char c, int thisgl) {
+    boolean mapped = false;
+
+    // Mapping if DEC Special is chosen charset
+    if (c >= '\u0020' && c <= '\u007f') {
+      switch (gx[thisgl]) {
+        case '0':
+          // Remap SCOANSI line drawing to VT100 line drawing chars
+          // for our SCO using customers.
+          if (terminalID.equals("scoansi") || terminalID.equals("ansi")) {
+            for (int i = 0; i < scoansi_acs.length(); i += 2) {
+              if (c == scoansi_acs.charAt(i)) {
+                c = scoansi_acs.charAt(i + 1);
+                break;
+              }
+            }
+          }
+          if (c >= '\u005f' && c <= '\u007e') {
+            c = DECSPECIAL[(short) c - 0x5f];
+            mapped = true;
+          }
+          break;
+        case '<': // 'user preferred' is currently 'ISO Latin-1 suppl
+          c = (char) ((c & 0x7f) | 0x80);
+          mapped = true;
+          break;
+        case 'A':
+        case 'B': // Latin-1 , ASCII -> fall through
+          mapped = true;
+          break;
+        default:
+          if (debug > 0)
+            debug("Unsupported GL mapping: " + gx[thisgl]);
+          break;
+      }
+    }
+    if (!mapped && (c >= '\u0080' && c <= '\u00ff')) {
+      switch (gx[gr]) {
+        case '0':
+          if (c >= '\u00df' && c <= '\u00fe') {
+            c = DECSPECIAL[c - '\u00df'];
+            mapped = true;
+          }
+          break;
+        case '<':
+        case 'A':
+        case 'B':
+          mapped = true;
+          break;
+        default:
+          if (debug > 0)
+            debug("Unsupported GR mapping: " + gx[gr]);
+          break;
+      }
+    }
+    if (!mapped && useibmcharset)
+      c = map_cp850_unicode(c);
+    return c;
+  }
+
+  /** Collect an OSC string until it is terminated by BEL or ST. */
+  private void oscChar(char c) {
+    if ((c < 0x20) && (c != ESC)) {// NP - No printing character
+      handle_osc(osc);
+      term_state = TSTATE_DATA;
+      return;
+    }
+    //but check for vt102 ESC \
+    if (c == '\\' && osc.charAt(osc.length() - 1) == ESC) {
+      handle_osc(osc);
+      term_state = TSTATE_DATA;
+      return;
+    }
+    osc = osc + c;
+  }
+
+  /** ESC &lt;space&gt; F/G: select 7 or 8 bit C1 control output. */
+  private void escSpaceChar(char c) {
+    term_state = TSTATE_DATA;
+    switch (c) {
+      case 'F': /* S7C1T, Disable output of 8-bit controls, use 7-bit */
+        output8bit = false;
+        break;
+      case 'G': /* S8C1T, Enable output of 8-bit control codes*/
+        output8bit = true;
+        break;
+      default:
+        if (debug > 0)
+          debug("ESC <space> " + c + " unhandled.");
+    }
+  }
+
+  /** Dispatch the character following an ESC. */
+  private void escChar(char c) {
+    int rows = height;
+    int columns = width;
+
+    term_state = TSTATE_DATA;
+    switch (c) {
+      case ' ':
+        term_state = TSTATE_ESCSPACE;
+        break;
+      case '#':
+        term_state = TSTATE_ESCSQUARE;
+        break;
+      case 'c':
+        /* Hard terminal reset */
+        reset();
+        break;
+      case '[':
+        clearParameters();
+        term_state = TSTATE_CSI;
+        break;
+      case ']':
+        osc = "";
+        term_state = TSTATE_OSC;
+        break;
+      case 'P':
+        dcs = "";
+        term_state = TSTATE_DCS;
+        break;
+      case 'A': /* CUU */
+        R--;
+        if (R < 0) R = 0;
+        break;
+      case 'B': /* CUD */
+        R++;
+        if (R >= rows) R = rows - 1;
+        break;
+      case 'C':
+        C++;
+        if (C >= columns) C = columns - 1;
+        break;
+      case 'I': // RI
+        insertLine(R, 1, SCROLL_DOWN);
+        break;
+      case 'E': /* NEL */
+        if (R == getBottomMargin() || R == rows - 1)
+          insertLine(R, 1, SCROLL_UP);
+        else
+          R++;
+        C = 0;
+        if (debug > 1)
+          debug("ESC E (at " + R + ")");
+        break;
+      case 'D': /* IND */
+        if (R == getBottomMargin() || R == rows - 1)
+          insertLine(R, 1, SCROLL_UP);
+        else
+          R++;
+        if (debug > 1)
+          debug("ESC D (at " + R + " )");
+        break;
+      case 'J': /* erase to end of screen */
+        if (R < rows - 1)
+          deleteArea(0, R + 1, columns, rows - R - 1, attributes);
+        if (C < columns - 1)
+          deleteArea(C, R, columns - C, 1, attributes);
+        break;
+      case 'K':
+        if (C < columns - 1)
+          deleteArea(C, R, columns - C, 1, attributes);
+        break;
+      case 'M': // RI
+        if (debug > 0)
+          debug("ESC M : R is "+R+", tm is "+getTopMargin()+", bm is "+getBottomMargin());
+        if (R > getTopMargin()) { // just go up 1 line.
+          R--;
+        } else { // scroll down
+          insertLine(R, 1, SCROLL_DOWN);
+        }
+        /* else do nothing ; */
+        if (debug > 2)
+          debug("ESC M ");
+        break;
+      case 'H':
+        if (debug > 1)
+          debug("ESC H at " + C);
+        /* right border probably ...*/
+        if (C >= columns)
+          C = columns - 1;
+        Tabs[C] = 1;
+        break;
+      case 'N': // SS2
+        onegl = 2;
+        break;
+      case 'O': // SS3
+        onegl = 3;
+        break;
+      case '=':
+        /*application keypad*/
+        if (debug > 0)
+          debug("ESC =");
+        keypadmode = true;
+        break;
+      case '<': /* vt52 mode off */
+        vt52mode = false;
+        break;
+      case '>': /*normal keypad*/
+        if (debug > 0)
+          debug("ESC >");
+        keypadmode = false;
+        break;
+      case '7': /* DECSC: save cursor, attributes */
+        saveCursor();
+        if (debug > 1)
+          debug("ESC 7");
+        break;
+      case '8': /* DECRC: restore cursor, attributes */
+        restoreCursor();
+        if (debug > 1)
+          debug("ESC 8");
+        break;
+      case '(': /* Designate G0 Character set (ISO 2022) */
+        term_state = TSTATE_SETG0;
+        usedcharsets = true;
+        break;
+      case ')': /* Designate G1 character set (ISO 2022) */
+        term_state = TSTATE_SETG1;
+        usedcharsets = true;
+        break;
+      case '*': /* Designate G2 Character set (ISO 2022) */
+        term_state = TSTATE_SETG2;
+        usedcharsets = true;
+        break;
+      case '+': /* Designate G3 Character set (ISO 2022) */
+        term_state = TSTATE_SETG3;
+        usedcharsets = true;
+        break;
+      case '~': /* Locking Shift 1, right */
+        gr = 1;
+        usedcharsets = true;
+        break;
+      case 'n': /* Locking Shift 2 */
+        gl = 2;
+        usedcharsets = true;
+        break;
+      case '}': /* Locking Shift 2, right */
+        gr = 2;
+        usedcharsets = true;
+        break;
+      case 'o': /* Locking Shift 3 */
+        gl = 3;
+        usedcharsets = true;
+        break;
+      case '|': /* Locking Shift 3, right */
+        gr = 3;
+        usedcharsets = true;
+        break;
+      case 'Y': /* vt52 cursor address mode , next chars are x,y */
+        term_state = TSTATE_VT52Y;
+        break;
+      case '_':
+      	term_state = TSTATE_TITLE;
+      	break;
+      case '\\':
+      	// TODO save title
+      	term_state = TSTATE_DATA;
+      	break;
+      default:
+        if (debug > 0)
+          debug("ESC unknown letter: " + c + " (" + ((int) c) + ")");
+        break;
+    }
+  }
+
+  private void vt52XChar(char c) {
+    C = c - 37;
+    if (C < 0)
+      C = 0;
+    else if (C >= width)
+      C = width - 1;
+    term_state = TSTATE_VT52Y;
+  }
+
+  private void vt52YChar(char c) {
+    R = c - 37;
+    if (R < 0)
+      R = 0;
+    else if (R >= height)
+      R = height - 1;
+    term_state = TSTATE_DATA;
+  }
+
+  /** DECSC: save cursor position, attributes and character sets. */
+  private void saveCursor() {
+    Sc = C;
+    Sr = R;
+    Sgl = gl;
+    Sgr = gr;
+    Sa = attributes;
+    Sgx = new char[4];
+    for (int i = 0; i < 4; i++) Sgx[i] = gx[i];
+  }
+
+  /** DECRC: restore what saveCursor() saved. */
+  private void restoreCursor() {
+    C = Sc;
+    R = Sr;
+    gl = Sgl;
+    gr = Sgr;
+    if (Sgx != null)
+      for (int i = 0; i < 4; i++) gx[i] = Sgx[i];
+    attributes = Sa;
+  }
+
+  /** ESC ( ) * + x: designate the character set x into G0 to G3. */
+  private void designateCharset(int g, char c) {
+    if (c != '0' && c != 'A' && c != 'B' && c != '<') {
+      if (debug > 0)
+        debug("G" + g + " char set?  (" + ((int) c) + ")");
+    } else {
+      if (debug > 2) debug("G" + g + " char set  (" + c + " " + ((int) c) + ")");
+      gx[g] = c;
+    }
+    term_state = TSTATE_DATA;
+  }
+
+  private void escSquareChar(char c) {
+    int rows = height;
+    int columns = width;
+
+    switch (c) {
+      case '8':
+        for (int i = 0; i < columns; i++)
+          for (int j = 0; j < rows; j++)
+            putChar(i, j, 'E', 0);
+        break;
+      default:
+        if (debug > 0)
+          debug("ESC # " + c + " not supported.");
+        break;
+    }
+    term_state = TSTATE_DATA;
+  }
+
+  private void dcsChar(char c) {
+    if (c == '\\' && dcs.charAt(dcs.length() - 1) == ESC) {
+      handle_dcs(dcs);
+      term_state = TSTATE_DATA;
+      return;
+    }
+    dcs = dcs + c;
+  }
+
+  /** Final character of a DEC private mode sequence, ESC [ ? Pn ; ... x. */
+  private void decPrivateChar(char c) {
+    int columns = width;
+
+    term_state = TSTATE_DATA;
+    switch (c) {
+      case 's':
+        for (int i = 0; i <= DCEvar; i++) {
+          switch (DCEvars[i]) {
+          case 9:
+          case 1000:
+          case 1001:
+          case 1002:
+          case 1003:
+            mouserptSaved = mouserpt;
+            break;
+          default:
+            if (debug > 0)
+              debug("ESC [ ? " + DCEvars[0] + " s, unimplemented!");
+          }
+        }
+        break;
+      case 'r': // XTERM_RESTORE
+        if (debug > 1)
+          debug("ESC [ ? " + DCEvars[0] + " r");
+        /* DEC Mode reset */
+        for (int i = 0; i <= DCEvar; i++) {
+          switch (DCEvars[i]) {
+            case 3: /* 80 columns*/
+              setScreenSize(80, height, true);
+              break;
+            case 4: /* scrolling mode, smooth */
+              break;
+            case 5: /* light background */
+              break;
+            case 6: /* DECOM (Origin Mode) move inside margins. */
+              moveoutsidemargins = true;
+              break;
+            case 7: /* DECAWM: Autowrap Mode */
+              wraparound = false;
+              break;
+            case 12:/* local echo off */
+              break;
+            case 9: 	/* X10 mouse */
+            case 1000:	/* xterm style mouse report on */
+            case 1001:
+            case 1002:
+            case 1003:
+              mouserpt = mouserptSaved;
+              break;
+            default:
+              if (debug > 0)
+                debug("ESC [ ? " + DCEvars[0] + " r, unimplemented!");
+          }
+        }
+        break;
+      case 'h': // DECSET
+        if (debug > 0)
+          debug("ESC [ ? " + DCEvars[0] + " h");
+        /* DEC Mode set */
+        for (int i = 0; i <= DCEvar; i++) {
+          switch (DCEvars[i]) {
+            case 1:  /* Application cursor keys */
+              KeyUp[0] = "\u001bOA";
+              KeyDown[0] = "\u001bOB";
+              KeyRight[0] = "\u001bOC";
+              KeyLeft[0] = "\u001bOD";
+              break;
+            case 2: /* DECANM */
+              vt52mode = false;
+              break;
+            case 3: /* 132 columns*/
+              setScreenSize(132, height, true);
+              break;
+            case 6: /* DECOM: move inside margins. */
+              moveoutsidemargins = false;
+              break;
+            case 7: /* DECAWM: Autowrap Mode */
+              wraparound = true;
+              break;
+            case 25: /* turn cursor on */
+              showCursor(true);
+              break;
+            case 47: /* alternate screen */
+            case 1047:
+              setAlternateScreen(true);
+              break;
+            case 1048: /* save cursor */
+              saveCursor();
+              break;
+            case 1049: /* save cursor, switch to and clear alternate screen */
+              saveCursor();
+              setAlternateScreen(true);
+              deleteArea(0, 0, width, height, attributes);
+              break;
+            case 2026: /* synchronized output, hold back redraws */
+              synchronizedOutput = true;
+              synchronizedOutputStart = System.currentTimeMillis();
+              break;
+            case 9: 	/* X10 mouse */
+            case 1000:	/* xterm style mouse report on */
+            case 1001:
+            case 1002:
+            case 1003:
+              mouserpt = DCEvars[i];
+              break;
+
+              /* unimplemented stuff, fall through */
+              /* 4  - scrolling mode, smooth */
+              /* 5  - light background */
+              /* 12 - local echo off */
+              /* 18 - DECPFF - Printer Form Feed Mode -> On */
+              /* 19 - DECPEX - Printer Extent Mode -> Screen */
+            default:
+              if (debug > 0)
+                debug("ESC [ ? " + DCEvars[0] + " h, unsupported.");
+              break;
+          }
+        }
+        break;
+      case 'i': // DEC Printer Control, autoprint, echo screenchars to printer
+        // This is different to CSI i!
+        // Also: "Autoprint prints a final display line only when the
+        // cursor is moved off the line by an autowrap or LF, FF, or
+        // VT (otherwise do not print the line)."
+        switch (DCEvars[0]) {
+          case 1:
+            if (debug > 1)
+              debug("CSI ? 1 i : Print line containing cursor");
+            break;
+          case 4:
+            if (debug > 1)
+              debug("CSI ? 4 i : Start passthrough printing");
+            break;
+          case 5:
+            if (debug > 1)
+              debug("CSI ? 4 i : Stop passthrough printing");
+            break;
+        }
+        break;
+      case 'l':	//DECRST
+        /* DEC Mode reset */
+        if (debug > 0)
+          debug("ESC [ ? " + DCEvars[0] + " l");
+        for (int i = 0; i <= DCEvar; i++) {
+          switch (DCEvars[i]) {
+            case 1:  /* Application cursor keys */
+              KeyUp[0] = "\u001b[A";
+              KeyDown[0] = "\u001b[B";
+              KeyRight[0] = "\u001b[C";
+              KeyLeft[0] = "\u001b[D";
+              break;
+            case 2: /* DECANM */
+              vt52mode = true;
+              break;
+            case 3: /* 80 columns*/
+              setScreenSize(80, height, true);
+              break;
+            case 6: /* DECOM: move outside margins. */
+              moveoutsidemargins = true;
+              break;
+            case 7: /* DECAWM: Autowrap Mode OFF */
+              wraparound = false;
+              break;
+            case 25: /* turn cursor off */
+              showCursor(false);
+              break;
+            case 47: /* normal screen */
+              setAlternateScreen(false);
+              break;
+            case 1047: /* clear alternate screen, back to normal screen */
+              if (isAlternateScreen())
+                deleteArea(0, 0, width, height, attributes);
+              setAlternateScreen(false);
+              break;
+            case 1048: /* restore cursor */
+              restoreCursor();
+              break;
+            case 1049: /* normal screen, restore cursor */
+              setAlternateScreen(false);
+              restoreCursor();
+              break;
+            case 2026: /* synchronized output, frame complete */
+              synchronizedOutput = false;
+              break;
+              /* Unimplemented stuff: */
+              /* 4  - scrolling mode, jump */
+              /* 5  - dark background */
+              /* 7  - DECAWM - no wrap around mode */
+              /* 12 - local echo on */
+              /* 18 - DECPFF - Printer Form Feed Mode -> Off*/
+              /* 19 - DECPEX - Printer Extent Mode -> Scrolling Region */
+            case 9: 	/* X10 mouse */
+            case 1000:	/* xterm style mouse report OFF */
+            case 1001:
+            case 1002:
+            case 1003:
+              mouserpt = 0;
+              break;
+            default:
+              if (debug > 0)
+                debug("ESC [ ? " + DCEvars[0] + " l, unsupported.");
+              break;
+          }
+        }
+        break;
+      case 'n':
+        if (debug > 0)
+          debug("ESC [ ? " + DCEvars[0] + " n");
+        switch (DCEvars[0]) {
+          case 15:
+            /* printer? no printer. */
+            write((ESC) + "[?13n", false);
+            debug("ESC[5n");
+            break;
+          default:
+            if (debug > 0)
+              debug("ESC [ ? " + DCEvars[0] + " n, unsupported.");
+            break;
+        }
+        break;
+      case '$':
+        term_state = TSTATE_DCEQ_DOLLAR;
+        break;
+      default:
+        if (debug > 0)
+          debug("ESC [ ? " + DCEvars[0] + " " + c + ", unsupported.");
+        break;
+    }
+  }
+
+  /** DECRQM, ESC [ ? Pn $ p: report whether a DEC private mode is set. */
+  private void decRequestModeChar(char c) {
+    term_state = TSTATE_DATA;
+    if (c != 'p') {
+      if (debug > 0)
+        debug("ESC [ ? " + DCEvars[0] + " $ " + c + ", unsupported.");
+      return;
+    }
+
+    /* 1 set, 2 reset, 0 not recognized */
+    int state;
+    switch (DCEvars[0]) {
+      case 1: /* application cursor keys */
+        state = "\u001bOA".equals(KeyUp[0]) ? 1 : 2;
+        break;
+      case 2: /* DECANM */
+        state = vt52mode ? 2 : 1;
+        break;
+      case 6: /* DECOM */
+        state = moveoutsidemargins ? 2 : 1;
+        break;
+      case 7: /* DECAWM */
+        state = wraparound ? 1 : 2;
+        break;
+      case 25: /* cursor visible */
+        state = showcursor ? 1 : 2;
+        break;
+      case 47: /* alternate screen */
+      case 1047:
+      case 1049:
+        state = isAlternateScreen() ? 1 : 2;
+        break;
+      case 9: /* mouse reporting */
+      case 1000:
+      case 1001:
+      case 1002:
+      case 1003:
+        state = mouserpt == DCEvars[0] ? 1 : 2;
+        break;
+      case 2026: /* synchronized output, reset once it timed out */
+        state = isSynchronizedOutput() ? 1 : 2;
+        break;
+      default:
+        state = 0;
+        break;
+    }
+    write((ESC) + "[?" + DCEvars[0] + ";" + state + "$y", false);
+  }
+
+  private void csiExChar(char c) {
+    term_state = TSTATE_DATA;
+    switch (c) {
+      case ESC:
+        term_state = TSTATE_ESC;
+        break;
+      default:
+        if (debug > 0)
+          debug("Unknown character ESC[! character is " + (int) c);
+        break;
+    }
+  }
+
+  private void csiTicksChar(char c) {
+    term_state = TSTATE_DATA;
+    switch (c) {
+      case 'p':
+        if (debug > 0)
+          debug("Conformance level: " + DCEvars[0] + " (unsupported)," + DCEvars[1]);
+        if (DCEvars[0] == 61) {
+          output8bit = false;
+          break;
+        }
+        if (DCEvars[1] == 1) {
+          output8bit = false;
+        } else {
+          output8bit = true; /* 0 or 2 */
+        }
+        break;
+      default:
+        if (debug > 0)
+          debug("Unknown ESC [...  \"" + c);
+        break;
+    }
+  }
+
+  /** Final character of a SCO ANSI sequence, ESC [ = Pn ; ... x. */
+  private void csiEqualChar(char c) {
+    term_state = TSTATE_DATA;
+    switch (c) {
+      case 'F': /* SCO ANSI foreground */
+	  {
+	    int newcolor;
+
+        if (debug > 0)
+          debug("ESC [ = "+DCEvars[0]+" F");
+
+        attributes &= ~COLOR_FG;
+	    newcolor =	((DCEvars[0] & 1) << 2)	|
+	    		 (DCEvars[0] & 2)	|
+	    		((DCEvars[0] & 4) >> 2) ;
+        attributes |= (long)(newcolor+1) << COLOR_FG_SHIFT;
+
+	    break;
+	  }
+      case 'G': /* SCO ANSI background */
+	  {
+	    int newcolor;
+
+        if (debug > 0)
+          debug("ESC [ = "+DCEvars[0]+" G");
+
+        attributes &= ~COLOR_BG;
+	    newcolor =	((DCEvars[0] & 1) << 2)	|
+	    		 (DCEvars[0] & 2)	|
 	    		((DCEvars[0] & 4) >> 2) ;
-            attributes |= (long)(newcolor+1) << COLOR_BG_SHIFT;
+        attributes |= (long)(newcolor+1) << COLOR_BG_SHIFT;
 	    break;
+      }
+
+      default:
+        if (debug > 0) {
+          debugStr.append("Unknown ESC [ = ");
+          for (int i=0;i<=DCEvar;i++) {
+            debugStr.append(DCEvars[i])
+              .append(',');
           }
+          debugStr.append(c);
+          debug(debugStr.toString());
+          debugStr.setLength(0);
+        }
+        break;
+    }
+  }
 
-          default:
-            debugStr.append("Unknown ESC [ = ");
-            for (int i=0;i<=DCEvar;i++) {
-              debugStr.append(DCEvars[i])
-                .append(',');
-            }
-            debugStr.append(c);
-            debug(debugStr.toString());
-            debugStr.setLength(0);
+  private void csiDollarChar(char c) {
+    term_state = TSTATE_DATA;
+    switch (c) {
+      case '}':
+        if (debug > 0)
+          debug("Active Status Display now " + DCEvars[0]);
+        statusmode = DCEvars[0];
+        break;
+        /* bad documentation?
+           case '-':
+           if (debug > 0)
+             debug("Set Status Display now "+DCEvars[0]);
+           break;
+        */
+      case '~':
+        if (debug > 0)
+          debug("Status Line mode now " + DCEvars[0]);
+        break;
+      default:
+        if (debug > 0)
+          debug("UNKNOWN Status Display code " + c + ", with Pn=" + DCEvars[0]);
+        break;
+    }
+  }
+
+  /** Final (or intermediate) character of a control sequence, ESC [ Pn ; ... x. */
+  private void csiChar(char c) {
+    int rows = height;
+    int columns = width;
+
+    term_state = TSTATE_DATA;
+    switch (c) {
+      case '"':
+        term_state = TSTATE_CSI_TICKS;
+        break;
+      case '$':
+        term_state = TSTATE_CSI_DOLLAR;
+        break;
+      case '=':
+        term_state = TSTATE_CSI_EQUAL;
+        break;
+      case '!':
+        term_state = TSTATE_CSI_EX;
+        break;
+      case '?':
+        DCEvar = 0;
+        DCEvars[0] = 0;
+        term_state = TSTATE_DCEQ;
+        break;
+      case 'c':/* send primary device attributes */
+        /* send (ESC[?61c) */
+
+        String subcode = "";
+        if (terminalID.equals("vt320")) subcode = "63;";
+        if (terminalID.equals("vt220")) subcode = "62;";
+        if (terminalID.equals("vt100")) subcode = "61;";
+        write((ESC) + "[?" + subcode + "1;2c", false);
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + " c");
+        break;
+      case 'q':
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + " q");
+        break;
+      case 'g':
+        /* used for tabsets */
+        switch (DCEvars[0]) {
+          case 3:/* clear them */
+            Tabs = new byte[width];
+            break;
+          case 0:
+            Tabs[C] = 0;
             break;
         }
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + " g");
         break;
-      case TSTATE_CSI_DOLLAR:
-        term_state = TSTATE_DATA;
-        switch (c) {
-          case '}':
-            debug("Active Status Display now " + DCEvars[0]);
-            statusmode = DCEvars[0];
+      case 'h':
+        switch (DCEvars[0]) {
+          case 4:
+            insertmode = 1;
             break;
-            /* bad documentation?
-               case '-':
-               debug("Set Status Display now "+DCEvars[0]);
-               break;
-            */
-          case '~':
-            debug("Status Line mode now " + DCEvars[0]);
+          case 20:
+            debug("Setting CRLF to TRUE");
+            sendcrlf = true;
             break;
           default:
-            debug("UNKNOWN Status Display code " + c + ", with Pn=" + DCEvars[0]);
+            if (debug > 0)
+              debug("unsupported: ESC [ " + DCEvars[0] + " h");
             break;
         }
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + " h");
         break;
-      case TSTATE_CSI:
-        term_state = TSTATE_DATA;
-        switch (c) {
-          case '"':
-            term_state = TSTATE_CSI_TICKS;
-            break;
-          case '$':
-            term_state = TSTATE_CSI_DOLLAR;
-            break;
-          case '=':
-            term_state = TSTATE_CSI_EQUAL;
-            break;
-          case '!':
-            term_state = TSTATE_CSI_EX;
-            break;
-          case '?':
-            DCEvar = 0;
-            DCEvars[0] = 0;
-            term_state = TSTATE_DCEQ;
-            break;
-          case '0':
-          case '1':
-          case '2':
-          case '3':
-          case '4':
-          case '5':
-          case '6':
-          case '7':
-          case '8':
-          case '9':
-            DCEvars[DCEvar] = DCEvars[DCEvar] * 10 + (c) - 48;
-            term_state = TSTATE_CSI;
-            break;
-          case ';':
-            DCEvar++;
-            DCEvars[DCEvar] = 0;
-            term_state = TSTATE_CSI;
-            break;
-          case 'c':/* send primary device attributes */
-            /* send (ESC[?61c) */
-
-            String subcode = "";
-            if (terminalID.equals("vt320")) subcode = "63;";
-            if (terminalID.equals("vt220")) subcode = "62;";
-            if (terminalID.equals("vt100")) subcode = "61;";
-            write((ESC) + "[?" + subcode + "1;2c", false);
-            if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + " c");
-            break;
-          case 'q':
-            if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + " q");
-            break;
-          case 'g':
-            /* used for tabsets */
-            switch (DCEvars[0]) {
-              case 3:/* clear them */
-                Tabs = new byte[width];
-                break;
-              case 0:
-                Tabs[C] = 0;
-                break;
-            }
+      case 'i': // Printer Controller mode.
+        // "Transparent printing sends all output, except the CSI 4 i
+        //  termination string, to the printer and not the screen,
+        //  uses an 8-bit channel if no parity so NUL and DEL will be
+        //  seen by the printer and by the termination recognizer code,
+        //  and all translation and character set selections are
+        //  bypassed."
+        switch (DCEvars[0]) {
+          case 0:
             if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + " g");
-            break;
-          case 'h':
-            switch (DCEvars[0]) {
-              case 4:
-                insertmode = 1;
-                break;
-              case 20:
-                debug("Setting CRLF to TRUE");
-                sendcrlf = true;
-                break;
-              default:
-                debug("unsupported: ESC [ " + DCEvars[0] + " h");
-                break;
-            }
-            if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + " h");
-            break;
-          case 'i': // Printer Controller mode.
-            // "Transparent printing sends all output, except the CSI 4 i
-            //  termination string, to the printer and not the screen,
-            //  uses an 8-bit channel if no parity so NUL and DEL will be
-            //  seen by the printer and by the termination recognizer code,
-            //  and all translation and character set selections are
-            //  bypassed."
-            switch (DCEvars[0]) {
-              case 0:
-                if (debug > 1)
-                  debug("CSI 0 i:  Print Screen, not implemented.");
-                break;
-              case 4:
-                if (debug > 1)
-                  debug("CSI 4 i:  Enable Transparent Printing, not implemented.");
-                break;
-              case 5:
-                if (debug > 1)
-                  debug("CSI 4/5 i:  Disable Transparent Printing, not implemented.");
-                break;
-              default:
-                debug("ESC [ " + DCEvars[0] + " i, unimplemented!");
-            }
-            break;
-          case 'l':
-            switch (DCEvars[0]) {
-              case 4:
-                insertmode = 0;
-                break;
-              case 20:
-                debug("Setting CRLF to FALSE");
-                sendcrlf = false;
-                break;
-              default:
-                debug("ESC [ " + DCEvars[0] + " l, unimplemented!");
-                break;
-            }
+              debug("CSI 0 i:  Print Screen, not implemented.");
             break;
-          case 'A': // CUU
-            {
-              int limit;
-              /* FIXME: xterm only cares about 0 and topmargin */
-              if (R >= getTopMargin()) {
-                limit = getTopMargin();
-              } else
-                limit = 0;
-              if (DCEvars[0] == 0)
-                R--;
-              else
-                R -= DCEvars[0];
-              if (R < limit)
-                R = limit;
-              if (debug > 1)
-                debug("ESC [ " + DCEvars[0] + " A");
-              break;
-            }
-          case 'B':	// CUD
-            /* cursor down n (1) times */
-            {
-              int limit;
-              if (R <= getBottomMargin()) {
-                limit = getBottomMargin();
-              } else
-                limit = rows - 1;
-              if (DCEvars[0] == 0)
-                R++;
-              else
-                R += DCEvars[0];
-              if (R > limit)
-                R = limit;
-              else {
-                if (debug > 2) debug("Not limited.");
-              }
-              if (debug > 2) debug("to: " + R);
-              if (debug > 1)
-                debug("ESC [ " + DCEvars[0] + " B (at C=" + C + ")");
-              break;
-            }
-          case 'C':
-            if (DCEvars[0] == 0)
-              DCEvars[0] = 1;
-            while (DCEvars[0]-- > 0) {
-              C++;
-            }
-            if (C >= columns)
-              C = columns - 1;
+          case 4:
             if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + " C");
+              debug("CSI 4 i:  Enable Transparent Printing, not implemented.");
             break;
-          case 'd': // CVA
-            R = DCEvars[0] - 1;
-            if (R < 0)
-              R = 0;
-            else if (R >= height)
-              R = height - 1;
+          case 5:
             if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + " d");
+              debug("CSI 4/5 i:  Disable Transparent Printing, not implemented.");
             break;
-          case 'D':
-            if (DCEvars[0] == 0)
-              DCEvars[0] = 1;
-            while (DCEvars[0]-- > 0) {
-              C--;
-            }
-            if (C < 0) C = 0;
-            if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + " D");
+          default:
+            if (debug > 0)
+              debug("ESC [ " + DCEvars[0] + " i, unimplemented!");
+        }
+        break;
+      case 'l':
+        switch (DCEvars[0]) {
+          case 4:
+            insertmode = 0;
             break;
-          case 'r': // DECSTBM
-            if (DCEvar > 0)   //  Ray:  Any argument is optional
-            {
-              R = DCEvars[1] - 1;
-              if (R < 0)
-                R = rows - 1;
-              else if (R >= rows) {
-                R = rows - 1;
-              }
-            } else
-              R = rows - 1;
-            int bot = R;
-            if (R >= DCEvars[0]) {
-              R = DCEvars[0] - 1;
-              if (R < 0)
-                R = 0;
-            }
-            setMargins(R, bot);
-            _SetCursor(0, 0);
-            if (debug > 1)
-              debug("ESC [" + DCEvars[0] + " ; " + DCEvars[1] + " r");
+          case 20:
+            debug("Setting CRLF to FALSE");
+            sendcrlf = false;
             break;
-          case 'G':  /* CUP  / cursor absolute column */
-            C = DCEvars[0] - 1;
-            if (C < 0)
-              C = 0;
-            else if (C >= width)
-              C = width - 1;
-            if (debug > 1) debug("ESC [ " + DCEvars[0] + " G");
+          default:
+            if (debug > 0)
+              debug("ESC [ " + DCEvars[0] + " l, unimplemented!");
             break;
-          case 'H':  /* CUP  / cursor position */
-            /* gets 2 arguments */
-            _SetCursor(DCEvars[0] - 1, DCEvars[1] - 1);
-            if (debug > 2) {
-              debug("ESC [ " + DCEvars[0] + ";" + DCEvars[1] + " H, moveoutsidemargins " + moveoutsidemargins);
-              debug("	-> R now " + R + ", C now " + C);
-            }
+        }
+        break;
+      case 'A': // CUU
+        {
+          int limit;
+          /* FIXME: xterm only cares about 0 and topmargin */
+          if (R >= getTopMargin()) {
+            limit = getTopMargin();
+          } else
+            limit = 0;
+          if (DCEvars[0] == 0)
+            R--;
+          else
+            R -= DCEvars[0];
+          if (R < limit)
+            R = limit;
+          if (debug > 1)
+            debug("ESC [ " + DCEvars[0] + " A");
+          break;
+        }
+      case 'B':	// CUD
+        /* cursor down n (1) times */
+        {
+          int limit;
+          if (R <= getBottomMargin()) {
+            limit = getBottomMargin();
+          } else
+            limit = rows - 1;
+          if (DCEvars[0] == 0)
+            R++;
+          else
+            R += DCEvars[0];
+          if (R > limit)
+            R = limit;
+          else {
+            if (debug > 2) debug("Not limited.");
+          }
+          if (debug > 2) debug("to: " + R);
+          if (debug > 1)
+            debug("ESC [ " + DCEvars[0] + " B (at C=" + C + ")");
+          break;
+        }
+      case 'C':
+        if (DCEvars[0] == 0)
+          DCEvars[0] = 1;
+        while (DCEvars[0]-- > 0) {
+          C++;
+        }
+        if (C >= columns)
+          C = columns - 1;
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + " C");
+        break;
+      case 'd': // CVA
+        R = DCEvars[0] - 1;
+        if (R < 0)
+          R = 0;
+        else if (R >= height)
+          R = height - 1;
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + " d");
+        break;
+      case 'D':
+        if (DCEvars[0] == 0)
+          DCEvars[0] = 1;
+        while (DCEvars[0]-- > 0) {
+          C--;
+        }
+        if (C < 0) C = 0;
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + " D");
+        break;
+      case 'r': // DECSTBM
+        if (DCEvar > 0)   //  Ray:  Any argument is optional
+        {
+          R = DCEvars[1] - 1;
+          if (R < 0)
+            R = rows - 1;
+          else if (R >= rows) {
+            R = rows - 1;
+          }
+        } else
+          R = rows - 1;
+        int bot = R;
+        if (R >= DCEvars[0]) {
+          R = DCEvars[0] - 1;
+          if (R < 0)
+            R = 0;
+        }
+        setMargins(R, bot);
+        _SetCursor(0, 0);
+        if (debug > 1)
+          debug("ESC [" + DCEvars[0] + " ; " + DCEvars[1] + " r");
+        break;
+      case 'G':  /* CUP  / cursor absolute column */
+        C = DCEvars[0] - 1;
+        if (C < 0)
+          C = 0;
+        else if (C >= width)
+          C = width - 1;
+        if (debug > 1) debug("ESC [ " + DCEvars[0] + " G");
+        break;
+      case 'H':  /* CUP  / cursor position */
+        /* gets 2 arguments */
+        _SetCursor(DCEvars[0] - 1, DCEvars[1] - 1);
+        if (debug > 2) {
+          debug("ESC [ " + DCEvars[0] + ";" + DCEvars[1] + " H, moveoutsidemargins " + moveoutsidemargins);
+          if (debug > 0)
+            debug("	-> R now " + R + ", C now " + C);
+        }
+        break;
+      case 'f':  /* move cursor 2 */
+        /* gets 2 arguments */
+        R = DCEvars[0] - 1;
+        C = DCEvars[1] - 1;
+        if (C < 0)
+          C = 0;
+        else if (C >= width)
+          C = width - 1;
+        if (R < 0)
+          R = 0;
+        else if (R >= height)
+          R = height - 1;
+        if (debug > 2)
+          debug("ESC [ " + DCEvars[0] + ";" + DCEvars[1] + " f");
+        break;
+      case 'S': /* ind aka 'scroll forward' */
+        if (DCEvars[0] == 0)
+          insertLine(getBottomMargin(), SCROLL_UP);
+        else
+          insertLine(getBottomMargin(), DCEvars[0], SCROLL_UP);
+        break;
+      case 'L':
+        /* insert n lines */
+        if (DCEvars[0] == 0)
+          insertLine(R, SCROLL_DOWN);
+        else
+          insertLine(R, DCEvars[0], SCROLL_DOWN);
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + "" + (c) + " (at R " + R + ")");
+        break;
+      case 'T': /* 'ri' aka scroll backward */
+        if (DCEvars[0] == 0)
+          insertLine(getTopMargin(), SCROLL_DOWN);
+        else
+          insertLine(getTopMargin(), DCEvars[0], SCROLL_DOWN);
+        break;
+      case 'M':
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + "" + (c) + " at R=" + R);
+        if (DCEvars[0] == 0)
+          deleteLine(R);
+        else
+          for (int i = 0; i < DCEvars[0]; i++)
+            deleteLine(R);
+        break;
+      case 'K':
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + " K");
+        /* clear in line */
+        switch (DCEvars[0]) {
+          case 6: /* 97801 uses ESC[6K for delete to end of line */
+          case 0:/*clear to right*/
+            if (C < columns - 1)
+              deleteArea(C, R, columns - C, 1, attributes);
             break;
-          case 'f':  /* move cursor 2 */
-            /* gets 2 arguments */
-            R = DCEvars[0] - 1;
-            C = DCEvars[1] - 1;
-            if (C < 0)
-              C = 0;
-            else if (C >= width)
-              C = width - 1;
-            if (R < 0)
-              R = 0;
-            else if (R >= height)
-              R = height - 1;
-            if (debug > 2)
-              debug("ESC [ " + DCEvars[0] + ";" + DCEvars[1] + " f");
+          case 1:/*clear to the left, including this */
+            if (C > 0)
+              deleteArea(0, R, C + 1, 1, attributes);
             break;
-          case 'S': /* ind aka 'scroll forward' */
-            if (DCEvars[0] == 0)
-              insertLine(getBottomMargin(), SCROLL_UP);
-            else
-              insertLine(getBottomMargin(), DCEvars[0], SCROLL_UP);
+          case 2:/*clear whole line */
+            deleteArea(0, R, columns, 1, attributes);
             break;
-          case 'L':
-            /* insert n lines */
-            if (DCEvars[0] == 0)
-              insertLine(R, SCROLL_DOWN);
-            else
-              insertLine(R, DCEvars[0], SCROLL_DOWN);
-            if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + "" + (c) + " (at R " + R + ")");
+        }
+        break;
+      case 'J':
+        /* clear below current line */
+        switch (DCEvars[0]) {
+          case 0:
+            if (R < rows - 1)
+              deleteArea(0, R + 1, columns, rows - R - 1, attributes);
+            if (C < columns - 1)
+              deleteArea(C, R, columns - C, 1, attributes);
             break;
-          case 'T': /* 'ri' aka scroll backward */
-            if (DCEvars[0] == 0)
-              insertLine(getTopMargin(), SCROLL_DOWN);
-            else
-              insertLine(getTopMargin(), DCEvars[0], SCROLL_DOWN);
+          case 1:
+            if (R > 0)
+              deleteArea(0, 0, columns, R, attributes);
+            if (C > 0)
+              deleteArea(0, R, C + 1, 1, attributes);// include up to and including current
             break;
-          case 'M':
-            if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + "" + (c) + " at R=" + R);
-            if (DCEvars[0] == 0)
-              deleteLine(R);
-            else
-              for (int i = 0; i < DCEvars[0]; i++)
-                deleteLine(R);
+          case 2:
+            deleteArea(0, 0, columns, rows, attributes);
             break;
-          case 'K':
+        }
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + " J");
+        break;
+      case '@':
+        if (DCEvars[0] == 0) DCEvars[0] = 1;
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + " @");
+        for (int i = 0; i < DCEvars[0]; i++)
+          insertChar(C, R, ' ', attributes);
+        break;
+      case 'X':
+        {
+          int toerase = DCEvars[0];
+          if (debug > 1)
+            debug("ESC [ " + DCEvars[0] + " X, C=" + C + ",R=" + R);
+          if (toerase == 0)
+            toerase = 1;
+          if (toerase + C > columns)
+            toerase = columns - C;
+          deleteArea(C, R, toerase, 1, attributes);
+          // does not change cursor position
+          break;
+        }
+      case 'P':
+        if (debug > 1)
+          debug("ESC [ " + DCEvars[0] + " P, C=" + C + ",R=" + R);
+        if (DCEvars[0] == 0) DCEvars[0] = 1;
+        for (int i = 0; i < DCEvars[0]; i++)
+          deleteChar(C, R);
+        break;
+      case 'n':
+        switch (DCEvars[0]) {
+          case 5: /* malfunction? No malfunction. */
+            writeSpecial((ESC) + "[0n");
             if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + " K");
-            /* clear in line */
-            switch (DCEvars[0]) {
-              case 6: /* 97801 uses ESC[6K for delete to end of line */
-              case 0:/*clear to right*/
-                if (C < columns - 1)
-                  deleteArea(C, R, columns - C, 1, attributes);
-                break;
-              case 1:/*clear to the left, including this */
-                if (C > 0)
-                  deleteArea(0, R, C + 1, 1, attributes);
-                break;
-              case 2:/*clear whole line */
-                deleteArea(0, R, columns, 1, attributes);
-                break;
-            }
+              debug("ESC[5n");
             break;
-          case 'J':
-            /* clear below current line */
-            switch (DCEvars[0]) {
-              case 0:
-                if (R < rows - 1)
-                  deleteArea(0, R + 1, columns, rows - R - 1, attributes);
-                if (C < columns - 1)
-                  deleteArea(C, R, columns - C, 1, attributes);
-                break;
-              case 1:
-                if (R > 0)
-                  deleteArea(0, 0, columns, R, attributes);
-                if (C > 0)
-                  deleteArea(0, R, C + 1, 1, attributes);// include up to and including current
-                break;
-              case 2:
-                deleteArea(0, 0, columns, rows, attributes);
-                break;
-            }
+          case 6:
+            // DO NOT offset R and C by 1! (checked against /usr/X11R6/bin/resize
+            // FIXME check again.
+            // FIXME: but vttest thinks different???
+            writeSpecial((ESC) + "[" + R + ";" + C + "R");
             if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + " J");
+              debug("ESC[6n");
             break;
-          case '@':
-            if (DCEvars[0] == 0) DCEvars[0] = 1;
-            if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + " @");
-            for (int i = 0; i < DCEvars[0]; i++)
-              insertChar(C, R, ' ', attributes);
+          default:
+            if (debug > 0)
+              debug("ESC [ " + DCEvars[0] + " n??");
             break;
-          case 'X':
-            {
-              int toerase = DCEvars[0];
-              if (debug > 1)
-                debug("ESC [ " + DCEvars[0] + " X, C=" + C + ",R=" + R);
-              if (toerase == 0)
-                toerase = 1;
-              if (toerase + C > columns)
-                toerase = columns - C;
-              deleteArea(C, R, toerase, 1, attributes);
-              // does not change cursor position
+        }
+        break;
+      case 's':  /* DECSC - save cursor */
+        Sc = C;
+        Sr = R;
+        Sa = attributes;
+        if (debug > 3)
+          debug("ESC[s");
+        break;
+      case 'u': /* DECRC - restore cursor */
+        C = Sc;
+        R = Sr;
+        attributes = Sa;
+        if (debug > 3)
+          debug("ESC[u");
+        break;
+      case 'm':  /* attributes as color, bold , blink,*/
+        if (debug > 3)
+          debug("ESC [ ");
+        if (DCEvar == 0 && DCEvars[0] == 0)
+          attributes = 0;
+        for (int i = 0; i <= DCEvar; i++) {
+          switch (DCEvars[i]) {
+            case 0:
+              if (DCEvar > 0) {
+                if (terminalID.equals("scoansi")) {
+                  attributes &= COLOR; /* Keeps color. Strange but true. */
+                } else {
+                  attributes = 0;
+                }
+              }
               break;
-            }
-          case 'P':
-            if (debug > 1)
-              debug("ESC [ " + DCEvars[0] + " P, C=" + C + ",R=" + R);
-            if (DCEvars[0] == 0) DCEvars[0] = 1;
-            for (int i = 0; i < DCEvars[0]; i++)
-              deleteChar(C, R);
-            break;
-          case 'n':
-            switch (DCEvars[0]) {
-              case 5: /* malfunction? No malfunction. */
-                writeSpecial((ESC) + "[0n");
-                if (debug > 1)
-                  debug("ESC[5n");
-                break;
-              case 6:
-                // DO NOT offset R and C by 1! (checked against /usr/X11R6/bin/resize
-                // FIXME check again.
-                // FIXME: but vttest thinks different???
-                writeSpecial((ESC) + "[" + R + ";" + C + "R");
-                if (debug > 1)
-                  debug("ESC[6n");
-                break;
-              default:
-                if (debug > 0)
-                  debug("ESC [ " + DCEvars[0] + " n??");
-                break;
-            }
-            break;
-          case 's':  /* DECSC - save cursor */
-            Sc = C;
-            Sr = R;
-            Sa = attributes;
-            if (debug > 3)
-              debug("ESC[s");
-            break;
-          case 'u': /* DECRC - restore cursor */
-            C = Sc;
-            R = Sr;
-            attributes = Sa;
-            if (debug > 3)
-              debug("ESC[u");
-            break;
-          case 'm':  /* attributes as color, bold , blink,*/
-            if (debug > 3)
-              debug("ESC [ ");
-            if (DCEvar == 0 && DCEvars[0] == 0)
-              attributes = 0;
-            for (int i = 0; i <= DCEvar; i++) {
-              switch (DCEvars[i]) {
-                case 0:
-                  if (DCEvar > 0) {
-                    if (terminalID.equals("scoansi")) {
-                      attributes &= COLOR; /* Keeps color. Strange but true. */
-                    } else {
-                      attributes = 0;
-                    }
-                  }
-                  break;
-                case 1:
+            case 1:
+              attributes |= BOLD;
+              attributes &= ~LOW;
+              break;
+            case 2:
+              /* SCO color hack mode */
+              if (terminalID.equals("scoansi") && ((DCEvar - i) >= 2)) {
+                int ncolor;
+                attributes &= ~(COLOR | BOLD);
+
+                ncolor = DCEvars[i + 1];
+                if ((ncolor & 8) == 8)
                   attributes |= BOLD;
-                  attributes &= ~LOW;
-                  break;
-                case 2:
-                  /* SCO color hack mode */
-                  if (terminalID.equals("scoansi") && ((DCEvar - i) >= 2)) {
-                    int ncolor;
-                    attributes &= ~(COLOR | BOLD);
-
-                    ncolor = DCEvars[i + 1];
-                    if ((ncolor & 8) == 8)
-                      attributes |= BOLD;
-                    ncolor = ((ncolor & 1) << 2) | (ncolor & 2) | ((ncolor & 4) >> 2);
-                    attributes |= (long)((ncolor) + 1) << COLOR_FG_SHIFT;
-                    ncolor = DCEvars[i + 2];
-                    ncolor = ((ncolor & 1) << 2) | (ncolor & 2) | ((ncolor & 4) >> 2);
-                    attributes |= (long)((ncolor) + 1) << COLOR_BG_SHIFT;
-                    i += 2;
-                  } else {
-                    attributes |= LOW;
-                  }
-                  break;
-                case 3: /* italics */
-                  attributes |= INVERT;
-                  break;
-                case 4:
-                  attributes |= UNDERLINE;
-                  break;
-                case 7:
-                  attributes |= INVERT;
-                  break;
-                case 8:
-                  attributes |= INVISIBLE;
-                  break;
-                case 5: /* blink on */
-                  break;
-                  /* 10 - ANSI X3.64-1979, select primary font, don't display control
-                   *      chars, don't set bit 8 on output */
-                case 10:
-                  gl = 0;
-                  usedcharsets = true;
-                  break;
-                  /* 11 - ANSI X3.64-1979, select second alt. font, display control
-                   *      chars, set bit 8 on output */
-                case 11: /* SMACS , as */
-                case 12:
-                  gl = 1;
-                  usedcharsets = true;
-                  break;
-                case 21: /* normal intensity */
-                  attributes &= ~(LOW | BOLD);
-                  break;
-                case 23: /* italics off */
-                  attributes &= ~INVERT;
-                  break;
-                case 25: /* blinking off */
-                  break;
-                case 27:
-                  attributes &= ~INVERT;
-                  break;
-                case 28:
-                  attributes &= ~INVISIBLE;
-                  break;
-                case 24:
-                  attributes &= ~UNDERLINE;
-                  break;
-                case 22:
-                  attributes &= ~BOLD;
-                  break;
-                case 30:
-                case 31:
-                case 32:
-                case 33:
-                case 34:
-                case 35:
-                case 36:
-                case 37:
-                  attributes &= ~COLOR_FG;
-                  attributes |= (long)((DCEvars[i] - 30) + 1)<< COLOR_FG_SHIFT;
-                  break;
-                case 38:
-                  if (DCEvars[i+1] == 5) {
-                    attributes &= ~COLOR_FG;
-                    attributes |= (long)((DCEvars[i + 2]) + 1) << COLOR_FG_SHIFT;
-                    i += 2;
-                  } else if (DCEvars[i+1] == 2) {
-                    attributes &= ~COLOR_FG;
-                    int newcolor = DCEvars[i + 2] << COLOR_RED_SHIFT |
-                                   DCEvars[i + 3] << COLOR_GREEN_SHIFT |
-                                   DCEvars[i + 4] << COLOR_BLUE_SHIFT;
-                    attributes |= (long)(newcolor + 257) << COLOR_FG_SHIFT;
-                    i += 4;
-                  }
-                  break;
-                case 39:
-                  attributes &= ~COLOR_FG;
-                  break;
-                case 40:
-                case 41:
-                case 42:
-                case 43:
-                case 44:
-                case 45:
-                case 46:
-                case 47:
-                  attributes &= ~COLOR_BG;
-                  attributes |= (long)((DCEvars[i] - 40) + 1) << COLOR_BG_SHIFT;
-                  break;
-                case 48:
-                  if (DCEvars[i+1] == 5) {
-                    attributes &= ~COLOR_BG;
-                    attributes |= (long)(DCEvars[i + 2] + 1) << COLOR_BG_SHIFT;
-                    i += 2;
-                  } else if (DCEvars[i+1] == 2) {
-                    attributes &= ~COLOR_BG;
-                    int newcolor = DCEvars[i + 2] << COLOR_RED_SHIFT |
-                                   DCEvars[i + 3] << COLOR_GREEN_SHIFT |
-                                   DCEvars[i + 4] << COLOR_BLUE_SHIFT;
-                    attributes |= (long)(newcolor + 257) << COLOR_BG_SHIFT;
-                    i += 4;
-                  }
-                  break;
-                case 49:
-                  attributes &= ~COLOR_BG;
-                  break;
-                case 90:
-                case 91:
-                case 92:
-                case 93:
-                case 94:
-                case 95:
-                case 96:
-                case 97:
-                  attributes &= ~COLOR_FG;
-                  attributes |= (long)((DCEvars[i] - 82) + 1) << COLOR_FG_SHIFT;
-                  break;
-                case 100:
-                case 101:
-                case 102:
-                case 103:
-                case 104:
-                case 105:
-                case 106:
-                case 107:
-                  attributes &= ~COLOR_BG;
-                  attributes |= (long)((DCEvars[i] - 92) + 1) << COLOR_BG_SHIFT;
-                  break;
-
-                default:
-                  debugStr.append("ESC [ ")
-                    .append(DCEvars[i])
-                    .append(" m unknown...");
-                  debug(debugStr.toString());
-                  debugStr.setLength(0);
-                  break;
+                ncolor = ((ncolor & 1) << 2) | (ncolor & 2) | ((ncolor & 4) >> 2);
+                attributes |= (long)((ncolor) + 1) << COLOR_FG_SHIFT;
+                ncolor = DCEvars[i + 2];
+                ncolor = ((ncolor & 1) << 2) | (ncolor & 2) | ((ncolor & 4) >> 2);
+                attributes |= (long)((ncolor) + 1) << COLOR_BG_SHIFT;
+                i += 2;
+              } else {
+                attributes |= LOW;
+              }
+              break;
+            case 3: /* italics */
+              attributes |= INVERT;
+              break;
+            case 4:
+              attributes |= UNDERLINE;
+              break;
+            case 7:
+              attributes |= INVERT;
+              break;
+            case 8:
+              attributes |= INVISIBLE;
+              break;
+            case 5: /* blink on */
+              break;
+              /* 10 - ANSI X3.64-1979, select primary font, don't display control
+               *      chars, don't set bit 8 on output */
+            case 10:
+              gl = 0;
+              usedcharsets = true;
+              break;
+              /* 11 - ANSI X3.64-1979, select second alt. font, display control
+               *      chars, set bit 8 on output */
+            case 11: /* SMACS , as */
+            case 12:
+              gl = 1;
+              usedcharsets = true;
+              break;
+            case 21: /* normal intensity */
+              attributes &= ~(LOW | BOLD);
+              break;
+            case 23: /* italics off */
+              attributes &= ~INVERT;
+              break;
+            case 25: /* blinking off */
+              break;
+            case 27:
+              attributes &= ~INVERT;
+              break;
+            case 28:
+              attributes &= ~INVISIBLE;
+              break;
+            case 24:
+              attributes &= ~UNDERLINE;
+              break;
+            case 22:
+              attributes &= ~BOLD;
+              break;
+            case 30:
+            case 31:
+            case 32:
+            case 33:
+            case 34:
+            case 35:
+            case 36:
+            case 37:
+              attributes &= ~COLOR_FG;
+              attributes |= (long)((DCEvars[i] - 30) + 1)<< COLOR_FG_SHIFT;
+              break;
+            case 38:
+              if (DCEvars[i+1] == 5) {
+                attributes &= ~COLOR_FG;
+                attributes |= (long)((DCEvars[i + 2]) + 1) << COLOR_FG_SHIFT;
+                i += 2;
+              } else if (DCEvars[i+1] == 2) {
+                attributes &= ~COLOR_FG;
+                int newcolor = DCEvars[i + 2] << COLOR_RED_SHIFT |
+                               DCEvars[i + 3] << COLOR_GREEN_SHIFT |
+                               DCEvars[i + 4] << COLOR_BLUE_SHIFT;
+                attributes |= (long)(newcolor + 257) << COLOR_FG_SHIFT;
+                i += 4;
+              }
+              break;
+            case 39:
+              attributes &= ~COLOR_FG;
+              break;
+            case 40:
+            case 41:
+            case 42:
+            case 43:
+            case 44:
+            case 45:
+            case 46:
+            case 47:
+              attributes &= ~COLOR_BG;
+              attributes |= (long)((DCEvars[i] - 40) + 1) << COLOR_BG_SHIFT;
+              break;
+            case 48:
+              if (DCEvars[i+1] == 5) {
+                attributes &= ~COLOR_BG;
+                attributes |= (long)(DCEvars[i + 2] + 1) << COLOR_BG_SHIFT;
+                i += 2;
+              } else if (DCEvars[i+1] == 2) {
+                attributes &= ~COLOR_BG;
+                int newcolor = DCEvars[i + 2] << COLOR_RED_SHIFT |
+                               DCEvars[i + 3] << COLOR_GREEN_SHIFT |
+                               DCEvars[i + 4] << COLOR_BLUE_SHIFT;
+                attributes |= (long)(newcolor + 257) << COLOR_BG_SHIFT;
+                i += 4;
               }
-              if (debug > 3) {
-                debugStr.append(DCEvars[i])
-                  .append(';');
+              break;
+            case 49:
+              attributes &= ~COLOR_BG;
+              break;
+            case 90:
+            case 91:
+            case 92:
+            case 93:
+            case 94:
+            case 95:
+            case 96:
+            case 97:
+              attributes &= ~COLOR_FG;
+              attributes |= (long)((DCEvars[i] - 82) + 1) << COLOR_FG_SHIFT;
+              break;
+            case 100:
+            case 101:
+            case 102:
+            case 103:
+            case 104:
+            case 105:
+            case 106:
+            case 107:
+              attributes &= ~COLOR_BG;
+              attributes |= (long)((DCEvars[i] - 92) + 1) << COLOR_BG_SHIFT;
+              break;
+
+            default:
+              if (debug > 0) {
+                debugStr.append("ESC [ ")
+                  .append(DCEvars[i])
+                  .append(" m unknown...");
                 debug(debugStr.toString());
                 debugStr.setLength(0);
               }
-            }
-            if (debug > 3) {
-              debugStr.append(" (attributes = ")
-                .append(attributes)
-                .append(")m");
-              debug(debugStr.toString());
-              debugStr.setLength(0);
-            }
-            break;
-          default:
-            debugStr.append("ESC [ unknown letter: ")
-              .append(c)
-              .append(" (")
-              .append((int)c)
-              .append(')');
+              break;
+          }
+          if (debug > 3) {
+            debugStr.append(DCEvars[i])
+              .append(';');
             debug(debugStr.toString());
             debugStr.setLength(0);
-            break;
+          }
         }
-        break;
-      case TSTATE_TITLE:
-        switch (c) {
-          case ESC:
-            term_state = TSTATE_ESC;
-            break;
-          default:
-            // TODO save title
-            break;
+        if (debug > 3) {
+          debugStr.append(" (attributes = ")
+            .append(attributes)
+            .append(")m");
+          debug(debugStr.toString());
+          debugStr.setLength(0);
         }
         break;
       default:
-        term_state = TSTATE_DATA;
+        if (debug > 0) {
+          debugStr.append("ESC [ unknown letter: ")
+            .append(c)
+            .append(" (")
+            .append((int)c)
+            .append(')');
+          debug(debugStr.toString());
+          debugStr.setLength(0);
+        }
         break;
     }
+  }
 
-    setCursorPosition(C, R);
+  private void titleChar(char c) {
+    switch (c) {
+      case ESC:
+        term_state = TSTATE_ESC;
+        break;
+      default:
+        // TODO save title
+        break;
+    }
   }
 
   /* hard reset the terminal */
@@ -3113,6 +3328,7 @@ public void setScreenSize(int c, int r, boolean broadcast) {
       Tabs[i] = 1;
     }
 
+    setAlternateScreen(false);
     deleteArea(0, 0, width, height, attributes);
     setMargins(0, height);
     C = R = 0;
@@ -3122,6 +3338,7 @@ public void setScreenSize(int c, int r, boolean broadcast) {
       display.resetColors();
 
     showCursor(true);
+    synchronizedOutput = false;
     /*FIXME:*/
     term_state = TSTATE_DATA;
   }
@@ -1133,6 +1133,7 @@ public class ConsoleActivity extends AppCompatActivity implements BridgeDisconne
 			return;
 		}
 		bound.defaultBridge = view.bridge;
+		view.bridge.markViewed();
 	}
 
 	protected void updateEmptyVisible() {
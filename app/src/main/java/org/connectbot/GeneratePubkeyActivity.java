@@ -23,6 +23,7 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Security;
+import java.util.concurrent.CancellationException;
 
 import org.connectbot.bean.PubkeyBean;
 import org.connectbot.util.EntropyDialog;
@@ -31,12 +32,14 @@ import org.connectbot.util.OnEntropyGatheredListener;
 import org.connectbot.util.OnKeyGeneratedListener;
 import org.connectbot.util.PubkeyDatabase;
 import org.connectbot.util.PubkeyUtils;
+import org.connectbot.util.RsaKeyGenerator;
 
 import com.trilead.ssh2.crypto.keys.Ed25519Provider;
 
 import android.annotation.SuppressLint;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.graphics.PorterDuff;
 import android.os.Bundle;
 import androidx.annotation.VisibleForTesting;
@@ -305,18 +308,34 @@ public class GeneratePubkeyActivity extends AppCompatActivity implements OnEntro
 		private final String keyType;
 		private final int numBits;
 		private final byte[] entropy;
+		private final RsaKeyGenerator rsaGenerator;
+		private final RsaKeyGenerator.ProgressListener progressListener;
 		private final OnKeyGeneratedListener listener;
 
 		KeyGeneratorRunnable(String keyType, int numBits, byte[] entropy,
+				RsaKeyGenerator rsaGenerator, RsaKeyGenerator.ProgressListener progressListener,
 				OnKeyGeneratedListener listener) {
 			this.keyType = keyType;
 			this.numBits = numBits;
 			this.entropy = entropy;
+			this.rsaGenerator = rsaGenerator;
+			this.progressListener = progressListener;
 			this.listener = listener;
 		}
 
 		@Override
 		public void run() {
+			if (rsaGenerator != null) {
+				try {
+					listener.onGenerationSuccess(rsaGenerator.generate(progressListener));
+				} catch (CancellationException e) {
+					// The user backed out of the progress dialog; nothing to save.
+				} catch (Exception e) {
+					listener.onGenerationError(e);
+				}
+				return;
+			}
+
 			SecureRandom random = new SecureRandom();
 
 			// Work around JVM bug
@@ -339,11 +358,46 @@ public class GeneratePubkeyActivity extends AppCompatActivity implements OnEntro
 		progress = new ProgressDialog(GeneratePubkeyActivity.this);
 		progress.setMessage(GeneratePubkeyActivity.this.getResources().getText(R.string.pubkey_generating));
 		progress.setIndeterminate(true);
-		progress.setCancelable(false);
+
+		RsaKeyGenerator rsaGenerator = null;
+		RsaKeyGenerator.ProgressListener progressListener = null;
+		if (keyType == KeyType.RSA) {
+			// RSA can take minutes at the larger sizes, so search on every core
+			// and let the user see how far along it is or give up.
+			final RsaKeyGenerator generator = new RsaKeyGenerator(bits, entropy,
+					Runtime.getRuntime().availableProcessors());
+			rsaGenerator = generator;
+
+			progress.setCancelable(true);
+			progress.setCanceledOnTouchOutside(false);
+			progress.setOnCancelListener(new DialogInterface.OnCancelListener() {
+				@Override
+				public void onCancel(DialogInterface dialog) {
+					generator.cancel();
+					save.setEnabled(true);
+				}
+			});
+
+			progressListener = new RsaKeyGenerator.ProgressListener() {
+				@Override
+				public void onProgress(final int tested, int primes) {
+					runOnUiThread(new Runnable() {
+						@Override
+						public void run() {
+							if (!generator.isCancelled() && progress.isShowing())
+								progress.setMessage(getString(R.string.pubkey_generating_progress, tested));
+						}
+					});
+				}
+			};
+		} else {
+			progress.setCancelable(false);
+		}
 		progress.show();
 
 		Log.d(TAG, "Starting generation of " + keyType + " of strength " + bits);
-		KeyGeneratorRunnable keyGen = new KeyGeneratorRunnable(keyType.name, bits, entropy, this);
+		KeyGeneratorRunnable keyGen = new KeyGeneratorRunnable(keyType.name, bits, entropy,
+				rsaGenerator, progressListener, this);
 		Thread keyGenThread = new Thread(keyGen);
 		keyGenThread.setName("KeyGen " + keyType + " " + bits);
 		keyGenThread.start();
@@ -364,16 +418,17 @@ public class GeneratePubkeyActivity extends AppCompatActivity implements OnEntro
 			//Log.d(TAG, "private: " + PubkeyUtils.formatKey(priv));
 			Log.d(TAG, "public: " + PubkeyUtils.formatKey(pub));
 
+			PubkeyDatabase pubkeydb = PubkeyDatabase.get(GeneratePubkeyActivity.this);
+
 			PubkeyBean pubkey = new PubkeyBean();
 			pubkey.setNickname(nickname.getText().toString());
 			pubkey.setType(keyType.name);
-			pubkey.setPrivateKey(PubkeyUtils.getEncodedPrivate(priv, secret));
+			pubkey.setPrivateKey(PubkeyUtils.getEncodedPrivate(priv, secret, pubkeydb.getKdfIterations()));
 			pubkey.setPublicKey(pub.getEncoded());
 			pubkey.setEncrypted(encrypted);
 			pubkey.setStartup(unlockAtStartup.isChecked());
 			pubkey.setConfirmUse(confirmUse.isChecked());
 
-			PubkeyDatabase pubkeydb = PubkeyDatabase.get(GeneratePubkeyActivity.this);
 			pubkeydb.savePubkey(pubkey);
 		} catch (Exception e) {
 			Log.e(TAG, "Could not generate key pair");
@@ -37,6 +37,7 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import androidx.recyclerview.widget.LinearLayoutManager;
 import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.LayoutInflater;
@@ -615,6 +616,16 @@ public class HostListActivity extends AppCompatListActivity implements OnHostSta
 				nice = DateUtils.getRelativeTimeSpanString(host.getLastConnect() * 1000);
 			}
 
+			TerminalBridge bridge = manager == null || host == null ? null : manager.getConnectedBridge(host);
+			if (bridge != null && bridge.isHibernating()) {
+				nice = context.getString(R.string.list_host_hibernating, nice);
+			} else if (bridge != null) {
+				int format = bridge.isScrollbackLimited() ?
+						R.string.list_host_scrollback_limited : R.string.list_host_scrollback;
+				nice = context.getString(format, nice,
+						Formatter.formatShortFileSize(context, bridge.getScrollbackBytes()));
+			}
+
 			hostHolder.caption.setText(nice);
 		}
 
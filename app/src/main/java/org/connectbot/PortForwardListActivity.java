@@ -19,6 +19,8 @@ package org.connectbot;
 
 import java.lang.ref.WeakReference;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.connectbot.bean.HostBean;
 import org.connectbot.bean.PortForwardBean;
@@ -38,6 +40,7 @@ import android.graphics.Paint;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Message;
+import android.text.format.Formatter;
 import androidx.annotation.VisibleForTesting;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -66,6 +69,10 @@ public class PortForwardListActivity extends AppCompatListActivity {
 
 	private static final int LISTENER_CYCLE_TIME = 500;
 
+	/** How often the traffic of enabled forwards is redrawn, in ms. */
+	private static final int STATS_INTERVAL = 1000;
+	private static final Object STATS_PAYLOAD = new Object();
+
 	protected HostDatabase hostdb;
 
 	private ServiceConnection connection = null;
@@ -75,6 +82,18 @@ public class PortForwardListActivity extends AppCompatListActivity {
 
 	protected Handler updateHandler = new Handler(new WeakReference<>(this));
 
+	/** the snapshot each forward's rates were last drawn from */
+	private final Map<PortForwardBean, PortForwardBean.Metrics> lastMetrics = new WeakHashMap<>();
+
+	private final Runnable statsUpdater = new Runnable() {
+		@Override
+		public void run() {
+			if (hostBridge != null && mAdapter != null)
+				mAdapter.notifyItemRangeChanged(0, mAdapter.getItemCount(), STATS_PAYLOAD);
+			updateHandler.postDelayed(this, STATS_INTERVAL);
+		}
+	};
+
 	private HostBean host;
 
 	@Override
@@ -84,12 +103,16 @@ public class PortForwardListActivity extends AppCompatListActivity {
 		this.bindService(new Intent(this, TerminalManager.class), connection, Context.BIND_AUTO_CREATE);
 
 		hostdb = HostDatabase.get(this);
+
+		updateHandler.postDelayed(statsUpdater, STATS_INTERVAL);
 	}
 
 	@Override
 	public void onStop() {
 		super.onStop();
 
+		updateHandler.removeCallbacks(statsUpdater);
+
 		this.unbindService(connection);
 
 		hostdb = null;
@@ -248,6 +271,7 @@ public class PortForwardListActivity extends AppCompatListActivity {
 	private class PortForwardViewHolder extends ItemViewHolder {
 		public final TextView nickname;
 		public final TextView caption;
+		public final TextView stats;
 
 		public PortForwardBean portForward;
 
@@ -256,6 +280,7 @@ public class PortForwardListActivity extends AppCompatListActivity {
 
 			nickname = v.findViewById(android.R.id.text1);
 			caption = v.findViewById(android.R.id.text2);
+			stats = v.findViewById(R.id.portforward_stats);
 		}
 
 		@Override
@@ -433,6 +458,37 @@ public class PortForwardListActivity extends AppCompatListActivity {
 				portForwardHolder.nickname.setPaintFlags(portForwardHolder.nickname.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
 				portForwardHolder.caption.setPaintFlags(portForwardHolder.caption.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
 			}
+
+			bindStats(portForwardHolder, portForward);
+		}
+
+		private void bindStats(PortForwardViewHolder holder, PortForwardBean portForward) {
+			if (hostBridge == null || !portForward.isEnabled()) {
+				holder.stats.setVisibility(View.GONE);
+				return;
+			}
+			holder.stats.setVisibility(View.VISIBLE);
+
+			if (HostDatabase.PORTFORWARD_REMOTE.equals(portForward.getType())) {
+				holder.stats.setText(R.string.portforward_stats_unmeasured);
+				return;
+			}
+
+			PortForwardBean.Metrics metrics = portForward.getMetrics();
+			PortForwardBean.Metrics earlier = lastMetrics.put(portForward, metrics);
+			if (earlier == null)
+				earlier = metrics;
+
+			StringBuilder text = new StringBuilder(getString(R.string.portforward_stats,
+					metrics.activeConnections,
+					Formatter.formatShortFileSize(PortForwardListActivity.this, metrics.getSendRate(earlier)),
+					Formatter.formatShortFileSize(PortForwardListActivity.this, metrics.getReceiveRate(earlier))));
+			if (metrics.lastConnectTime >= 0)
+				text.append(getString(R.string.portforward_stats_connect,
+						metrics.lastConnectTime, metrics.averageConnectTime));
+			if (metrics.failedConnections > 0)
+				text.append(getString(R.string.portforward_stats_failed, metrics.failedConnections));
+			holder.stats.setText(text);
 		}
 
 		@Override
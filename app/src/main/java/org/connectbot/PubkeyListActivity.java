@@ -566,7 +566,7 @@ public class PubkeyListActivity extends AppCompatListActivity implements EventLi
 		}
 	}
 
-	protected void handleAddKey(PubkeyBean keybean, String password) {
+	protected void handleAddKey(final PubkeyBean keybean, final String password) {
 		KeyPair pair = null;
 		try {
 			pair = PubkeyUtils.convertToKeyPair(keybean, password);
@@ -584,6 +584,16 @@ public class PubkeyListActivity extends AppCompatListActivity implements EventLi
 		// save this key in memory
 		bound.addKey(keybean, pair, true);
 
+		if (password != null) {
+			final PrivateKey privateKey = pair.getPrivate();
+			final PubkeyDatabase pubkeyDb = PubkeyDatabase.get(PubkeyListActivity.this);
+			bound.executor.execute("UpgradeKey", () -> {
+				// the list shows beans read before, so read them again
+				if (pubkeyDb.upgradeEncryption(keybean, privateKey, password))
+					runOnUiThread(this::updateList);
+			});
+		}
+
 		updateList();
 	}
 
@@ -875,7 +885,8 @@ public class PubkeyListActivity extends AppCompatListActivity implements EventLi
 									}
 
 									try {
-										if (!pubkey.changePassword(oldPassword, password1))
+										PubkeyDatabase pubkeyDb = PubkeyDatabase.get(PubkeyListActivity.this);
+										if (!pubkey.changePassword(oldPassword, password1, pubkeyDb.getKdfIterations()))
 											new androidx.appcompat.app.AlertDialog.Builder(
 													PubkeyListActivity.this,
 													R.style.AlertDialogTheme)
@@ -883,7 +894,6 @@ public class PubkeyListActivity extends AppCompatListActivity implements EventLi
 													.setPositiveButton(android.R.string.ok, null)
 													.create().show();
 										else {
-											PubkeyDatabase pubkeyDb = PubkeyDatabase.get(PubkeyListActivity.this);
 											pubkeyDb.savePubkey(pubkey);
 											updateList();
 										}
@@ -362,6 +362,14 @@ public class TerminalView extends FrameLayout implements FontSizeChangedListener
 		return super.onTouchEvent(event);
 	}
 
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+
+		// let the bridge free its bitmap and hibernate while nobody looks
+		bridge.parentDestroyed(this);
+	}
+
 	@Override
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		super.onSizeChanged(w, h, oldw, oldh);
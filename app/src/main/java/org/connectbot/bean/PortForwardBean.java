@@ -17,6 +17,9 @@
 
 package org.connectbot.bean;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.connectbot.util.HostDatabase;
 
 import android.annotation.SuppressLint;
@@ -43,6 +46,15 @@ public class PortForwardBean extends AbstractBean {
 	private boolean enabled = false;
 	private Object identifier = null;
 
+	/* Traffic through the forward */
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong failedConnections = new AtomicLong();
+	private final AtomicLong connectTime = new AtomicLong();
+	private volatile long lastConnectTime = -1;
+
 	/**
 	 * @param id database ID of port forward
 	 * @param nickname Nickname to use to identify port forward
@@ -189,6 +201,66 @@ public class PortForwardBean extends AbstractBean {
 		return enabled;
 	}
 
+	/**
+	 * Count data passed on towards the destination.
+	 */
+	public void addBytesSent(long count) {
+		bytesSent.addAndGet(count);
+	}
+
+	/**
+	 * @return bytes passed on towards the destination since the bean was loaded
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Count data passed back from the destination.
+	 */
+	public void addBytesReceived(long count) {
+		bytesReceived.addAndGet(count);
+	}
+
+	/**
+	 * @return bytes passed back from the destination since the bean was loaded
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * Count a connection whose way to the destination was opened.
+	 * @param latency time it took to reach the destination in ms
+	 */
+	public void onConnectionOpened(long latency) {
+		activeConnections.incrementAndGet();
+		connections.incrementAndGet();
+		connectTime.addAndGet(latency);
+		lastConnectTime = latency;
+	}
+
+	/**
+	 * Count a connection that could not reach the destination.
+	 */
+	public void onConnectionFailed() {
+		failedConnections.incrementAndGet();
+	}
+
+	/**
+	 * Count the end of a connection passed to {@link #onConnectionOpened(long)}.
+	 */
+	public void onConnectionClosed() {
+		activeConnections.decrementAndGet();
+	}
+
+	/**
+	 * @return what has gone through the forward so far
+	 */
+	public Metrics getMetrics() {
+		return new Metrics(this, System.nanoTime() / 1000000);
+	}
+
 	/**
 	 * @param identifier the identifier of this particular type to set
 	 */
@@ -237,4 +309,61 @@ public class PortForwardBean extends AbstractBean {
 
 		return values;
 	}
+
+	/**
+	 * Snapshot of the traffic through a forward. Rates come from comparing
+	 * two snapshots of the same forward.
+	 */
+	public static final class Metrics {
+		/** when the snapshot was taken, in ms of an arbitrary clock */
+		public final long time;
+		public final int activeConnections;
+		public final long connections;
+		public final long failedConnections;
+		public final long bytesSent;
+		public final long bytesReceived;
+		/** time to reach the destination in ms for the latest connection, or -1 */
+		public final long lastConnectTime;
+		/** average time to reach the destination in ms, or -1 */
+		public final long averageConnectTime;
+
+		Metrics(PortForwardBean bean, long time) {
+			this(time, bean.activeConnections.get(), bean.connections.get(),
+					bean.failedConnections.get(), bean.bytesSent.get(), bean.bytesReceived.get(),
+					bean.lastConnectTime, bean.connectTime.get());
+		}
+
+		Metrics(long time, int activeConnections, long connections, long failedConnections,
+				long bytesSent, long bytesReceived, long lastConnectTime, long connectTime) {
+			this.time = time;
+			this.activeConnections = activeConnections;
+			this.connections = connections;
+			this.failedConnections = failedConnections;
+			this.bytesSent = bytesSent;
+			this.bytesReceived = bytesReceived;
+			this.lastConnectTime = lastConnectTime;
+			this.averageConnectTime = connections > 0 ? connectTime / connections : -1;
+		}
+
+		/**
+		 * @return bytes per second sent towards the destination since an earlier snapshot
+		 */
+		public long getSendRate(Metrics earlier) {
+			return rate(bytesSent - earlier.bytesSent, earlier);
+		}
+
+		/**
+		 * @return bytes per second received from the destination since an earlier snapshot
+		 */
+		public long getReceiveRate(Metrics earlier) {
+			return rate(bytesReceived - earlier.bytesReceived, earlier);
+		}
+
+		private long rate(long bytes, Metrics earlier) {
+			long elapsed = time - earlier.time;
+			if (elapsed <= 0 || bytes < 0)
+				return 0;
+			return bytes * 1000 / elapsed;
+		}
+	}
 }
@@ -43,6 +43,7 @@ public class PubkeyBean extends AbstractBean {
 	private byte[] privateKey;
 	private byte[] publicKey;
 	private boolean encrypted = false;
+	private int kdf = PubkeyUtils.KDF_CURRENT;
 	private boolean startup = false;
 	private boolean confirmUse = false;
 	private boolean securityKey = false;
@@ -119,6 +120,18 @@ public class PubkeyBean extends AbstractBean {
 		return encrypted;
 	}
 
+	/**
+	 * @param kdf how the private key is encrypted, one of the
+	 *            {@code PubkeyUtils.KDF_} values
+	 */
+	public void setKdf(int kdf) {
+		this.kdf = kdf;
+	}
+
+	public int getKdf() {
+		return kdf;
+	}
+
 	public void setStartup(boolean startup) {
 		this.startup = startup;
 	}
@@ -223,6 +236,7 @@ public class PubkeyBean extends AbstractBean {
 		values.put(PubkeyDatabase.FIELD_PUBKEY_PRIVATE, privateKey);
 		values.put(PubkeyDatabase.FIELD_PUBKEY_PUBLIC, publicKey);
 		values.put(PubkeyDatabase.FIELD_PUBKEY_ENCRYPTED, encrypted ? 1 : 0);
+		values.put(PubkeyDatabase.FIELD_PUBKEY_KDF, kdf);
 		values.put(PubkeyDatabase.FIELD_PUBKEY_STARTUP, startup ? 1 : 0);
 		values.put(PubkeyDatabase.FIELD_PUBKEY_CONFIRMUSE, confirmUse ? 1 : 0);
 		values.put(PubkeyDatabase.FIELD_PUBKEY_LIFETIME, lifetime);
@@ -232,17 +246,22 @@ public class PubkeyBean extends AbstractBean {
 		return values;
 	}
 
-	public boolean changePassword(String oldPassword, String newPassword) throws Exception {
+	/**
+	 * @param iterations rounds of key derivation for the new password, see
+	 *                   {@link PubkeyDatabase#getKdfIterations()}
+	 */
+	public boolean changePassword(String oldPassword, String newPassword, int iterations) throws Exception {
 		PrivateKey priv;
 
 		try {
-			priv = PubkeyUtils.decodePrivate(getPrivateKey(), getType(), oldPassword);
+			priv = PubkeyUtils.decodePrivate(getPrivateKey(), getType(), oldPassword, kdf);
 		} catch (Exception e) {
 			return false;
 		}
 
-		setPrivateKey(PubkeyUtils.getEncodedPrivate(priv, newPassword));
+		setPrivateKey(PubkeyUtils.getEncodedPrivate(priv, newPassword, iterations));
 		setEncrypted(newPassword.length() > 0);
+		setKdf(PubkeyUtils.KDF_CURRENT);
 
 		return true;
 	}
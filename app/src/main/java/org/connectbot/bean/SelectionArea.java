@@ -159,10 +159,11 @@ public class SelectionArea {
 						(Character.isISOControl(c) && c != '\t'))
 					c = ' ';
 
-				if (c != ' ')
-					lastNonSpace = buffer.length();
+				vb.appendCell(buffer, c);
 
-				buffer.append(c);
+				// a cell can expand to a surrogate pair, keep all of it
+				if (c != ' ')
+					lastNonSpace = buffer.length() - 1;
 			}
 
 			// Don't leave a bunch of spaces in our copy buffer.
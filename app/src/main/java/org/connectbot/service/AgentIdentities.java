@@ -0,0 +1,86 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * What the SSH agent offers: the OpenSSH public key of every key loaded in
+ * {@link TerminalManager} by nickname, and the nickname for each public key.
+ * A snapshot never changes. The manager replaces it with one of a higher
+ * version whenever keys are loaded, expire or are removed, so agent
+ * requests are answered from it without locking or copying.
+ */
+public final class AgentIdentities {
+	static final AgentIdentities EMPTY = new AgentIdentities(0, Collections.<String, byte[]>emptyMap());
+
+	private final long version;
+	private final Map<String, byte[]> identities;
+	private final Map<ByteBuffer, String> nicknames;
+
+	/**
+	 * @param version higher than that of the snapshot replaced
+	 * @param identities public key blobs by nickname, copied
+	 */
+	AgentIdentities(long version, Map<String, byte[]> identities) {
+		this.version = version;
+		this.identities = Collections.unmodifiableMap(new HashMap<>(identities));
+
+		Map<ByteBuffer, String> nicknames = new HashMap<>(identities.size());
+		for (Entry<String, byte[]> entry : identities.entrySet()) {
+			ByteBuffer publicKey = ByteBuffer.wrap(entry.getValue());
+			// the same key loaded twice is offered under either nickname
+			if (!nicknames.containsKey(publicKey))
+				nicknames.put(publicKey, entry.getKey());
+		}
+		this.nicknames = nicknames;
+	}
+
+	/**
+	 * @return number of this snapshot, which grows with every change
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return OpenSSH public key blobs by nickname, not to be changed
+	 */
+	public Map<String, byte[]> getIdentities() {
+		return identities;
+	}
+
+	/**
+	 * @return nickname of the key with the given OpenSSH public key, or null
+	 *         if it is not loaded
+	 */
+	public String getNickname(byte[] publicKey) {
+		if (publicKey == null)
+			return null;
+		return nicknames.get(ByteBuffer.wrap(publicKey));
+	}
+
+	@Override
+	public String toString() {
+		return "AgentIdentities{version=" + version + ", keys=" + identities.keySet() + "}";
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Runs the background work of bridges and transports on threads owned by
+ * {@link TerminalManager} instead of a new thread per job.
+ * <p>
+ * Short jobs such as disconnecting all bridges share a pool of at most
+ * {@link #TASK_THREADS} threads. Jobs that block for as long as a session
+ * lives or until the user answers a prompt, such as the relay or the
+ * connection itself, each get a worker; idle workers are kept for a while
+ * so the next session does not pay for a new thread. Writes to the network
+ * can block on a stalled link, so they run on workers too and never hold
+ * up the shared pool. While a job runs, its thread carries the job's name.
+ */
+public final class BridgeExecutor {
+	private static final String TAG = "CB.BridgeExecutor";
+
+	/** Threads shared by short jobs. */
+	static final int TASK_THREADS = 8;
+	/** How long an idle thread is kept, in seconds. */
+	static final long KEEP_ALIVE = 30;
+
+	private final ThreadPoolExecutor tasks;
+	private final ThreadPoolExecutor workers;
+
+	private final AtomicLong tasksRun = new AtomicLong();
+	private final AtomicLong workersRun = new AtomicLong();
+	private final AtomicLong longestWait = new AtomicLong();
+	private final AtomicInteger running = new AtomicInteger();
+
+	public BridgeExecutor() {
+		tasks = new ThreadPoolExecutor(TASK_THREADS, TASK_THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("BridgeTask"));
+		tasks.allowCoreThreadTimeOut(true);
+
+		workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new NamedThreadFactory("BridgeWorker"));
+	}
+
+	/**
+	 * Run a short job on the shared pool. Jobs may run in any order; use
+	 * {@link #newSerialExecutor(String)} where order matters.
+	 * @param name what the job's thread is called while it runs
+	 */
+	public void execute(String name, Runnable job) {
+		submit(tasks, tasksRun, name, job);
+	}
+
+	/**
+	 * Run a job that blocks for a long time on a worker of its own.
+	 * @param name what the worker is called while the job runs
+	 */
+	public void start(String name, Runnable job) {
+		submit(workers, workersRun, name, job);
+	}
+
+	/**
+	 * @return an executor running short jobs on the shared pool one at a
+	 *         time, in the order they were given
+	 */
+	public Executor newSerialExecutor(String name) {
+		return new SerialExecutor(name, tasks, tasksRun);
+	}
+
+	/**
+	 * @return an executor running jobs that may block, such as network
+	 *         writes, on workers one at a time, in the order they were given
+	 */
+	public Executor newSerialWorker(String name) {
+		return new SerialExecutor(name, workers, workersRun);
+	}
+
+	/**
+	 * Let the jobs already given finish, but accept no more.
+	 */
+	public void shutdown() {
+		Log.d(TAG, toString());
+		tasks.shutdown();
+		workers.shutdown();
+	}
+
+	/**
+	 * @return jobs that are currently running
+	 */
+	public int getRunningCount() {
+		return running.get();
+	}
+
+	/**
+	 * @return short jobs waiting for a free thread
+	 */
+	public int getQueuedCount() {
+		return tasks.getQueue().size();
+	}
+
+	/**
+	 * @return threads alive in either pool
+	 */
+	public int getThreadCount() {
+		return tasks.getPoolSize() + workers.getPoolSize();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US,
+				"%d short jobs run (%d queued, longest wait %d ms), %d long jobs run, "
+						+ "%d running, %d threads (peak %d + %d)",
+				tasksRun.get(), getQueuedCount(), longestWait.get(), workersRun.get(),
+				running.get(), getThreadCount(), tasks.getLargestPoolSize(), workers.getLargestPoolSize());
+	}
+
+	private void submit(ThreadPoolExecutor pool, AtomicLong counter, String name, Runnable job) {
+		try {
+			pool.execute(new NamedJob(name, job, counter));
+		} catch (RejectedExecutionException e) {
+			// only after shutdown, when nobody is left to do the job for
+			Log.w(TAG, "Dropped " + name + " after shutdown");
+		}
+	}
+
+	private final class NamedJob implements Runnable {
+		private final String name;
+		private final Runnable job;
+		private final AtomicLong counter;
+		private final long queued = System.nanoTime();
+
+		NamedJob(String name, Runnable job, AtomicLong counter) {
+			this.name = name;
+			this.job = job;
+			this.counter = counter;
+		}
+
+		@Override
+		public void run() {
+			long wait = (System.nanoTime() - queued) / 1000000;
+			long longest;
+			while (wait > (longest = longestWait.get()) && !longestWait.compareAndSet(longest, wait)) {
+			}
+
+			Thread thread = Thread.currentThread();
+			String poolName = thread.getName();
+			thread.setName(name);
+			running.incrementAndGet();
+			try {
+				job.run();
+			} finally {
+				running.decrementAndGet();
+				counter.incrementAndGet();
+				thread.setName(poolName);
+			}
+		}
+	}
+
+	/**
+	 * Feeds its jobs to a pool one after another.
+	 */
+	private final class SerialExecutor implements Executor {
+		private final String name;
+		private final ThreadPoolExecutor pool;
+		private final AtomicLong counter;
+		private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+		private boolean active = false;
+
+		SerialExecutor(String name, ThreadPoolExecutor pool, AtomicLong counter) {
+			this.name = name;
+			this.pool = pool;
+			this.counter = counter;
+		}
+
+		@Override
+		public synchronized void execute(final Runnable job) {
+			pending.add(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						job.run();
+					} finally {
+						next();
+					}
+				}
+			});
+			if (!active)
+				next();
+		}
+
+		private synchronized void next() {
+			Runnable job = pending.poll();
+			active = job != null;
+			if (active)
+				submit(pool, counter, name, job);
+		}
+	}
+
+	private static final class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -95,6 +95,9 @@ public class ConnectivityReceiver extends BroadcastReceiver {
 			if (mIsConnected) {
 				mTerminalManager.onConnectivityRestored();
 			}
+		} else if (!noConnectivity) {
+			// handed over to another network
+			mTerminalManager.onNetworkChanged();
 		}
 	}
 
@@ -159,6 +162,17 @@ public class ConnectivityReceiver extends BroadcastReceiver {
 		}
 	}
 
+	/**
+	 * @return type of the active network as in {@link ConnectivityManager},
+	 *         or -1 if there is none
+	 */
+	public int getNetworkType() {
+		final ConnectivityManager cm =
+				(ConnectivityManager) mTerminalManager.getSystemService(Context.CONNECTIVITY_SERVICE);
+		final NetworkInfo info = cm.getActiveNetworkInfo();
+		return info == null ? -1 : info.getType();
+	}
+
 	/**
 	 * @return whether we're connected to a network
 	 */
@@ -0,0 +1,236 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import android.text.AndroidCharacter;
+import de.mud.terminal.VDUBuffer;
+import de.mud.terminal.vt320;
+
+/**
+ * The screen and scrollback of a session nobody looks at, moved to disk.
+ * The {@link VDUBuffer} is written to a snapshot file and cut down to its
+ * screen; what the host sends meanwhile is appended to a log instead of
+ * being emulated. Waking plays the log back into the restored buffer, so
+ * the emulator ends up where it would have been. What the emulator answers
+ * during playback, such as the cursor position, is long stale by then and
+ * is not sent to the host; see {@link #isReplaying()}.
+ * <p>
+ * The emulator itself, with its modes and charsets, stays on the heap:
+ * it is small and it has to be there to pick up where it stopped.
+ */
+class Hibernation {
+	/** "CBHS" */
+	private static final int MAGIC = 0x43424853;
+	private static final int VERSION = 1;
+
+	/** Bytes of log after which the session is better woken and put back to sleep. */
+	static final long LOG_LIMIT = 1024 * 1024;
+
+	private static final int REPLAY_CHARS = 4096;
+
+	/** set on the thread playing back a log */
+	private static final ThreadLocal<Boolean> REPLAYING = new ThreadLocal<Boolean>() {
+		@Override
+		protected Boolean initialValue() {
+			return false;
+		}
+	};
+
+	private final File snapshot;
+	private final File log;
+
+	private DataOutputStream logOut;
+	private long logSize;
+
+	private Hibernation(File snapshot, File log) {
+		this.snapshot = snapshot;
+		this.log = log;
+	}
+
+	/**
+	 * Write a snapshot of the buffer to a new file in the given directory
+	 * and drop its scrollback.
+	 * @return the hibernation to append to and wake from
+	 */
+	static Hibernation write(File dir, VDUBuffer buffer) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+
+		File snapshot = File.createTempFile("session", ".snapshot", dir);
+		File log = new File(dir, snapshot.getName().replace(".snapshot", ".log"));
+		Hibernation hibernation = new Hibernation(snapshot, log);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new DeflaterOutputStream(new FileOutputStream(snapshot),
+							new Deflater(Deflater.BEST_SPEED))));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				buffer.writeState(out);
+			} finally {
+				out.close();
+			}
+
+			hibernation.logOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log)));
+		} catch (IOException e) {
+			hibernation.delete();
+			throw e;
+		}
+
+		buffer.limitBufferSize(buffer.getRows());
+		return hibernation;
+	}
+
+	/**
+	 * Keep text received while hibernating for later.
+	 */
+	void append(char[] chars, int length) throws IOException {
+		for (int i = 0; i < length; i++)
+			logOut.writeChar(chars[i]);
+		logSize += 2 * length;
+	}
+
+	/**
+	 * @return whether so much was received that it is better played back now
+	 */
+	boolean isLogFull() {
+		return logSize >= LOG_LIMIT;
+	}
+
+	/**
+	 * @return bytes on disk taken by the snapshot and the log
+	 */
+	long getDiskSize() {
+		return snapshot.length() + logSize;
+	}
+
+	/**
+	 * Restore the snapshot into the buffer, play back what was received
+	 * since, and delete the files. If the snapshot cannot be read, the
+	 * scrollback is lost but the log is still played back onto the screen.
+	 * @throws IOException if the snapshot could not be read
+	 */
+	void wake(vt320 buffer) throws IOException {
+		try {
+			logOut.close();
+
+			IOException snapshotError = null;
+			try {
+				readSnapshot(buffer);
+			} catch (IOException e) {
+				snapshotError = e;
+			}
+
+			replayLog(buffer);
+
+			if (snapshotError != null)
+				throw snapshotError;
+		} finally {
+			delete();
+		}
+	}
+
+	private void readSnapshot(VDUBuffer buffer) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new InflaterInputStream(new FileInputStream(snapshot))));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a session snapshot: " + snapshot);
+			buffer.readState(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return whether the calling thread is playing back a log, so that
+	 *         replies of the emulator are to be dropped
+	 */
+	static boolean isReplaying() {
+		return REPLAYING.get();
+	}
+
+	private void replayLog(vt320 buffer) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(log));
+		REPLAYING.set(true);
+		try {
+			byte[] bytes = new byte[2 * REPLAY_CHARS];
+			char[] chars = new char[REPLAY_CHARS];
+			byte[] wide = new byte[REPLAY_CHARS];
+			int pending = 0;
+
+			int read;
+			while ((read = in.read(bytes, pending, bytes.length - pending)) != -1) {
+				pending += read;
+				int count = pending / 2;
+				for (int i = 0; i < count; i++)
+					chars[i] = (char) (((bytes[2 * i] & 0xff) << 8) | (bytes[2 * i + 1] & 0xff));
+
+				AndroidCharacter.getEastAsianWidths(chars, 0, count, wide);
+				buffer.putString(chars, wide, 0, count);
+
+				// an odd byte is the first half of the next char
+				if ((pending & 1) != 0)
+					bytes[0] = bytes[pending - 1];
+				pending &= 1;
+			}
+		} finally {
+			REPLAYING.set(false);
+			in.close();
+		}
+	}
+
+	/**
+	 * Throw away the snapshot and the log without restoring anything.
+	 */
+	void delete() {
+		if (logOut != null) {
+			try {
+				logOut.close();
+			} catch (IOException ignored) {
+			}
+		}
+		snapshot.delete();
+		log.delete();
+	}
+
+	/**
+	 * Delete files left behind by a process that was killed while sessions
+	 * were hibernating.
+	 */
+	static void deleteAll(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+			file.delete();
+	}
+}
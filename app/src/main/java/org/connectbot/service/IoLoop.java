@@ -0,0 +1,172 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.connectbot.transport.AbsTransport;
+import org.connectbot.transport.NonBlockingTransport;
+
+import android.util.Log;
+
+/**
+ * Services the relays of many sessions from one thread. Each session's
+ * {@link NonBlockingTransport} is switched to non-blocking reads and its
+ * channel waited on with a single {@link Selector}; whatever arrives is
+ * handed to that session's {@link Relay}. A relay gets at most
+ * {@link Relay#MAX_READS_PER_TURN} reads before the others get a turn.
+ */
+class IoLoop {
+	private static final String TAG = "CB.IoLoop";
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	private Selector selector;
+	private volatile boolean running = false;
+
+	/**
+	 * Take over reading for a session, if its transport allows it.
+	 * @return false if the relay has to be run on a thread of its own
+	 */
+	synchronized boolean register(Relay relay, AbsTransport transport) {
+		if (!(transport instanceof NonBlockingTransport))
+			return false;
+		final Session session = new Session(relay, (NonBlockingTransport) transport);
+
+		final SelectableChannel channel;
+		try {
+			start();
+			channel = session.transport.enableNonBlocking();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not switch to non-blocking reads", e);
+			return false;
+		}
+		if (channel == null)
+			return false;
+
+		tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.register(selector, SelectionKey.OP_READ, session);
+				} catch (IOException e) {
+					// closed before it was registered
+					Log.d(TAG, "Session closed before it could be read", e);
+				}
+			}
+		});
+		selector.wakeup();
+		return true;
+	}
+
+	synchronized void close() {
+		if (!running)
+			return;
+		running = false;
+
+		// the loop closes it once out of its keys
+		selector.wakeup();
+	}
+
+	private void start() throws IOException {
+		if (running)
+			return;
+
+		selector = Selector.open();
+		running = true;
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		});
+		thread.setName("IoLoop");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void loop() {
+		// relays that stopped with data possibly left, served again right away
+		List<SelectionKey> backlog = new ArrayList<>();
+
+		try {
+			while (running) {
+				if (backlog.isEmpty())
+					selector.select();
+				else
+					selector.selectNow();
+
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+
+				List<SelectionKey> ready = new ArrayList<>(backlog);
+				backlog.clear();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!ready.contains(key))
+						ready.add(key);
+				}
+
+				for (SelectionKey key : ready) {
+					if (!key.isValid())
+						continue;
+
+					Session session = (Session) key.attachment();
+					try {
+						if (session.relay.pump(session.transport))
+							backlog.add(key);
+					} catch (IOException e) {
+						Log.e(TAG, "Problem while handling incoming data", e);
+						key.cancel();
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (running)
+				Log.e(TAG, "Session selector failed", e);
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private static final class Session {
+		final Relay relay;
+		final NonBlockingTransport transport;
+
+		Session(Relay relay, NonBlockingTransport transport) {
+			this.relay = relay;
+			this.transport = transport;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.connectbot.transport.AbsTransport;
+import org.connectbot.transport.HappyEyeballs;
+
+import android.util.Log;
+
+/**
+ * Notices when the remote end of a bridge has silently gone away. Whenever
+ * nothing has been heard for a while the transport is asked to send a probe
+ * the other side must answer; after {@link #MAX_MISSED} unanswered probes
+ * the connection is declared dead. Right after a network change probing
+ * speeds up so a connection stranded on the old network is found within
+ * seconds; the fast interval follows the measured round trip time so a slow
+ * but healthy link is not given up on.
+ */
+class KeepAliveMonitor {
+	private static final String TAG = "CB.KeepAliveMonitor";
+
+	/** Probe interval on Wi-Fi and other unmetered networks, in ms. */
+	static final long WIFI_INTERVAL = 45000;
+	/** Probe interval on mobile networks, whose NATs forget sooner, in ms. */
+	static final long MOBILE_INTERVAL = 20000;
+	/** Shortest probe interval right after the network changed, in ms. */
+	static final long FAST_INTERVAL = 3000;
+	/** Round trips a probe may take right after a network change. */
+	static final int FAST_RTT_FACTOR = 3;
+
+	/** Unanswered probes after which the connection counts as dead. */
+	static final int MAX_MISSED = 3;
+
+	private final TerminalManager manager;
+	private final TerminalBridge bridge;
+	private final AbsTransport transport;
+
+	private TimerTask task;
+	private long period;
+	private boolean fast;
+	private long lastHeard;
+	private int missed;
+	private boolean probing;
+
+	/** smoothed round trip time in ms, or -1 before it was measured */
+	private long rtt = -1;
+	/** when the oldest unanswered probe was sent, or -1 */
+	private long probeSent = -1;
+
+	KeepAliveMonitor(TerminalManager manager, TerminalBridge bridge, AbsTransport transport) {
+		this.manager = manager;
+		this.bridge = bridge;
+		this.transport = transport;
+	}
+
+	synchronized void start() {
+		lastHeard = transport.getLastHeard();
+		for (HappyEyeballs.Attempt attempt : transport.getConnectAttempts()) {
+			if (attempt.isConnected())
+				rtt = attempt.duration;
+		}
+		schedule(manager.getKeepAliveInterval(), false);
+	}
+
+	/**
+	 * Check on the connection right away, for when the network it was
+	 * using may have gone.
+	 */
+	synchronized void probeNow() {
+		if (task != null)
+			schedule(fastInterval(rtt), true);
+	}
+
+	/**
+	 * @param rtt measured round trip time in ms, or -1 if unknown
+	 * @return probe interval right after a network change
+	 */
+	static long fastInterval(long rtt) {
+		return Math.max(FAST_INTERVAL, rtt * FAST_RTT_FACTOR);
+	}
+
+	synchronized void stop() {
+		if (task != null) {
+			task.cancel();
+			task = null;
+		}
+	}
+
+	private void schedule(long period, boolean fast) {
+		stop();
+
+		this.period = period;
+		this.fast = fast;
+		missed = 0;
+		probing = false;
+		probeSent = -1;
+
+		task = new TimerTask() {
+			@Override
+			public void run() {
+				check();
+			}
+		};
+		manager.keepAliveTimer.schedule(task, fast ? 0 : period, period);
+	}
+
+	private synchronized void check() {
+		if (task == null)
+			return;
+
+		long heard = transport.getLastHeard();
+		if (heard != lastHeard) {
+			lastHeard = heard;
+			missed = 0;
+			probing = false;
+			if (probeSent >= 0 && heard >= probeSent)
+				rtt = rtt < 0 ? heard - probeSent : (7 * rtt + heard - probeSent) / 8;
+			probeSent = -1;
+
+			// the connection survived the network change
+			if (fast) {
+				schedule(manager.getKeepAliveInterval(), false);
+				return;
+			}
+		} else if (probing && ++missed >= MAX_MISSED) {
+			Log.i(TAG, String.format("No answer to %d keep-alives from %s", missed, bridge.host.getNickname()));
+			dead();
+			return;
+		}
+
+		long now = System.nanoTime() / 1000000;
+		if (fast || now - heard >= period) {
+			try {
+				if (probeSent < 0)
+					probeSent = now;
+				probing = transport.sendKeepAlive();
+				if (!probing)
+					stop();
+			} catch (IOException e) {
+				Log.i(TAG, "Could not send keep-alive", e);
+				dead();
+			}
+		}
+	}
+
+	private void dead() {
+		stop();
+		bridge.onConnectionDead();
+	}
+}
@@ -27,6 +27,7 @@ import java.nio.charset.CodingErrorAction;
 
 import org.apache.harmony.niochar.charset.additional.IBM437;
 import org.connectbot.transport.AbsTransport;
+import org.connectbot.transport.NonBlockingTransport;
 
 import android.text.AndroidCharacter;
 import android.util.Log;
@@ -40,26 +41,44 @@ public class Relay implements Runnable {
 
 	private static final int BUFFER_SIZE = 4096;
 
+	/** Reads one relay may make before the others sharing its loop get a turn. */
+	static final int MAX_READS_PER_TURN = 16;
+
 	private TerminalBridge bridge;
 
 	private Charset currentCharset;
 	private CharsetDecoder decoder;
+	private CharsetDecoder errorDecoder;
 
 	private AbsTransport transport;
 
 	private vt320 buffer;
 
-	private ByteBuffer byteBuffer;
-	private CharBuffer charBuffer;
+	private final ByteBuffer byteBuffer;
+	private final ByteBuffer errorBuffer;
+	private final CharBuffer charBuffer;
+
+	private final byte[] byteArray;
+	private final byte[] errorArray;
+	private final char[] charArray;
 
-	private byte[] byteArray;
-	private char[] charArray;
+	/* for East Asian character widths */
+	private final byte[] wideAttribute = new byte[BUFFER_SIZE];
 
 	public Relay(TerminalBridge bridge, AbsTransport transport, vt320 buffer, String encoding) {
 		setCharset(encoding);
 		this.bridge = bridge;
 		this.transport = transport;
 		this.buffer = buffer;
+
+		byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		errorBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		charBuffer = CharBuffer.allocate(BUFFER_SIZE);
+		byteArray = byteBuffer.array();
+		errorArray = errorBuffer.array();
+		charArray = charBuffer.array();
+		byteBuffer.limit(0);
+		errorBuffer.limit(0);
 	}
 
 	public void setCharset(String encoding) {
@@ -76,69 +95,113 @@ public class Relay implements Runnable {
 			return;
 		}
 
-		CharsetDecoder newCd = charset.newDecoder();
-		newCd.onUnmappableCharacter(CodingErrorAction.REPLACE);
-		newCd.onMalformedInput(CodingErrorAction.REPLACE);
+		CharsetDecoder newCd = newDecoder(charset);
+		CharsetDecoder newErrorCd = newDecoder(charset);
 
 		currentCharset = charset;
 		synchronized (this) {
 			decoder = newCd;
+			errorDecoder = newErrorCd;
 		}
 	}
 
+	private static CharsetDecoder newDecoder(Charset charset) {
+		CharsetDecoder cd = charset.newDecoder();
+		cd.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		cd.onMalformedInput(CodingErrorAction.REPLACE);
+		return cd;
+	}
+
 	public Charset getCharset() {
 		return currentCharset;
 	}
 
 	@Override
 	public void run() {
-		byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-		charBuffer = CharBuffer.allocate(BUFFER_SIZE);
+		try {
+			while (true) {
+				int bytesRead = transport.read(byteArray, readOffset(byteBuffer), readLength(byteBuffer));
+				if (bytesRead > 0)
+					process(byteBuffer, false, bytesRead);
+				processErrorOutput();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Problem while handling incoming data in relay thread", e);
+		}
+	}
+
+	/**
+	 * Handle what the transport has ready without blocking, for relays
+	 * driven by an {@link IoLoop}.
+	 * @param source this relay's transport, switched to non-blocking reads
+	 * @return true if data may be left because {@link #MAX_READS_PER_TURN}
+	 *         reads were made
+	 */
+	boolean pump(NonBlockingTransport source) throws IOException {
+		for (int i = 0; i < MAX_READS_PER_TURN; i++) {
+			int bytesRead = source.readNonBlocking(byteArray, readOffset(byteBuffer), readLength(byteBuffer));
+			processErrorOutput();
+			if (bytesRead <= 0)
+				return false;
+			process(byteBuffer, false, bytesRead);
+		}
+		return true;
+	}
 
-		/* for East Asian character widths */
-		byte[] wideAttribute = new byte[BUFFER_SIZE];
+	private static int readOffset(ByteBuffer bytes) {
+		return bytes.arrayOffset() + bytes.limit();
+	}
 
-		byteArray = byteBuffer.array();
-		charArray = charBuffer.array();
+	private static int readLength(ByteBuffer bytes) {
+		return bytes.capacity() - bytes.limit();
+	}
 
+	/**
+	 * Show the error output the transport keeps apart, through a decoder of
+	 * its own so a character split between the streams stays intact.
+	 */
+	private void processErrorOutput() throws IOException {
+		int bytesRead;
+		while ((bytesRead = transport.readErrorOutput(errorArray,
+				readOffset(errorBuffer), readLength(errorBuffer))) > 0)
+			process(errorBuffer, true, bytesRead);
+	}
+
+	/**
+	 * Decode newly read bytes of one stream and hand them to the emulator.
+	 */
+	private void process(ByteBuffer bytes, boolean error, int bytesRead) {
 		CoderResult result;
 
-		int bytesRead = 0;
-		byteBuffer.limit(0);
-		int bytesToRead;
-		int offset;
+		bytes.limit(bytes.limit() + bytesRead);
 
-		try {
-			while (true) {
-				bytesToRead = byteBuffer.capacity() - byteBuffer.limit();
-				offset = byteBuffer.arrayOffset() + byteBuffer.limit();
-				bytesRead = transport.read(byteArray, offset, bytesToRead);
-
-				if (bytesRead > 0) {
-					byteBuffer.limit(byteBuffer.limit() + bytesRead);
-
-					synchronized (this) {
-						result = decoder.decode(byteBuffer, charBuffer, false);
-					}
-
-					if (result.isUnderflow() &&
-							byteBuffer.limit() == byteBuffer.capacity()) {
-						byteBuffer.compact();
-						byteBuffer.limit(byteBuffer.position());
-						byteBuffer.position(0);
-					}
-
-					offset = charBuffer.position();
-
-					AndroidCharacter.getEastAsianWidths(charArray, 0, offset, wideAttribute);
-					buffer.putString(charArray, wideAttribute, 0, charBuffer.position());
-					bridge.propagateConsoleText(charArray, charBuffer.position());
-					charBuffer.clear();
-					bridge.redraw();
-				}
-			}
-		} catch (IOException e) {
-			Log.e(TAG, "Problem while handling incoming data in relay thread", e);
+		synchronized (this) {
+			result = (error ? errorDecoder : decoder).decode(bytes, charBuffer, false);
+		}
+
+		if (result.isUnderflow() &&
+				bytes.limit() == bytes.capacity()) {
+			bytes.compact();
+			bytes.limit(bytes.position());
+			bytes.position(0);
 		}
+
+		int length = charBuffer.position();
+		charBuffer.clear();
+
+		synchronized (buffer) {
+			if (bridge.appendIfHibernating(charArray, length))
+				return;
+
+			AndroidCharacter.getEastAsianWidths(charArray, 0, length, wideAttribute);
+			buffer.putString(charArray, wideAttribute, 0, length);
+		}
+		bridge.propagateConsoleText(charArray, length);
+
+		// hold back while the host is drawing a synchronized update
+		if (buffer.isSynchronizedOutput())
+			bridge.redrawDelayed(vt320.SYNCHRONIZED_OUTPUT_TIMEOUT);
+		else
+			bridge.redraw();
 	}
 }
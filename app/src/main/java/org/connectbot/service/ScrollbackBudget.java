@@ -0,0 +1,122 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * How much memory the scrollback of all sessions together may take. The
+ * sessions viewed most recently get the scrollback they asked for first;
+ * those not looked at for longest get what is left and lose their oldest
+ * lines when that is not enough. When the system asks for memory back the
+ * budget shrinks for a while.
+ */
+class ScrollbackBudget {
+	/** Part of the heap scrollback may use: a quarter. */
+	static final int HEAP_SHARE = 4;
+	/** How long a budget lowered by {@link #onTrimMemory(int, long)} stays low, in ms. */
+	static final long RECOVERY_TIME = 5 * 60 * 1000;
+
+	/** Estimated cost of a row on top of its cells: two arrays' headers and references. */
+	private static final int ROW_OVERHEAD = 40;
+	/** A cell is a char and a long of attributes. */
+	private static final int CELL_BYTES = 2 + 8;
+
+	private final long full;
+	private long budget;
+	private long trimmedAt;
+
+	/**
+	 * @param heap memory the app may use in bytes
+	 */
+	ScrollbackBudget(long heap) {
+		full = heap / HEAP_SHARE;
+		budget = full;
+	}
+
+	/**
+	 * @return the budget in bytes
+	 */
+	synchronized long getBudget(long now) {
+		if (budget < full && now - trimmedAt >= RECOVERY_TIME)
+			budget = full;
+		return budget;
+	}
+
+	/**
+	 * Shrink the budget according to how badly the system needs memory.
+	 * @return whether the budget changed
+	 */
+	synchronized boolean onTrimMemory(int level, long now) {
+		int divisor;
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+			divisor = 8;
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			divisor = 4;
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+			divisor = 2;
+		else
+			return false;
+
+		trimmedAt = now;
+		long lowered = full / divisor;
+		if (lowered >= budget)
+			return false;
+		budget = lowered;
+		return true;
+	}
+
+	/**
+	 * @return estimated bytes taken by one row of the given width
+	 */
+	static long rowBytes(int columns) {
+		return ROW_OVERHEAD + (long) columns * CELL_BYTES;
+	}
+
+	/**
+	 * Share a budget between sessions.
+	 * @param budget bytes available
+	 * @param columns width of each session, most recently viewed first
+	 * @param screenRows rows on each session's screen, which are always kept
+	 * @param wanted rows each session would keep given enough memory
+	 * @return rows each session may keep, never fewer than its screen
+	 */
+	static int[] allocate(long budget, int[] columns, int[] screenRows, int[] wanted) {
+		int count = columns.length;
+		int[] rows = new int[count];
+
+		// the screen and the alternate screen are needed whatever happens
+		long remaining = budget;
+		for (int i = 0; i < count; i++)
+			remaining -= 2 * screenRows[i] * rowBytes(columns[i]);
+
+		for (int i = 0; i < count; i++) {
+			int extra = Math.max(wanted[i] - screenRows[i], 0);
+			long affordable = Math.max(remaining, 0) / rowBytes(columns[i]);
+			if (affordable < extra)
+				extra = (int) affordable;
+
+			rows[i] = screenRows[i] + extra;
+			remaining -= extra * rowBytes(columns[i]);
+		}
+		return rows;
+	}
+}
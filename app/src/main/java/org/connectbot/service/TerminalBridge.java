@@ -17,10 +17,12 @@
 
 package org.connectbot.service;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -95,6 +97,18 @@ public class TerminalBridge implements VDUDisplay {
 
 	private boolean disconnected = false;
 	private boolean awaitingClose = false;
+	private boolean hadSession = false;
+
+	private KeepAliveMonitor keepAlive;
+
+	/** writes injected strings in order, created on first use */
+	private Executor injector;
+
+	/** when the user last looked at this bridge; the scrollback of those not seen longest goes first */
+	private volatile long lastViewed = System.currentTimeMillis();
+
+	/** where screen and scrollback are while hibernating, only changed with the buffer locked */
+	private volatile Hibernation hibernation;
 
 	private boolean forcedSize = false;
 	private int columns;
@@ -125,6 +139,13 @@ public class TerminalBridge implements VDUDisplay {
 
 	private BridgeDisconnectedListener disconnectListener = null;
 
+	private final Runnable delayedRedraw = new Runnable() {
+		@Override
+		public void run() {
+			redraw();
+		}
+	};
+
 	/**
 	 * Create a new terminal bridge suitable for unit testing.
 	 */
@@ -204,6 +225,9 @@ public class TerminalBridge implements VDUDisplay {
 
 			@Override
 			public void write(byte[] b) {
+				// a query played back from hibernation was asked long ago
+				if (Hibernation.isReplaying())
+					return;
 				try {
 					if (b != null && transport != null)
 						transport.write(b);
@@ -214,6 +238,8 @@ public class TerminalBridge implements VDUDisplay {
 
 			@Override
 			public void write(int b) {
+				if (Hibernation.isReplaying())
+					return;
 				try {
 					if (transport != null)
 						transport.write(b);
@@ -285,15 +311,13 @@ public class TerminalBridge implements VDUDisplay {
 
 		outputLine(manager.res.getString(R.string.terminal_connecting, host.getHostname(), host.getPort(), host.getProtocol()));
 
-		Thread connectionThread = new Thread(new Runnable() {
+		// may wait on the user for passwords and host keys
+		manager.executor.start("Connection", new Runnable() {
 			@Override
 			public void run() {
 				transport.connect();
 			}
 		});
-		connectionThread.setName("Connection");
-		connectionThread.setDaemon(true);
-		connectionThread.start();
 	}
 
 	/**
@@ -378,7 +402,14 @@ public class TerminalBridge implements VDUDisplay {
 		if (string == null || string.length() == 0)
 			return;
 
-		Thread injectStringThread = new Thread(new Runnable() {
+		synchronized (this) {
+			if (injector == null)
+				injector = manager.executor.newSerialWorker("InjectString");
+		}
+
+		// one after another, so pastes arrive in the order they were made;
+		// a worker, as the write blocks for as long as the link is stalled
+		injector.execute(new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -388,8 +419,6 @@ public class TerminalBridge implements VDUDisplay {
 				}
 			}
 		});
-		injectStringThread.setName("InjectString");
-		injectStringThread.start();
 	}
 
 	/**
@@ -399,6 +428,15 @@ public class TerminalBridge implements VDUDisplay {
 	public void onConnected() {
 		disconnected = false;
 
+		if (hadSession) {
+			// reconnecting: scroll what was on the screen into the scrollback
+			// instead of letting the reset wipe it
+			StringBuilder newlines = new StringBuilder();
+			for (int i = 0; i < buffer.getRows(); i++)
+				newlines.append("\r\n");
+			((vt320) buffer).putString(newlines.toString());
+		}
+
 		((vt320) buffer).reset();
 
 		// We no longer need our local output.
@@ -416,10 +454,16 @@ public class TerminalBridge implements VDUDisplay {
 		if (isSessionOpen()) {
 			// create thread to relay incoming connection data to buffer
 			relay = new Relay(this, transport, (vt320) buffer, host.getEncoding());
-			Thread relayThread = new Thread(relay);
-			relayThread.setDaemon(true);
-			relayThread.setName("Relay");
-			relayThread.start();
+			if (!manager.isSharedIoEnabled() || !manager.ioLoop.register(relay, transport))
+				manager.executor.start("Relay", relay);
+			hadSession = true;
+		}
+
+		if (keepAlive != null)
+			keepAlive.stop();
+		if (isUsingNetwork()) {
+			keepAlive = new KeepAliveMonitor(manager, this, transport);
+			keepAlive.start();
 		}
 
 		// force font-size to make sure we resizePTY as needed
@@ -429,6 +473,180 @@ public class TerminalBridge implements VDUDisplay {
 		injectString(host.getPostLogin());
 	}
 
+	/**
+	 * Note that the user is looking at this bridge, which makes its
+	 * scrollback the last to be trimmed.
+	 */
+	public void markViewed() {
+		lastViewed = System.currentTimeMillis();
+		wakeInBackground();
+		manager.checkScrollbackBudget();
+	}
+
+	long getLastViewed() {
+		return lastViewed;
+	}
+
+	/**
+	 * @return lines of scrollback the user asked for, including the screen;
+	 *         none while hibernating
+	 */
+	int getWantedScrollback() {
+		if (hibernation != null)
+			return 0;
+		return host.getWantSession() ? scrollback : 0;
+	}
+
+	/**
+	 * Keep no more lines than given, dropping the oldest if there are.
+	 * @param lines maximum lines including the screen
+	 */
+	void limitScrollback(int lines) {
+		synchronized (buffer) {
+			// the snapshot brings back its own size when woken
+			if (hibernation == null)
+				buffer.limitBufferSize(lines);
+		}
+	}
+
+	/**
+	 * Move screen and scrollback to disk until the bridge is shown again.
+	 * Only a running session that is not shown can hibernate.
+	 * @param dir where to keep the files
+	 * @return whether the bridge went to sleep
+	 */
+	synchronized boolean hibernate(File dir) {
+		if (parent != null || disconnected || relay == null)
+			return false;
+
+		Hibernation hibernation;
+		synchronized (buffer) {
+			if (this.hibernation != null)
+				return false;
+
+			try {
+				hibernation = Hibernation.write(dir, buffer);
+			} catch (IOException e) {
+				Log.e(TAG, "Could not hibernate session", e);
+				return false;
+			}
+			this.hibernation = hibernation;
+		}
+
+		Log.d(TAG, String.format("Hibernated %s into %d bytes", host.getNickname(),
+				hibernation.getDiskSize()));
+		return true;
+	}
+
+	/**
+	 * Bring back screen and scrollback of a hibernated bridge and play back
+	 * what the host sent in the meantime. Nothing happens if it is awake.
+	 */
+	public void wake() {
+		if (hibernation == null)
+			return;
+
+		synchronized (buffer) {
+			if (hibernation == null)
+				return;
+
+			Hibernation hibernation = this.hibernation;
+			this.hibernation = null;
+			try {
+				hibernation.wake((vt320) buffer);
+			} catch (IOException e) {
+				Log.e(TAG, "Could not restore the scrollback of a hibernated session", e);
+			}
+			fullRedraw = true;
+		}
+
+		if (manager != null)
+			manager.checkScrollbackBudget();
+	}
+
+	/**
+	 * Like {@link #wake()}, but for the UI thread: reading the snapshot and
+	 * playing back up to {@link Hibernation#LOG_LIMIT} of log is left to a
+	 * pool thread, which redraws once done.
+	 */
+	private void wakeInBackground() {
+		if (hibernation == null)
+			return;
+		if (manager == null) {
+			wake();
+			return;
+		}
+
+		manager.executor.execute("Wake", new Runnable() {
+			@Override
+			public void run() {
+				wake();
+				synchronized (TerminalBridge.this) {
+					synchronized (buffer) {
+						// the snapshot brings back the size the screen had when it went to sleep
+						if (columns > 0 && rows > 0
+								&& (buffer.getColumns() != columns || buffer.getRows() != rows))
+							buffer.setScreenSize(columns, rows, true);
+					}
+				}
+				redraw();
+			}
+		});
+	}
+
+	/**
+	 * @return whether screen and scrollback are on disk
+	 */
+	public boolean isHibernating() {
+		return hibernation != null;
+	}
+
+	/**
+	 * Keep text from the host for later if hibernating. Must be called with
+	 * the buffer locked, so that the bridge cannot go to sleep between this
+	 * and writing the text to the buffer.
+	 * @return false if the text has to be written to the buffer
+	 */
+	boolean appendIfHibernating(char[] chars, int length) {
+		if (hibernation == null)
+			return false;
+
+		try {
+			hibernation.append(chars, length);
+		} catch (IOException e) {
+			// part of the text may be played back twice, better than losing all of it
+			Log.e(TAG, "Could not keep text for a hibernated session", e);
+			wake();
+			return false;
+		}
+
+		if (hibernation.isLogFull()) {
+			// play back what piled up and write a fresh snapshot instead
+			wake();
+			manager.executor.execute("Hibernate", new Runnable() {
+				@Override
+				public void run() {
+					hibernate(manager.getHibernationDir());
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * @return estimated memory taken by the screen and scrollback in bytes
+	 */
+	public long getScrollbackBytes() {
+		return buffer.getAllocatedLines() * ScrollbackBudget.rowBytes(buffer.getColumns());
+	}
+
+	/**
+	 * @return whether scrollback was cut below what the user asked for to save memory
+	 */
+	public boolean isScrollbackLimited() {
+		return buffer.getMaxBufferSize() < Math.max(getWantedScrollback(), buffer.getRows());
+	}
+
 	/**
 	 * @return whether a session is open or not
 	 */
@@ -454,20 +672,24 @@ public class TerminalBridge implements VDUDisplay {
 			disconnected = true;
 		}
 
+		// the screen may be written to or shown from here on
+		wake();
+
+		if (keepAlive != null)
+			keepAlive.stop();
+
 		// Cancel any pending prompts.
 		promptHelper.cancelPrompt();
 
 		// disconnection request hangs if we havent really connected to a host yet
 		// temporary fix is to just spawn disconnection into a thread
-		Thread disconnectThread = new Thread(new Runnable() {
+		manager.executor.start("Disconnect", new Runnable() {
 			@Override
 			public void run() {
 				if (transport != null && transport.isConnected())
 					transport.close();
 			}
 		});
-		disconnectThread.setName("Disconnect");
-		disconnectThread.start();
 
 		if (immediate || (host.getQuickDisconnect() && !host.getStayConnected())) {
 			awaitingClose = true;
@@ -481,7 +703,7 @@ public class TerminalBridge implements VDUDisplay {
 				manager.requestReconnect(this);
 				return;
 			}
-			Thread disconnectPromptThread = new Thread(new Runnable() {
+			manager.executor.start("DisconnectPrompt", new Runnable() {
 				@Override
 				public void run() {
 					Boolean result = promptHelper.requestBooleanPrompt(null,
@@ -492,12 +714,56 @@ public class TerminalBridge implements VDUDisplay {
 					}
 				}
 			});
-			disconnectPromptThread.setName("DisconnectPrompt");
-			disconnectPromptThread.setDaemon(true);
-			disconnectPromptThread.start();
 		}
 	}
 
+	/**
+	 * Have the keep-alive check on the connection now instead of waiting
+	 * for the connection to go idle.
+	 */
+	void checkConnection() {
+		KeepAliveMonitor keepAlive = this.keepAlive;
+		if (keepAlive != null)
+			keepAlive.probeNow();
+	}
+
+	/**
+	 * Called when the remote end stopped answering. Drops the connection and
+	 * connects again, keeping the screen contents and sending the post-login
+	 * string once logged in again.
+	 */
+	public void onConnectionDead() {
+		synchronized (this) {
+			if (disconnected)
+				return;
+
+			disconnected = true;
+		}
+
+		wake();
+
+		if (keepAlive != null)
+			keepAlive.stop();
+
+		promptHelper.cancelPrompt();
+
+		{
+			final String line = manager.res.getString(R.string.terminal_connection_dead);
+			((vt320) buffer).putString("\r\n" + line + "\r\n");
+		}
+		redraw();
+
+		final AbsTransport dead = transport;
+		manager.executor.start("Reconnect", new Runnable() {
+			@Override
+			public void run() {
+				if (dead != null)
+					dead.abandon();
+				manager.requestReconnect(TerminalBridge.this);
+			}
+		});
+	}
+
 	/**
 	 * Tells the TerminalManager that we can be destroyed now.
 	 */
@@ -588,6 +854,8 @@ public class TerminalBridge implements VDUDisplay {
 	 * terminal size information and request a PTY resize.
 	 */
 	public final synchronized void parentChanged(TerminalView parent) {
+		wakeInBackground();
+
 		if (manager != null && !manager.isResizeAllowed()) {
 			Log.d(TAG, "Resize is not allowed now");
 			return;
@@ -613,8 +881,18 @@ public class TerminalBridge implements VDUDisplay {
 
 			// If nothing has changed in the terminal dimensions and not an intial
 			// draw then don't blow away scroll regions and such.
-			if (newColumns == columns && newRows == rows)
+			if (newColumns == columns && newRows == rows) {
+				// a new view after the old one let go of the bitmap only needs that back
+				if (bitmap == null) {
+					bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+					canvas.setBitmap(bitmap);
+					defaultPaint.setColor(Color.BLACK);
+					canvas.drawPaint(defaultPaint);
+					fullRedraw = true;
+					redraw();
+				}
 				return;
+			}
 
 			columns = newColumns;
 			rows = newRows;
@@ -654,6 +932,8 @@ public class TerminalBridge implements VDUDisplay {
 			synchronized (buffer) {
 				buffer.setScreenSize(columns, rows, true);
 			}
+			if (manager != null)
+				manager.checkScrollbackBudget();
 
 			if (transport != null)
 				transport.setDimensions(columns, rows, width, height);
@@ -683,9 +963,13 @@ public class TerminalBridge implements VDUDisplay {
 	/**
 	 * Somehow our parent {@link TerminalView} was destroyed. Now we don't need
 	 * to redraw anywhere, and we can recycle our internal bitmap.
+	 * @param parent the view that is gone; ignored if another one took over
 	 */
-	public synchronized void parentDestroyed() {
-		parent = null;
+	public synchronized void parentDestroyed(TerminalView parent) {
+		if (this.parent != parent)
+			return;
+
+		this.parent = null;
 		discardBitmap();
 	}
 
@@ -769,12 +1053,16 @@ public class TerminalBridge implements VDUDisplay {
 
 					isWideCharacter = (currAttr & VDUBuffer.FULLWIDTH) != 0;
 
-					if (isWideCharacter)
+					char[] row = buffer.charArray[buffer.windowBase + l];
+					boolean isCodePoint = VDUBuffer.isCodePointRef(row[c]);
+
+					if (isWideCharacter || isCodePoint)
 						addr++;
 					else {
 						// determine the amount of continuous characters with the same settings and print them all at once
 						while (c + addr < buffer.width
-								&& buffer.charAttributes[buffer.windowBase + l][c + addr] == currAttr) {
+								&& buffer.charAttributes[buffer.windowBase + l][c + addr] == currAttr
+								&& !VDUBuffer.isCodePointRef(row[c + addr])) {
 							addr++;
 						}
 					}
@@ -799,10 +1087,16 @@ public class TerminalBridge implements VDUDisplay {
 
 					// write the text string starting at 'c' for 'addr' number of characters
 					defaultPaint.setColor(fg);
-					if ((currAttr & VDUBuffer.INVISIBLE) == 0)
-						canvas.drawText(buffer.charArray[buffer.windowBase + l], c,
-							addr, c * charWidth, (l * charHeight) - charTop,
-							defaultPaint);
+					if ((currAttr & VDUBuffer.INVISIBLE) == 0) {
+						if (isCodePoint)
+							canvas.drawText(buffer.getCodePointText(row[c]),
+								c * charWidth, (l * charHeight) - charTop,
+								defaultPaint);
+						else
+							canvas.drawText(row, c,
+								addr, c * charWidth, (l * charHeight) - charTop,
+								defaultPaint);
+					}
 
 					// Restore the previous clip region
 					canvas.restore();
@@ -822,8 +1116,23 @@ public class TerminalBridge implements VDUDisplay {
 
 	@Override
 	public void redraw() {
-		if (parent != null)
+		TerminalView parent = this.parent;
+		if (parent != null) {
+			parent.removeCallbacks(delayedRedraw);
 			parent.postInvalidate();
+		}
+	}
+
+	/**
+	 * Schedule a redraw in case nothing else triggers one before then, e.g.
+	 * when the host never finishes a synchronized update.
+	 */
+	public void redrawDelayed(long delayMillis) {
+		TerminalView parent = this.parent;
+		if (parent != null) {
+			parent.removeCallbacks(delayedRedraw);
+			parent.postDelayed(delayedRedraw, delayMillis);
+		}
 	}
 
 	// We don't have a scroll bar.
@@ -17,23 +17,30 @@
 
 package org.connectbot.service;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.security.KeyPair;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.connectbot.R;
 import org.connectbot.bean.HostBean;
 import org.connectbot.bean.PubkeyBean;
 import org.connectbot.data.ColorStorage;
 import org.connectbot.data.HostStorage;
+import org.connectbot.transport.CompressionAdvisor;
+import org.connectbot.transport.SharedConnection;
 import org.connectbot.transport.TransportFactory;
 import org.connectbot.util.HostDatabase;
 import org.connectbot.util.PreferenceConstants;
@@ -42,7 +49,9 @@ import org.connectbot.util.ProviderLoaderListener;
 import org.connectbot.util.PubkeyDatabase;
 import org.connectbot.util.PubkeyUtils;
 
+import android.app.ActivityManager;
 import android.app.Service;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -52,6 +61,7 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
@@ -83,11 +93,29 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 	public Map<String, KeyHolder> loadedKeypairs = new HashMap<>();
 
+	/** what the agent offers, replaced with loadedKeypairs locked whenever keys change */
+	private volatile AgentIdentities agentIdentities = AgentIdentities.EMPTY;
+
+	/** startup keys still being decoded in the background, by nickname */
+	private final Map<String, FutureTask<KeyPair>> pendingKeys = new HashMap<>();
+
+	/** authenticated SSH connections open for more sessions, keyed by account and settings */
+	private final Map<String, SharedConnection> sharedConnections = new HashMap<>();
+
 	public Resources res;
 
 	public HostStorage hostdb;
 	public ColorStorage colordb;
 	public PubkeyDatabase pubkeydb;
+	public CompressionAdvisor compressionAdvisor;
+	public BridgeExecutor executor;
+
+	/* package */ final IoLoop ioLoop = new IoLoop();
+
+	private ScrollbackBudget scrollbackBudget;
+
+	/** How long a session has to go unseen before it may hibernate when memory is tight. */
+	private static final long HIBERNATE_IDLE = 5 * 60 * 1000;
 
 	protected SharedPreferences prefs;
 
@@ -99,6 +127,8 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 	private Timer pubkeyTimer;
 
+	/* package */ Timer keepAliveTimer;
+
 	private Timer idleTimer;
 	private final long IDLE_TIMEOUT = 300000; // 5 minutes
 
@@ -126,23 +156,26 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		res = getResources();
 
 		pubkeyTimer = new Timer("pubkeyTimer", true);
+		keepAliveTimer = new Timer("keepAliveTimer", true);
+		executor = new BridgeExecutor();
+
+		ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+		scrollbackBudget = new ScrollbackBudget(activityManager.getMemoryClass() * 1024L * 1024L);
+
+		// whatever hibernated when we were last killed cannot be woken anymore
+		Hibernation.deleteAll(getHibernationDir());
 
 		hostdb = HostDatabase.get(this);
 		colordb = HostDatabase.get(this);
 		pubkeydb = PubkeyDatabase.get(this);
+		compressionAdvisor = new CompressionAdvisor(getSharedPreferences("linkstats", MODE_PRIVATE));
 
-		// load all marked pubkeys into memory
+		// load all marked pubkeys into memory, decoding them in the background
 		updateSavingKeys();
 		List<PubkeyBean> pubkeys = pubkeydb.getAllStartPubkeys();
 
-		for (PubkeyBean pubkey : pubkeys) {
-			try {
-				KeyPair pair = PubkeyUtils.convertToKeyPair(pubkey, null);
-				addKey(pubkey, pair);
-			} catch (Exception e) {
-				Log.d(TAG, String.format("Problem adding key '%s' to in-memory cache", pubkey.getNickname()), e);
-			}
-		}
+		for (PubkeyBean pubkey : pubkeys)
+			loadStartKey(pubkey);
 
 		vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
 		wantKeyVibration = prefs.getBoolean(PreferenceConstants.BUMPY_ARROWS, true);
@@ -178,8 +211,16 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 				idleTimer.cancel();
 			if (pubkeyTimer != null)
 				pubkeyTimer.cancel();
+			if (keepAliveTimer != null)
+				keepAliveTimer.cancel();
 		}
 
+		// let the disconnects just queued finish
+		executor.shutdown();
+		ioLoop.close();
+
+		Hibernation.deleteAll(getHibernationDir());
+
 		connectivityManager.cleanup();
 
 		ConnectionNotifier.getInstance().hideRunningNotification(this);
@@ -233,6 +274,8 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 			disconnected.remove(bridge.host);
 		}
 
+		checkScrollbackBudget();
+
 		if (bridge.isUsingNetwork()) {
 			connectivityManager.incRef();
 		}
@@ -262,6 +305,197 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		return scrollback;
 	}
 
+	/**
+	 * @return socket send and receive buffer size in bytes, or 0 to leave
+	 *         the system default
+	 */
+	public int getSocketBufferSize() {
+		int kilobytes = 0;
+		try {
+			kilobytes = Integer.parseInt(prefs.getString(PreferenceConstants.SOCKET_BUFFER, "0"));
+		} catch (Exception ignored) {
+		}
+		return Math.max(0, kilobytes) * 1024;
+	}
+
+	/**
+	 * @return whether SSH compression is chosen from measured link speed
+	 *         for hosts that don't ask for it explicitly
+	 */
+	public boolean isCompressionAutomatic() {
+		return prefs.getBoolean(PreferenceConstants.AUTO_COMPRESSION, true);
+	}
+
+	/**
+	 * @return whether SSH sessions show their error stream in the terminal
+	 */
+	public boolean isStderrMerged() {
+		return prefs.getBoolean(PreferenceConstants.MERGE_STDERR, false);
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+
+		if (scrollbackBudget.onTrimMemory(level, System.currentTimeMillis())) {
+			Log.i(TAG, String.format("Memory is short (level %d), lowering scrollback budget to %d KiB",
+					level, scrollbackBudget.getBudget(System.currentTimeMillis()) / 1024));
+			// right away, the system may kill us if we do not give back enough
+			enforceScrollbackBudget();
+		}
+
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			executor.execute("Hibernate", new Runnable() {
+				@Override
+				public void run() {
+					hibernateIdleBridges();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Move screen and scrollback of sessions not shown for a while to disk.
+	 */
+	private void hibernateIdleBridges() {
+		List<TerminalBridge> idle = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		synchronized (bridges) {
+			for (TerminalBridge bridge : bridges)
+				if (now - bridge.getLastViewed() >= HIBERNATE_IDLE)
+					idle.add(bridge);
+		}
+
+		int hibernated = 0;
+		for (TerminalBridge bridge : idle)
+			if (bridge.hibernate(getHibernationDir()))
+				hibernated++;
+
+		if (hibernated > 0) {
+			Log.i(TAG, String.format("Hibernated %d idle sessions", hibernated));
+			// what they held is free for the others now
+			enforceScrollbackBudget();
+		}
+	}
+
+	/**
+	 * @return where hibernating sessions keep their screen and scrollback
+	 */
+	File getHibernationDir() {
+		return new File(getCacheDir(), "hibernate");
+	}
+
+	/**
+	 * Have the scrollback of all bridges checked against the budget soon,
+	 * after bridges came, went, were resized or were looked at.
+	 */
+	void checkScrollbackBudget() {
+		if (scrollbackBudget == null)
+			return;
+
+		executor.execute("ScrollbackBudget", new Runnable() {
+			@Override
+			public void run() {
+				enforceScrollbackBudget();
+			}
+		});
+	}
+
+	/**
+	 * Share the scrollback budget between bridges, most recently viewed
+	 * first, trimming the scrollback of the others where it does not fit.
+	 */
+	private synchronized void enforceScrollbackBudget() {
+		List<TerminalBridge> sorted;
+		synchronized (bridges) {
+			sorted = new ArrayList<>(bridges);
+		}
+		Collections.sort(sorted, new Comparator<TerminalBridge>() {
+			@Override
+			public int compare(TerminalBridge a, TerminalBridge b) {
+				long diff = b.getLastViewed() - a.getLastViewed();
+				return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+			}
+		});
+
+		int count = sorted.size();
+		int[] columns = new int[count];
+		int[] screenRows = new int[count];
+		int[] wanted = new int[count];
+		for (int i = 0; i < count; i++) {
+			TerminalBridge bridge = sorted.get(i);
+			columns[i] = bridge.buffer.getColumns();
+			screenRows[i] = bridge.buffer.getRows();
+			wanted[i] = bridge.getWantedScrollback();
+		}
+
+		int[] lines = ScrollbackBudget.allocate(scrollbackBudget.getBudget(System.currentTimeMillis()),
+				columns, screenRows, wanted);
+		for (int i = 0; i < count; i++)
+			sorted.get(i).limitScrollback(lines[i]);
+	}
+
+	/**
+	 * @return whether sessions that allow it are read by one shared thread
+	 */
+	boolean isSharedIoEnabled() {
+		return prefs.getBoolean(PreferenceConstants.SHARED_IO, false);
+	}
+
+	/**
+	 * Take a reference to an authenticated connection that a new session can
+	 * be opened on.
+	 *
+	 * @param key the connection's account and settings, see SSH.getConnectionKey
+	 * @return the connection, or null if there is none to share
+	 */
+	public SharedConnection acquireConnection(String key) {
+		synchronized (sharedConnections) {
+			SharedConnection shared = sharedConnections.get(key);
+			if (shared == null)
+				return null;
+
+			if (!shared.isUsable()) {
+				sharedConnections.remove(key);
+				return null;
+			}
+
+			shared.retain();
+			return shared;
+		}
+	}
+
+	/**
+	 * Offer an authenticated connection to later sessions with the same
+	 * key. If one is already offered, the existing one is kept.
+	 */
+	public void shareConnection(String key, SharedConnection shared) {
+		synchronized (sharedConnections) {
+			if (!sharedConnections.containsKey(key))
+				sharedConnections.put(key, shared);
+		}
+	}
+
+	/**
+	 * Drop a reference to a connection, closing it if nobody else is using it.
+	 *
+	 * @return true if the connection stays open for other sessions
+	 */
+	public boolean releaseConnection(String key, SharedConnection shared) {
+		synchronized (sharedConnections) {
+			if (shared.release() > 0)
+				return true;
+
+			if (sharedConnections.get(key) == shared)
+				sharedConnections.remove(key);
+		}
+
+		shared.close();
+		return false;
+	}
+
 	/**
 	 * Open a new connection by reading parameters from the given URI. Follows
 	 * format specified by an individual transport.
@@ -348,6 +582,9 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 			disconnected.add(bridge.host);
 		}
 
+		// what it had is free for the others again
+		checkScrollbackBudget();
+
 		notifyHostStatusChanged();
 
 		if (shouldHideRunningNotification) {
@@ -355,6 +592,74 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		}
 	}
 
+	/**
+	 * Decode a key marked to load at startup on the shared pool, so that
+	 * starting the service never waits for it. Until it is loaded, anyone
+	 * needing it may wait with {@link #awaitStartKey(String)}.
+	 */
+	/* package */ void loadStartKey(final PubkeyBean pubkey) {
+		final String nickname = pubkey.getNickname();
+		FutureTask<KeyPair> task = new FutureTask<KeyPair>(new Callable<KeyPair>() {
+			@Override
+			public KeyPair call() throws Exception {
+				KeyPair pair = PubkeyUtils.convertToKeyPair(pubkey, null);
+				addKey(pubkey, pair);
+				return pair;
+			}
+		}) {
+			@Override
+			protected void done() {
+				synchronized (pendingKeys) {
+					if (pendingKeys.get(nickname) == this)
+						pendingKeys.remove(nickname);
+				}
+			}
+		};
+
+		synchronized (pendingKeys) {
+			pendingKeys.put(nickname, task);
+		}
+		executor.execute("LoadKey", task);
+	}
+
+	/**
+	 * Wait until the startup key with the given nickname is loaded, if it is
+	 * still being decoded. Returns at once for any other key.
+	 *
+	 * @return whether the key is loaded now
+	 */
+	public boolean awaitStartKey(String nickname) {
+		FutureTask<KeyPair> task;
+		synchronized (pendingKeys) {
+			task = pendingKeys.get(nickname);
+		}
+		if (task != null)
+			awaitStartKey(nickname, task);
+		return isKeyLoaded(nickname);
+	}
+
+	/**
+	 * Wait until all startup keys still being decoded are loaded.
+	 */
+	public void awaitStartKeys() {
+		Map<String, FutureTask<KeyPair>> tasks;
+		synchronized (pendingKeys) {
+			tasks = new HashMap<>(pendingKeys);
+		}
+		for (Entry<String, FutureTask<KeyPair>> entry : tasks.entrySet())
+			awaitStartKey(entry.getKey(), entry.getValue());
+	}
+
+	private void awaitStartKey(String nickname, FutureTask<KeyPair> task) {
+		try {
+			task.get();
+		} catch (ExecutionException e) {
+			Log.d(TAG, String.format("Problem adding key '%s' to in-memory cache", nickname), e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	public boolean isKeyLoaded(String nickname) {
 		return loadedKeypairs.containsKey(nickname);
 	}
@@ -367,8 +672,6 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		if (!savingKeys && !force)
 			return;
 
-		removeKey(pubkey.getNickname());
-
 		byte[] sshPubKey = PubkeyUtils.extractOpenSSHPublic(pair);
 
 		KeyHolder keyHolder = new KeyHolder();
@@ -376,7 +679,11 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		keyHolder.pair = pair;
 		keyHolder.openSSHPubkey = sshPubKey;
 
-		loadedKeypairs.put(pubkey.getNickname(), keyHolder);
+		synchronized (loadedKeypairs) {
+			// replaces any key loaded under the same nickname
+			loadedKeypairs.put(pubkey.getNickname(), keyHolder);
+			updateIdentities();
+		}
 
 		if (pubkey.getLifetime() > 0) {
 			final String nickname = pubkey.getNickname();
@@ -394,23 +701,31 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 	public boolean removeKey(String nickname) {
 		Log.d(TAG, String.format("Removed key '%s' to in-memory cache", nickname));
-		return loadedKeypairs.remove(nickname) != null;
+		synchronized (loadedKeypairs) {
+			if (loadedKeypairs.remove(nickname) == null)
+				return false;
+
+			updateIdentities();
+			return true;
+		}
 	}
 
 	public boolean removeKey(byte[] publicKey) {
-		String nickname = null;
-		for (Entry<String, KeyHolder> entry : loadedKeypairs.entrySet()) {
-			if (Arrays.equals(entry.getValue().openSSHPubkey, publicKey)) {
-				nickname = entry.getKey();
-				break;
-			}
+		synchronized (loadedKeypairs) {
+			String nickname = getKeyNickname(publicKey);
+			return nickname != null && removeKey(nickname);
 		}
+	}
 
-		if (nickname != null) {
-			Log.d(TAG, String.format("Removed key '%s' to in-memory cache", nickname));
-			return removeKey(nickname);
-		} else
-			return false;
+	/**
+	 * Forget all keys held in memory.
+	 */
+	public void removeAllKeys() {
+		synchronized (loadedKeypairs) {
+			loadedKeypairs.clear();
+			updateIdentities();
+		}
+		Log.d(TAG, "Removed all keys from in-memory cache");
 	}
 
 	public KeyPair getKey(String nickname) {
@@ -422,19 +737,34 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 	}
 
 	public KeyPair getKey(byte[] publicKey) {
-		for (KeyHolder keyHolder : loadedKeypairs.values()) {
-			if (Arrays.equals(keyHolder.openSSHPubkey, publicKey))
-				return keyHolder.pair;
+		synchronized (loadedKeypairs) {
+			String nickname = getKeyNickname(publicKey);
+			return nickname == null ? null : loadedKeypairs.get(nickname).pair;
 		}
-		return null;
 	}
 
 	public String getKeyNickname(byte[] publicKey) {
+		return agentIdentities.getNickname(publicKey);
+	}
+
+	/**
+	 * @return the keys offered to SSH agent requests right now
+	 */
+	public AgentIdentities getAgentIdentities() {
+		return agentIdentities;
+	}
+
+	/**
+	 * Take a new snapshot of the loaded keys for the agent. Called with
+	 * loadedKeypairs locked after every change, and only then.
+	 */
+	private void updateIdentities() {
+		Map<String, byte[]> identities = new HashMap<>(loadedKeypairs.size());
 		for (Entry<String, KeyHolder> entry : loadedKeypairs.entrySet()) {
-			if (Arrays.equals(entry.getValue().openSSHPubkey, publicKey))
-				return entry.getKey();
+			if (entry.getValue().openSSHPubkey != null)
+				identities.put(entry.getKey(), entry.getValue().openSSHPubkey);
 		}
-		return null;
+		agentIdentities = new AgentIdentities(agentIdentities.getVersion() + 1, identities);
 	}
 
 	private void stopWithDelay() {
@@ -667,28 +997,55 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 	 * we'll be getting a different connection any time soon.
 	 */
 	public void onConnectivityLost() {
-		final Thread t = new Thread() {
+		executor.execute("Disconnector", new Runnable() {
 			@Override
 			public void run() {
 				disconnectAll(false, true);
 			}
-		};
-		t.setName("Disconnector");
-		t.start();
+		});
+	}
+
+	/**
+	 * Called when the device switched to another network while staying
+	 * connected. Connections made over the old one may be gone without
+	 * either end having noticed, so have every bridge check right away.
+	 */
+	public void onNetworkChanged() {
+		TerminalBridge[] tmpBridges;
+
+		synchronized (bridges) {
+			tmpBridges = bridges.toArray(new TerminalBridge[bridges.size()]);
+		}
+
+		for (TerminalBridge bridge : tmpBridges) {
+			if (bridge.isUsingNetwork())
+				bridge.checkConnection();
+		}
+	}
+
+	/**
+	 * @return how often to probe an idle connection on the current network, in ms
+	 */
+	long getKeepAliveInterval() {
+		switch (connectivityManager.getNetworkType()) {
+		case ConnectivityManager.TYPE_WIFI:
+		case ConnectivityManager.TYPE_ETHERNET:
+			return KeepAliveMonitor.WIFI_INTERVAL;
+		default:
+			return KeepAliveMonitor.MOBILE_INTERVAL;
+		}
 	}
 
 	/**
 	 * Called when connectivity to the network is restored.
 	 */
 	public void onConnectivityRestored() {
-		final Thread t = new Thread() {
+		executor.execute("Reconnector", new Runnable() {
 			@Override
 			public void run() {
 				reconnectPending();
 			}
-		};
-		t.setName("Reconnector");
-		t.start();
+		});
 	}
 
 	/**
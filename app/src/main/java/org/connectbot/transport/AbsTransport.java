@@ -18,9 +18,11 @@
 package org.connectbot.transport;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import org.connectbot.R;
 import org.connectbot.bean.HostBean;
 import org.connectbot.bean.PortForwardBean;
 import org.connectbot.service.TerminalBridge;
@@ -28,18 +30,25 @@ import org.connectbot.service.TerminalManager;
 
 import android.content.Context;
 import android.net.Uri;
+import android.util.Log;
 
 /**
  * @author Kenny Root
  *
  */
 public abstract class AbsTransport {
+	private static final String TAG = "CB.AbsTransport";
+
 	HostBean host;
 	TerminalBridge bridge;
 	TerminalManager manager;
 
 	String emulation;
 
+	private List<HappyEyeballs.Attempt> connectAttempts = Collections.emptyList();
+
+	private volatile long lastHeard = now();
+
 	public AbsTransport() {
 	}
 
@@ -84,6 +93,17 @@ public abstract class AbsTransport {
 	 */
 	public abstract int read(byte[] buffer, int offset, int length) throws IOException;
 
+	/**
+	 * Reads error output that the transport keeps apart from the main stream,
+	 * so it is decoded on its own and a character split between the streams
+	 * cannot be garbled. Never blocks; call after each read.
+	 * @return number of bytes read, 0 if there is none to show
+	 * @throws IOException when remote host disconnects
+	 */
+	public int readErrorOutput(byte[] buffer, int offset, int length) throws IOException {
+		return 0;
+	}
+
 	/**
 	 * Writes to the transport. If the host is not yet connected, simply return without
 	 * doing anything. An {@link IOException} should be thrown if there is an error after
@@ -112,6 +132,44 @@ public abstract class AbsTransport {
 	 */
 	public abstract void close();
 
+	/**
+	 * Closes a connection that stopped answering. Besides what
+	 * {@link #close()} does, anything else riding on the same connection is
+	 * given up as well.
+	 */
+	public void abandon() {
+		close();
+	}
+
+	/**
+	 * Asks the remote end for a reply without disturbing the session. The
+	 * reply shows up as an update of {@link #getLastHeard()}.
+	 * @return false if the transport has no way of asking
+	 * @throws IOException when the probe could not be sent
+	 */
+	public boolean sendKeepAlive() throws IOException {
+		return false;
+	}
+
+	/**
+	 * @return when data last arrived from the remote end, in ms of
+	 *         {@link System#nanoTime()}
+	 */
+	public long getLastHeard() {
+		return lastHeard;
+	}
+
+	/**
+	 * Note that the remote end is still there.
+	 */
+	protected void onHeard() {
+		lastHeard = now();
+	}
+
+	static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
 	/**
 	 * Tells the transport what dimensions the display is currently
 	 * @param columns columns of text
@@ -157,6 +215,27 @@ public abstract class AbsTransport {
 		this.manager = manager;
 	}
 
+	/**
+	 * @return the addresses tried by the last connect and how long each took
+	 */
+	public List<HappyEyeballs.Attempt> getConnectAttempts() {
+		return connectAttempts;
+	}
+
+	/**
+	 * Remember how connecting went and tell the user which address answered.
+	 */
+	void onConnectAttempts(HappyEyeballs.Result<?> result) {
+		connectAttempts = result.attempts;
+		for (HappyEyeballs.Attempt attempt : result.attempts)
+			Log.d(TAG, "Connect attempt " + attempt);
+
+		if (bridge != null && manager != null)
+			bridge.outputLine(manager.res.getString(R.string.terminal_connected_address,
+					result.winner.address.getHostAddress(), result.winner.duration,
+					result.attempts.size()));
+	}
+
 	/**
 	 * Whether or not this transport type can forward ports.
 	 * @return true on ability to forward ports
@@ -0,0 +1,207 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.util.Locale;
+
+import android.content.SharedPreferences;
+
+/**
+ * Decides whether SSH compression is worth it for a host. SSH only negotiates
+ * compression during key exchange, so each session is measured over its first
+ * seconds and the result is remembered for the next connection to the same
+ * host. A host with only a round trip on record gets compression if the
+ * link looks slow. Once one mode has been measured, the next connection
+ * tries the other, and after that whichever mode moved data faster wins.
+ */
+public class CompressionAdvisor {
+	/** How long the start of a session is measured, in ms. */
+	public static final long MEASURE_TIME = 10000;
+
+	/** Round trip above which a link counts as slow, in ms. */
+	static final long SLOW_RTT = 150;
+	/** How much faster compression has to be to keep it. */
+	static final double MARGIN = 1.1;
+
+	private final SharedPreferences prefs;
+
+	public CompressionAdvisor(SharedPreferences prefs) {
+		this.prefs = prefs;
+	}
+
+	/**
+	 * What has been measured for a host so far. Values are -1 until known.
+	 */
+	public static final class LinkStats {
+		/** round trip time in ms */
+		public long rtt = -1;
+		/** throughput without compression in bytes per second */
+		public long plainRate = -1;
+		/** throughput with compression in bytes per second */
+		public long compressedRate = -1;
+
+		String encode() {
+			return rtt + "," + plainRate + "," + compressedRate;
+		}
+
+		static LinkStats decode(String value) {
+			LinkStats stats = new LinkStats();
+			if (value == null)
+				return stats;
+
+			String[] parts = value.split(",");
+			try {
+				stats.rtt = Long.parseLong(parts[0]);
+				stats.plainRate = Long.parseLong(parts[1]);
+				stats.compressedRate = Long.parseLong(parts[2]);
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException ignored) {
+			}
+			return stats;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "rtt %s, plain %s, compressed %s",
+					rtt < 0 ? "?" : rtt + " ms",
+					formatRate(plainRate), formatRate(compressedRate));
+		}
+	}
+
+	/**
+	 * @param key user@host:port of the connection
+	 */
+	public LinkStats getStats(String key) {
+		return LinkStats.decode(prefs.getString(key, null));
+	}
+
+	/**
+	 * Fold a new measurement into what is known about a host.
+	 * @param rtt round trip time in ms, or -1 if not measured
+	 * @param rate throughput in bytes per second, or -1 if not measured
+	 */
+	public synchronized void record(String key, boolean compressed, long rtt, long rate) {
+		LinkStats stats = getStats(key);
+		stats.rtt = smooth(stats.rtt, rtt);
+		if (compressed)
+			stats.compressedRate = smooth(stats.compressedRate, rate);
+		else
+			stats.plainRate = smooth(stats.plainRate, rate);
+		prefs.edit().putString(key, stats.encode()).apply();
+	}
+
+	/**
+	 * @return whether the next connection to this host should compress
+	 */
+	public boolean shouldCompress(String key) {
+		return decide(getStats(key));
+	}
+
+	static boolean decide(LinkStats stats) {
+		// measured both ways: keep compression only if it paid off
+		if (stats.plainRate >= 0 && stats.compressedRate >= 0)
+			return stats.compressedRate > stats.plainRate * MARGIN;
+
+		// measured one way: try the other so there is something to compare
+		if (stats.plainRate >= 0)
+			return true;
+		if (stats.compressedRate >= 0)
+			return false;
+
+		// otherwise go by how the link looked
+		return stats.rtt >= SLOW_RTT;
+	}
+
+	private static long smooth(long old, long sample) {
+		if (sample < 0)
+			return old;
+		if (old < 0)
+			return sample;
+		return (old * 3 + sample) / 4;
+	}
+
+	static String formatRate(long rate) {
+		if (rate < 0)
+			return "?";
+		return String.format(Locale.US, "%d KiB/s", rate / 1024);
+	}
+
+	/**
+	 * Measures throughput at the start of a session. Only time during which
+	 * data keeps arriving counts, so a shell sitting at its prompt does not
+	 * look like a slow link. The login banner and a few screens of output
+	 * are enough for a figure, so interactive sessions get measured too.
+	 */
+	public static final class Meter {
+		/** Gap between reads after which the link is considered idle, in ms. */
+		static final long BURST_GAP = 100;
+		/** Bytes needed before a throughput figure means anything. */
+		static final long MIN_BYTES = 2 * 1024;
+
+		private final long start;
+		private long last;
+		private long bytes = 0;
+		private long activeTime = 0;
+		private boolean finished = false;
+
+		public Meter(long now) {
+			start = now;
+			last = now;
+		}
+
+		/**
+		 * Account for a read.
+		 * @param count bytes read
+		 * @param now time of the read in ms
+		 * @return true once the measuring time is over
+		 */
+		public synchronized boolean onRead(int count, long now) {
+			if (finished)
+				return false;
+
+			long gap = now - last;
+			if (gap < BURST_GAP) {
+				activeTime += gap;
+				bytes += count;
+			}
+			last = now;
+
+			return now - start >= MEASURE_TIME;
+		}
+
+		/**
+		 * Stop measuring.
+		 * @return whether this was the first call
+		 */
+		public synchronized boolean finish() {
+			if (finished)
+				return false;
+			finished = true;
+			return true;
+		}
+
+		/**
+		 * @return bytes per second while data was flowing, or -1 if too
+		 *         little was seen to tell
+		 */
+		public synchronized long getRate() {
+			if (bytes < MIN_BYTES || activeTime <= 0)
+				return -1;
+			return bytes * 1000 / activeTime;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to a host by racing its addresses against each other as described
+ * in RFC 8305 (Happy Eyeballs). Addresses are tried alternating between IPv6
+ * and IPv4, starting with IPv6, and a new attempt is started every
+ * {@link #ATTEMPT_DELAY} ms or as soon as one fails. The first connection to
+ * succeed is kept, the rest are closed. On a network with broken IPv6 this
+ * costs a quarter of a second instead of a full connect timeout per address.
+ */
+public final class HappyEyeballs {
+	/** Time to give an attempt before starting the next one in parallel. */
+	public static final long ATTEMPT_DELAY = 250;
+
+	private HappyEyeballs() {
+	}
+
+	/**
+	 * Creates and connects whatever a transport uses to talk to the host.
+	 * Creating is separate from connecting so an attempt still in progress
+	 * can be aborted by closing it.
+	 */
+	public interface Connector<T extends Closeable> {
+		T create() throws IOException;
+
+		void connect(T connection, InetSocketAddress address) throws IOException;
+	}
+
+	/**
+	 * Timing of one connection attempt.
+	 */
+	public static final class Attempt {
+		/** the address tried */
+		public final InetAddress address;
+		/** when the attempt started, in ms after the race started */
+		public final long started;
+		/** how long it took to connect or to fail, in ms */
+		public volatile long duration = -1;
+		/** why it failed, or null */
+		public volatile IOException error;
+
+		private final int index;
+
+		Attempt(InetAddress address, long started, int index) {
+			this.address = address;
+			this.started = started;
+			this.index = index;
+		}
+
+		public boolean isConnected() {
+			return duration >= 0 && error == null;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(address.getHostAddress())
+					.append(" +").append(started).append("ms ");
+			if (duration < 0)
+				sb.append("abandoned");
+			else if (error != null)
+				sb.append("failed after ").append(duration).append("ms: ").append(error.getMessage());
+			else
+				sb.append("connected in ").append(duration).append("ms");
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The connection that won and how each attempt went.
+	 */
+	public static final class Result<T> {
+		public final T connection;
+		public final Attempt winner;
+		public final List<Attempt> attempts;
+
+		Result(T connection, Attempt winner, List<Attempt> attempts) {
+			this.connection = connection;
+			this.winner = winner;
+			this.attempts = Collections.unmodifiableList(attempts);
+		}
+	}
+
+	/**
+	 * Connector for plain sockets.
+	 * @param timeout connect timeout for each attempt in ms, 0 for none
+	 */
+	public static Connector<Socket> socketConnector(final int timeout) {
+		return new Connector<Socket>() {
+			@Override
+			public Socket create() {
+				return new Socket();
+			}
+
+			@Override
+			public void connect(Socket socket, InetSocketAddress address) throws IOException {
+				socket.connect(address, timeout);
+			}
+		};
+	}
+
+	/**
+	 * Resolve a host and connect to the first of its addresses that answers.
+	 * @param host host name or address literal
+	 * @param port port to connect to
+	 * @param connector creates and connects the underlying connection
+	 * @return the connection along with the timing of all attempts
+	 * @throws IOException the error of the last attempt if none succeeded
+	 */
+	public static <T extends Closeable> Result<T> connect(String host, int port,
+			Connector<T> connector) throws IOException {
+		return connect(sortAddresses(InetAddress.getAllByName(host)), port, connector);
+	}
+
+	static <T extends Closeable> Result<T> connect(List<InetAddress> addresses, int port,
+			final Connector<T> connector) throws IOException {
+		final long start = System.nanoTime();
+		final List<T> connections = new ArrayList<>();
+		final List<Attempt> attempts = new ArrayList<>();
+		final BlockingQueue<Attempt> finished = new LinkedBlockingQueue<>();
+
+		int next = 0;
+		int running = 0;
+		long nextStart = 0;
+		IOException lastError = null;
+		Attempt winner = null;
+
+		try {
+			while (true) {
+				long now = millisSince(start);
+
+				if (next < addresses.size() && (running == 0 || now >= nextStart)) {
+					final Attempt attempt = new Attempt(addresses.get(next), now, next);
+					final T connection = connector.create();
+					final InetSocketAddress address = new InetSocketAddress(addresses.get(next), port);
+					next++;
+
+					connections.add(connection);
+					attempts.add(attempt);
+					running++;
+					nextStart = now + ATTEMPT_DELAY;
+
+					Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								connector.connect(connection, address);
+							} catch (IOException e) {
+								attempt.error = e;
+							}
+							attempt.duration = millisSince(start) - attempt.started;
+							finished.add(attempt);
+						}
+					});
+					thread.setName("Connect " + address);
+					thread.setDaemon(true);
+					thread.start();
+					continue;
+				}
+
+				if (running == 0)
+					break;
+
+				Attempt done;
+				if (next < addresses.size())
+					done = finished.poll(nextStart - now, TimeUnit.MILLISECONDS);
+				else
+					done = finished.take();
+				if (done == null)
+					continue;
+
+				running--;
+				if (done.error == null) {
+					winner = done;
+					return new Result<>(connections.get(done.index), done, attempts);
+				}
+
+				// don't wait for the timer when an attempt has already failed
+				lastError = done.error;
+				nextStart = 0;
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while connecting");
+		} finally {
+			// abort the attempts still in progress and drop the losers
+			for (int i = 0; i < connections.size(); i++) {
+				if (winner != null && i == winner.index)
+					continue;
+				try {
+					connections.get(i).close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+
+		if (lastError != null)
+			throw lastError;
+		throw new SocketTimeoutException("Could not connect; no addresses to try");
+	}
+
+	/**
+	 * Order addresses for connecting, alternating between IPv6 and IPv4 and
+	 * starting with IPv6. Within a family the resolver's order is kept.
+	 */
+	static List<InetAddress> sortAddresses(InetAddress[] addresses) {
+		List<InetAddress> v6 = new ArrayList<>();
+		List<InetAddress> v4 = new ArrayList<>();
+		for (InetAddress address : addresses) {
+			if (address instanceof Inet6Address)
+				v6.add(address);
+			else
+				v4.add(address);
+		}
+
+		List<InetAddress> sorted = new ArrayList<>(addresses.length);
+		for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+			if (i < v6.size())
+				sorted.add(v6.get(i));
+			if (i < v4.size())
+				sorted.add(v4.get(i));
+		}
+		return sorted;
+	}
+
+	private static long millisSince(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+}
@@ -103,10 +103,7 @@ public class Local extends AbsTransport {
 			}
 		};
 
-		Thread exitWatcherThread = new Thread(exitWatcher);
-		exitWatcherThread.setName("LocalExitWatcher");
-		exitWatcherThread.setDaemon(true);
-		exitWatcherThread.start();
+		manager.executor.start("LocalExitWatcher", exitWatcher);
 
 		is = new FileInputStream(shellFd);
 		os = new FileOutputStream(shellFd);
@@ -0,0 +1,754 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.connectbot.bean.PortForwardBean;
+import org.connectbot.util.HostDatabase;
+
+import android.util.Log;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.LocalStreamForwarder;
+
+/**
+ * Local and dynamic (SOCKS) port forwarding for all the forwards of one SSH
+ * connection. Connections, traffic and the time taken to reach the
+ * destination are counted on each forward's {@link PortForwardBean}.
+ * <p>
+ * Listening and all I/O on the local sockets happens on a single selector
+ * thread, into direct buffers taken from a pool, so listeners need no
+ * threads of their own. The library only offers blocking reads and writes
+ * on a channel, so each tunnel has a reader and a writer for its channel;
+ * a channel whose window is full holds up only its own tunnel. These come
+ * from a pool of two threads per tunnel, capped at {@link #MAX_TUNNELS},
+ * and no more connections are accepted while that many are open, so the
+ * thread count stays bounded however busy the forwards get.
+ */
+final class LocalForwardEngine {
+	private static final String TAG = "CB.LocalForward";
+
+	/** Size of each direction's buffer per tunnel. */
+	static final int BUFFER_SIZE = 32 * 1024;
+	/** Tunnels open at once before accepting is paused. */
+	static final int MAX_TUNNELS = 32;
+
+	private final Connection connection;
+	private final BufferPool pool = new BufferPool(BUFFER_SIZE, 16);
+
+	private final Map<PortForwardBean, Listener> listeners = new HashMap<>();
+	/** only touched on the selector thread */
+	private final Set<Tunnel> tunnels = new HashSet<>();
+
+	private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+	private final Queue<Tunnel> interestChanged = new ConcurrentLinkedQueue<>();
+
+	private final ExecutorService channelThreads;
+
+	private Selector selector;
+	private volatile boolean running = false;
+	private boolean acceptPaused = false;
+
+	LocalForwardEngine(Connection connection) {
+		this.connection = connection;
+
+		// a reader and a writer for each tunnel; a closed tunnel's may still
+		// be finishing when the next is accepted, so the rest wait their turn
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(2 * MAX_TUNNELS, 2 * MAX_TUNNELS,
+				30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "ForwardChannel");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		channelThreads = executor;
+	}
+
+	/**
+	 * Start listening for a forward.
+	 * @param bean the forward, also where its traffic is counted
+	 * @param address where to listen
+	 */
+	synchronized void add(final PortForwardBean bean, InetSocketAddress address) throws IOException {
+		start();
+
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.socket().setReuseAddress(true);
+			server.socket().bind(address);
+			server.configureBlocking(false);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+
+		final Listener listener = new Listener(bean, server,
+				HostDatabase.PORTFORWARD_DYNAMIC5.equals(bean.getType()));
+		listeners.put(bean, listener);
+
+		runOnSelector(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					server.register(selector, acceptPaused ? 0 : SelectionKey.OP_ACCEPT, listener);
+				} catch (IOException e) {
+					Log.e(TAG, "Could not listen for " + bean.getDescription(), e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop a forward and close the connections made through it.
+	 */
+	synchronized void remove(PortForwardBean bean) {
+		final Listener listener = listeners.remove(bean);
+		if (listener == null)
+			return;
+
+		closeQuietly(listener.server);
+		runOnSelector(new Runnable() {
+			@Override
+			public void run() {
+				for (Tunnel tunnel : new HashSet<>(tunnels)) {
+					if (tunnel.listener == listener)
+						close(tunnel);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop all forwards and the threads behind them.
+	 */
+	synchronized void close() {
+		if (!running)
+			return;
+		running = false;
+
+		for (Listener listener : listeners.values())
+			closeQuietly(listener.server);
+		listeners.clear();
+
+		// the selector thread closes it once out of its keys
+		selector.wakeup();
+		channelThreads.shutdownNow();
+	}
+
+	private void start() throws IOException {
+		if (running)
+			return;
+
+		selector = Selector.open();
+		running = true;
+
+		Thread selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				selectLoop();
+			}
+		});
+		selectorThread.setName("ForwardSelector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	private void runOnSelector(Runnable task) {
+		selectorTasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Have the selector recompute what it waits for on a tunnel.
+	 */
+	private void updateInterest(Tunnel tunnel) {
+		interestChanged.add(tunnel);
+		selector.wakeup();
+	}
+
+	private void selectLoop() {
+		try {
+			while (running) {
+				selector.select();
+
+				Runnable task;
+				while ((task = selectorTasks.poll()) != null)
+					task.run();
+
+				Tunnel changed;
+				while ((changed = interestChanged.poll()) != null)
+					setInterest(changed);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid())
+						continue;
+
+					if (key.attachment() instanceof Listener) {
+						accept((Listener) key.attachment());
+						continue;
+					}
+
+					Tunnel tunnel = (Tunnel) key.attachment();
+					try {
+						if (key.isReadable())
+							readLocal(tunnel);
+						if (key.isValid() && key.isWritable())
+							writeLocal(tunnel);
+					} catch (IOException e) {
+						Log.d(TAG, "Local side of " + tunnel + " failed", e);
+						close(tunnel);
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (running)
+				Log.e(TAG, "Forwarding selector failed", e);
+		} finally {
+			for (Tunnel tunnel : new HashSet<>(tunnels))
+				close(tunnel);
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private void accept(final Listener listener) {
+		SocketChannel socket;
+		try {
+			socket = listener.server.accept();
+			if (socket == null)
+				return;
+			socket.configureBlocking(false);
+			socket.socket().setTcpNoDelay(true);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not accept on " + listener.bean.getDescription(), e);
+			return;
+		}
+
+		final Tunnel tunnel = new Tunnel(listener, socket, pool.acquire(), pool.acquire());
+		tunnels.add(tunnel);
+		if (tunnels.size() >= MAX_TUNNELS)
+			setAcceptPaused(true);
+
+		if (listener.dynamic) {
+			// the destination comes from the client
+			tunnel.socks = new SocksRequest();
+			tunnel.negotiating = true;
+		}
+
+		try {
+			// otherwise nothing is read until the channel is open
+			tunnel.key = socket.register(selector, tunnel.negotiating ? SelectionKey.OP_READ : 0, tunnel);
+		} catch (IOException e) {
+			close(tunnel);
+			return;
+		}
+
+		if (!tunnel.negotiating)
+			startReader(tunnel);
+	}
+
+	private void startReader(final Tunnel tunnel) {
+		runOnChannelThread(tunnel, new Runnable() {
+			@Override
+			public void run() {
+				readRemote(tunnel);
+			}
+		});
+	}
+
+	private void startWriter(final Tunnel tunnel) {
+		runOnChannelThread(tunnel, new Runnable() {
+			@Override
+			public void run() {
+				writeRemote(tunnel);
+			}
+		});
+	}
+
+	private void runOnChannelThread(Tunnel tunnel, Runnable task) {
+		try {
+			channelThreads.execute(task);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+			close(tunnel);
+		}
+	}
+
+	private void setAcceptPaused(boolean paused) {
+		if (acceptPaused == paused)
+			return;
+		acceptPaused = paused;
+
+		// listeners is guarded by the engine, the selector's keys by this thread
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Listener && key.isValid())
+				key.interestOps(paused ? 0 : SelectionKey.OP_ACCEPT);
+		}
+	}
+
+	private void setInterest(Tunnel tunnel) {
+		synchronized (tunnel) {
+			if (tunnel.closed || tunnel.key == null || !tunnel.key.isValid())
+				return;
+
+			int ops = 0;
+			if ((tunnel.out != null || tunnel.negotiating) && !tunnel.localEof && tunnel.toRemote.hasRemaining())
+				ops |= SelectionKey.OP_READ;
+			if (tunnel.toLocal.position() > 0)
+				ops |= SelectionKey.OP_WRITE;
+			tunnel.key.interestOps(ops);
+		}
+	}
+
+	/**
+	 * Local socket to buffer, for the tunnel's writer to send on.
+	 */
+	private void readLocal(Tunnel tunnel) throws IOException {
+		if (tunnel.negotiating) {
+			negotiate(tunnel);
+			return;
+		}
+
+		synchronized (tunnel) {
+			if (tunnel.closed)
+				return;
+
+			int n = tunnel.socket.read(tunnel.toRemote);
+			if (n < 0)
+				tunnel.localEof = true;
+			if (n != 0)
+				tunnel.notifyAll();
+		}
+		setInterest(tunnel);
+	}
+
+	/**
+	 * Read the SOCKS request of a dynamic forward's client. Only the
+	 * selector touches the tunnel until the reader is started.
+	 */
+	private void negotiate(Tunnel tunnel) throws IOException {
+		if (tunnel.socket.read(tunnel.toRemote) < 0)
+			throw new IOException("Closed during SOCKS negotiation");
+
+		tunnel.toRemote.flip();
+		try {
+			tunnel.negotiating = !tunnel.socks.read(tunnel.toRemote, tunnel.toLocal);
+		} finally {
+			tunnel.toRemote.compact();
+		}
+		if (tunnel.negotiating && !tunnel.toRemote.hasRemaining())
+			throw new IOException("SOCKS request too long");
+
+		setInterest(tunnel);
+		if (!tunnel.negotiating)
+			startReader(tunnel);
+	}
+
+	/**
+	 * Buffer filled by the reader to local socket.
+	 */
+	private void writeLocal(Tunnel tunnel) throws IOException {
+		boolean finished = false;
+
+		synchronized (tunnel) {
+			if (tunnel.closed)
+				return;
+
+			tunnel.toLocal.flip();
+			tunnel.socket.write(tunnel.toLocal);
+			tunnel.toLocal.compact();
+
+			// room for the reader again
+			tunnel.notifyAll();
+
+			if (tunnel.toLocal.position() == 0 && tunnel.remoteEof) {
+				if (!tunnel.localOutShut) {
+					tunnel.socket.socket().shutdownOutput();
+					tunnel.localOutShut = true;
+				}
+				finished = tunnel.remoteOutClosed;
+			}
+		}
+
+		if (finished)
+			close(tunnel);
+		else
+			setInterest(tunnel);
+	}
+
+	/**
+	 * Open the channel, start the tunnel's writer, then keep moving what
+	 * arrives on the channel into the tunnel's buffer. Runs on a channel
+	 * thread.
+	 */
+	private void readRemote(Tunnel tunnel) {
+		PortForwardBean bean = tunnel.listener.bean;
+		String host = tunnel.socks != null ? tunnel.socks.getHost() : bean.getDestAddr();
+		int port = tunnel.socks != null ? tunnel.socks.getPort() : bean.getDestPort();
+
+		LocalStreamForwarder forwarder;
+		InputStream in;
+		OutputStream out;
+		long start = System.nanoTime();
+		try {
+			// the server confirms the channel once it has reached the destination
+			forwarder = connection.createLocalStreamForwarder(host, port);
+			in = forwarder.getInputStream();
+			out = forwarder.getOutputStream();
+		} catch (IOException e) {
+			Log.e(TAG, String.format("Could not open channel to %s:%d for %s", host, port, bean.getDescription()), e);
+			bean.onConnectionFailed();
+			refuse(tunnel);
+			return;
+		}
+		long latency = (System.nanoTime() - start) / 1000000;
+
+		boolean closed;
+		synchronized (tunnel) {
+			tunnel.forwarder = forwarder;
+			tunnel.out = out;
+			closed = tunnel.closed;
+			if (!closed) {
+				tunnel.counted = true;
+				bean.onConnectionOpened(latency);
+				if (tunnel.socks != null)
+					tunnel.toLocal.put(tunnel.socks.reply(true));
+			}
+		}
+		if (closed) {
+			// closed while the channel was opening
+			try {
+				forwarder.close();
+			} catch (IOException ignored) {
+			}
+			return;
+		}
+		// sends whatever the client already wrote without waiting for the channel
+		startWriter(tunnel);
+		updateInterest(tunnel);
+
+		byte[] buf = CHANNEL_BUFFER.get();
+		try {
+			while (true) {
+				int space;
+				synchronized (tunnel) {
+					while (!tunnel.closed && !tunnel.toLocal.hasRemaining())
+						tunnel.wait();
+					if (tunnel.closed)
+						return;
+					space = Math.min(tunnel.toLocal.remaining(), buf.length);
+				}
+
+				int n = in.read(buf, 0, space);
+
+				synchronized (tunnel) {
+					if (tunnel.closed)
+						return;
+					if (n < 0) {
+						tunnel.remoteEof = true;
+					} else {
+						tunnel.toLocal.put(buf, 0, n);
+						bean.addBytesReceived(n);
+						tunnel.received += n;
+					}
+				}
+				updateInterest(tunnel);
+
+				if (n < 0) {
+					// an empty write finishes the local side once drained
+					runOnSelector(new FlushTask(tunnel));
+					return;
+				}
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "Remote side of " + tunnel + " failed", e);
+			close(tunnel);
+		} catch (InterruptedException e) {
+			close(tunnel);
+		}
+	}
+
+	/**
+	 * Send what the selector read from the local socket down the tunnel's
+	 * channel, blocking only this tunnel while the channel's window is full.
+	 * Runs on a channel thread.
+	 */
+	private void writeRemote(Tunnel tunnel) {
+		byte[] buf = CHANNEL_BUFFER.get();
+
+		try {
+			while (true) {
+				int n;
+				boolean eof;
+				OutputStream out;
+				synchronized (tunnel) {
+					while (!tunnel.closed && tunnel.toRemote.position() == 0 && !tunnel.localEof)
+						tunnel.wait();
+					if (tunnel.closed)
+						return;
+
+					tunnel.toRemote.flip();
+					n = Math.min(tunnel.toRemote.remaining(), buf.length);
+					tunnel.toRemote.get(buf, 0, n);
+					tunnel.toRemote.compact();
+
+					eof = tunnel.localEof && tunnel.toRemote.position() == 0;
+					out = tunnel.out;
+				}
+
+				if (n > 0) {
+					out.write(buf, 0, n);
+					tunnel.listener.bean.addBytesSent(n);
+					tunnel.sent += n;
+					// room to read from the local socket again
+					updateInterest(tunnel);
+				}
+
+				if (eof) {
+					boolean finished;
+					out.close();
+					synchronized (tunnel) {
+						tunnel.remoteOutClosed = true;
+						finished = tunnel.remoteEof && tunnel.toLocal.position() == 0;
+					}
+					if (finished)
+						close(tunnel);
+					return;
+				}
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "Could not send for " + tunnel, e);
+			close(tunnel);
+		} catch (InterruptedException e) {
+			close(tunnel);
+		}
+	}
+
+	/**
+	 * Close a tunnel whose channel could not be opened, telling a SOCKS
+	 * client why first.
+	 */
+	private void refuse(Tunnel tunnel) {
+		if (tunnel.socks == null) {
+			close(tunnel);
+			return;
+		}
+
+		synchronized (tunnel) {
+			if (tunnel.closed)
+				return;
+			tunnel.toLocal.put(tunnel.socks.reply(false));
+			tunnel.remoteEof = true;
+			tunnel.remoteOutClosed = true;
+		}
+		runOnSelector(new FlushTask(tunnel));
+	}
+
+	private void close(final Tunnel tunnel) {
+		synchronized (tunnel) {
+			if (tunnel.closed)
+				return;
+			tunnel.closed = true;
+			tunnel.notifyAll();
+		}
+
+		if (tunnel.counted)
+			tunnel.listener.bean.onConnectionClosed();
+
+		if (tunnel.key != null)
+			tunnel.key.cancel();
+		closeQuietly(tunnel.socket);
+		if (tunnel.forwarder != null) {
+			try {
+				tunnel.forwarder.close();
+			} catch (IOException ignored) {
+			}
+		}
+
+		Log.d(TAG, String.format("Closed %s after %d ms: %d bytes sent, %d received",
+				tunnel, System.currentTimeMillis() - tunnel.opened, tunnel.sent, tunnel.received));
+
+		if (!running)
+			return;
+		runOnSelector(new Runnable() {
+			@Override
+			public void run() {
+				// the reader and writer are done with the buffers by now
+				pool.release(tunnel.toRemote);
+				pool.release(tunnel.toLocal);
+				tunnels.remove(tunnel);
+				if (tunnels.size() < MAX_TUNNELS)
+					setAcceptPaused(false);
+			}
+		});
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/** a channel thread runs one reader or writer at a time */
+	private static final ThreadLocal<byte[]> CHANNEL_BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * Finishes the local side once the remote end has closed and everything
+	 * it sent has been written out.
+	 */
+	private final class FlushTask implements Runnable {
+		private final Tunnel tunnel;
+
+		FlushTask(Tunnel tunnel) {
+			this.tunnel = tunnel;
+		}
+
+		@Override
+		public void run() {
+			try {
+				writeLocal(tunnel);
+			} catch (IOException e) {
+				close(tunnel);
+			}
+		}
+	}
+
+	private static final class Listener {
+		final PortForwardBean bean;
+		final ServerSocketChannel server;
+		final boolean dynamic;
+
+		Listener(PortForwardBean bean, ServerSocketChannel server, boolean dynamic) {
+			this.bean = bean;
+			this.server = server;
+			this.dynamic = dynamic;
+		}
+	}
+
+	/**
+	 * One accepted connection and its channel. Both buffers are kept ready
+	 * for filling; whoever drains one flips and compacts it while holding
+	 * the tunnel's lock.
+	 */
+	private static final class Tunnel {
+		final Listener listener;
+		final SocketChannel socket;
+		final ByteBuffer toRemote;
+		final ByteBuffer toLocal;
+		final long opened = System.currentTimeMillis();
+
+		SelectionKey key;
+		LocalStreamForwarder forwarder;
+		OutputStream out;
+
+		/** the SOCKS request of a dynamic forward, null otherwise */
+		SocksRequest socks;
+		/** still reading the SOCKS request; only touched on the selector thread */
+		boolean negotiating;
+		/** counted as an open connection on the forward */
+		boolean counted;
+
+		boolean localEof;
+		boolean remoteEof;
+		boolean remoteOutClosed;
+		boolean localOutShut;
+		boolean closed;
+
+		long sent;
+		long received;
+
+		Tunnel(Listener listener, SocketChannel socket, ByteBuffer toRemote, ByteBuffer toLocal) {
+			this.listener = listener;
+			this.socket = socket;
+			this.toRemote = toRemote;
+			this.toLocal = toLocal;
+		}
+
+		@Override
+		public String toString() {
+			return listener.bean.getNickname() + " " + socket.socket().getRemoteSocketAddress();
+		}
+	}
+
+	/**
+	 * Direct buffers are expensive to allocate and slow to be collected, so
+	 * the ones of closed tunnels are kept for the next.
+	 */
+	static final class BufferPool {
+		private final int size;
+		private final int max;
+		private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+		BufferPool(int size, int max) {
+			this.size = size;
+			this.max = max;
+		}
+
+		synchronized ByteBuffer acquire() {
+			ByteBuffer buffer = free.poll();
+			if (buffer == null)
+				buffer = ByteBuffer.allocateDirect(size);
+			return buffer;
+		}
+
+		synchronized void release(ByteBuffer buffer) {
+			buffer.clear();
+			if (free.size() < max)
+				free.push(buffer);
+		}
+	}
+}
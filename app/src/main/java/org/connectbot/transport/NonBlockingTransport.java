@@ -0,0 +1,44 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * A transport whose input can be waited for with a
+ * {@link java.nio.channels.Selector}, so that one thread can read many
+ * sessions.
+ */
+public interface NonBlockingTransport {
+	/**
+	 * Switches reading to non-blocking. Afterwards only
+	 * {@link #readNonBlocking(byte[], int, int)} may be used to read.
+	 * @return the channel to wait on, or null if not connected
+	 * @throws IOException when the channel could not be switched
+	 */
+	SelectableChannel enableNonBlocking() throws IOException;
+
+	/**
+	 * Reads what has arrived without waiting for more, once
+	 * {@link #enableNonBlocking()} returned a channel.
+	 * @return number of bytes read, 0 if nothing is ready
+	 * @throws IOException when remote host disconnects
+	 */
+	int readNonBlocking(byte[] buffer, int offset, int length) throws IOException;
+}
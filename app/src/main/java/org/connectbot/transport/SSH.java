@@ -22,17 +22,12 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.interfaces.DSAPrivateKey;
-import java.security.interfaces.DSAPublicKey;
-import java.security.interfaces.ECPrivateKey;
-import java.security.interfaces.ECPublicKey;
-import java.security.interfaces.RSAPrivateKey;
-import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
 import java.util.ArrayList;
@@ -44,8 +39,6 @@ import java.util.Map.Entry;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.trilead.ssh2.crypto.keys.Ed25519PrivateKey;
-import com.trilead.ssh2.crypto.keys.Ed25519PublicKey;
 import com.trilead.ssh2.crypto.keys.Ed25519Provider;
 
 import org.connectbot.SecurityKeySignatureProxy;
@@ -69,17 +62,12 @@ import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.ConnectionInfo;
 import com.trilead.ssh2.ConnectionMonitor;
-import com.trilead.ssh2.DynamicPortForwarder;
 import com.trilead.ssh2.ExtendedServerHostKeyVerifier;
 import com.trilead.ssh2.InteractiveCallback;
+import com.trilead.ssh2.ProxyData;
 import com.trilead.ssh2.KnownHosts;
-import com.trilead.ssh2.LocalPortForwarder;
 import com.trilead.ssh2.Session;
 import com.trilead.ssh2.crypto.PEMDecoder;
-import com.trilead.ssh2.signature.DSASHA1Verify;
-import com.trilead.ssh2.signature.ECDSASHA2Verify;
-import com.trilead.ssh2.signature.Ed25519Verify;
-import com.trilead.ssh2.signature.RSASHA1Verify;
 
 /**
  * @author Kenny Root
@@ -113,6 +101,9 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			"^(.+)@(([0-9a-z.-]+)|(\\[[a-f:0-9]+\\]))(:(\\d+))?$", Pattern.CASE_INSENSITIVE);
 
 	private boolean compression = false;
+	private boolean compressing = false;
+	private boolean reused = false;
+	private CompressionAdvisor.Meter meter;
 	private volatile boolean authenticated = false;
 	private volatile boolean connected = false;
 	private volatile boolean sessionOpen = false;
@@ -121,12 +112,27 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	private boolean interactiveCanContinue = true;
 
 	private Connection connection;
+	private LocalForwardEngine forwardEngine;
+	/** the connection this session is on; taken by close() under sharedLock */
+	private volatile SharedConnection shared;
+	private final Object sharedLock = new Object();
+	private String account;
+	private String connectionKey;
 	private Session session;
 
 	private OutputStream stdin;
 	private InputStream stdout;
 	private InputStream stderr;
 
+	/** whether error output is shown in the terminal rather than dropped */
+	private boolean mergeStderr = false;
+	private final byte[] discard = new byte[1024];
+
+	private volatile boolean pingInFlight = false;
+
+	private volatile long stdoutBytes = 0;
+	private volatile long stderrBytes = 0;
+
 	private static final int conditions = ChannelCondition.STDOUT_DATA
 		| ChannelCondition.STDERR_DATA
 		| ChannelCondition.CLOSED
@@ -143,6 +149,8 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	private String useAuthAgent = HostDatabase.AUTHAGENT_NO;
 	private String agentLockPassphrase;
 
+	private final HostKeyVerifier hostKeyVerifier = new HostKeyVerifier();
+
 	public class HostKeyVerifier extends ExtendedServerHostKeyVerifier {
 		@Override
 		public boolean verifyServerHostKey(String hostname, int port,
@@ -263,6 +271,7 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 					// try each of the in-memory keys
 					bridge.outputLine(manager.res
 							.getString(R.string.terminal_auth_pubkey_any));
+					manager.awaitStartKeys();
 					for (Entry<String, KeyHolder> entry : manager.loadedKeypairs.entrySet()) {
 						if (entry.getValue().bean.isConfirmUse()
 								&& !promptForPubkeyUse(entry.getKey()))
@@ -345,7 +354,7 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	private boolean tryPublicKey(PubkeyBean pubkey) throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
 		KeyPair pair = null;
 
-		if (manager.isKeyLoaded(pubkey.getNickname())) {
+		if (manager.awaitStartKey(pubkey.getNickname())) {
 			// load this key from memory if its already there
 			Log.d(TAG, String.format("Found unlocked key '%s' already in-memory", pubkey.getNickname()));
 
@@ -375,7 +384,7 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 				PrivateKey privKey;
 				try {
 					privKey = PubkeyUtils.decodePrivate(pubkey.getPrivateKey(),
-							pubkey.getType(), password);
+							pubkey.getType(), password, pubkey.getKdf());
 				} catch (Exception e) {
 					String message = String.format("Bad password for key '%s'. Authentication failed.", pubkey.getNickname());
 					Log.e(TAG, message, e);
@@ -388,6 +397,9 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 				// convert key to trilead format
 				pair = new KeyPair(pubKey, privKey);
 				Log.d(TAG, "Unlocked key " + PubkeyUtils.formatKey(pubKey));
+
+				if (password != null)
+					upgradeEncryption(pubkey, privKey, password);
 			}
 
 			Log.d(TAG, String.format("Unlocked key '%s'", pubkey.getNickname()));
@@ -399,6 +411,23 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		return tryPublicKey(host.getUsername(), pubkey.getNickname(), pair);
 	}
 
+	/**
+	 * Store a key just unlocked in the current encrypted format if it is
+	 * still in an older one, without holding up authentication.
+	 */
+	private void upgradeEncryption(final PubkeyBean pubkey, final PrivateKey privKey, final String password) {
+		if (pubkey.getKdf() == PubkeyUtils.KDF_CURRENT)
+			return;
+
+		final PubkeyDatabase pubkeydb = manager.pubkeydb;
+		manager.executor.execute("UpgradeKey", new Runnable() {
+			@Override
+			public void run() {
+				pubkeydb.upgradeEncryption(pubkey, privKey, password);
+			}
+		});
+	}
+
 	private boolean tryPublicKey(String username, String keyNickname, KeyPair pair) throws IOException {
 		//bridge.outputLine(String.format("Attempting 'publickey' with key '%s' [%s]...", keyNickname, trileadKey.toString()));
 		boolean success = connection.authenticateWithPublicKey(username, pair);
@@ -413,6 +442,10 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	 */
 	private void finishConnection() {
 		authenticated = true;
+		onHeard();
+
+		// let other tabs to the same account open their sessions on this connection
+		manager.shareConnection(connectionKey, shared);
 
 		for (PortForwardBean portForward : portForwards) {
 			try {
@@ -432,8 +465,12 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		try {
 			session = connection.openSession();
 
-			if (!useAuthAgent.equals(HostDatabase.AUTHAGENT_NO))
-				session.requestAuthAgentForwarding(this);
+			if (!useAuthAgent.equals(HostDatabase.AUTHAGENT_NO)) {
+				// the library keeps one agent per connection; the shared
+				// connection passes its requests on to a session still open
+				shared.addAuthAgent(this);
+				session.requestAuthAgentForwarding(shared);
+			}
 
 			session.requestPTY(getEmulation(), columns, rows, width, height, null);
 			session.startShell();
@@ -441,6 +478,11 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			stdin = session.getStdin();
 			stdout = session.getStdout();
 			stderr = session.getStderr();
+			mergeStderr = manager.isStderrMerged();
+
+			// measure the link if this session set up the connection
+			if (!reused)
+				meter = new CompressionAdvisor.Meter(now());
 
 			sessionOpen = true;
 
@@ -451,13 +493,68 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 
 	}
 
+	/**
+	 * Key under which a connection is shared between sessions. Besides the
+	 * account it holds every host setting that is fixed once the connection
+	 * is set up, so a host only reuses a connection that was made the way it
+	 * would have made it itself.
+	 */
+	static String getConnectionKey(HostBean host) {
+		return String.format(Locale.US, "%s@%s:%d compression=%b agent=%s keys=%b pubkey=%d",
+				host.getUsername(), host.getHostname(), host.getPort(), host.getCompression(),
+				host.getUseAuthAgent(), host.getUseKeys(), host.getPubkeyId());
+	}
+
 	@Override
 	public void connect() {
+		account = String.format(Locale.US, "%s@%s:%d",
+				host.getUsername(), host.getHostname(), host.getPort());
+		connectionKey = getConnectionKey(host);
+
+		shared = manager.acquireConnection(connectionKey);
+		if (shared != null) {
+			// already authenticated; only the session needs to be opened
+			connection = shared.getConnection();
+			shared.addConnectionMonitor(this);
+			shared.addHostKeyVerifier(hostKeyVerifier);
+			connected = true;
+			reused = true;
+
+			bridge.outputLine(manager.res.getString(R.string.terminal_reusing_connection, account));
+			finishConnection();
+			return;
+		}
+
 		connection = new Connection(host.getHostname(), host.getPort());
-		connection.addConnectionMonitor(this);
+		final SharedConnection shared = new SharedConnection(connection);
+		shared.addConnectionMonitor(this);
+		shared.addHostKeyVerifier(hostKeyVerifier);
+		this.shared = shared;
+
+		// race the host's addresses instead of letting the library try one
+		connection.setProxyData(new ProxyData() {
+			@Override
+			public Socket openConnection(String hostname, int port, int connectTimeout) throws IOException {
+				HappyEyeballs.Result<Socket> result = HappyEyeballs.connect(hostname, port,
+						HappyEyeballs.socketConnector(connectTimeout));
+				onConnectAttempts(result);
+				shared.setSocket(result.connection);
+				return result.connection;
+			}
+		});
+
+		compressing = compression;
+		if (!compression && manager.isCompressionAutomatic()) {
+			CompressionAdvisor.LinkStats stats = manager.compressionAdvisor.getStats(account);
+			compressing = CompressionAdvisor.decide(stats);
+			if (stats.rtt >= 0 || stats.plainRate >= 0 || stats.compressedRate >= 0)
+				bridge.outputLine(manager.res.getString(compressing
+						? R.string.terminal_compression_auto_on
+						: R.string.terminal_compression_auto_off, stats));
+		}
 
 		try {
-			connection.setCompression(compression);
+			connection.setCompression(compressing);
 		} catch (IOException e) {
 			Log.e(TAG, "Could not enable compression!", e);
 		}
@@ -474,7 +571,7 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			Logger.enabled = true;
 			Logger.logger = logger;
 			*/
-			ConnectionInfo connectionInfo = connection.connect(new HostKeyVerifier());
+			ConnectionInfo connectionInfo = connection.connect(shared.getHostKeyVerifier());
 			connected = true;
 
 			bridge.outputLine(manager.res.getString(R.string.terminal_kex_algorithm,
@@ -530,21 +627,88 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	public void close() {
 		connected = false;
 
+		recordLinkStats();
+
 		if (session != null) {
 			session.close();
 			session = null;
 		}
 
-		if (connection != null) {
-			connection.close();
+		// a disconnect and an abandon may close at once; only one releases
+		SharedConnection shared;
+		synchronized (sharedLock) {
+			shared = this.shared;
+			this.shared = null;
+		}
+
+		if (shared != null) {
+			shared.removeConnectionMonitor(this);
+			shared.removeHostKeyVerifier(hostKeyVerifier);
+			shared.removeAuthAgent(this);
+			if (manager.releaseConnection(connectionKey, shared) && shared.isUsable()) {
+				// the connection lives on for other sessions, so take our forwards down
+				for (PortForwardBean portForward : portForwards) {
+					if (portForward.isEnabled())
+						disablePortForward(portForward);
+				}
+			}
 			connection = null;
 		}
+
+		if (forwardEngine != null) {
+			forwardEngine.close();
+			forwardEngine = null;
+		}
 	}
 
 	private void onDisconnect() {
 		bridge.dispatchDisconnect(false);
 	}
 
+	@Override
+	public void abandon() {
+		// Drop the socket before anything that needs the Connection's lock,
+		// which a stuck keep-alive may be holding. The other sessions on this
+		// connection are stuck as well and are told it was lost.
+		SharedConnection dead = shared;
+		if (dead != null)
+			dead.abandon();
+		close();
+	}
+
+	/**
+	 * Sends a global request that the server has to answer, like OpenSSH's
+	 * keepalive@openssh.com. The library blocks until the answer arrives,
+	 * so it is waited for on a thread of its own. No new probe is sent while
+	 * one is outstanding; the KeepAliveMonitor counts the missed answers,
+	 * and abandon() closes the socket, which ends the stuck call.
+	 */
+	@Override
+	public boolean sendKeepAlive() throws IOException {
+		final Connection connection = this.connection;
+		if (connection == null || !authenticated)
+			return false;
+
+		if (pingInFlight)
+			return true;
+		pingInFlight = true;
+
+		manager.executor.start("KeepAlive", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connection.ping();
+					onHeard();
+				} catch (IOException e) {
+					Log.d(TAG, "Keep-alive failed", e);
+				} finally {
+					pingInFlight = false;
+				}
+			}
+		});
+		return true;
+	}
+
 	@Override
 	public void flush() throws IOException {
 		if (stdin != null)
@@ -556,22 +720,36 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		int bytesRead = 0;
 
 		if (session == null)
-			return 0;
+			throw new IOException("Session closed");
 
-		int newConditions = session.waitForCondition(conditions, 0);
+		// only sleep on the channel when nothing is buffered yet
+		int newConditions = 0;
+		if (stdout.available() == 0 && stderr.available() == 0)
+			newConditions = session.waitForCondition(conditions, 0);
 
-		if ((newConditions & ChannelCondition.STDOUT_DATA) != 0) {
+		// a wakeup can bring data on both streams; take whatever is there
+		if (stdout.available() > 0) {
 			bytesRead = stdout.read(buffer, start, len);
+			stdoutBytes += bytesRead;
+			onHeard();
+
+			if (meter != null && meter.onRead(bytesRead, now()))
+				recordLinkStats();
 		}
 
-		if ((newConditions & ChannelCondition.STDERR_DATA) != 0) {
-			byte[] discard = new byte[256];
-			while (stderr.available() > 0) {
-				stderr.read(discard);
+		// error output to show is left for readErrorOutput()
+		int available;
+		if (!mergeStderr) {
+			while ((available = stderr.available()) > 0) {
+				stderrBytes += stderr.read(discard, 0, Math.min(available, discard.length));
+				onHeard();
 			}
 		}
 
-		if ((newConditions & ChannelCondition.EOF) != 0) {
+		// hand over what was read first, error output to show included; the
+		// end is seen again on the next call
+		if (bytesRead == 0 && (newConditions & (ChannelCondition.EOF | ChannelCondition.CLOSED)) != 0
+				&& (!mergeStderr || stderr.available() == 0)) {
 			close();
 			onDisconnect();
 			throw new IOException("Remote end closed connection");
@@ -580,6 +758,56 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		return bytesRead;
 	}
 
+	/**
+	 * Remember how the link did for choosing compression next time.
+	 */
+	private void recordLinkStats() {
+		CompressionAdvisor.Meter meter = this.meter;
+		if (meter == null || !meter.finish())
+			return;
+
+		long rtt = -1;
+		for (HappyEyeballs.Attempt attempt : getConnectAttempts()) {
+			if (attempt.isConnected())
+				rtt = attempt.duration;
+		}
+
+		long rate = meter.getRate();
+		Log.d(TAG, String.format(Locale.US, "Link to %s: rtt %d ms, %s, compression %b",
+				account, rtt, CompressionAdvisor.formatRate(rate), compressing));
+		manager.compressionAdvisor.record(account, compressing, rtt, rate);
+	}
+
+	@Override
+	public int readErrorOutput(byte[] buffer, int start, int len) throws IOException {
+		InputStream stderr = this.stderr;
+		if (!mergeStderr || stderr == null)
+			return 0;
+
+		int available = stderr.available();
+		if (available == 0)
+			return 0;
+
+		int n = stderr.read(buffer, start, Math.min(available, len));
+		stderrBytes += n;
+		onHeard();
+		return n;
+	}
+
+	/**
+	 * @return bytes received on the session's standard output
+	 */
+	public long getStdoutBytes() {
+		return stdoutBytes;
+	}
+
+	/**
+	 * @return bytes received on the session's error output, shown or not
+	 */
+	public long getStderrBytes() {
+		return stderrBytes;
+	}
+
 	@Override
 	public void write(byte[] buffer) throws IOException {
 		if (stdin != null)
@@ -623,7 +851,11 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 
 	@Override
 	public void connectionLost(Throwable reason) {
-		onDisconnect();
+		SharedConnection shared = this.shared;
+		if (shared != null && shared.isAbandoned())
+			bridge.onConnectionDead();
+		else
+			onDisconnect();
 	}
 
 	@Override
@@ -660,22 +892,17 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			return false;
 
 		if (HostDatabase.PORTFORWARD_LOCAL.equals(portForward.getType())) {
-			LocalPortForwarder lpf = null;
 			try {
-				lpf = connection.createLocalPortForwarder(
-						new InetSocketAddress(InetAddress.getLocalHost(), portForward.getSourcePort()),
-						portForward.getDestAddr(), portForward.getDestPort());
+				if (forwardEngine == null)
+					forwardEngine = new LocalForwardEngine(connection);
+				forwardEngine.add(portForward,
+						new InetSocketAddress(InetAddress.getLocalHost(), portForward.getSourcePort()));
 			} catch (Exception e) {
 				Log.e(TAG, "Could not create local port forward", e);
 				return false;
 			}
 
-			if (lpf == null) {
-				Log.e(TAG, "returned LocalPortForwarder object is null");
-				return false;
-			}
-
-			portForward.setIdentifier(lpf);
+			portForward.setIdentifier(forwardEngine);
 			portForward.setEnabled(true);
 			return true;
 		} else if (HostDatabase.PORTFORWARD_REMOTE.equals(portForward.getType())) {
@@ -689,17 +916,17 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			portForward.setEnabled(true);
 			return true;
 		} else if (HostDatabase.PORTFORWARD_DYNAMIC5.equals(portForward.getType())) {
-			DynamicPortForwarder dpf = null;
-
 			try {
-				dpf = connection.createDynamicPortForwarder(
+				if (forwardEngine == null)
+					forwardEngine = new LocalForwardEngine(connection);
+				forwardEngine.add(portForward,
 						new InetSocketAddress(InetAddress.getLocalHost(), portForward.getSourcePort()));
 			} catch (Exception e) {
 				Log.e(TAG, "Could not create dynamic port forward", e);
 				return false;
 			}
 
-			portForward.setIdentifier(dpf);
+			portForward.setIdentifier(forwardEngine);
 			portForward.setEnabled(true);
 			return true;
 		} else {
@@ -720,17 +947,16 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 			return false;
 
 		if (HostDatabase.PORTFORWARD_LOCAL.equals(portForward.getType())) {
-			LocalPortForwarder lpf = null;
-			lpf = (LocalPortForwarder) portForward.getIdentifier();
+			LocalForwardEngine engine = (LocalForwardEngine) portForward.getIdentifier();
 
-			if (!portForward.isEnabled() || lpf == null) {
+			if (!portForward.isEnabled() || engine == null) {
 				Log.d(TAG, String.format("Could not disable %s; it appears to be not enabled or have no handler", portForward.getNickname()));
 				return false;
 			}
 
 			portForward.setEnabled(false);
 
-			lpf.close();
+			engine.remove(portForward);
 
 			return true;
 		} else if (HostDatabase.PORTFORWARD_REMOTE.equals(portForward.getType())) {
@@ -745,17 +971,16 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 
 			return true;
 		} else if (HostDatabase.PORTFORWARD_DYNAMIC5.equals(portForward.getType())) {
-			DynamicPortForwarder dpf;
-			dpf = (DynamicPortForwarder) portForward.getIdentifier();
+			LocalForwardEngine engine = (LocalForwardEngine) portForward.getIdentifier();
 
-			if (!portForward.isEnabled() || dpf == null) {
+			if (!portForward.isEnabled() || engine == null) {
 				Log.d(TAG, String.format("Could not disable %s; it appears to be not enabled or have no handler", portForward.getNickname()));
 				return false;
 			}
 
 			portForward.setEnabled(false);
 
-			dpf.close();
+			engine.remove(portForward);
 
 			return true;
 		} else {
@@ -903,31 +1128,8 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 
 	@Override
 	public Map<String, byte[]> retrieveIdentities() {
-		Map<String, byte[]> pubKeys = new HashMap<>(manager.loadedKeypairs.size());
-
-		for (Entry<String, KeyHolder> entry : manager.loadedKeypairs.entrySet()) {
-			KeyPair pair = entry.getValue().pair;
-
-			try {
-				PrivateKey privKey = pair.getPrivate();
-				if (privKey instanceof RSAPrivateKey) {
-					RSAPublicKey pubkey = (RSAPublicKey) pair.getPublic();
-					pubKeys.put(entry.getKey(), RSASHA1Verify.get().encodePublicKey(pubkey));
-				} else if (privKey instanceof DSAPrivateKey) {
-					DSAPublicKey pubkey = (DSAPublicKey) pair.getPublic();
-					pubKeys.put(entry.getKey(), DSASHA1Verify.get().encodePublicKey(pubkey));
-				} else if (privKey instanceof ECPrivateKey) {
-					ECPublicKey pubkey = (ECPublicKey) pair.getPublic();
-					pubKeys.put(entry.getKey(), ECDSASHA2Verify.getVerifierForKey(pubkey).encodePublicKey(pubkey));
-				} else if (privKey instanceof Ed25519PrivateKey) {
-					Ed25519PublicKey pubkey = (Ed25519PublicKey) pair.getPublic();
-					pubKeys.put(entry.getKey(), Ed25519Verify.get().encodePublicKey(pubkey));
-				}
-			} catch (IOException ignored) {
-			}
-		}
-
-		return pubKeys;
+		manager.awaitStartKeys();
+		return manager.getAgentIdentities().getIdentities();
 	}
 
 	@Override
@@ -966,7 +1168,7 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 
 	@Override
 	public boolean removeAllIdentities() {
-		manager.loadedKeypairs.clear();
+		manager.removeAllKeys();
 		return true;
 	}
 
@@ -0,0 +1,258 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.trilead.ssh2.AuthAgentCallback;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.ExtendedServerHostKeyVerifier;
+
+/**
+ * An SSH {@link Connection} that can carry the sessions of several bridges.
+ * The connection is reference counted by
+ * {@link org.connectbot.service.TerminalManager} and only closed when the
+ * last session using it lets go. Loss of the connection is passed on to
+ * every session that is using it.
+ * <p>
+ * The library keeps one host key verifier and one agent per connection, so
+ * the connection registers itself and passes each call on to the session
+ * that joined last and is still open.
+ */
+public final class SharedConnection implements ConnectionMonitor, AuthAgentCallback {
+	private final Connection connection;
+	private final List<ConnectionMonitor> monitors = new CopyOnWriteArrayList<>();
+	private final List<ExtendedServerHostKeyVerifier> verifiers = new CopyOnWriteArrayList<>();
+	private final List<AuthAgentCallback> agents = new CopyOnWriteArrayList<>();
+
+	private volatile Socket socket;
+
+	private int refs = 1;
+	private volatile boolean lost = false;
+	private volatile boolean abandoned = false;
+
+	public SharedConnection(Connection connection) {
+		this.connection = connection;
+		connection.addConnectionMonitor(this);
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Remember the socket the connection runs over, so {@link #abandon()}
+	 * can close it without waiting for the connection.
+	 */
+	public void setSocket(Socket socket) {
+		this.socket = socket;
+	}
+
+	public void addConnectionMonitor(ConnectionMonitor monitor) {
+		monitors.add(monitor);
+	}
+
+	public void removeConnectionMonitor(ConnectionMonitor monitor) {
+		monitors.remove(monitor);
+	}
+
+	public void addHostKeyVerifier(ExtendedServerHostKeyVerifier verifier) {
+		verifiers.add(verifier);
+	}
+
+	public void removeHostKeyVerifier(ExtendedServerHostKeyVerifier verifier) {
+		verifiers.remove(verifier);
+	}
+
+	/**
+	 * @return the verifier to hand to the library, which also checks the
+	 *         host key again on every key exchange
+	 */
+	public ExtendedServerHostKeyVerifier getHostKeyVerifier() {
+		return hostKeyVerifier;
+	}
+
+	public void addAuthAgent(AuthAgentCallback agent) {
+		agents.add(agent);
+	}
+
+	public void removeAuthAgent(AuthAgentCallback agent) {
+		agents.remove(agent);
+	}
+
+	/**
+	 * @return the most recently added of the callbacks, or null if none is left
+	 */
+	private static <T> T current(List<T> callbacks) {
+		// copy-on-write: the snapshot cannot change under us
+		Object[] snapshot = callbacks.toArray();
+		if (snapshot.length == 0)
+			return null;
+		@SuppressWarnings("unchecked")
+		T last = (T) snapshot[snapshot.length - 1];
+		return last;
+	}
+
+	/**
+	 * @return whether new sessions may still be opened on this connection
+	 */
+	public boolean isUsable() {
+		return !lost && connection.isAuthenticationComplete();
+	}
+
+	/**
+	 * Take another reference. Callers must hold the registry lock.
+	 */
+	public synchronized void retain() {
+		refs++;
+	}
+
+	/**
+	 * Drop a reference. Callers must hold the registry lock.
+	 * @return number of references left
+	 */
+	public synchronized int release() {
+		return --refs;
+	}
+
+	public void close() {
+		connection.close();
+	}
+
+	/**
+	 * Give up on a connection that stopped answering. The sessions still on
+	 * it are told the connection was lost.
+	 */
+	public void abandon() {
+		abandoned = true;
+		lost = true;
+
+		// A keep-alive stuck on the dead peer holds the Connection's lock until
+		// the TCP timeout, and close() needs that lock too. Closing the socket
+		// underneath fails the stuck call, which lets go of the lock.
+		Socket socket = this.socket;
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+		connection.close();
+	}
+
+	/**
+	 * @return whether the connection was closed because it stopped answering
+	 */
+	public boolean isAbandoned() {
+		return abandoned;
+	}
+
+	@Override
+	public void connectionLost(Throwable reason) {
+		lost = true;
+		for (ConnectionMonitor monitor : monitors) {
+			monitor.connectionLost(reason);
+		}
+	}
+
+	private final ExtendedServerHostKeyVerifier hostKeyVerifier = new ExtendedServerHostKeyVerifier() {
+		@Override
+		public boolean verifyServerHostKey(String hostname, int port,
+				String serverHostKeyAlgorithm, byte[] serverHostKey) throws Exception {
+			ExtendedServerHostKeyVerifier verifier = current(verifiers);
+			return verifier != null
+					&& verifier.verifyServerHostKey(hostname, port, serverHostKeyAlgorithm, serverHostKey);
+		}
+
+		@Override
+		public List<String> getKnownKeyAlgorithmsForHost(String host, int port) {
+			ExtendedServerHostKeyVerifier verifier = current(verifiers);
+			return verifier != null ? verifier.getKnownKeyAlgorithmsForHost(host, port) : null;
+		}
+
+		@Override
+		public void removeServerHostKey(String host, int port, String algorithm, byte[] hostKey) {
+			ExtendedServerHostKeyVerifier verifier = current(verifiers);
+			if (verifier != null)
+				verifier.removeServerHostKey(host, port, algorithm, hostKey);
+		}
+
+		@Override
+		public void addServerHostKey(String host, int port, String algorithm, byte[] hostKey) {
+			ExtendedServerHostKeyVerifier verifier = current(verifiers);
+			if (verifier != null)
+				verifier.addServerHostKey(host, port, algorithm, hostKey);
+		}
+	};
+
+	@Override
+	public Map<String, byte[]> retrieveIdentities() {
+		AuthAgentCallback agent = current(agents);
+		return agent != null ? agent.retrieveIdentities() : Collections.<String, byte[]>emptyMap();
+	}
+
+	@Override
+	public boolean addIdentity(KeyPair pair, String comment, boolean confirmUse, int lifetime) {
+		AuthAgentCallback agent = current(agents);
+		return agent != null && agent.addIdentity(pair, comment, confirmUse, lifetime);
+	}
+
+	@Override
+	public boolean removeIdentity(byte[] publicKey) {
+		AuthAgentCallback agent = current(agents);
+		return agent != null && agent.removeIdentity(publicKey);
+	}
+
+	@Override
+	public boolean removeAllIdentities() {
+		AuthAgentCallback agent = current(agents);
+		return agent != null && agent.removeAllIdentities();
+	}
+
+	@Override
+	public KeyPair getKeyPair(byte[] publicKey) {
+		AuthAgentCallback agent = current(agents);
+		return agent != null ? agent.getKeyPair(publicKey) : null;
+	}
+
+	@Override
+	public boolean isAgentLocked() {
+		// with nobody left to ask, nothing is handed out
+		AuthAgentCallback agent = current(agents);
+		return agent == null || agent.isAgentLocked();
+	}
+
+	@Override
+	public boolean requestAgentUnlock(String unlockPassphrase) {
+		AuthAgentCallback agent = current(agents);
+		return agent != null && agent.requestAgentUnlock(unlockPassphrase);
+	}
+
+	@Override
+	public boolean setAgentLock(String lockPassphrase) {
+		AuthAgentCallback agent = current(agents);
+		return agent != null && agent.setAgentLock(lockPassphrase);
+	}
+}
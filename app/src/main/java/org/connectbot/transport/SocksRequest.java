@@ -0,0 +1,206 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The server side of a SOCKS 4, 4a or 5 handshake, as far as a CONNECT
+ * request without authentication. Input is fed in as it arrives, so the
+ * handshake can run on a non-blocking socket.
+ */
+final class SocksRequest {
+	private static final int SOCKS4 = 4;
+	private static final int SOCKS5 = 5;
+
+	private static final int CMD_CONNECT = 1;
+
+	private static final int ATYP_IPV4 = 1;
+	private static final int ATYP_DOMAIN = 3;
+	private static final int ATYP_IPV6 = 4;
+
+	private int version = 0;
+	private boolean greeted = false;
+	private boolean complete = false;
+
+	private String host;
+	private int port;
+
+	/**
+	 * Consume as much of the handshake as has arrived. Bytes after the
+	 * request are left in place; they belong to the connection.
+	 * @param in what was read from the client, ready for reading
+	 * @param out where to put answers to the client
+	 * @return whether the request is complete
+	 * @throws IOException if the client does not speak a supported SOCKS
+	 */
+	boolean read(ByteBuffer in, ByteBuffer out) throws IOException {
+		while (!complete && in.hasRemaining()) {
+			int start = in.position();
+			boolean consumed;
+			try {
+				consumed = step(in, out);
+			} catch (BufferUnderflowException e) {
+				consumed = false;
+			}
+			if (!consumed) {
+				in.position(start);
+				break;
+			}
+		}
+		return complete;
+	}
+
+	private boolean step(ByteBuffer in, ByteBuffer out) throws IOException {
+		if (version == 0) {
+			version = in.get(in.position()) & 0xff;
+			if (version != SOCKS4 && version != SOCKS5)
+				throw new IOException("Unsupported SOCKS version " + version);
+		}
+
+		if (version == SOCKS4)
+			return readSocks4(in);
+
+		if (!greeted)
+			return readGreeting(in, out);
+		return readSocks5(in);
+	}
+
+	private boolean readSocks4(ByteBuffer in) throws IOException {
+		in.get();
+		if (in.get() != CMD_CONNECT)
+			throw new IOException("Only SOCKS CONNECT is supported");
+		int port = in.getShort() & 0xffff;
+		byte[] ip = new byte[4];
+		in.get(ip);
+		if (readString(in) == null)
+			return false;
+
+		String host;
+		if (ip[0] == 0 && ip[1] == 0 && ip[2] == 0 && ip[3] != 0) {
+			// SOCKS 4a: the name follows the user
+			host = readString(in);
+			if (host == null)
+				return false;
+		} else {
+			host = InetAddress.getByAddress(ip).getHostAddress();
+		}
+
+		finish(host, port);
+		return true;
+	}
+
+	private boolean readGreeting(ByteBuffer in, ByteBuffer out) throws IOException {
+		in.get();
+		int count = in.get() & 0xff;
+		boolean noAuth = false;
+		for (int i = 0; i < count; i++) {
+			if (in.get() == 0)
+				noAuth = true;
+		}
+		if (!noAuth)
+			throw new IOException("SOCKS client requires authentication");
+
+		out.put(new byte[] { SOCKS5, 0 });
+		greeted = true;
+		return true;
+	}
+
+	private boolean readSocks5(ByteBuffer in) throws IOException {
+		in.get();
+		int command = in.get();
+		in.get();
+		int type = in.get();
+
+		String host;
+		switch (type) {
+		case ATYP_IPV4:
+			host = readAddress(in, 4);
+			break;
+		case ATYP_IPV6:
+			host = readAddress(in, 16);
+			break;
+		case ATYP_DOMAIN:
+			byte[] name = new byte[in.get() & 0xff];
+			in.get(name);
+			host = new String(name, "US-ASCII");
+			break;
+		default:
+			throw new IOException("Unsupported SOCKS address type " + type);
+		}
+		int port = in.getShort() & 0xffff;
+
+		if (command != CMD_CONNECT)
+			throw new IOException("Only SOCKS CONNECT is supported");
+
+		finish(host, port);
+		return true;
+	}
+
+	private static String readAddress(ByteBuffer in, int length) throws UnknownHostException {
+		byte[] address = new byte[length];
+		in.get(address);
+		return InetAddress.getByAddress(address).getHostAddress();
+	}
+
+	/**
+	 * @return a NUL terminated string, or null if the NUL has not arrived
+	 */
+	private static String readString(ByteBuffer in) throws IOException {
+		int start = in.position();
+		for (int i = start; i < in.limit(); i++) {
+			if (in.get(i) == 0) {
+				byte[] value = new byte[i - start];
+				in.get(value);
+				in.get();
+				return new String(value, "US-ASCII");
+			}
+		}
+		return null;
+	}
+
+	private void finish(String host, int port) {
+		this.host = host;
+		this.port = port;
+		complete = true;
+	}
+
+	String getHost() {
+		return host;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	/**
+	 * @param success whether the destination could be reached
+	 * @return the answer to the request
+	 */
+	byte[] reply(boolean success) {
+		if (version == SOCKS4)
+			return new byte[] { 0, (byte) (success ? 0x5a : 0x5b), 0, 0, 0, 0, 0, 0 };
+
+		// general failure; the channel open failure does not say more
+		return new byte[] { SOCKS5, (byte) (success ? 0 : 1), 0, ATYP_IPV4, 0, 0, 0, 0, 0, 0 };
+	}
+}
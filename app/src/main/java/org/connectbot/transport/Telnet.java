@@ -17,15 +17,16 @@
 
 package org.connectbot.transport;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -50,22 +51,58 @@ import de.mud.telnet.TelnetProtocolHandler;
  * @author Kenny Root
  *
  */
-public class Telnet extends AbsTransport {
+public class Telnet extends AbsTransport implements NonBlockingTransport {
 	private static final String TAG = "CB.Telnet";
 	private static final String PROTOCOL = "telnet";
 
 	private static final int DEFAULT_PORT = 23;
 
+	/** size of the buffer outgoing data is collected in before sending */
+	private static final int OUTBUF_SIZE = 4096;
+
 	private TelnetProtocolHandler handler;
-	private Socket socket;
+	private SocketChannel channel;
+
+	/**
+	 * Negotiation replies and user input are collected here so that they go
+	 * out together in one write. Also serves as the lock for writing.
+	 */
+	private final ByteBuffer outbuf = ByteBuffer.allocateDirect(OUTBUF_SIZE);
+
+	/**
+	 * Negotiation replies wait here for the next send. They have a lock of
+	 * their own so that a reader working out replies never waits for a
+	 * send that is stuck on a full socket.
+	 */
+	private final ByteArrayOutputStream replies = new ByteArrayOutputStream();
+
+	private final Runnable sendReplies = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (IOException e) {
+				Log.d(TAG, "Could not send negotiation replies", e);
+			}
+		}
+	};
+
+	/** longest wait for room to send before trying again, in ms */
+	private static final long WRITE_TIMEOUT = 1000;
+
+	/** whether the channel is still in blocking mode; guarded by outbuf */
+	private boolean blocking = true;
+	/** for waiting to send once the channel does not block; guarded by outbuf */
+	private Selector writeSelector;
 
-	private InputStream is;
-	private OutputStream os;
 	private int width;
 	private int height;
 
 	private boolean connected = false;
 
+	/** a timing mark is being sent by a worker */
+	private volatile boolean markInFlight = false;
+
 	static final Pattern hostmask;
 	static {
 		hostmask = Pattern.compile("^([0-9a-z.-]+)(:(\\d+))?$", Pattern.CASE_INSENSITIVE);
@@ -91,11 +128,15 @@ public class Telnet extends AbsTransport {
 				/* EMPTY */
 			}
 
-			/** write data to our back end */
+			/** queue data for our back end, sent by whoever triggered it */
 			@Override
 			public void write(byte[] b) throws IOException {
-				if (os != null)
-					os.write(b);
+				reply(b, 0, b.length);
+			}
+
+			@Override
+			public void write(byte[] b, int offset, int length) throws IOException {
+				reply(b, offset, length);
 			}
 
 			/** sent on IAC EOR (prompt terminator for remote access systems). */
@@ -127,30 +168,39 @@ public class Telnet extends AbsTransport {
 		return PROTOCOL;
 	}
 
-	private static void tryAllAddresses(Socket sock, String host, int port) throws IOException {
-		InetAddress[] addresses = InetAddress.getAllByName(host);
-		for (InetAddress addr : addresses) {
-			try {
-				sock.connect(new InetSocketAddress(addr, port));
-				return;
-			} catch (SocketTimeoutException ignored) {
-			}
-		}
-		throw new SocketTimeoutException("Could not connect; socket timed out");
-	}
-
 	@Override
 	public void connect() {
+		final int bufferSize = manager != null ? manager.getSocketBufferSize() : 0;
+
 		try {
-			socket = new Socket();
+			HappyEyeballs.Result<SocketChannel> result = HappyEyeballs.connect(
+					host.getHostname(), host.getPort(), new HappyEyeballs.Connector<SocketChannel>() {
+				@Override
+				public SocketChannel create() throws IOException {
+					SocketChannel channel = SocketChannel.open();
+
+					// Interactive traffic: don't hold keystrokes back for Nagle. The
+					// receive buffer has to be set before connecting to affect the
+					// window scale.
+					Socket socket = channel.socket();
+					socket.setTcpNoDelay(true);
+					if (bufferSize > 0) {
+						socket.setReceiveBufferSize(bufferSize);
+						socket.setSendBufferSize(bufferSize);
+					}
+					return channel;
+				}
 
-			tryAllAddresses(socket, host.getHostname(), host.getPort());
+				@Override
+				public void connect(SocketChannel channel, InetSocketAddress address) throws IOException {
+					channel.connect(address);
+				}
+			});
+			channel = result.connection;
+			onConnectAttempts(result);
 
 			connected = true;
 
-			is = socket.getInputStream();
-			os = socket.getOutputStream();
-
 			bridge.onConnected();
 		} catch (UnknownHostException e) {
 			Log.d(TAG, "IO Exception connecting to host", e);
@@ -162,18 +212,105 @@ public class Telnet extends AbsTransport {
 	@Override
 	public void close() {
 		connected = false;
-		if (socket != null)
+		if (channel != null)
 			try {
-				socket.close();
-				socket = null;
+				channel.close();
+				channel = null;
 			} catch (IOException e) {
 				Log.d(TAG, "Error closing telnet socket.", e);
 			}
+
+		synchronized (outbuf) {
+			if (writeSelector != null) {
+				try {
+					writeSelector.close();
+				} catch (IOException ignored) {
+				}
+				writeSelector = null;
+			}
+		}
 	}
 
 	@Override
 	public void flush() throws IOException {
-		os.flush();
+		synchronized (outbuf) {
+			send();
+		}
+	}
+
+	/**
+	 * Add data to the output buffer. If it does not fit, what is buffered so
+	 * far is sent first.
+	 */
+	private void queue(byte[] b, int offset, int length) throws IOException {
+		synchronized (outbuf) {
+			while (length > 0) {
+				if (!outbuf.hasRemaining())
+					send();
+				int n = Math.min(length, outbuf.remaining());
+				outbuf.put(b, offset, n);
+				offset += n;
+				length -= n;
+			}
+		}
+	}
+
+	private void reply(byte[] b, int offset, int length) {
+		synchronized (replies) {
+			replies.write(b, offset, length);
+		}
+	}
+
+	/**
+	 * @return the waiting negotiation replies, or null if there are none
+	 */
+	private byte[] takeReplies() {
+		synchronized (replies) {
+			if (replies.size() == 0)
+				return null;
+			byte[] pending = replies.toByteArray();
+			replies.reset();
+			return pending;
+		}
+	}
+
+	/** Send everything in the output buffer with a single write. */
+	private void send() throws IOException {
+		synchronized (outbuf) {
+			byte[] pending = takeReplies();
+			if (pending != null)
+				queue(pending, 0, pending.length);
+
+			if (outbuf.position() == 0)
+				return;
+
+			outbuf.flip();
+			try {
+				SocketChannel channel = this.channel;
+				if (channel != null)
+					while (outbuf.hasRemaining())
+						if (channel.write(outbuf) == 0 && !blocking)
+							awaitWritable(channel);
+			} finally {
+				outbuf.clear();
+			}
+		}
+	}
+
+	/**
+	 * Wait for room in the socket's send buffer once the channel no longer
+	 * blocks on its own.
+	 */
+	private void awaitWritable(SocketChannel channel) throws IOException {
+		if (writeSelector == null)
+			writeSelector = Selector.open();
+		SelectionKey key = channel.register(writeSelector, SelectionKey.OP_WRITE);
+		try {
+			writeSelector.select(WRITE_TIMEOUT);
+		} finally {
+			key.cancel();
+			writeSelector.selectNow();
+		}
 	}
 
 	@Override
@@ -193,39 +330,83 @@ public class Telnet extends AbsTransport {
 
 	@Override
 	public int read(byte[] buffer, int start, int len) throws IOException {
-		/* process all already read bytes */
-		int n = 0;
+		return read(buffer, start, true);
+	}
+
+	@Override
+	public SelectableChannel enableNonBlocking() throws IOException {
+		SocketChannel channel = this.channel;
+		if (channel == null)
+			return null;
+
+		synchronized (outbuf) {
+			channel.configureBlocking(false);
+			blocking = false;
+		}
+		return channel;
+	}
+
+	@Override
+	public int readNonBlocking(byte[] buffer, int start, int len) throws IOException {
+		return read(buffer, start, false);
+	}
+
+	/**
+	 * A reader that must not block leaves sending its replies to a worker,
+	 * which may block on the write.
+	 */
+	private void sendRepliesLater() {
+		boolean pending;
+		synchronized (replies) {
+			pending = replies.size() > 0;
+		}
+		if (pending)
+			manager.executor.start("TelnetReplies", sendReplies);
+	}
+
+	/**
+	 * @param wait whether to wait for data when none has arrived
+	 * @return bytes read, 0 only if not waiting
+	 */
+	private int read(byte[] buffer, int start, boolean wait) throws IOException {
+		int n;
 
-		do {
+		while (true) {
+			/* process all already read bytes, replying to any negotiation */
 			n = handler.negotiate(buffer, start);
+			if (wait)
+				send();
+			else
+				sendRepliesLater();
 			if (n > 0)
 				return n;
-		} while (n == 0);
-
-		while (n <= 0) {
-			do {
-				n = handler.negotiate(buffer, start);
-				if (n > 0)
-					return n;
-			} while (n == 0);
-			n = is.read(buffer, start, len);
-			if (n < 0) {
+			if (n == 0)
+				continue;
+
+			/* nothing left, read straight into the negotiator */
+			SocketChannel channel = this.channel;
+			if (channel == null)
+				throw new IOException("Connection closed.");
+			int fed = handler.inputfeed(channel);
+			if (fed < 0) {
 				bridge.dispatchDisconnect(false);
 				throw new IOException("Remote end closed connection.");
 			}
-
-			handler.inputfeed(buffer, start, n);
-			n = handler.negotiate(buffer, start);
+			if (fed == 0 && !wait)
+				return 0;
+			onHeard();
 		}
-		return n;
 	}
 
 	@Override
 	public void write(byte[] buffer) throws IOException {
 		try {
-			if (os != null)
-				os.write(buffer);
-		} catch (SocketException e) {
+			synchronized (outbuf) {
+				queue(buffer, 0, buffer.length);
+				send();
+			}
+		} catch (IOException e) {
+			// a reset or broken pipe comes from the channel as a plain IOException
 			bridge.dispatchDisconnect(false);
 		}
 	}
@@ -233,17 +414,57 @@ public class Telnet extends AbsTransport {
 	@Override
 	public void write(int c) throws IOException {
 		try {
-			if (os != null)
-				os.write(c);
-		} catch (SocketException e) {
+			synchronized (outbuf) {
+				if (!outbuf.hasRemaining())
+					send();
+				outbuf.put((byte) c);
+				send();
+			}
+		} catch (IOException e) {
 			bridge.dispatchDisconnect(false);
 		}
 	}
 
+	/**
+	 * Sends a timing mark, which the server has to answer. The send may
+	 * block on a full socket or on a paste holding the output buffer, so it
+	 * happens on a thread of its own and never holds up the keep-alive
+	 * timer. No new mark is sent while one is still going out; the
+	 * KeepAliveMonitor counts the missed answers, and abandon() closes the
+	 * channel, which ends the stuck write.
+	 */
+	@Override
+	public boolean sendKeepAlive() throws IOException {
+		if (!connected)
+			return false;
+
+		if (markInFlight)
+			return true;
+		markInFlight = true;
+
+		manager.executor.start("KeepAlive", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					synchronized (outbuf) {
+						handler.sendTimingMark();
+						send();
+					}
+				} catch (IOException e) {
+					bridge.dispatchDisconnect(false);
+				} finally {
+					markInFlight = false;
+				}
+			}
+		});
+		return true;
+	}
+
 	@Override
 	public void setDimensions(int columns, int rows, int width, int height) {
 		try {
 			handler.setWindowSize(columns, rows);
+			flush();
 		} catch (IOException e) {
 			Log.e(TAG, "Couldn't resize remote terminal", e);
 		}
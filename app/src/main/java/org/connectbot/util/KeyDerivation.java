@@ -0,0 +1,122 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * PBKDF2 with HMAC-SHA256 (RFC 8018) for turning passwords into keys.
+ * <p>
+ * Android only offers PBKDF2WithHmacSHA256 from API 26, so it is built here
+ * on HmacSHA256, which every version has.
+ */
+public final class KeyDerivation {
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	/** Fewest rounds ever used, however slow the device. */
+	public static final int MIN_ITERATIONS = 10000;
+
+	/** Most rounds accepted, so a damaged key cannot hang an unlock. */
+	public static final int MAX_ITERATIONS = 1 << 24;
+
+	/** Shortest run that calibration trusts to time the device. */
+	private static final long CALIBRATION_NANOS = 25 * 1000 * 1000L;
+
+	private KeyDerivation() {
+	}
+
+	/**
+	 * Derive a key from a password.
+	 *
+	 * @param password UTF-8 bytes of the password
+	 * @param salt random bytes stored next to what the key protects
+	 * @param iterations rounds of HMAC for each block of output
+	 * @param length bytes of key wanted
+	 */
+	public static byte[] pbkdf2(byte[] password, byte[] salt, int iterations, int length)
+			throws GeneralSecurityException {
+		if (iterations < 1)
+			throw new IllegalArgumentException("iterations must be positive");
+
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		// HMAC pads its key with zeros, so one zero byte stands in for the
+		// empty key that SecretKeySpec refuses
+		mac.init(new SecretKeySpec(password.length == 0 ? new byte[1] : password, MAC_ALGORITHM));
+
+		int macLength = mac.getMacLength();
+		byte[] key = new byte[length];
+		byte[] u = new byte[macLength];
+		byte[] t = new byte[macLength];
+
+		for (int block = 1, offset = 0; offset < length; block++, offset += macLength) {
+			mac.update(salt);
+			mac.update((byte) (block >>> 24));
+			mac.update((byte) (block >>> 16));
+			mac.update((byte) (block >>> 8));
+			mac.update((byte) block);
+			mac.doFinal(u, 0);
+			System.arraycopy(u, 0, t, 0, macLength);
+
+			for (int i = 1; i < iterations; i++) {
+				mac.update(u);
+				mac.doFinal(u, 0);
+				for (int j = 0; j < macLength; j++)
+					t[j] ^= u[j];
+			}
+
+			System.arraycopy(t, 0, key, offset, Math.min(macLength, length - offset));
+		}
+
+		Arrays.fill(u, (byte) 0);
+		Arrays.fill(t, (byte) 0);
+		return key;
+	}
+
+	/**
+	 * Time this device and find how many rounds of {@link #pbkdf2} for a
+	 * 32 byte key take about as long as wanted.
+	 *
+	 * @param targetMillis how long deriving a key should take
+	 * @return rounds to use, between {@link #MIN_ITERATIONS} and
+	 *         {@link #MAX_ITERATIONS}
+	 */
+	public static int calibrate(long targetMillis) throws GeneralSecurityException {
+		byte[] password = "calibration".getBytes();
+		byte[] salt = new byte[16];
+
+		// warm up, then double the rounds until the run is long enough to time
+		pbkdf2(password, salt, 1000, 32);
+		int rounds = 1000;
+		long elapsed;
+		while (true) {
+			long start = System.nanoTime();
+			pbkdf2(password, salt, rounds, 32);
+			elapsed = Math.max(System.nanoTime() - start, 1);
+			if (elapsed >= CALIBRATION_NANOS || rounds >= MAX_ITERATIONS)
+				break;
+			rounds *= 2;
+		}
+
+		long iterations = rounds * (targetMillis * 1000 * 1000L) / elapsed;
+		return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+	}
+}
@@ -34,6 +34,14 @@ public final class PreferenceConstants {
 
 	public static final String SCROLLBACK = "scrollback";
 
+	public static final String SOCKET_BUFFER = "socketbuffer";
+
+	public static final String MERGE_STDERR = "mergestderr";
+
+	public static final String SHARED_IO = "sharedio";
+
+	public static final String AUTO_COMPRESSION = "autocompression";
+
 	public static final String EMULATION = "emulation";
 
 	public static final String ROTATION = "rotation";
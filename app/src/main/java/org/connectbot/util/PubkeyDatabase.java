@@ -17,6 +17,7 @@
 
 package org.connectbot.util;
 
+import java.security.PrivateKey;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -24,9 +25,11 @@ import org.connectbot.bean.PubkeyBean;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.util.Log;
 import androidx.annotation.VisibleForTesting;
 
 /**
@@ -39,7 +42,7 @@ public class PubkeyDatabase extends RobustSQLiteOpenHelper {
 	public final static String TAG = "CB.PubkeyDatabase";
 
 	public final static String DB_NAME = "pubkeys";
-	public final static int DB_VERSION = 4;
+	public final static int DB_VERSION = 5;
 
 	public final static String TABLE_PUBKEYS = "pubkeys";
 	public final static String FIELD_PUBKEY_NICKNAME = "nickname";
@@ -47,6 +50,7 @@ public class PubkeyDatabase extends RobustSQLiteOpenHelper {
 	public final static String FIELD_PUBKEY_PRIVATE = "private";
 	public final static String FIELD_PUBKEY_PUBLIC = "public";
 	public final static String FIELD_PUBKEY_ENCRYPTED = "encrypted";
+	public final static String FIELD_PUBKEY_KDF = "kdf";
 	public final static String FIELD_PUBKEY_STARTUP = "startup";
 	public final static String FIELD_PUBKEY_CONFIRMUSE = "confirmuse";
 	public final static String FIELD_PUBKEY_LIFETIME = "lifetime";
@@ -59,8 +63,17 @@ public class PubkeyDatabase extends RobustSQLiteOpenHelper {
 	public final static String KEY_TYPE_EC = "EC";
 	public final static String KEY_TYPE_ED25519 = "ED25519";
 
+	/** How long unlocking a key should take on this device. */
+	private static final long KDF_TARGET_MILLIS = 250;
+
+	/** Where the calibrated key derivation rounds are kept, apart from backed up settings. */
+	private static final String KDF_PREFS = "kdf";
+	private static final String KDF_ITERATIONS = "iterations";
+
 	private Context context;
 
+	private int kdfIterations;
+
 	static {
 		addTableName(TABLE_PUBKEYS);
 	}
@@ -105,6 +118,7 @@ public class PubkeyDatabase extends RobustSQLiteOpenHelper {
 				+ FIELD_PUBKEY_PRIVATE + " BLOB, "
 				+ FIELD_PUBKEY_PUBLIC + " BLOB, "
 				+ FIELD_PUBKEY_ENCRYPTED + " INTEGER, "
+				+ FIELD_PUBKEY_KDF + " INTEGER DEFAULT 0, "
 				+ FIELD_PUBKEY_STARTUP + " INTEGER, "
 				+ FIELD_PUBKEY_CONFIRMUSE + " INTEGER DEFAULT 0, "
 				+ FIELD_PUBKEY_LIFETIME + " INTEGER DEFAULT 0, "
@@ -127,6 +141,11 @@ public class PubkeyDatabase extends RobustSQLiteOpenHelper {
 			case 3:
 				db.execSQL("ALTER TABLE " + TABLE_PUBKEYS
 						+ " ADD COLUMN " + FIELD_PUBKEY_SECURITYKEYTYPE + " TEXT");
+				// fall through
+			case 4:
+				// keys stored so far are in the legacy format
+				db.execSQL("ALTER TABLE " + TABLE_PUBKEYS
+						+ " ADD COLUMN " + FIELD_PUBKEY_KDF + " INTEGER DEFAULT 0");
 			}
 	}
 
@@ -181,6 +200,7 @@ public class PubkeyDatabase extends RobustSQLiteOpenHelper {
 				COL_PRIVATE = c.getColumnIndexOrThrow(FIELD_PUBKEY_PRIVATE),
 				COL_PUBLIC = c.getColumnIndexOrThrow(FIELD_PUBKEY_PUBLIC),
 				COL_ENCRYPTED = c.getColumnIndexOrThrow(FIELD_PUBKEY_ENCRYPTED),
+				COL_KDF = c.getColumnIndexOrThrow(FIELD_PUBKEY_KDF),
 				COL_STARTUP = c.getColumnIndexOrThrow(FIELD_PUBKEY_STARTUP),
 				COL_CONFIRMUSE = c.getColumnIndexOrThrow(FIELD_PUBKEY_CONFIRMUSE),
 				COL_LIFETIME = c.getColumnIndexOrThrow(FIELD_PUBKEY_LIFETIME),
@@ -196,6 +216,7 @@ public class PubkeyDatabase extends RobustSQLiteOpenHelper {
 				pubkey.setPrivateKey(c.getBlob(COL_PRIVATE));
 				pubkey.setPublicKey(c.getBlob(COL_PUBLIC));
 				pubkey.setEncrypted(c.getInt(COL_ENCRYPTED) > 0);
+				pubkey.setKdf(c.getInt(COL_KDF));
 				pubkey.setStartup(c.getInt(COL_STARTUP) > 0);
 				pubkey.setConfirmUse(c.getInt(COL_CONFIRMUSE) > 0);
 				pubkey.setLifetime(c.getInt(COL_LIFETIME));
@@ -241,6 +262,7 @@ public class PubkeyDatabase extends RobustSQLiteOpenHelper {
 		pubkey.setPrivateKey(c.getBlob(c.getColumnIndexOrThrow(FIELD_PUBKEY_PRIVATE)));
 		pubkey.setPublicKey(c.getBlob(c.getColumnIndexOrThrow(FIELD_PUBKEY_PUBLIC)));
 		pubkey.setEncrypted(c.getInt(c.getColumnIndexOrThrow(FIELD_PUBKEY_ENCRYPTED)) > 0);
+		pubkey.setKdf(c.getInt(c.getColumnIndexOrThrow(FIELD_PUBKEY_KDF)));
 		pubkey.setStartup(c.getInt(c.getColumnIndexOrThrow(FIELD_PUBKEY_STARTUP)) > 0);
 		pubkey.setConfirmUse(c.getInt(c.getColumnIndexOrThrow(FIELD_PUBKEY_CONFIRMUSE)) > 0);
 		pubkey.setLifetime(c.getInt(c.getColumnIndexOrThrow(FIELD_PUBKEY_LIFETIME)));
@@ -320,6 +342,73 @@ public class PubkeyDatabase extends RobustSQLiteOpenHelper {
 		return pubkey;
 	}
 
+	/**
+	 * Rounds of key derivation that make unlocking a key take about
+	 * {@link #KDF_TARGET_MILLIS} here. The device is timed the first time
+	 * this is asked, which takes a moment, and the answer kept from then on.
+	 */
+	public synchronized int getKdfIterations() {
+		if (kdfIterations > 0)
+			return kdfIterations;
+
+		SharedPreferences prefs = context.getSharedPreferences(KDF_PREFS, Context.MODE_PRIVATE);
+		kdfIterations = prefs.getInt(KDF_ITERATIONS, 0);
+		if (kdfIterations <= 0) {
+			try {
+				kdfIterations = KeyDerivation.calibrate(KDF_TARGET_MILLIS);
+			} catch (Exception e) {
+				Log.e(TAG, "Could not time key derivation", e);
+				return KeyDerivation.MIN_ITERATIONS;
+			}
+			prefs.edit().putInt(KDF_ITERATIONS, kdfIterations).apply();
+			Log.d(TAG, "Key derivation calibrated to " + kdfIterations + " rounds");
+		}
+		return kdfIterations;
+	}
+
+	/**
+	 * Encrypt a key again in the current format if it was stored in an older
+	 * one. Call after the key was unlocked, when its password is known to be
+	 * right; this takes as long as another unlock.
+	 * <p>
+	 * Only the stored private key and its format change. The bean is left
+	 * alone, as others may be reading it meanwhile; it still holds the old
+	 * key and format, which go together, until it is loaded again.
+	 *
+	 * @return whether the key was stored again
+	 */
+	public boolean upgradeEncryption(PubkeyBean pubkey, PrivateKey privateKey, String password) {
+		if (!pubkey.isEncrypted() || pubkey.getKdf() == PubkeyUtils.KDF_CURRENT
+				|| KEY_TYPE_IMPORTED.equals(pubkey.getType()) || pubkey.getId() <= 0)
+			return false;
+
+		byte[] encoded;
+		try {
+			encoded = PubkeyUtils.getEncodedPrivate(privateKey, password, getKdfIterations());
+		} catch (Exception e) {
+			Log.e(TAG, String.format("Could not encrypt key '%s' again", pubkey.getNickname()), e);
+			return false;
+		}
+
+		ContentValues values = new ContentValues();
+		values.put(FIELD_PUBKEY_PRIVATE, encoded);
+		values.put(FIELD_PUBKEY_KDF, PubkeyUtils.KDF_CURRENT);
+
+		boolean upgraded;
+		mDb.beginTransaction();
+		try {
+			// unless it was changed since it was read, e.g. upgraded already
+			upgraded = mDb.update(TABLE_PUBKEYS, values, "_id = ? AND " + FIELD_PUBKEY_KDF + " = ?",
+					new String[] { Long.toString(pubkey.getId()), Integer.toString(pubkey.getKdf()) }) > 0;
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+
+		if (upgraded)
+			Log.d(TAG, String.format("Upgraded encryption of key '%s'", pubkey.getNickname()));
+		return upgraded;
+	}
 
 	@VisibleForTesting
 	public void resetDatabase() {
@@ -0,0 +1,318 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates RSA key pairs by searching for both primes on all cores at once.
+ * <p>
+ * Each worker draws a random odd start of half the modulus size from its own
+ * {@link SecureRandom}, into which the given entropy is mixed, and walks the
+ * odd numbers from there. It keeps the remainders of the current number by
+ * the small primes, so numbers with a small factor are skipped without any
+ * BigInteger arithmetic, and runs the same probabilistic test as
+ * {@link BigInteger#probablePrime} on the rest. The first two distinct primes
+ * found make the key. The search can be cancelled from any thread and
+ * reports how many primality tests it has run.
+ */
+public final class RsaKeyGenerator {
+	public interface ProgressListener {
+		/**
+		 * Called on a worker thread with the number of candidates without
+		 * small factors tested for primality so far, at most every
+		 * {@link #PROGRESS_INTERVAL_MILLIS} and whenever a prime is found.
+		 *
+		 * @param tested candidates tested so far by all workers
+		 * @param primes primes found so far, out of two
+		 */
+		void onProgress(int tested, int primes);
+	}
+
+	/** Least time between two progress reports, so the UI is not flooded. */
+	public static final long PROGRESS_INTERVAL_MILLIS = 250;
+
+	/** The public exponent, as OpenSSH and the platform use. */
+	public static final BigInteger PUBLIC_EXPONENT = BigInteger.valueOf(65537);
+
+	/** Same certainty as {@link BigInteger#probablePrime}. */
+	private static final int CERTAINTY = 100;
+
+	/** Odd primes below this sieve candidates before they are tested. */
+	private static final int SIEVE_LIMIT = 2000;
+
+	/** Odd numbers walked from one random start before drawing another. */
+	private static final int WALK = 1 << 14;
+
+	private static final int[] SMALL_PRIMES;
+
+	static {
+		List<Integer> small = new ArrayList<>();
+		for (int i = 3; i < SIEVE_LIMIT; i += 2) {
+			if (BigInteger.valueOf(i).isProbablePrime(CERTAINTY))
+				small.add(i);
+		}
+		SMALL_PRIMES = new int[small.size()];
+		for (int i = 0; i < SMALL_PRIMES.length; i++)
+			SMALL_PRIMES[i] = small.get(i);
+	}
+
+	private final int bits;
+	private final byte[] entropy;
+	private final int threads;
+
+	private final AtomicInteger tested = new AtomicInteger();
+	private final AtomicLong lastProgress = new AtomicLong();
+	private final List<BigInteger> primes = new ArrayList<>(2);
+	private final List<Thread> workers = new ArrayList<>();
+	private volatile boolean cancelled;
+	private Throwable failure;
+
+	/**
+	 * @param bits size of the modulus, an even number of at least 512
+	 * @param entropy gathered from the user and mixed into every worker's
+	 *                random numbers, or null
+	 * @param threads workers searching at once, usually
+	 *                {@code Runtime.getRuntime().availableProcessors()}
+	 */
+	public RsaKeyGenerator(int bits, byte[] entropy, int threads) {
+		if (bits < 512 || bits % 2 != 0)
+			throw new IllegalArgumentException("RSA keys must have an even number of at least 512 bits");
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one thread is needed");
+
+		this.bits = bits;
+		this.entropy = entropy == null ? null : entropy.clone();
+		this.threads = threads;
+	}
+
+	/**
+	 * Search for the key, blocking until it is found.
+	 *
+	 * @param listener told how many candidates were tested, or null
+	 * @throws CancellationException if {@link #cancel()} was called, even
+	 *                               after both primes were found
+	 * @throws InterruptedException if the calling thread was interrupted,
+	 *                              which stops the search as well
+	 */
+	public KeyPair generate(final ProgressListener listener)
+			throws GeneralSecurityException, InterruptedException {
+		synchronized (primes) {
+			if (!workers.isEmpty())
+				throw new IllegalStateException("Each generator makes a single key");
+
+			for (int i = 0; i < threads; i++) {
+				final SecureRandom random = newRandom(i);
+				Thread worker = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						search(random, listener);
+					}
+				}, "RsaKeyGen-" + (i + 1));
+				worker.setDaemon(true);
+				workers.add(worker);
+			}
+		}
+
+		lastProgress.set(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MILLIS));
+		for (Thread worker : workers)
+			worker.start();
+
+		try {
+			synchronized (primes) {
+				while (primes.size() < 2 && !cancelled && failure == null)
+					primes.wait();
+			}
+		} finally {
+			stop();
+		}
+
+		KeyPair pair;
+		synchronized (primes) {
+			if (failure != null)
+				throw new GeneralSecurityException("Could not search for primes", failure);
+			if (primes.size() < 2)
+				throw new CancellationException();
+			pair = makeKeyPair(primes.get(0), primes.get(1));
+		}
+
+		// the user may have given up just as the second prime turned up
+		if (cancelled)
+			throw new CancellationException();
+		return pair;
+	}
+
+	/**
+	 * Stop the search; {@link #generate} then throws a
+	 * {@link CancellationException}. Workers finish the test they are in.
+	 */
+	public void cancel() {
+		cancelled = true;
+		synchronized (primes) {
+			primes.notifyAll();
+		}
+		stop();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return candidates tested so far
+	 */
+	public int getTested() {
+		return tested.get();
+	}
+
+	private void stop() {
+		synchronized (primes) {
+			for (Thread worker : workers)
+				worker.interrupt();
+		}
+	}
+
+	private SecureRandom newRandom(int worker) {
+		SecureRandom random = new SecureRandom();
+
+		// Work around JVM bug: seeding before first use replaces the seed
+		random.nextInt();
+		if (entropy != null)
+			random.setSeed(entropy);
+		random.setSeed(worker);
+
+		return random;
+	}
+
+	private boolean isDone() {
+		synchronized (primes) {
+			return cancelled || failure != null || primes.size() >= 2;
+		}
+	}
+
+	private void search(SecureRandom random, ProgressListener listener) {
+		final int primeBits = bits / 2;
+		final int e = PUBLIC_EXPONENT.intValue();
+		final int[] remainders = new int[SMALL_PRIMES.length];
+
+		try {
+			while (!isDone()) {
+				BigInteger start = new BigInteger(primeBits, random)
+						// the two top bits make the product of two such primes
+						// as long as wanted
+						.setBit(primeBits - 1).setBit(primeBits - 2)
+						.setBit(0);
+
+				for (int i = 0; i < SMALL_PRIMES.length; i++)
+					remainders[i] = start.mod(BigInteger.valueOf(SMALL_PRIMES[i])).intValue();
+				int remainderE = start.mod(PUBLIC_EXPONENT).intValue();
+
+				for (int step = 0; step < WALK; step += 2) {
+					if (hasSmallFactor(remainders, step)
+							// p - 1 must not be a multiple of e
+							|| (remainderE + step) % e == 1)
+						continue;
+
+					if (Thread.currentThread().isInterrupted() || isDone())
+						return;
+
+					BigInteger candidate = start.add(BigInteger.valueOf(step));
+					boolean prime = candidate.bitLength() == primeBits
+							&& candidate.isProbablePrime(CERTAINTY);
+
+					int found;
+					synchronized (primes) {
+						if (prime && primes.size() < 2 && !primes.contains(candidate)) {
+							primes.add(candidate);
+							primes.notifyAll();
+						}
+						found = primes.size();
+					}
+
+					int count = tested.incrementAndGet();
+					if (listener != null && !cancelled && isProgressDue(prime))
+						listener.onProgress(count, found);
+					if (prime)
+						break;
+				}
+			}
+		} catch (RuntimeException ex) {
+			synchronized (primes) {
+				failure = ex;
+				primes.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return whether to report progress now, which is when a prime was
+	 *         found or no worker has for {@link #PROGRESS_INTERVAL_MILLIS}
+	 */
+	private boolean isProgressDue(boolean prime) {
+		long now = System.nanoTime();
+		long last = lastProgress.get();
+		if (!prime && now - last < TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MILLIS))
+			return false;
+		// of several workers due at once, only one reports
+		return lastProgress.compareAndSet(last, now) || prime;
+	}
+
+	private static boolean hasSmallFactor(int[] remainders, int step) {
+		for (int i = 0; i < SMALL_PRIMES.length; i++) {
+			if ((remainders[i] + step) % SMALL_PRIMES[i] == 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Build the key pair from two distinct primes whose product has
+	 * {@link #bits} bits and neither of which is 1 modulo the public exponent.
+	 */
+	static KeyPair makeKeyPair(BigInteger p, BigInteger q) throws GeneralSecurityException {
+		if (p.compareTo(q) < 0) {
+			BigInteger swap = p;
+			p = q;
+			q = swap;
+		}
+
+		BigInteger n = p.multiply(q);
+		BigInteger p1 = p.subtract(BigInteger.ONE);
+		BigInteger q1 = q.subtract(BigInteger.ONE);
+		BigInteger lambda = p1.multiply(q1).divide(p1.gcd(q1));
+		BigInteger d = PUBLIC_EXPONENT.modInverse(lambda);
+
+		KeyFactory kf = KeyFactory.getInstance("RSA");
+		return new KeyPair(
+				kf.generatePublic(new RSAPublicKeySpec(n, PUBLIC_EXPONENT)),
+				kf.generatePrivate(new RSAPrivateCrtKeySpec(n, PUBLIC_EXPONENT, d, p, q,
+						d.mod(p1), d.mod(q1), q.modInverse(p))));
+	}
+}
@@ -77,7 +77,7 @@ public class TerminalTextViewOverlay extends androidx.appcompat.widget.AppCompat
 
 		for (int r = 0; r < numRows && vb.charArray[r] != null; r++) {
 			for (int c = 0; c < numCols; c++) {
-				buffer.append(vb.charArray[r][c]);
+				vb.appendCell(buffer, vb.charArray[r][c]);
 			}
 
 			// Truncate all the new whitespace without removing the old data.
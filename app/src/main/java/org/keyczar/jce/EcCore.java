@@ -267,6 +267,162 @@ public final class EcCore {
     return Q;
   }
 
+// BEGIN connectbot-added
+  // Point multiplication in Jacobian coordinates, where (X, Y, Z) stands for
+  // the affine point (X/Z^2, Y/Z^3) and Z = 0 for the point at infinity. No
+  // step needs a modular inverse except the final conversion to affine.
+
+  // Doubling, [4] 3.21; the NIST curves all have a = -3, which saves work.
+  private static BigInteger[] doublePointJ(BigInteger[] P, BigInteger p,
+      BigInteger a, boolean aIsMinus3) {
+    if (P[2].signum() == 0) return P;
+
+    BigInteger delta = P[2].multiply(P[2]).mod(p);
+    BigInteger gamma = P[1].multiply(P[1]).mod(p);
+    BigInteger beta = P[0].multiply(gamma).mod(p);
+    BigInteger alpha;
+    if (aIsMinus3) {
+      alpha = P[0].subtract(delta).multiply(P[0].add(delta)).multiply(THREE)
+          .mod(p);
+    } else {
+      alpha = P[0].multiply(P[0]).multiply(THREE)
+          .add(a.multiply(delta).multiply(delta)).mod(p);
+    }
+
+    BigInteger X3 = alpha.multiply(alpha).subtract(beta.shiftLeft(3)).mod(p);
+    BigInteger Z3 = P[1].add(P[2]).pow(2).subtract(gamma).subtract(delta)
+        .mod(p);
+    BigInteger Y3 = alpha.multiply(beta.shiftLeft(2).subtract(X3))
+        .subtract(gamma.multiply(gamma).shiftLeft(3)).mod(p);
+    return new BigInteger[] {X3, Y3, Z3};
+  }
+
+  // Addition of a Jacobian point P1 and an affine point P2, [4] 3.22.
+  private static BigInteger[] addPointsJA(BigInteger[] P1, BigInteger x2,
+      BigInteger y2, BigInteger p, BigInteger a, boolean aIsMinus3) {
+    if (P1[2].signum() == 0) return new BigInteger[] {x2, y2, BigInteger.ONE};
+
+    BigInteger Z1Z1 = P1[2].multiply(P1[2]).mod(p);
+    BigInteger H = x2.multiply(Z1Z1).subtract(P1[0]).mod(p);
+    BigInteger r = y2.multiply(P1[2]).multiply(Z1Z1).subtract(P1[1]).mod(p);
+
+    if (H.signum() == 0) {
+      // only for scalars below the window size, never for a private key
+      if (r.signum() == 0) return doublePointJ(P1, p, a, aIsMinus3);
+      return new BigInteger[] {BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO};
+    }
+
+    BigInteger HH = H.multiply(H).mod(p);
+    BigInteger HHH = H.multiply(HH).mod(p);
+    BigInteger V = P1[0].multiply(HH).mod(p);
+
+    BigInteger X3 = r.multiply(r).subtract(HHH).subtract(V.shiftLeft(1)).mod(p);
+    BigInteger Y3 = r.multiply(V.subtract(X3)).subtract(P1[1].multiply(HHH))
+        .mod(p);
+    BigInteger Z3 = P1[2].multiply(H).mod(p);
+    return new BigInteger[] {X3, Y3, Z3};
+  }
+
+  /**
+   * Multiplies the point P by k like {@link #multiplyPointA}, but with
+   * Jacobian coordinates and a fixed window over a regular recoding of the
+   * scalar (Joye and Tunstall), so that there is one modular inverse for the
+   * table and one for the result instead of one per step.
+   * <p>
+   * Every digit of the recoded scalar is odd and so never zero, and the
+   * number of digits depends only on the curve. Every scalar for a curve thus
+   * takes the same sequence of doublings and additions, and each table entry
+   * is read for every digit. BigInteger arithmetic itself does not run in
+   * constant time, so this removes the gross dependence of the timing on the
+   * bits of the key but does not make it constant.
+   *
+   * @return the affine coordinates of kP, or {null, null} for the point at
+   *         infinity
+   */
+  public static BigInteger[] multiplyPointJ(BigInteger[] P, BigInteger k,
+      ECParameterSpec params) {
+    final BigInteger p = ((ECFieldFp) params.getCurve().getField()).getP();
+    final BigInteger a = params.getCurve().getA().mod(p);
+    final boolean aIsMinus3 = a.equals(p.subtract(THREE));
+    final BigInteger n = params.getOrder();
+
+    k = k.mod(n);
+    if (k.signum() == 0 || P[0] == null || P[1] == null)
+      return new BigInteger[] {null, null};
+
+    // the recoding needs an odd scalar; k + n is odd when k is not
+    if (!k.testBit(0)) k = k.add(n);
+
+    final int w = n.bitLength() > 256 ? 5 : 4;
+    final int digits = (n.bitLength() + 1 + w - 1) / w + 1;
+
+    // odd multiples P, 3P, ..., (2^w - 1)P
+    BigInteger[][] table = new BigInteger[1 << (w - 1)][];
+    BigInteger[] P2 = doublePointA(P, params);
+    table[0] = new BigInteger[] {P[0], P[1], BigInteger.ONE};
+    for (int i = 1; i < table.length; i++)
+      table[i] = addPointsJA(table[i - 1], P2[0], P2[1], p, a, aIsMinus3);
+    if (!toAffine(table, p)) return multiplyPointA(P, k, params);
+
+    // k = sum of d[i] * 2^(w * i) with every d[i] odd and |d[i]| < 2^w
+    int[] d = new int[digits];
+    final BigInteger mask = BigInteger.ONE.shiftLeft(w + 1).subtract(BigInteger.ONE);
+    for (int i = 0; i < digits - 1; i++) {
+      d[i] = k.and(mask).intValue() - (1 << w);
+      k = k.subtract(BigInteger.valueOf(d[i])).shiftRight(w);
+    }
+    d[digits - 1] = k.intValue();
+
+    BigInteger[] Q = new BigInteger[] {BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO};
+    for (int i = digits - 1; i >= 0; i--) {
+      for (int j = 0; j < w; j++)
+        Q = doublePointJ(Q, p, a, aIsMinus3);
+
+      int index = (Math.abs(d[i]) - 1) >> 1;
+      BigInteger x = null, y = null;
+      for (int j = 0; j < table.length; j++) {
+        if (j == index) {
+          x = table[j][0];
+          y = table[j][1];
+        }
+      }
+      BigInteger negY = p.subtract(y);
+      Q = addPointsJA(Q, x, d[i] < 0 ? negY : y, p, a, aIsMinus3);
+    }
+
+    if (Q[2].signum() == 0) return new BigInteger[] {null, null};
+    BigInteger zInv = Q[2].modInverse(p);
+    BigInteger zInv2 = zInv.multiply(zInv).mod(p);
+    return new BigInteger[] {
+        Q[0].multiply(zInv2).mod(p),
+        Q[1].multiply(zInv2).multiply(zInv).mod(p)};
+  }
+
+  // Converts Jacobian points to affine in place with a single inverse
+  // (Montgomery's trick). Returns false if one of them is at infinity.
+  private static boolean toAffine(BigInteger[][] points, BigInteger p) {
+    BigInteger[] products = new BigInteger[points.length];
+    BigInteger product = BigInteger.ONE;
+    for (int i = 0; i < points.length; i++) {
+      product = product.multiply(points[i][2]).mod(p);
+      products[i] = product;
+    }
+    if (product.signum() == 0) return false;
+
+    BigInteger inv = product.modInverse(p);
+    for (int i = points.length - 1; i >= 0; i--) {
+      BigInteger zInv = i > 0 ? inv.multiply(products[i - 1]).mod(p) : inv;
+      inv = inv.multiply(points[i][2]).mod(p);
+
+      BigInteger zInv2 = zInv.multiply(zInv).mod(p);
+      points[i][0] = points[i][0].multiply(zInv2).mod(p);
+      points[i][1] = points[i][1].multiply(zInv2).multiply(zInv).mod(p);
+      points[i][2] = BigInteger.ONE;
+    }
+    return true;
+  }
+// END connectbot-added
+
 // BEGIN connectbot-removed
 //  private static BigInteger[] doublePointJ(BigInteger[] P,
 //      ECParameterSpec params) {
@@ -0,0 +1,206 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.telnet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TelnetProtocolHandlerTest {
+	private static final byte IAC = (byte) 255;
+	private static final byte WILL = (byte) 251;
+	private static final byte DO = (byte) 253;
+	private static final byte SB = (byte) 250;
+	private static final byte SE = (byte) 240;
+	private static final byte COMPRESS2 = (byte) 86;
+	private static final byte TM = (byte) 6;
+
+	private ServerSocket server;
+	private SocketChannel channel;
+	private TelnetProtocolHandler handler;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		channel = SocketChannel.open(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()));
+		handler = new TelnetProtocolHandler() {
+			@Override
+			protected String getTerminalType() {
+				return "xterm";
+			}
+
+			@Override
+			protected int[] getWindowSize() {
+				return new int[] { 80, 24 };
+			}
+
+			@Override
+			protected void setLocalEcho(boolean echo) {
+			}
+
+			@Override
+			protected void notifyEndOfRecord() {
+			}
+
+			@Override
+			protected void write(byte[] b) throws IOException {
+				ByteBuffer out = ByteBuffer.wrap(b);
+				while (out.hasRemaining())
+					channel.write(out);
+			}
+
+			@Override
+			protected String getCharsetName() {
+				return "UTF-8";
+			}
+		};
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		channel.close();
+		server.close();
+	}
+
+	@Test
+	public void compressedStreamIsInflated() throws Exception {
+		final byte[] compressed = new byte[20000];
+		for (int i = 0; i < compressed.length; i++)
+			compressed[i] = (byte) ('a' + i % 26);
+		final byte[] expected = concat("before ".getBytes(), compressed, " after".getBytes());
+
+		// stand-in for a MUD server that offers MCCP2 and compresses once accepted
+		final byte[] reply = new byte[3];
+		Thread serverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try (Socket client = server.accept()) {
+					OutputStream out = client.getOutputStream();
+					out.write(new byte[] { IAC, WILL, COMPRESS2 });
+					out.flush();
+					new DataInputStream(client.getInputStream()).readFully(reply);
+
+					out.write("before ".getBytes());
+					out.write(new byte[] { IAC, SB, COMPRESS2, IAC, SE });
+					byte[] deflated = deflate(compressed);
+					// dribble it out so the inflater sees partial input
+					for (int i = 0; i < deflated.length; i += 100) {
+						out.write(deflated, i, Math.min(100, deflated.length - i));
+						out.flush();
+					}
+					// the compressed stream has ended, back to plain data
+					out.write(" after".getBytes());
+					out.flush();
+				} catch (IOException ignored) {
+				}
+			}
+		});
+		serverThread.start();
+
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		while (received.size() < expected.length) {
+			int n = handler.negotiate(buf, 0);
+			if (n > 0)
+				received.write(buf, 0, n);
+			else if (n < 0 && handler.inputfeed(channel) < 0)
+				break;
+		}
+		serverThread.join();
+
+		assertArrayEquals(new byte[] { IAC, DO, COMPRESS2 }, reply);
+		assertEquals(expected.length, received.size());
+		assertArrayEquals(expected, received.toByteArray());
+	}
+
+	@Test
+	public void ringBufferKeepsDataAcrossFeeds() throws Exception {
+		byte[] data = new byte[30000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i % 200);
+
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		byte[] buf = new byte[700];
+		for (int i = 0; i < data.length; i += 5000) {
+			handler.inputfeed(data, i, 5000);
+			// only drain part of it before the next feed
+			int n = handler.negotiate(buf, 0);
+			received.write(buf, 0, n);
+		}
+		int n;
+		while ((n = handler.negotiate(buf, 0)) != -1)
+			received.write(buf, 0, n);
+
+		assertArrayEquals(data, received.toByteArray());
+	}
+
+	@Test
+	public void timingMarkAnswerIsNotNegotiated() throws Exception {
+		try (Socket client = server.accept()) {
+			handler.sendTimingMark();
+			byte[] sent = new byte[3];
+			new DataInputStream(client.getInputStream()).readFully(sent);
+			assertArrayEquals(new byte[] { IAC, DO, TM }, sent);
+
+			byte[] answer = { IAC, WILL, TM, 'x' };
+			handler.inputfeed(answer, 0, answer.length);
+			byte[] buf = new byte[16];
+			int n;
+			while ((n = handler.negotiate(buf, 0)) == 0)
+				;
+			assertEquals(1, n);
+			assertEquals('x', buf[0]);
+
+			// no DONT went back for it
+			assertEquals(0, client.getInputStream().available());
+		}
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater();
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] out = new byte[data.length + 64];
+		int n = deflater.deflate(out);
+		deflater.end();
+		return Arrays.copyOf(out, n);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts)
+			out.write(part, 0, part.length);
+		return out.toByteArray();
+	}
+}
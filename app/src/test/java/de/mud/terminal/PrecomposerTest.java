@@ -0,0 +1,66 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.terminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PrecomposerTest {
+	@Test
+	public void everyTableEntryComposes() {
+		for (char[] entry : Precomposer.precompositions)
+			assertEquals(entry[0], Precomposer.precompose(entry[1], entry[2]));
+	}
+
+	@Test
+	public void unknownPairKeepsBase() {
+		assertEquals('x', Precomposer.precompose('x', '\u0301'));
+		assertEquals(-1, Precomposer.compose('x', '\u0301'));
+	}
+
+	@Test
+	public void multipleMarksComposeInAnyOrder() {
+		vt320 buffer = new TestTerminal();
+
+		// a + circumflex + dot below, and the canonical order, both give U+1EAD
+		buffer.putString("a\u0302\u0323b a\u0323\u0302");
+
+		assertEquals('\u1ead', buffer.getChar(0, 0));
+		assertEquals('b', buffer.getChar(1, 0));
+		assertEquals('\u1ead', buffer.getChar(3, 0));
+	}
+
+	private static class TestTerminal extends vt320 {
+		TestTerminal() {
+			super(80, 24);
+		}
+
+		@Override
+		public void debug(String notice) {
+		}
+
+		@Override
+		public void write(byte[] b) {
+		}
+
+		@Override
+		public void write(int b) {
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.terminal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class VDUBufferCodePointTest {
+	private static final int GRINNING = 0x1F600;
+
+	/** The table starts with this many entries and only grows when all are used. */
+	private static final int FIRST_TABLE_SIZE = 16;
+
+	private static VDUBuffer newBuffer() {
+		VDUBuffer buffer = new VDUBuffer(80, 24);
+		buffer.setDisplay(new NullDisplay());
+		return buffer;
+	}
+
+	/** Put FIRST_TABLE_SIZE distinct code points on the first line. */
+	private static void fillTable(VDUBuffer buffer) {
+		for (int i = 0; i < FIRST_TABLE_SIZE; i++)
+			buffer.putChar(i, 0, buffer.internCodePoint(GRINNING + i));
+	}
+
+	@Test
+	public void internReturnsSameRef() {
+		VDUBuffer buffer = newBuffer();
+
+		char ref = buffer.internCodePoint(GRINNING);
+		assertTrue(VDUBuffer.isCodePointRef(ref));
+		assertEquals(ref, buffer.internCodePoint(GRINNING));
+		buffer.putChar(0, 0, ref);
+		assertFalse(ref == buffer.internCodePoint(GRINNING + 1));
+		assertEquals(GRINNING, buffer.getCodePoint(ref));
+		assertEquals('x', buffer.getCodePoint('x'));
+	}
+
+	@Test
+	public void codePointTextIsCached() {
+		VDUBuffer buffer = newBuffer();
+
+		char ref = buffer.internCodePoint(GRINNING);
+		String text = buffer.getCodePointText(ref);
+		assertEquals(new String(Character.toChars(GRINNING)), text);
+		assertSame(text, buffer.getCodePointText(ref));
+
+		StringBuilder sb = new StringBuilder();
+		buffer.appendCell(sb, 'a');
+		buffer.appendCell(sb, ref);
+		assertEquals("a" + text, sb.toString());
+	}
+
+	@Test
+	public void overwrittenEntryIsReused() {
+		VDUBuffer buffer = newBuffer();
+
+		char first = buffer.internCodePoint(GRINNING);
+		buffer.putChar(0, 0, first);
+		char second = buffer.internCodePoint(GRINNING + 1);
+		buffer.putChar(1, 0, second);
+
+		buffer.putChar(0, 0, 'x');
+		char third = buffer.internCodePoint(GRINNING + 2);
+		assertEquals(first, third);
+		assertEquals(GRINNING + 2, buffer.getCodePoint(third));
+		assertEquals(second, buffer.internCodePoint(GRINNING + 1));
+		assertEquals(new String(Character.toChars(GRINNING + 2)), buffer.getCodePointText(third));
+	}
+
+	@Test
+	public void clearedEntriesAreCompacted() {
+		VDUBuffer buffer = newBuffer();
+		fillTable(buffer);
+
+		buffer.deleteArea(0, 0, 80, 24, 0);
+		char ref = buffer.internCodePoint(GRINNING + 100);
+		assertEquals(VDUBuffer.CODE_POINT_REF, ref);
+		buffer.putChar(0, 0, ref);
+		// the old code point lost its entry and needs another one
+		char again = buffer.internCodePoint(GRINNING);
+		assertFalse(ref == again);
+		assertEquals(GRINNING, buffer.getCodePoint(again));
+	}
+
+	@Test
+	public void scrolledOffEntriesAreCompacted() {
+		VDUBuffer buffer = newBuffer();
+		buffer.setBufferSize(0);
+		fillTable(buffer);
+
+		buffer.insertLine(23, 1, VDUBuffer.SCROLL_UP);
+		assertEquals(' ', buffer.getChar(0, 0));
+		assertEquals(VDUBuffer.CODE_POINT_REF, buffer.internCodePoint(GRINNING + 100));
+	}
+
+	@Test
+	public void liveEntriesSurviveCompaction() {
+		VDUBuffer buffer = newBuffer();
+		fillTable(buffer);
+		char kept = buffer.getChar(5, 0);
+
+		buffer.deleteArea(0, 0, 5, 1, 0);
+		buffer.deleteArea(6, 0, 74, 1, 0);
+		for (int i = 0; i < 5; i++)
+			buffer.putChar(i, 1, buffer.internCodePoint(GRINNING + 100 + i));
+
+		assertEquals(kept, buffer.getChar(5, 0));
+		assertEquals(GRINNING + 5, buffer.getCodePoint(kept));
+		assertEquals(kept, buffer.internCodePoint(GRINNING + 5));
+	}
+
+	@Test
+	public void tableSurvivesState() throws Exception {
+		VDUBuffer buffer = newBuffer();
+		fillTable(buffer);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		buffer.writeState(new DataOutputStream(bytes));
+		VDUBuffer restored = newBuffer();
+		restored.readState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+		for (int i = 0; i < FIRST_TABLE_SIZE; i++) {
+			char ref = restored.getChar(i, 0);
+			assertEquals(GRINNING + i, restored.getCodePoint(ref));
+			assertEquals(ref, restored.internCodePoint(GRINNING + i));
+		}
+	}
+
+	private static class NullDisplay implements VDUDisplay {
+		private VDUBuffer buffer;
+
+		@Override
+		public void redraw() {
+		}
+
+		@Override
+		public void updateScrollBar() {
+		}
+
+		@Override
+		public void setVDUBuffer(VDUBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public VDUBuffer getVDUBuffer() {
+			return buffer;
+		}
+
+		@Override
+		public void setColor(int index, int red, int green, int blue) {
+		}
+
+		@Override
+		public void resetColors() {
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.terminal;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Vt320ModesTest {
+	@Test
+	public void synchronizedOutputSetAndReset() {
+		TestTerminal term = new TestTerminal();
+
+		term.putString("\u001b[?2026h");
+		assertTrue(term.isSynchronizedOutput());
+
+		term.putString("\u001b[?2026l");
+		assertFalse(term.isSynchronizedOutput());
+	}
+
+	@Test
+	public void synchronizedOutputTimesOut() {
+		TestTerminal term = new TestTerminal();
+
+		term.putString("\u001b[?2026h");
+		term.synchronizedOutputStart -= vt320.SYNCHRONIZED_OUTPUT_TIMEOUT;
+		assertFalse(term.isSynchronizedOutput());
+		assertEquals("\u001b[?2026;2$y", term.request(2026));
+	}
+
+	@Test
+	public void requestModeReportsSynchronizedOutput() {
+		TestTerminal term = new TestTerminal();
+
+		assertEquals("\u001b[?2026;2$y", term.request(2026));
+		term.putString("\u001b[?2026h");
+		assertEquals("\u001b[?2026;1$y", term.request(2026));
+		term.putString("\u001b[?2026l");
+		assertEquals("\u001b[?2026;2$y", term.request(2026));
+	}
+
+	@Test
+	public void requestModeReportsImplementedModes() {
+		TestTerminal term = new TestTerminal();
+
+		assertEquals("\u001b[?25;1$y", term.request(25));
+		term.putString("\u001b[?25l");
+		assertEquals("\u001b[?25;2$y", term.request(25));
+
+		assertEquals("\u001b[?1;2$y", term.request(1));
+		term.putString("\u001b[?1h");
+		assertEquals("\u001b[?1;1$y", term.request(1));
+
+		assertEquals("\u001b[?7;1$y", term.request(7));
+		term.putString("\u001b[?7l");
+		assertEquals("\u001b[?7;2$y", term.request(7));
+
+		assertEquals("\u001b[?1049;2$y", term.request(1049));
+		term.putString("\u001b[?1049h");
+		assertEquals("\u001b[?1049;1$y", term.request(1049));
+
+		term.putString("\u001b[?1002h");
+		assertEquals("\u001b[?1002;1$y", term.request(1002));
+		assertEquals("\u001b[?1000;2$y", term.request(1000));
+	}
+
+	@Test
+	public void requestModeUnknown() {
+		assertEquals("\u001b[?4242;0$y", new TestTerminal().request(4242));
+	}
+
+	private static class TestTerminal extends vt320 {
+		private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+		TestTerminal() {
+			super(80, 24);
+		}
+
+		/** Send DECRQM for a mode and return the reply. */
+		String request(int mode) {
+			sent.reset();
+			putString("\u001b[?" + mode + "$p");
+			return sent.toString();
+		}
+
+		@Override
+		public void debug(String notice) {
+		}
+
+		@Override
+		public void write(byte[] b) {
+			sent.write(b, 0, b.length);
+		}
+
+		@Override
+		public void write(int b) {
+			sent.write(b);
+		}
+	}
+}
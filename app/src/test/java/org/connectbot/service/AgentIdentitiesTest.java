@@ -0,0 +1,84 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AgentIdentitiesTest {
+	/** Length of an OpenSSH RSA 2048 public key blob. */
+	private static final int BLOB_LENGTH = 279;
+
+	private static Map<String, byte[]> blobs(int count) {
+		Random random = new Random(count);
+		Map<String, byte[]> blobs = new HashMap<>();
+		for (int i = 0; i < count; i++) {
+			byte[] blob = new byte[BLOB_LENGTH];
+			random.nextBytes(blob);
+			// real keys of one type share the header, so comparing has to go past it
+			System.arraycopy("\0\0\0\7ssh-rsa\0\0\0\3\1\0\1".getBytes(), 0, blob, 0, 18);
+			blobs.put("key" + i, blob);
+		}
+		return blobs;
+	}
+
+	@Test
+	public void lookupByCopyOfBlob() {
+		Map<String, byte[]> blobs = blobs(10);
+		AgentIdentities identities = new AgentIdentities(1, blobs);
+
+		byte[] request = blobs.get("key3").clone();
+		assertEquals("key3", identities.getNickname(request));
+		assertNull(identities.getNickname(new byte[BLOB_LENGTH]));
+		assertNull(identities.getNickname(null));
+	}
+
+	@Test
+	public void snapshotDoesNotChange() {
+		Map<String, byte[]> blobs = blobs(3);
+		AgentIdentities identities = new AgentIdentities(1, blobs);
+
+		blobs.remove("key0");
+		assertEquals(3, identities.getIdentities().size());
+		assertEquals("key0", identities.getNickname(identities.getIdentities().get("key0")));
+
+		try {
+			identities.getIdentities().clear();
+			assertTrue("Identities could be changed", false);
+		} catch (UnsupportedOperationException expected) {
+		}
+	}
+
+	@Test
+	public void sameKeyTwice() {
+		byte[] blob = blobs(1).get("key0");
+		Map<String, byte[]> blobs = new HashMap<>();
+		blobs.put("one", blob);
+		blobs.put("other", blob.clone());
+
+		String nickname = new AgentIdentities(1, blobs).getNickname(blob);
+		assertTrue("one".equals(nickname) || "other".equals(nickname));
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class BridgeExecutorTest {
+	private BridgeExecutor executor;
+
+	@Before
+	public void setUp() {
+		executor = new BridgeExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void jobRunsUnderItsName() throws Exception {
+		final String[] name = new String[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		executor.start("Relay", new Runnable() {
+			@Override
+			public void run() {
+				name[0] = Thread.currentThread().getName();
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("Relay", name[0]);
+	}
+
+	@Test
+	public void serialJobsKeepTheirOrder() throws Exception {
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(100);
+		Executor serial = executor.newSerialExecutor("InjectString");
+		for (int i = 0; i < 100; i++) {
+			final int n = i;
+			serial.execute(new Runnable() {
+				@Override
+				public void run() {
+					order.add(n);
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 100; i++)
+			assertEquals(i, (int) order.get(i));
+	}
+
+	@Test
+	public void shortJobsShareBoundedThreads() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(50);
+		for (int i = 0; i < 50; i++) {
+			executor.execute("Disconnector", new Runnable() {
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException ignored) {
+					}
+					done.countDown();
+				}
+			});
+		}
+		assertEquals(BridgeExecutor.TASK_THREADS, executor.getThreadCount());
+		assertEquals(50 - BridgeExecutor.TASK_THREADS, executor.getQueuedCount());
+
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void stalledWritesLeaveSharedThreadsFree() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		int writers = BridgeExecutor.TASK_THREADS * 2;
+		for (int i = 0; i < writers; i++) {
+			executor.newSerialWorker("InjectString").execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException ignored) {
+					}
+				}
+			});
+		}
+
+		try {
+			final CountDownLatch done = new CountDownLatch(1);
+			executor.execute("Reconnector", new Runnable() {
+				@Override
+				public void run() {
+					done.countDown();
+				}
+			});
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import de.mud.terminal.VDUBuffer;
+import de.mud.terminal.VDUDisplay;
+import de.mud.terminal.vt320;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class HibernationTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("hibernation", "");
+		assertTrue(dir.delete());
+	}
+
+	@After
+	public void tearDown() {
+		Hibernation.deleteAll(dir);
+		dir.delete();
+	}
+
+	private static vt320 newTerminal() {
+		return newTerminal(new StringBuilder());
+	}
+
+	/**
+	 * @param sent collects what the terminal sends to the host, dropping
+	 *         replies made during playback as TerminalBridge does
+	 */
+	private static vt320 newTerminal(final StringBuilder sent) {
+		vt320 terminal = new vt320(80, 24) {
+			@Override
+			public void debug(String notice) {
+			}
+
+			@Override
+			public void write(byte[] b) {
+				if (!Hibernation.isReplaying())
+					sent.append(new String(b));
+			}
+
+			@Override
+			public void write(int b) {
+				if (!Hibernation.isReplaying())
+					sent.append((char) b);
+			}
+		};
+		terminal.setDisplay(new VDUDisplay() {
+			@Override
+			public void redraw() {
+			}
+
+			@Override
+			public void updateScrollBar() {
+			}
+
+			@Override
+			public void setVDUBuffer(VDUBuffer buffer) {
+			}
+
+			@Override
+			public VDUBuffer getVDUBuffer() {
+				return null;
+			}
+
+			@Override
+			public void setColor(int index, int red, int green, int blue) {
+			}
+
+			@Override
+			public void resetColors() {
+			}
+		});
+		terminal.setBufferSize(200);
+		return terminal;
+	}
+
+	private static void fill(vt320 terminal) {
+		for (int i = 0; i < 100; i++)
+			terminal.putString("\u001b[3" + (i % 8) + "mline " + i + " \uD83D\uDE00\r\n");
+		// leave something on the alternate screen too
+		terminal.putString("\u001b[?1049halternate\u001b[5;10r");
+	}
+
+	private static String dump(VDUBuffer buffer) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(buffer.getBufferSize()).append(' ').append(buffer.getMaxBufferSize())
+				.append(' ').append(buffer.screenBase).append(' ').append(buffer.windowBase)
+				.append(' ').append(buffer.getCursorColumn()).append(',').append(buffer.getCursorRow())
+				.append(' ').append(buffer.getTopMargin()).append('-').append(buffer.getBottomMargin())
+				.append(' ').append(buffer.isAlternateScreen()).append('\n');
+		for (int l = 0; l < buffer.getBufferSize(); l++) {
+			for (int c = 0; c < buffer.getColumns(); c++)
+				buffer.appendCell(sb, buffer.getChar(c, l - buffer.screenBase));
+			sb.append(Arrays.toString(buffer.charAttributes[l])).append('\n');
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void wakeRestoresBufferAndPlaysBackLog() throws IOException {
+		vt320 expected = newTerminal();
+		fill(expected);
+		expected.putString("\u001b[?1049lmore\r\n");
+
+		vt320 terminal = newTerminal();
+		fill(terminal);
+		Hibernation hibernation = Hibernation.write(dir, terminal);
+		assertEquals(2 * 24, terminal.getAllocatedLines());
+
+		char[] more = "\u001b[?1049lmore\r\n".toCharArray();
+		hibernation.append(more, more.length);
+		hibernation.wake(terminal);
+
+		assertEquals(dump(expected), dump(terminal));
+		assertEquals(0, dir.list().length);
+	}
+
+	@Test
+	public void logIsPlayedBackWithoutSnapshot() throws IOException {
+		vt320 terminal = newTerminal();
+		terminal.putString("first");
+		Hibernation hibernation = Hibernation.write(dir, terminal);
+
+		File[] files = dir.listFiles();
+		for (File file : files) {
+			if (file.getName().endsWith(".snapshot")) {
+				FileOutputStream out = new FileOutputStream(file);
+				out.write(new byte[] { 1, 2, 3 });
+				out.close();
+			}
+		}
+
+		char[] text = " second".toCharArray();
+		hibernation.append(text, text.length);
+		try {
+			hibernation.wake(terminal);
+			fail("The broken snapshot was not noticed");
+		} catch (IOException expected) {
+		}
+
+		assertEquals('f', terminal.getChar(0, 0));
+		assertEquals('s', terminal.getChar(6, 0));
+		assertEquals(0, dir.list().length);
+	}
+
+	@Test
+	public void playedBackQueriesAreNotAnswered() throws IOException {
+		StringBuilder sent = new StringBuilder();
+		vt320 terminal = newTerminal(sent);
+		Hibernation hibernation = Hibernation.write(dir, terminal);
+
+		// cursor position and device attribute queries
+		char[] queries = "\u001b[6n\u001b[c".toCharArray();
+		hibernation.append(queries, queries.length);
+		hibernation.wake(terminal);
+
+		assertEquals("", sent.toString());
+		assertFalse(Hibernation.isReplaying());
+
+		// asked again now, the query is answered
+		terminal.putString("\u001b[6n");
+		assertTrue(sent.toString().matches("\u001b\\[\\d+;\\d+R"));
+	}
+}
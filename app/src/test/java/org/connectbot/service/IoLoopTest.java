@@ -0,0 +1,147 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import org.connectbot.transport.AbsTransport;
+import org.connectbot.transport.NonBlockingTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+@RunWith(AndroidJUnit4.class)
+public class IoLoopTest {
+	private static final long TIMEOUT = 5000;
+
+	private IoLoop loop;
+	private Pipe pipe;
+	private Relay relay;
+	private AbsTransport transport;
+	private NonBlockingTransport nonBlocking;
+
+	@Before
+	public void setUp() throws Exception {
+		loop = new IoLoop();
+		pipe = Pipe.open();
+		relay = mock(Relay.class);
+		transport = mock(AbsTransport.class, withSettings().extraInterfaces(NonBlockingTransport.class));
+		nonBlocking = (NonBlockingTransport) transport;
+		when(nonBlocking.enableNonBlocking()).thenAnswer(new Answer<Pipe.SourceChannel>() {
+			@Override
+			public Pipe.SourceChannel answer(InvocationOnMock invocation) throws IOException {
+				pipe.source().configureBlocking(false);
+				return pipe.source();
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		loop.close();
+		pipe.sink().close();
+		pipe.source().close();
+	}
+
+	/** Make the pipe readable, and read it empty again once pumped. */
+	private void arrive() throws IOException {
+		pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+	}
+
+	private void drainOnPump(final boolean more) throws IOException {
+		when(relay.pump(nonBlocking)).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws IOException {
+				pipe.source().read(ByteBuffer.allocate(16));
+				return more;
+			}
+		});
+	}
+
+	@Test
+	public void blockingTransportIsNotTaken() {
+		assertFalse(loop.register(relay, mock(AbsTransport.class)));
+	}
+
+	@Test
+	public void unconnectedTransportIsNotTaken() throws Exception {
+		when(nonBlocking.enableNonBlocking()).thenReturn(null);
+		assertFalse(loop.register(relay, transport));
+	}
+
+	@Test
+	public void arrivingDataIsPumped() throws Exception {
+		drainOnPump(false);
+		assertTrue(loop.register(relay, transport));
+		verify(relay, after(200).never()).pump(any(NonBlockingTransport.class));
+
+		arrive();
+		verify(relay, timeout(TIMEOUT)).pump(nonBlocking);
+		verify(relay, after(200).times(1)).pump(nonBlocking);
+
+		arrive();
+		verify(relay, timeout(TIMEOUT).times(2)).pump(nonBlocking);
+	}
+
+	@Test
+	public void relayWithDataLeftIsPumpedAgain() throws Exception {
+		// as if MAX_READS_PER_TURN reads left more behind
+		when(relay.pump(nonBlocking)).thenReturn(true);
+		assertTrue(loop.register(relay, transport));
+
+		arrive();
+		verify(relay, timeout(TIMEOUT).atLeast(3)).pump(nonBlocking);
+	}
+
+	@Test
+	public void failedRelayIsDropped() throws Exception {
+		when(relay.pump(nonBlocking)).thenThrow(new IOException("gone"));
+		assertTrue(loop.register(relay, transport));
+
+		arrive();
+		verify(relay, timeout(TIMEOUT)).pump(nonBlocking);
+		verify(relay, after(200).times(1)).pump(nonBlocking);
+	}
+
+	@Test
+	public void closeStopsPumping() throws Exception {
+		drainOnPump(false);
+		assertTrue(loop.register(relay, transport));
+		loop.close();
+
+		arrive();
+		verify(relay, after(200).never()).pump(any(NonBlockingTransport.class));
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeepAliveMonitorTest {
+	@Test
+	public void fastIntervalHasFloor() {
+		assertEquals(KeepAliveMonitor.FAST_INTERVAL, KeepAliveMonitor.fastInterval(-1));
+		assertEquals(KeepAliveMonitor.FAST_INTERVAL, KeepAliveMonitor.fastInterval(20));
+	}
+
+	@Test
+	public void fastIntervalFollowsSlowLinks() {
+		// a satellite link with a 1.5 s round trip must not be declared dead
+		long interval = KeepAliveMonitor.fastInterval(1500);
+		assertEquals(1500 * KeepAliveMonitor.FAST_RTT_FACTOR, interval);
+		assertTrue(interval * KeepAliveMonitor.MAX_MISSED >= 3 * 1500);
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import org.junit.Test;
+
+import android.content.ComponentCallbacks2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScrollbackBudgetTest {
+	private static final long HEAP = 64 * 1024 * 1024;
+
+	@Test
+	public void everyoneFitsWithEnoughMemory() {
+		int[] rows = ScrollbackBudget.allocate(HEAP, new int[] { 80, 80 }, new int[] { 24, 24 },
+				new int[] { 140, 1000 });
+		assertArrayEquals(new int[] { 140, 1000 }, rows);
+	}
+
+	@Test
+	public void leastRecentlyViewedIsTrimmedFirst() {
+		long row = ScrollbackBudget.rowBytes(80);
+		// both screens twice, then 100 more rows
+		long budget = (2 * 24 + 2 * 24 + 100) * row;
+		int[] rows = ScrollbackBudget.allocate(budget, new int[] { 80, 80 }, new int[] { 24, 24 },
+				new int[] { 100, 100 });
+		assertArrayEquals(new int[] { 100, 48 }, rows);
+	}
+
+	@Test
+	public void screenIsAlwaysKept() {
+		int[] rows = ScrollbackBudget.allocate(0, new int[] { 80, 132 }, new int[] { 24, 50 },
+				new int[] { 1000, 0 });
+		assertArrayEquals(new int[] { 24, 50 }, rows);
+	}
+
+	@Test
+	public void trimLowersBudgetUntilRecovered() {
+		ScrollbackBudget budget = new ScrollbackBudget(HEAP);
+		long full = HEAP / ScrollbackBudget.HEAP_SHARE;
+		assertEquals(full, budget.getBudget(0));
+
+		assertFalse(budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, 0));
+		assertTrue(budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, 0));
+		assertEquals(full / 4, budget.getBudget(0));
+
+		// a milder request does not raise it again
+		assertFalse(budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND, 1000));
+		assertTrue(budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE, 1000));
+		assertEquals(full / 8, budget.getBudget(1000));
+
+		assertEquals(full / 8, budget.getBudget(1000 + ScrollbackBudget.RECOVERY_TIME - 1));
+		assertEquals(full, budget.getBudget(1000 + ScrollbackBudget.RECOVERY_TIME));
+	}
+}
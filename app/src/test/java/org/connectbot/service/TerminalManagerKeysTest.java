@@ -0,0 +1,151 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import org.connectbot.bean.PubkeyBean;
+import org.connectbot.util.PubkeyDatabase;
+import org.connectbot.util.PubkeyUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TerminalManagerKeysTest {
+	private TerminalManager manager;
+	private KeyPair first;
+	private KeyPair second;
+
+	@Before
+	public void setUp() throws Exception {
+		manager = new TerminalManager();
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		first = generator.generateKeyPair();
+		second = generator.generateKeyPair();
+	}
+
+	private static PubkeyBean bean(String nickname) {
+		PubkeyBean pubkey = new PubkeyBean();
+		pubkey.setNickname(nickname);
+		return pubkey;
+	}
+
+	@Test
+	public void lookupByPublicKey() {
+		manager.addKey(bean("first"), first, true);
+		manager.addKey(bean("second"), second, true);
+
+		byte[] blob = PubkeyUtils.extractOpenSSHPublic(second);
+		assertEquals("second", manager.getKeyNickname(blob));
+		assertSame(second, manager.getKey(blob));
+		assertArrayEquals(blob, manager.getAgentIdentities().getIdentities().get("second"));
+		assertEquals(2, manager.getAgentIdentities().getIdentities().size());
+
+		assertNull(manager.getKeyNickname(new byte[] { 0, 0, 0, 7 }));
+		assertNull(manager.getKeyNickname(null));
+	}
+
+	@Test
+	public void removeByPublicKey() {
+		manager.addKey(bean("first"), first, true);
+		manager.addKey(bean("second"), second, true);
+
+		assertTrue(manager.removeKey(PubkeyUtils.extractOpenSSHPublic(first)));
+		assertFalse(manager.removeKey(PubkeyUtils.extractOpenSSHPublic(first)));
+		assertNull(manager.getKey(PubkeyUtils.extractOpenSSHPublic(first)));
+		assertFalse(manager.getAgentIdentities().getIdentities().containsKey("first"));
+		assertTrue(manager.getAgentIdentities().getIdentities().containsKey("second"));
+	}
+
+	@Test
+	public void sameKeyUnderTwoNicknames() {
+		manager.addKey(bean("one"), first, true);
+		manager.addKey(bean("other"), first, true);
+
+		byte[] blob = PubkeyUtils.extractOpenSSHPublic(first);
+		assertTrue(manager.removeKey("one"));
+		assertEquals("other", manager.getKeyNickname(blob));
+
+		manager.addKey(bean("one"), first, true);
+		assertTrue(manager.removeKey("one"));
+		assertEquals("other", manager.getKeyNickname(blob));
+		assertTrue(manager.removeKey("other"));
+		assertNull(manager.getKeyNickname(blob));
+	}
+
+	@Test
+	public void snapshotOnlyChangesWithKeys() {
+		AgentIdentities empty = manager.getAgentIdentities();
+		manager.addKey(bean("first"), first, true);
+		AgentIdentities loaded = manager.getAgentIdentities();
+		assertTrue(loaded.getVersion() > empty.getVersion());
+
+		manager.getKey(PubkeyUtils.extractOpenSSHPublic(first));
+		assertFalse(manager.removeKey("missing"));
+		assertSame(loaded, manager.getAgentIdentities());
+
+		manager.removeKey("first");
+		assertTrue(manager.getAgentIdentities().getVersion() > loaded.getVersion());
+		assertEquals(1, loaded.getIdentities().size());
+	}
+
+	@Test
+	public void replacingKeyUpdatesIndex() {
+		manager.addKey(bean("key"), first, true);
+		manager.addKey(bean("key"), second, true);
+
+		assertNull(manager.getKeyNickname(PubkeyUtils.extractOpenSSHPublic(first)));
+		assertEquals("key", manager.getKeyNickname(PubkeyUtils.extractOpenSSHPublic(second)));
+		assertEquals(1, manager.getAgentIdentities().getIdentities().size());
+
+		manager.removeAllKeys();
+		assertTrue(manager.getAgentIdentities().getIdentities().isEmpty());
+		assertNull(manager.getKey(PubkeyUtils.extractOpenSSHPublic(second)));
+	}
+
+	@Test
+	public void brokenStartKeyDoesNotBlock() {
+		manager.executor = new BridgeExecutor();
+
+		PubkeyBean pubkey = bean("broken");
+		pubkey.setType(PubkeyDatabase.KEY_TYPE_RSA);
+		pubkey.setPrivateKey(new byte[] { 1, 2, 3 });
+		pubkey.setPublicKey(first.getPublic().getEncoded());
+		manager.loadStartKey(pubkey);
+
+		assertFalse(manager.awaitStartKey("broken"));
+		manager.awaitStartKeys();
+		assertFalse(manager.awaitStartKey("missing"));
+		assertTrue(manager.getAgentIdentities().getIdentities().isEmpty());
+
+		manager.executor.shutdown();
+	}
+}
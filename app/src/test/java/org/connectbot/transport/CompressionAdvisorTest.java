@@ -0,0 +1,118 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionAdvisorTest {
+	@Test
+	public void unknownHostIsNotCompressed() {
+		assertFalse(CompressionAdvisor.decide(new CompressionAdvisor.LinkStats()));
+	}
+
+	@Test
+	public void slowLinkIsCompressed() {
+		CompressionAdvisor.LinkStats stats = new CompressionAdvisor.LinkStats();
+		stats.rtt = 300;
+		assertTrue(CompressionAdvisor.decide(stats));
+
+		stats.rtt = 20;
+		assertFalse(CompressionAdvisor.decide(stats));
+	}
+
+	@Test
+	public void measuredOneWayTriesTheOther() {
+		CompressionAdvisor.LinkStats stats = new CompressionAdvisor.LinkStats();
+		stats.rtt = 20;
+		stats.plainRate = 5 * 1024 * 1024;
+		assertTrue(CompressionAdvisor.decide(stats));
+
+		stats.rtt = 300;
+		stats.plainRate = -1;
+		stats.compressedRate = 40 * 1024;
+		assertFalse(CompressionAdvisor.decide(stats));
+	}
+
+	@Test
+	public void measuredBothWaysKeepsTheFaster() {
+		CompressionAdvisor.LinkStats stats = new CompressionAdvisor.LinkStats();
+		stats.rtt = 300;
+		stats.plainRate = 100 * 1024;
+		stats.compressedRate = 300 * 1024;
+		assertTrue(CompressionAdvisor.decide(stats));
+
+		// compression has to win by a margin, even on a slow link
+		stats.compressedRate = 105 * 1024;
+		assertFalse(CompressionAdvisor.decide(stats));
+	}
+
+	@Test
+	public void statsSurviveEncoding() {
+		CompressionAdvisor.LinkStats stats = new CompressionAdvisor.LinkStats();
+		stats.rtt = 42;
+		stats.compressedRate = 1234;
+
+		CompressionAdvisor.LinkStats decoded = CompressionAdvisor.LinkStats.decode(stats.encode());
+		assertEquals(42, decoded.rtt);
+		assertEquals(-1, decoded.plainRate);
+		assertEquals(1234, decoded.compressedRate);
+
+		assertEquals(-1, CompressionAdvisor.LinkStats.decode("garbage").rtt);
+	}
+
+	@Test
+	public void meterOnlyCountsBursts() {
+		CompressionAdvisor.Meter meter = new CompressionAdvisor.Meter(0);
+
+		// idle at the prompt, then 64 KiB arriving over 500 ms
+		long now = 2000;
+		assertFalse(meter.onRead(100, now));
+		for (int i = 0; i < 64; i++) {
+			now += 8;
+			meter.onRead(1024, now);
+		}
+		assertEquals(64 * 1024 * 1000 / (64 * 8), meter.getRate());
+
+		assertTrue(meter.onRead(10, CompressionAdvisor.MEASURE_TIME));
+		assertTrue(meter.finish());
+		assertFalse(meter.finish());
+	}
+
+	@Test
+	public void meterMeasuresInteractiveOutput() {
+		CompressionAdvisor.Meter meter = new CompressionAdvisor.Meter(0);
+
+		// a screen redrawn in three reads after the user pressed a key
+		meter.onRead(1024, 5000);
+		meter.onRead(1024, 5010);
+		meter.onRead(1024, 5020);
+		assertEquals(2048 * 1000 / 20, meter.getRate());
+	}
+
+	@Test
+	public void meterNeedsEnoughData() {
+		CompressionAdvisor.Meter meter = new CompressionAdvisor.Meter(0);
+		meter.onRead(100, 10);
+		meter.onRead(100, 20);
+		assertEquals(-1, meter.getRate());
+	}
+}
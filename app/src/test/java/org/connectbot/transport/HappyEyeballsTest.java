@@ -0,0 +1,145 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HappyEyeballsTest {
+	private static final InetAddress V6_A = address("2001:db8::1");
+	private static final InetAddress V6_B = address("2001:db8::2");
+	private static final InetAddress V4_A = address("192.0.2.1");
+	private static final InetAddress V4_B = address("192.0.2.2");
+
+	@Test
+	public void sortAlternatesFamiliesStartingWithIpv6() {
+		List<InetAddress> sorted = HappyEyeballs.sortAddresses(
+				new InetAddress[] { V4_A, V4_B, V6_A, V6_B });
+
+		assertEquals(Arrays.asList(V6_A, V4_A, V6_B, V4_B), sorted);
+	}
+
+	@Test
+	public void blackholedAddressLosesToNextAttempt() throws Exception {
+		FakeConnector connector = new FakeConnector(V6_A);
+
+		long start = System.nanoTime();
+		HappyEyeballs.Result<FakeConnection> result =
+				HappyEyeballs.connect(Arrays.asList(V6_A, V4_A), 22, connector);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+
+		assertEquals(V4_A, result.connection.address.getAddress());
+		assertEquals(V4_A, result.winner.address);
+		assertEquals(2, result.attempts.size());
+		assertTrue("second attempt should be staggered", result.winner.started >= HappyEyeballs.ATTEMPT_DELAY);
+		assertTrue("should not wait for the hanging attempt", elapsed < 5000);
+
+		// the attempt that never answered was aborted
+		assertTrue(connector.hanging.closed);
+		assertFalse(result.connection.closed);
+	}
+
+	@Test
+	public void failureStartsNextAttemptImmediately() throws Exception {
+		FakeConnector connector = new FakeConnector(null);
+		connector.refused = V6_A;
+
+		HappyEyeballs.Result<FakeConnection> result =
+				HappyEyeballs.connect(Arrays.asList(V6_A, V4_A), 22, connector);
+
+		assertEquals(V4_A, result.winner.address);
+		assertTrue(result.winner.started < HappyEyeballs.ATTEMPT_DELAY);
+		assertTrue(result.attempts.get(0).error instanceof ConnectException);
+	}
+
+	@Test
+	public void allFailingThrowsLastError() throws Exception {
+		FakeConnector connector = new FakeConnector(null);
+		connector.refused = V4_A;
+
+		try {
+			HappyEyeballs.connect(Arrays.asList(V4_A), 22, connector);
+			fail("connect should have failed");
+		} catch (ConnectException expected) {
+		}
+	}
+
+	private static InetAddress address(String literal) {
+		try {
+			return InetAddress.getByName(literal);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static class FakeConnection implements Closeable {
+		final CountDownLatch closedLatch = new CountDownLatch(1);
+		volatile boolean closed;
+		InetSocketAddress address;
+
+		@Override
+		public void close() {
+			closed = true;
+			closedLatch.countDown();
+		}
+	}
+
+	private static class FakeConnector implements HappyEyeballs.Connector<FakeConnection> {
+		private final InetAddress blackholed;
+		volatile InetAddress refused;
+		volatile FakeConnection hanging;
+
+		FakeConnector(InetAddress blackholed) {
+			this.blackholed = blackholed;
+		}
+
+		@Override
+		public FakeConnection create() {
+			return new FakeConnection();
+		}
+
+		@Override
+		public void connect(FakeConnection connection, InetSocketAddress address) throws IOException {
+			connection.address = address;
+			if (address.getAddress().equals(refused))
+				throw new ConnectException("Connection refused");
+			if (address.getAddress().equals(blackholed)) {
+				// like a connect that never gets an answer, until it is closed
+				hanging = connection;
+				try {
+					connection.closedLatch.await();
+				} catch (InterruptedException ignored) {
+				}
+				throw new IOException("Socket closed");
+			}
+		}
+	}
+}
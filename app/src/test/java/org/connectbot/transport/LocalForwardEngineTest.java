@@ -0,0 +1,276 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.connectbot.bean.PortForwardBean;
+import org.connectbot.util.HostDatabase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.LocalStreamForwarder;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(AndroidJUnit4.class)
+public class LocalForwardEngineTest {
+	private static final long TIMEOUT_SECONDS = 10;
+
+	private final BlockingQueue<FakeChannel> opened = new LinkedBlockingQueue<>();
+	private final List<Socket> clients = new ArrayList<>();
+	private volatile CountDownLatch windowOpen;
+
+	private LocalForwardEngine engine;
+	private PortForwardBean bean;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+		Connection connection = mock(Connection.class);
+		when(connection.createLocalStreamForwarder(anyString(), anyInt())).thenAnswer(
+				new Answer<LocalStreamForwarder>() {
+					@Override
+					public LocalStreamForwarder answer(InvocationOnMock invocation) throws IOException {
+						final FakeChannel channel = new FakeChannel(windowOpen);
+						LocalStreamForwarder forwarder = mock(LocalStreamForwarder.class);
+						when(forwarder.getInputStream()).thenReturn(channel.in);
+						when(forwarder.getOutputStream()).thenReturn(channel.out);
+						doAnswer(new Answer<Void>() {
+							@Override
+							public Void answer(InvocationOnMock invocation) {
+								channel.close();
+								return null;
+							}
+						}).when(forwarder).close();
+						opened.add(channel);
+						return forwarder;
+					}
+				});
+
+		ServerSocket probe = new ServerSocket(0);
+		port = probe.getLocalPort();
+		probe.close();
+
+		bean = new PortForwardBean(1, 1, "test", HostDatabase.PORTFORWARD_LOCAL, port, "example.com", 80);
+		engine = new LocalForwardEngine(connection);
+		engine.add(bean, new InetSocketAddress("127.0.0.1", port));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (Socket client : clients)
+			client.close();
+		engine.close();
+	}
+
+	private Socket connect() throws IOException {
+		Socket client = new Socket("127.0.0.1", port);
+		client.setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+		clients.add(client);
+		return client;
+	}
+
+	private FakeChannel nextChannel() throws InterruptedException {
+		FakeChannel channel = opened.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		assertNotNull("No channel was opened", channel);
+		return channel;
+	}
+
+	private static String read(Socket client, int length) throws IOException {
+		byte[] buf = new byte[length];
+		int done = 0;
+		while (done < length) {
+			int n = client.getInputStream().read(buf, done, length - done);
+			if (n < 0)
+				break;
+			done += n;
+		}
+		return new String(buf, 0, done, "US-ASCII");
+	}
+
+	@Test
+	public void forwardsBothWays() throws Exception {
+		Socket client = connect();
+		FakeChannel channel = nextChannel();
+
+		client.getOutputStream().write("ping".getBytes("US-ASCII"));
+		assertEquals("ping", channel.awaitSent(4));
+
+		channel.send("pong");
+		assertEquals("pong", read(client, 4));
+		assertEquals(4, bean.getBytesReceived());
+
+		// counted once the channel's write returns
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+		while (bean.getBytesSent() < 4 && System.nanoTime() < deadline)
+			Thread.sleep(10);
+		assertEquals(4, bean.getBytesSent());
+	}
+
+	@Test
+	public void fullChannelHoldsUpOnlyItsTunnel() throws Exception {
+		CountDownLatch full = new CountDownLatch(1);
+		windowOpen = full;
+		Socket stuck = connect();
+		nextChannel();
+		windowOpen = null;
+
+		Socket client = connect();
+		FakeChannel channel = nextChannel();
+
+		try {
+			stuck.getOutputStream().write(new byte[1024]);
+			client.getOutputStream().write("hello".getBytes("US-ASCII"));
+			assertEquals("hello", channel.awaitSent(5));
+		} finally {
+			full.countDown();
+		}
+	}
+
+	@Test
+	public void acceptingPausesAtTunnelCap() throws Exception {
+		for (int i = 0; i <= LocalForwardEngine.MAX_TUNNELS; i++)
+			connect();
+
+		for (int i = 0; i < LocalForwardEngine.MAX_TUNNELS; i++)
+			nextChannel();
+		assertNull("Accepted past the cap", opened.poll(500, TimeUnit.MILLISECONDS));
+
+		// a reset fails the local side and closes the tunnel
+		Socket first = clients.get(0);
+		first.setSoLinger(true, 0);
+		first.close();
+
+		nextChannel();
+	}
+
+	/**
+	 * Both ends of a channel: what the engine writes is collected, and what
+	 * the test sends is handed to the engine's reader. A channel created
+	 * with a latch accepts no writes until it is counted down, like a
+	 * channel whose remote window is full.
+	 */
+	private static final class FakeChannel {
+		private static final int EOF = -1;
+
+		private final BlockingQueue<Integer> incoming = new LinkedBlockingQueue<>();
+		private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		private final CountDownLatch window;
+
+		final InputStream in = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				try {
+					int n = 0;
+					Integer next = incoming.take();
+					if (next == EOF) {
+						incoming.add(EOF);
+						return -1;
+					}
+					while (next != null && next != EOF && n < len) {
+						b[off + n++] = (byte) (int) next;
+						next = n < len ? incoming.poll() : null;
+					}
+					if (next != null && next == EOF)
+						incoming.add(EOF);
+					return n;
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		};
+
+		final OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (window != null) {
+					try {
+						window.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				synchronized (sent) {
+					sent.write(b, off, len);
+					sent.notifyAll();
+				}
+			}
+		};
+
+		FakeChannel(CountDownLatch window) {
+			this.window = window;
+		}
+
+		void send(String data) throws IOException {
+			for (byte b : data.getBytes("US-ASCII"))
+				incoming.add(b & 0xff);
+		}
+
+		/** what closing the forwarder does to a blocked read */
+		void close() {
+			incoming.add(EOF);
+		}
+
+		String awaitSent(int length) throws Exception {
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+			synchronized (sent) {
+				while (sent.size() < length && System.nanoTime() < deadline)
+					sent.wait(100);
+				return sent.toString("US-ASCII");
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import org.connectbot.bean.HostBean;
+import org.connectbot.service.TerminalManager;
+import org.connectbot.util.HostDatabase;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.trilead.ssh2.AuthAgentCallback;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.ExtendedServerHostKeyVerifier;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(AndroidJUnit4.class)
+public class SharedConnectionTest {
+	private static final String KEY = "user@example.com:22";
+
+	private TerminalManager manager;
+	private Connection connection;
+	private SharedConnection shared;
+
+	@Before
+	public void setUp() {
+		manager = new TerminalManager();
+		connection = mock(Connection.class);
+		when(connection.isAuthenticationComplete()).thenReturn(true);
+		shared = new SharedConnection(connection);
+	}
+
+	private static HostBean host() {
+		HostBean host = new HostBean("example", "ssh", "user", "example.com", 22);
+		host.setUseKeys(true);
+		host.setUseAuthAgent(HostDatabase.AUTHAGENT_NO);
+		host.setPubkeyId(HostDatabase.PUBKEYID_ANY);
+		return host;
+	}
+
+	@Test
+	public void nothingToAcquireBeforeSharing() {
+		assertNull(manager.acquireConnection(KEY));
+	}
+
+	@Test
+	public void acquireSharedConnection() {
+		manager.shareConnection(KEY, shared);
+
+		assertSame(shared, manager.acquireConnection(KEY));
+		assertNull(manager.acquireConnection("other@example.com:22"));
+	}
+
+	@Test
+	public void lastReleaseCloses() {
+		manager.shareConnection(KEY, shared);
+		assertSame(shared, manager.acquireConnection(KEY));
+
+		assertTrue(manager.releaseConnection(KEY, shared));
+		verify(connection, never()).close();
+
+		assertFalse(manager.releaseConnection(KEY, shared));
+		verify(connection).close();
+		assertNull(manager.acquireConnection(KEY));
+	}
+
+	@Test
+	public void firstOfferIsKept() {
+		SharedConnection other = new SharedConnection(mock(Connection.class));
+		manager.shareConnection(KEY, shared);
+		manager.shareConnection(KEY, other);
+
+		assertSame(shared, manager.acquireConnection(KEY));
+	}
+
+	@Test
+	public void lostConnectionIsNotShared() {
+		ConnectionMonitor monitor = mock(ConnectionMonitor.class);
+		shared.addConnectionMonitor(monitor);
+		manager.shareConnection(KEY, shared);
+
+		Throwable reason = new Exception("gone");
+		shared.connectionLost(reason);
+
+		verify(monitor).connectionLost(reason);
+		assertNull(manager.acquireConnection(KEY));
+	}
+
+	@Test
+	public void agentRequestsGoToAnOpenSession() {
+		AuthAgentCallback first = mock(AuthAgentCallback.class);
+		AuthAgentCallback second = mock(AuthAgentCallback.class);
+		shared.addAuthAgent(first);
+		shared.addAuthAgent(second);
+
+		shared.getKeyPair(new byte[] { 1 });
+		verify(second).getKeyPair(new byte[] { 1 });
+
+		// the later session closes; its prompts must not go to a closed tab
+		shared.removeAuthAgent(second);
+		shared.getKeyPair(new byte[] { 2 });
+		verify(first).getKeyPair(new byte[] { 2 });
+		verify(second, never()).getKeyPair(new byte[] { 2 });
+
+		shared.removeAuthAgent(first);
+		assertNull(shared.getKeyPair(new byte[] { 3 }));
+		assertTrue(shared.isAgentLocked());
+	}
+
+	@Test
+	public void rekeyIsVerifiedByAnOpenSession() throws Exception {
+		ExtendedServerHostKeyVerifier first = mock(ExtendedServerHostKeyVerifier.class);
+		ExtendedServerHostKeyVerifier second = mock(ExtendedServerHostKeyVerifier.class);
+		when(first.verifyServerHostKey("example.com", 22, "ssh-ed25519", new byte[] { 1 })).thenReturn(true);
+		shared.addHostKeyVerifier(first);
+		shared.addHostKeyVerifier(second);
+
+		shared.removeHostKeyVerifier(second);
+		assertTrue(shared.getHostKeyVerifier().verifyServerHostKey("example.com", 22, "ssh-ed25519", new byte[] { 1 }));
+
+		shared.removeHostKeyVerifier(first);
+		assertFalse(shared.getHostKeyVerifier().verifyServerHostKey("example.com", 22, "ssh-ed25519", new byte[] { 1 }));
+	}
+
+	@Test
+	public void keyMatchesSameSettings() {
+		assertEquals(SSH.getConnectionKey(host()), SSH.getConnectionKey(host()));
+	}
+
+	@Test
+	public void keyDiffersBySettings() {
+		String key = SSH.getConnectionKey(host());
+
+		HostBean compressed = host();
+		compressed.setCompression(true);
+		assertNotEquals(key, SSH.getConnectionKey(compressed));
+
+		HostBean agent = host();
+		agent.setUseAuthAgent(HostDatabase.AUTHAGENT_YES);
+		assertNotEquals(key, SSH.getConnectionKey(agent));
+
+		HostBean pubkey = host();
+		pubkey.setPubkeyId(42);
+		assertNotEquals(key, SSH.getConnectionKey(pubkey));
+
+		HostBean noKeys = host();
+		noKeys.setUseKeys(false);
+		assertNotEquals(key, SSH.getConnectionKey(noKeys));
+
+		HostBean port = host();
+		port.setPort(2222);
+		assertNotEquals(key, SSH.getConnectionKey(port));
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SocksRequestTest {
+	private static ByteBuffer input(int... bytes) {
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+		for (int b : bytes)
+			buffer.put((byte) b);
+		buffer.flip();
+		return buffer;
+	}
+
+	@Test
+	public void socks5InPieces() throws Exception {
+		SocksRequest request = new SocksRequest();
+		ByteBuffer out = ByteBuffer.allocate(16);
+
+		assertFalse(request.read(input(5, 1, 0), out));
+		assertEquals(2, out.position());
+
+		// the request is incomplete and must be left for next time
+		ByteBuffer partial = input(5, 1, 0, 3, 4, 'h', 'o');
+		assertFalse(request.read(partial, out));
+		assertEquals(0, partial.position());
+
+		ByteBuffer rest = input(5, 1, 0, 3, 4, 'h', 'o', 's', 't', 0, 22, 'x');
+		assertTrue(request.read(rest, out));
+		assertEquals("host", request.getHost());
+		assertEquals(22, request.getPort());
+		assertEquals(1, rest.remaining());
+	}
+
+	@Test
+	public void socks4a() throws Exception {
+		SocksRequest request = new SocksRequest();
+		ByteBuffer out = ByteBuffer.allocate(16);
+
+		assertTrue(request.read(input(4, 1, 0, 80, 0, 0, 0, 1, 'u', 0, 'w', 'w', 'w', 0), out));
+		assertEquals("www", request.getHost());
+		assertEquals(80, request.getPort());
+		assertEquals(0, out.position());
+		assertArrayEquals(new byte[] { 0, 0x5a, 0, 0, 0, 0, 0, 0 }, request.reply(true));
+	}
+
+	@Test
+	public void socks4Address() throws Exception {
+		SocksRequest request = new SocksRequest();
+		assertTrue(request.read(input(4, 1, 1, 0, 10, 0, 0, 2, 0), ByteBuffer.allocate(16)));
+		assertEquals("10.0.0.2", request.getHost());
+		assertEquals(256, request.getPort());
+	}
+
+	@Test(expected = IOException.class)
+	public void bindIsRejected() throws Exception {
+		SocksRequest request = new SocksRequest();
+		ByteBuffer out = ByteBuffer.allocate(16);
+		request.read(input(5, 1, 0, 5, 2, 0, 1, 127, 0, 0, 1, 0, 22), out);
+	}
+
+	@Test(expected = IOException.class)
+	public void notSocks() throws Exception {
+		new SocksRequest().read(input('G', 'E', 'T'), ByteBuffer.allocate(16));
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SelectableChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.connectbot.bean.HostBean;
+import org.connectbot.service.BridgeExecutor;
+import org.connectbot.service.TerminalBridge;
+import org.connectbot.service.TerminalManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(AndroidJUnit4.class)
+public class TelnetNonBlockingTest {
+	private static final byte IAC = (byte) 255;
+	private static final byte WILL = (byte) 251;
+	private static final byte DO = (byte) 253;
+	private static final byte COMPRESS2 = (byte) 86;
+	private static final byte TIMING_MARK = (byte) 6;
+
+	private static final long TIMEOUT_MILLIS = 5000;
+
+	private ServerSocket server;
+	private Socket remote;
+	private TerminalBridge bridge;
+	private TerminalManager manager;
+	private Telnet telnet;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+
+		bridge = mock(TerminalBridge.class);
+		manager = new TerminalManager();
+		manager.executor = new BridgeExecutor();
+
+		telnet = new Telnet();
+		telnet.setHost(new HostBean("test", "telnet", "", "127.0.0.1", server.getLocalPort()));
+		telnet.setBridge(bridge);
+		telnet.setManager(manager);
+		telnet.connect();
+		remote = server.accept();
+		remote.setSoTimeout((int) TIMEOUT_MILLIS);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		telnet.close();
+		remote.close();
+		server.close();
+		manager.executor.shutdown();
+	}
+
+	private SelectableChannel enable() throws IOException {
+		SelectableChannel channel = telnet.enableNonBlocking();
+		assertNotNull(channel);
+		assertFalse(channel.isBlocking());
+		return channel;
+	}
+
+	/** Read without blocking until length bytes have come, polling as IoLoop would. */
+	private byte[] readNonBlocking(int length) throws Exception {
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (received.size() < length) {
+			if (System.currentTimeMillis() > deadline)
+				fail("Only " + received.size() + " of " + length + " bytes arrived");
+			int n = telnet.readNonBlocking(buf, 0, buf.length);
+			if (n > 0)
+				received.write(buf, 0, n);
+			else
+				Thread.sleep(10);
+		}
+		return received.toByteArray();
+	}
+
+	@Test
+	public void readReturnsAtOnceWhenNothingArrived() throws Exception {
+		enable();
+		assertEquals(0, telnet.readNonBlocking(new byte[16], 0, 16));
+
+		OutputStream out = remote.getOutputStream();
+		out.write("hello".getBytes("US-ASCII"));
+		out.flush();
+		assertEquals("hello", new String(readNonBlocking(5), "US-ASCII"));
+		assertEquals(0, telnet.readNonBlocking(new byte[16], 0, 16));
+	}
+
+	@Test
+	public void repliesAreSentWithoutBlockingTheReader() throws Exception {
+		enable();
+
+		OutputStream out = remote.getOutputStream();
+		out.write(new byte[] { IAC, WILL, COMPRESS2 });
+		out.write("x".getBytes("US-ASCII"));
+		out.flush();
+		assertEquals("x", new String(readNonBlocking(1), "US-ASCII"));
+
+		byte[] reply = new byte[3];
+		new DataInputStream(remote.getInputStream()).readFully(reply);
+		assertArrayEquals(new byte[] { IAC, DO, COMPRESS2 }, reply);
+	}
+
+	@Test
+	public void writeWaitsForRoomOnceNonBlocking() throws Exception {
+		enable();
+
+		// more than the socket buffers hold, so the writer has to wait for room
+		final byte[] data = new byte[4 * 1024 * 1024];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) ('a' + i % 26);
+
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					telnet.write(data);
+				} catch (IOException ignored) {
+				}
+			}
+		});
+		writer.start();
+
+		Thread.sleep(200);
+		byte[] received = new byte[data.length];
+		new DataInputStream(remote.getInputStream()).readFully(received);
+		writer.join(TimeUnit.SECONDS.toMillis(5));
+
+		assertFalse(writer.isAlive());
+		assertArrayEquals(data, received);
+		verify(bridge, never()).dispatchDisconnect(false);
+	}
+
+	@Test
+	public void keepAliveDoesNotWaitForStuckWrite() throws Exception {
+		enable();
+
+		// fills the socket buffers and holds the output buffer while waiting
+		final byte[] data = new byte[4 * 1024 * 1024];
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					telnet.write(data);
+				} catch (IOException ignored) {
+				}
+			}
+		});
+		writer.start();
+		Thread.sleep(200);
+
+		long start = System.nanoTime();
+		assertTrue(telnet.sendKeepAlive());
+		assertTrue(telnet.sendKeepAlive());
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("Keep-alive waited " + elapsed + " ms", elapsed < 500);
+
+		// one mark goes out once the write is done
+		byte[] received = new byte[data.length + 3];
+		new DataInputStream(remote.getInputStream()).readFully(received);
+		writer.join(TimeUnit.SECONDS.toMillis(5));
+		assertArrayEquals(new byte[] { IAC, DO, TIMING_MARK },
+				new byte[] { received[data.length], received[data.length + 1], received[data.length + 2] });
+		assertEquals(0, remote.getInputStream().available());
+	}
+
+	@Test
+	public void remoteCloseDisconnects() throws Exception {
+		enable();
+		remote.close();
+
+		byte[] buf = new byte[16];
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		try {
+			while (System.currentTimeMillis() < deadline) {
+				telnet.readNonBlocking(buf, 0, buf.length);
+				Thread.sleep(10);
+			}
+			fail("Remote close was not noticed");
+		} catch (IOException expected) {
+		}
+		verify(bridge).dispatchDisconnect(false);
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyDerivationTest {
+	private static byte[] hex(String s) {
+		byte[] bytes = new byte[s.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+		return bytes;
+	}
+
+	/** Test vectors of PBKDF2-HMAC-SHA256 from RFC 7914 section 11. */
+	@Test
+	public void rfc7914Vectors() throws Exception {
+		assertArrayEquals(hex("55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc"
+				+ "49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783"),
+				KeyDerivation.pbkdf2("passwd".getBytes(), "salt".getBytes(), 1, 64));
+		assertArrayEquals(hex("4ddcd8f60b98be21830cee5ef22701f9641a4418d04c0414aeff08876b34ab56"
+				+ "a1d425a1225833549adb841b51c9b3176a272bdebba1d078478f62b397f33c8d"),
+				KeyDerivation.pbkdf2("Password".getBytes(), "NaCl".getBytes(), 80000, 64));
+	}
+
+	@Test
+	public void shortKeyIsPrefix() throws Exception {
+		byte[] full = KeyDerivation.pbkdf2("password".getBytes(), "salt".getBytes(), 4096, 32);
+		assertArrayEquals(hex("c5e478d59288c841aa530db6845c4c8d962893a001ce4e11a4963873aa98134a"), full);
+
+		byte[] prefix = new byte[20];
+		System.arraycopy(full, 0, prefix, 0, prefix.length);
+		assertArrayEquals(prefix, KeyDerivation.pbkdf2("password".getBytes(), "salt".getBytes(), 4096, 20));
+	}
+
+	@Test
+	public void emptyPassword() throws Exception {
+		byte[] empty = KeyDerivation.pbkdf2(new byte[0], "salt".getBytes(), 2, 32);
+		byte[] zero = KeyDerivation.pbkdf2(new byte[1], "salt".getBytes(), 2, 32);
+		assertArrayEquals(zero, empty);
+		assertFalse(Arrays.equals(empty,
+				KeyDerivation.pbkdf2(new byte[] { 1 }, "salt".getBytes(), 2, 32)));
+	}
+
+	@Test
+	public void calibrationStaysInBounds() throws Exception {
+		int rounds = KeyDerivation.calibrate(1);
+		assertTrue(rounds >= KeyDerivation.MIN_ITERATIONS);
+		assertTrue(rounds <= KeyDerivation.MAX_ITERATIONS);
+
+		int slower = KeyDerivation.calibrate(100);
+		assertTrue("100 ms gave " + slower + " rounds", slower >= KeyDerivation.MIN_ITERATIONS);
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import org.connectbot.bean.PubkeyBean;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class PubkeyDatabaseTest {
+	private static final byte[] LEGACY_BLOB = new byte[] { 1, 2, 3 };
+
+	private PubkeyDatabase db;
+
+	@Before
+	public void setUp() {
+		Context context = ApplicationProvider.getApplicationContext();
+		// skip timing key derivation on this machine
+		context.getSharedPreferences("kdf", Context.MODE_PRIVATE).edit()
+				.putInt("iterations", KeyDerivation.MIN_ITERATIONS).commit();
+		PubkeyDatabase.resetInMemoryInstance(context);
+		db = PubkeyDatabase.get(context);
+	}
+
+	private PubkeyBean saveLegacyKey() {
+		PubkeyBean pubkey = new PubkeyBean();
+		pubkey.setNickname("old");
+		pubkey.setType(PubkeyDatabase.KEY_TYPE_RSA);
+		pubkey.setPrivateKey(LEGACY_BLOB);
+		pubkey.setPublicKey(new byte[] { 4 });
+		pubkey.setEncrypted(true);
+		pubkey.setKdf(PubkeyUtils.KDF_LEGACY);
+		return db.savePubkey(pubkey);
+	}
+
+	private static KeyPair newKeyPair() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		return generator.generateKeyPair();
+	}
+
+	@Test
+	public void upgradeStoresOnlyTheKey() throws Exception {
+		PubkeyBean pubkey = saveLegacyKey();
+		db.renamePubkey(pubkey, "renamed");
+
+		KeyPair pair = newKeyPair();
+		assertTrue(db.upgradeEncryption(pubkey, pair.getPrivate(), "secret"));
+
+		// whoever holds the bean still sees the old key with its format
+		assertEquals(PubkeyUtils.KDF_LEGACY, pubkey.getKdf());
+		assertArrayEquals(LEGACY_BLOB, pubkey.getPrivateKey());
+
+		PubkeyBean stored = db.findPubkeyById(pubkey.getId());
+		assertEquals("renamed", stored.getNickname());
+		assertEquals(PubkeyUtils.KDF_CURRENT, stored.getKdf());
+		assertEquals(pair.getPrivate(), PubkeyUtils.decodePrivate(stored.getPrivateKey(),
+				PubkeyDatabase.KEY_TYPE_RSA, "secret", stored.getKdf()));
+	}
+
+	@Test
+	public void staleBeanIsNotUpgradedTwice() throws Exception {
+		PubkeyBean pubkey = saveLegacyKey();
+		KeyPair pair = newKeyPair();
+
+		assertTrue(db.upgradeEncryption(pubkey, pair.getPrivate(), "secret"));
+		byte[] upgraded = db.findPubkeyById(pubkey.getId()).getPrivateKey();
+
+		assertFalse(db.upgradeEncryption(pubkey, pair.getPrivate(), "secret"));
+		assertArrayEquals(upgraded, db.findPubkeyById(pubkey.getId()).getPrivateKey());
+	}
+}
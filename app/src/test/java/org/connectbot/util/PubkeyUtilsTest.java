@@ -19,6 +19,7 @@ package org.connectbot.util;
 
 import java.math.BigInteger;
 import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.interfaces.DSAParams;
@@ -32,6 +33,7 @@ import org.junit.runner.RunWith;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
@@ -354,4 +356,44 @@ public class PubkeyUtilsTest {
 	public void getRSAPublicExponentFromPkcs8Encoded_Success() throws Exception {
 		assertEquals(RSA_KEY_E, PubkeyUtils.getRSAPublicExponentFromPkcs8Encoded(RSA_KEY_PKCS8));
 	}
+
+	private static KeyPair generate(String type, int bits) throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(type);
+		generator.initialize(bits);
+		return generator.generateKeyPair();
+	}
+
+	private static byte[] encryptLegacy(PrivateKey key, String secret) throws Exception {
+		byte[] salt = new byte[8];
+		byte[] ciphertext = Encryptor.encrypt(salt, 1000, secret, key.getEncoded());
+		byte[] complete = new byte[salt.length + ciphertext.length];
+		System.arraycopy(salt, 0, complete, 0, salt.length);
+		System.arraycopy(ciphertext, 0, complete, salt.length, ciphertext.length);
+		return complete;
+	}
+
+	@Test
+	public void encodedPrivate_RoundTrip() throws Exception {
+		PrivateKey key = generate("RSA", 1024).getPrivate();
+		byte[] encrypted = PubkeyUtils.getEncodedPrivate(key, "secret", KeyDerivation.MIN_ITERATIONS);
+
+		assertArrayEquals(key.getEncoded(), PubkeyUtils.decodePrivate(encrypted, "RSA", "secret",
+				PubkeyUtils.KDF_CURRENT).getEncoded());
+		assertArrayEquals(key.getEncoded(), PubkeyUtils.getEncodedPrivate(key, "", 1));
+
+		try {
+			PubkeyUtils.decodePrivate(encrypted, "RSA", "wrong", PubkeyUtils.KDF_CURRENT);
+			fail("Should not decode with the wrong password");
+		} catch (Exception expected) {
+		}
+	}
+
+	@Test
+	public void decodePrivate_Legacy() throws Exception {
+		PrivateKey key = generate("RSA", 1024).getPrivate();
+		byte[] encrypted = encryptLegacy(key, "secret");
+
+		assertArrayEquals(key.getEncoded(), PubkeyUtils.decodePrivate(encrypted, "RSA", "secret",
+				PubkeyUtils.KDF_LEGACY).getEncoded());
+	}
 }
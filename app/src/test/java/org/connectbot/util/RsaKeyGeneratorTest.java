@@ -0,0 +1,133 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.util;
+
+import java.security.KeyPair;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RsaKeyGeneratorTest {
+	private static final byte[] ENTROPY = "gathered by touching the screen".getBytes();
+
+	@Test
+	public void generatesWorkingKey() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		KeyPair pair = new RsaKeyGenerator(1024, ENTROPY, 2).generate(new RsaKeyGenerator.ProgressListener() {
+			@Override
+			public void onProgress(int tested, int primes) {
+				calls.incrementAndGet();
+			}
+		});
+
+		RSAPublicKey pub = (RSAPublicKey) pair.getPublic();
+		RSAPrivateCrtKey priv = (RSAPrivateCrtKey) pair.getPrivate();
+		assertEquals(1024, pub.getModulus().bitLength());
+		assertEquals(RsaKeyGenerator.PUBLIC_EXPONENT, pub.getPublicExponent());
+		assertEquals(pub.getModulus(), priv.getPrimeP().multiply(priv.getPrimeQ()));
+		assertTrue(calls.get() >= 2);
+
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(priv);
+		signature.update(ENTROPY);
+		byte[] signed = signature.sign();
+		signature.initVerify(pub);
+		signature.update(ENTROPY);
+		assertTrue(signature.verify(signed));
+	}
+
+	@Test
+	public void cancelStopsSearch() throws Exception {
+		final RsaKeyGenerator generator = new RsaKeyGenerator(8192, null, 1);
+		generator.cancel();
+
+		long start = System.nanoTime();
+		try {
+			generator.generate(null);
+			fail("Cancelled search should not make a key");
+		} catch (CancellationException expected) {
+		}
+
+		final RsaKeyGenerator running = new RsaKeyGenerator(8192, null, 2);
+		Thread canceller = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ignored) {
+				}
+				running.cancel();
+			}
+		};
+		canceller.start();
+		try {
+			running.generate(null);
+			fail("Cancelled search should not make a key");
+		} catch (CancellationException expected) {
+		}
+		assertTrue(running.isCancelled());
+		assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+	}
+
+	@Test
+	public void progressIsThrottled() throws Exception {
+		final List<long[]> calls = Collections.synchronizedList(new ArrayList<long[]>());
+		RsaKeyGenerator generator = new RsaKeyGenerator(2048, ENTROPY, 1);
+		long start = System.nanoTime();
+		generator.generate(new RsaKeyGenerator.ProgressListener() {
+			@Override
+			public void onProgress(int tested, int primes) {
+				calls.add(new long[] { System.nanoTime(), primes });
+			}
+		});
+		long elapsed = (System.nanoTime() - start) / 1000000;
+
+		// the first report, one per prime and one per interval at most
+		assertTrue(calls.size() <= 3 + elapsed / RsaKeyGenerator.PROGRESS_INTERVAL_MILLIS);
+		assertTrue(generator.getTested() > calls.size());
+		for (int i = 1; i < calls.size(); i++) {
+			long[] previous = calls.get(i - 1), call = calls.get(i);
+			// finding a prime is always reported
+			if (call[1] != previous[1])
+				continue;
+			long millis = (call[0] - previous[0]) / 1000000;
+			assertTrue("Reported again after " + millis + " ms",
+					millis >= RsaKeyGenerator.PROGRESS_INTERVAL_MILLIS - 1);
+		}
+	}
+
+	@Test
+	public void rejectsOddSizes() {
+		try {
+			new RsaKeyGenerator(1025, null, 1);
+			fail("Odd sizes should be refused");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar.jce;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EcCoreTest {
+	private static final String[] CURVES = { "secp256r1", "secp384r1", "secp521r1" };
+
+	private static ECParameterSpec params(String curve) throws Exception {
+		AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+		parameters.init(new ECGenParameterSpec(curve));
+		return parameters.getParameterSpec(ECParameterSpec.class);
+	}
+
+	private static BigInteger[] generator(ECParameterSpec params) {
+		return new BigInteger[] { params.getGenerator().getAffineX(), params.getGenerator().getAffineY() };
+	}
+
+	/** Known answer for kP on P-256 from the original EcCore self test. */
+	@Test
+	public void knownAnswerP256() throws Exception {
+		BigInteger k = new BigInteger(
+				"a9231e0d113abdacd3bb5edb24124fbef6f562c5f90b835670f5e48f775019f2", 16);
+		BigInteger[] P = new BigInteger[] {
+				new BigInteger("86645e0320c0f9dc1a9b8456396cc105754df67a9829c21e13ab6ecf944cf68c", 16),
+				new BigInteger("ea1721a578043d48f12738359b5eb5f0dac2242ec6128ee0ab6ff40c8fe0cae6", 16) };
+		BigInteger[] kP = new BigInteger[] {
+				new BigInteger("97a82a834b9e6b50660ae30d43dac9b200276e8bcd2ed6a6593048de09276d1a", 16),
+				new BigInteger("30a9590a01066d8ef54a910afcc8648dbc7400c01750af423ce95547f2154d56", 16) };
+
+		assertArrayEquals(kP, EcCore.multiplyPointA(P, k, params("secp256r1")));
+		assertArrayEquals(kP, EcCore.multiplyPointJ(P, k, params("secp256r1")));
+	}
+
+	@Test
+	public void matchesAffine() throws Exception {
+		Random random = new Random(1);
+		for (String curve : CURVES) {
+			ECParameterSpec params = params(curve);
+			BigInteger[] G = generator(params);
+			BigInteger n = params.getOrder();
+
+			for (int i = 0; i < 10; i++) {
+				BigInteger k = new BigInteger(n.bitLength(), random).mod(n);
+				assertArrayEquals(curve + " k=" + k.toString(16),
+						EcCore.multiplyPointA(G, k, params), EcCore.multiplyPointJ(G, k, params));
+			}
+
+			// small scalars, where additions may meet doublings
+			for (int k = 1; k <= 70; k++) {
+				assertArrayEquals(curve + " k=" + k,
+						EcCore.multiplyPointA(G, BigInteger.valueOf(k), params),
+						EcCore.multiplyPointJ(G, BigInteger.valueOf(k), params));
+			}
+
+			BigInteger ones = BigInteger.ONE.shiftLeft(n.bitLength() - 1).subtract(BigInteger.ONE);
+			assertArrayEquals(curve, EcCore.multiplyPointA(G, ones, params),
+					EcCore.multiplyPointJ(G, ones, params));
+		}
+	}
+
+	@Test
+	public void edgesOfOrder() throws Exception {
+		for (String curve : CURVES) {
+			ECParameterSpec params = params(curve);
+			BigInteger[] G = generator(params);
+			BigInteger n = params.getOrder();
+			BigInteger p = ((ECFieldFp) params.getCurve().getField()).getP();
+
+			BigInteger[] minusG = EcCore.multiplyPointJ(G, n.subtract(BigInteger.ONE), params);
+			assertEquals(curve, G[0], minusG[0]);
+			assertEquals(curve, p.subtract(G[1]), minusG[1]);
+
+			assertArrayEquals(curve, G, EcCore.multiplyPointJ(G, n.add(BigInteger.ONE), params));
+			assertNull(curve, EcCore.multiplyPointJ(G, n, params)[0]);
+			assertNull(curve, EcCore.multiplyPointJ(G, BigInteger.ZERO, params)[0]);
+		}
+	}
+
+	@Test
+	public void matchesPlatformKeys() throws Exception {
+		for (String curve : CURVES) {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+			generator.initialize(new ECGenParameterSpec(curve));
+			KeyPair pair = generator.generateKeyPair();
+
+			ECPrivateKey priv = (ECPrivateKey) pair.getPrivate();
+			ECPublicKey pub = (ECPublicKey) pair.getPublic();
+			BigInteger[] W = EcCore.multiplyPointJ(generator(priv.getParams()), priv.getS(), priv.getParams());
+			assertEquals(curve, pub.getW().getAffineX(), W[0]);
+			assertEquals(curve, pub.getW().getAffineY(), W[1]);
+		}
+	}
+}